@@ -16,13 +16,30 @@ import java.util.HashMap;
 public class ArrayTemplatePrinter extends Visitor {
 
   Printer printer;
+  ValueClasses valueClasses;
+
+  /**
+   * Whether to only declare the class descriptors, and define them where
+   * HeaderWriter.DEFINITIONS is defined.
+   */
+  boolean separateDefinitions;
 
   /**
    * Constructor
    * @param printer the printer for the implementation file
    */
   ArrayTemplatePrinter(Printer printer) {
+    this(printer, ValueClasses.none());
+  }
+
+  /**
+   * Constructor
+   * @param printer the printer for the implementation file
+   * @param valueClasses the classes whose arrays are flattened
+   */
+  ArrayTemplatePrinter(Printer printer, ValueClasses valueClasses) {
     this.printer = printer;
+    this.valueClasses = valueClasses;
     printer.register(this);
   }
   
@@ -57,6 +74,13 @@ public class ArrayTemplatePrinter extends Visitor {
     
     printer.pln().p("namespace __rt{").pln().incr();
 
+    if (separateDefinitions) {
+      printDeclaration(name);
+      if (valueClasses.contains(n.getString(0)))
+        printDeclaration(ValueClasses.valueTypeName(n.getString(0)));
+      printer.p("#ifdef ").p(HeaderWriter.DEFINITIONS).pln();
+    }
+
     printer.indent().pln("template<>");
     printer.indent().p("java::lang::Class").p(" __rt::Array< ")
       .p(name).p(" >::__class() {").pln();
@@ -71,10 +95,30 @@ public class ArrayTemplatePrinter extends Visitor {
       .indent().p("return k;").pln()
       .indent().p("}").pln();
 
+    // A flattened array is still an array of the class
+    if (valueClasses.contains(n.getString(0))) {
+      printer.pln();
+      printer.indent().pln("template<>");
+      printer.indent().p("java::lang::Class").p(" __rt::Array< ")
+        .p(ValueClasses.valueTypeName(n.getString(0))).p(" >::__class() {").pln()
+        .indent().p("return Array< ").p(name).p(" >::__class();").pln()
+        .indent().p("}").pln();
+    }
+
+    if (separateDefinitions)
+      printer.p("#endif").pln();
+
     printer.decr().decr().p("}").pln();
     printer.flush();
   }
 
+  /** Declare the class descriptor of the arrays of an element type. */
+  private void printDeclaration(String element) {
+    printer.indent().pln("template<>");
+    printer.indent().p("java::lang::Class").p(" __rt::Array< ")
+      .p(element).p(" >::__class();").pln();
+  }
+
   /** Visit the specified Node. */
 	public void visit(Node n) {
 		for (Object o : n) if (o instanceof Node) dispatch((Node)o);
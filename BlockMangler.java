@@ -1,6 +1,10 @@
 package qimpp;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import xtc.tree.GNode;
 import xtc.tree.Node;
 import xtc.tree.Visitor;
@@ -11,25 +15,47 @@ import xtc.util.Tool;
 /**
  * Mangles Block Nodes into better Block nodes for ImplementationPrinter
  *
+ * A class is analyzed by mangleClass(), which builds the class's scopes
+ * in the same walk over its method bodies. Blocks can also be mangled
+ * one at a time with mangle(), once the symbol table has incorporated
+ * them.
+ *
+ * With a fork-join pool, mangleClass() builds the scopes first and then
+ * mangles every body as a separate task. Each task works on a frozen
+ * snapshot of the inheritance tree and writes its annotations to an
+ * overlay, and the overlays are committed in declaration order once all
+ * tasks are done, so the result does not depend on scheduling.
+ *
  * @author QIMPP
  */
 
-public class BlockMangler {
+public class BlockMangler implements SymbolTable.BodyVisitor {
 
   public GNode cppClass;
   public InheritanceTreeManager inheritanceTree;
   public MethodResolver methodResolver;
+  public NodeAnnotations annotations;
+
+  /** The intrinsics calls are replaced with. */
+  public Intrinsics intrinsics = Intrinsics.standard();
+
+  /** The symbol table being built while mangling, or null. */
+  private SymbolTable table;
+
+  private final Mangler mangler = new Mangler();
  
   /** BlockMangler constructor. */ 
   public BlockMangler(
                 GNode cppClass, 
                 InheritanceTreeManager itm,
-                MethodResolver mr
+                MethodResolver mr,
+                NodeAnnotations annotations
                 ) {
     
     this.cppClass = cppClass;
     this.methodResolver = mr;
     this.inheritanceTree = itm;
+    this.annotations = annotations;
   }
  
   // replaces nOld GNode with nNew GNode
@@ -37,592 +63,740 @@ public class BlockMangler {
     nNew.setLocation(nOld);
   }
 
+  /**
+   * Build the scopes of the class and mangle its method and constructor
+   * bodies, in a single walk over each body.
+   *
+   * @param table The symbol table to build the class's scopes in.
+   */
+  public void mangleClass(SymbolTable table) {
+    this.table = table;
+    try {
+      table.incorporate(cppClass, this);
+    } finally {
+      this.table = null;
+    }
+
+    for (GNode block : constructorBlocks()) {
+      mangle(block);
+    }
+  }
+
+  /**
+   * Build the scopes of the class, then mangle its method and constructor
+   * bodies in parallel. The annotations are complete when this returns.
+   *
+   * @param table The symbol table to build the class's scopes in.
+   * @param pool The pool to mangle the bodies on.
+   */
+  public void mangleClass(SymbolTable table, ForkJoinPool pool) {
+    // The mangler relies on the scopes, so all are built before mangling
+    final List<GNode> bodies = new ArrayList<GNode>();
+    table.incorporate(cppClass, new SymbolTable.BodyVisitor() {
+      public boolean visitBody(GNode body) {
+        if (!annotations.is(body, NodeAnnotations.MANGLED)) {
+          bodies.add(body);
+        }
+        return false;
+      }
+    });
+    bodies.addAll(constructorBlocks());
+
+    final InheritanceTreeManager hierarchy = inheritanceTree.freeze();
+    List<Callable<NodeAnnotations>> tasks =
+      new ArrayList<Callable<NodeAnnotations>>(bodies.size());
+    for (final GNode body : bodies) {
+      tasks.add(new Callable<NodeAnnotations>() {
+        public NodeAnnotations call() {
+          NodeAnnotations overlay = new NodeAnnotations(annotations);
+          BlockMangler worker = new BlockMangler(cppClass, hierarchy,
+              new MethodResolver(hierarchy, overlay), overlay);
+          worker.intrinsics = intrinsics;
+          worker.mangle(body);
+          return overlay;
+        }
+      });
+    }
+
+    // Nothing writes the annotations until every task is done
+    List<NodeAnnotations> overlays = new ArrayList<NodeAnnotations>(tasks.size());
+    try {
+      for (Future<NodeAnnotations> result : pool.invokeAll(tasks)) {
+        overlays.add(result.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted mangling " + cppClass.getString(0), e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Failed to mangle " + cppClass.getString(0), e.getCause());
+    }
+    for (NodeAnnotations overlay : overlays) {
+      overlay.commit();
+    }
+  }
+
+  /**
+   * Get the unmangled constructor bodies of the class, which the symbol
+   * table does not incorporate.
+   */
+  private List<GNode> constructorBlocks() {
+    List<GNode> blocks = new ArrayList<GNode>();
+    for (Object o : cppClass.getGeneric(2)) {
+      for (Object child : (GNode)o) {
+        if (child instanceof GNode && ((GNode)child).hasName("Block")
+            && !annotations.is((GNode)child, NodeAnnotations.MANGLED)) {
+          blocks.add((GNode)child);
+        }
+      }
+    }
+    return blocks;
+  }
+
+  /**
+   * Mangle a method body while the symbol table incorporates it. Bodies
+   * mangled before, such as released ones, are left to the table.
+   */
+  public boolean visitBody(GNode body) {
+    if (annotations.is(body, NodeAnnotations.MANGLED)) {
+      return false;
+    }
+    annotations.set(body, NodeAnnotations.MANGLED);
+    // The body's statements belong to the method's scope
+    mangler.visit(body);
+    return true;
+  }
+
   // takes java block 
   public GNode mangle(GNode java) {
 
-    if (java.getProperty("Mangled") != null){
-      (new Exception()).printStackTrace(System.err);
-      System.exit(1);
+    if (annotations.is(java, NodeAnnotations.MANGLED)){
+      throw new IllegalStateException("Block mangled twice");
     }
-    java.setProperty("Mangled", new Boolean(true));
+    annotations.set(java, NodeAnnotations.MANGLED);
 
     
     // Vivek: it doesn't seem like this is being used.
     GNode cpp = GNode.create("Block");
 
-    /**
-     * The visitor that analyzes and modifies the block
-     */
-    new Visitor() {
+    mangler.dispatch(java);
+    
+    return null; 
+  }
 
-      /** 
-       * Determine if this is a class, a stackvar, field or the start of a fully
-       * qualified class name and set the proper properties of the node 
-       */
-      public String visitPrimaryIdentifier(GNode n){
-        String identifier = n.getString(0);
+  /**
+   * The visitor that analyzes and modifies the block. One instance is
+   * reused for every block this BlockMangler mangles.
+   */
+  private class Mangler extends DispatchingVisitor {
 
-        if (identifier.equals("R1")){
-          
-          resolveClassField(identifier);
-        }
+    public Object dispatch(Node n) {
+      if (null == table) {
+        return super.dispatch(n);
+      }
+      table.open(n);
+      try {
+        return super.dispatch(n);
+      } finally {
+        table.close();
+      }
+    }
 
-        if (selectionExpressionBuilder != null){
-          selectionExpressionBuilder.insert(0, identifier);
-        }
+    protected Object dispatch(int kind, GNode n) {
+      switch (kind) {
+      case NodeKind.PRIMARY_IDENTIFIER:
+        return visitPrimaryIdentifier(n);
+      case NodeKind.BOOLEAN_LITERAL:
+        return visitBooleanLiteral(n);
+      case NodeKind.INTEGER_LITERAL:
+        return visitIntegerLiteral(n);
+      case NodeKind.FLOATING_POINT_LITERAL:
+        return visitFloatingPointLiteral(n);
+      case NodeKind.CHARACTER_LITERAL:
+        return visitCharacterLiteral(n);
+      case NodeKind.STRING_LITERAL:
+        return visitStringLiteral(n);
+      case NodeKind.MULTIPLICATIVE_EXPRESSION:
+        return visitMultiplicativeExpression(n);
+      case NodeKind.ADDITIVE_EXPRESSION:
+        return visitAdditiveExpression(n);
+      case NodeKind.THIS_EXPRESSION:
+        return visitThisExpression(n);
+      case NodeKind.SELECTION_EXPRESSION:
+        return visitSelectionExpression(n);
+      case NodeKind.INSTANCE_OF_EXPRESSION:
+        visitInstanceOfExpression(n);
+        return null;
+      case NodeKind.CAST_EXPRESSION:
+        return visitCastExpression(n);
+      case NodeKind.CALL_EXPRESSION:
+        return visitCallExpression(n);
+      case NodeKind.DECLARATOR:
+        visitDeclarator(n);
+        return null;
+      case NodeKind.SUBSCRIPT_EXPRESSION:
+        return visitSubscriptExpression(n);
+      case NodeKind.NEW_CLASS_EXPRESSION:
+        return visitNewClassExpression(n);
+      default:
+        visit(n);
+        return null;
+      }
+    }
+
+    /** 
+     * Determine if this is a class, a stackvar, field or the start of a fully
+     * qualified class name and set the proper properties of the node 
+     */
+    public String visitPrimaryIdentifier(GNode n){
+      String identifier = n.getString(0);
+
+      if (identifier.equals("R1")){
         
-        GNode classDeclaration = 
-          inheritanceTree.getClassDeclarationNode(identifier);
-        GNode stackVar = resolveScopes(n);
-        GNode classField = resolveClassField(identifier);
-
-        //
-        //
-
-        if (classDeclaration != null) {
-          n.setProperty(Constants.IDENTIFIER_TYPE, Constants.QUALIFIED_CLASS_IDENTIFIER);
-          n.setProperty(Constants.IDENTIFIER_DECLARATION, classDeclaration);
-          n.setProperty(Constants.IDENTIFIER_TYPE_NODE,
-              GNode.create("Type",
-                Disambiguator.disambiguate(classDeclaration.getString(0)), null));
-          return Constants.CLASS_IDENTIFIER;
-        }
+        resolveClassField(identifier);
+      }
 
-        else if (stackVar != null){
-          n.setProperty(Constants.IDENTIFIER_TYPE, Constants.STACKVAR_IDENTIFIER);
-          n.setProperty(Constants.IDENTIFIER_DECLARATION, stackVar);
-          n.setProperty(Constants.IDENTIFIER_TYPE_NODE, stackVar.getGeneric(1)); 
-          return Constants.STACKVAR_IDENTIFIER; 
-        }
+      if (selectionExpressionBuilder != null){
+        selectionExpressionBuilder.insert(0, identifier);
+      }
+      
+      GNode classDeclaration = 
+        inheritanceTree.getClassDeclarationNode(identifier);
+      GNode stackVar = resolveScopes(n);
+      GNode classField = resolveClassField(identifier);
+
+      //
+      //
+
+      if (classDeclaration != null) {
+        annotations.setIdentifierType(n, Constants.QUALIFIED_CLASS_IDENTIFIER);
+        annotations.setDeclaration(n, classDeclaration);
+        annotations.setTypeNode(n, TypeDescriptor.forClass(classDeclaration.getString(0)).toTypeNode());
+        return Constants.CLASS_IDENTIFIER;
+      }
 
-        else if (classField != null){
-          n.setProperty(Constants.IDENTIFIER_TYPE, Constants.FIELD_IDENTIFIER);
-          n.setProperty(Constants.IDENTIFIER_DECLARATION, classField);
-          n.setProperty(Constants.IDENTIFIER_TYPE_NODE, classField.getGeneric(1));
-          n.setProperty("class", Type.getClassTypeName(cppClass.getString(0)));
+      else if (stackVar != null){
+        annotations.setIdentifierType(n, Constants.STACKVAR_IDENTIFIER);
+        annotations.setDeclaration(n, stackVar);
+        annotations.setTypeNode(n, stackVar.getGeneric(1)); 
+        return Constants.STACKVAR_IDENTIFIER; 
+      }
 
-          // Set the value of the reference to the value of the field declaration
-          n.set(0, classField.getString(0));
+      else if (classField != null){
+        annotations.setIdentifierType(n, Constants.FIELD_IDENTIFIER);
+        annotations.setDeclaration(n, classField);
+        annotations.setTypeNode(n, classField.getGeneric(1));
 
-          return Constants.FIELD_IDENTIFIER;
-        }
+        // Set the value of the reference to the value of the field declaration
+        n.set(0, classField.getString(0));
 
-        // It must be a fully qualified class
-        else {
+        return Constants.FIELD_IDENTIFIER;
+      }
 
-          n.setProperty(Constants.IDENTIFIER_TYPE, Constants.QUALIFIED_CLASS_IDENTIFIER);
-          n.setProperty(Constants.IDENTIFIER_DECLARATION, null);
-          n.setProperty(Constants.IDENTIFIER_TYPE_NODE, null);
-          return Constants.QUALIFIED_CLASS_IDENTIFIER;
+      // It must be a fully qualified class
+      else {
 
-        }
+        annotations.setIdentifierType(n, Constants.QUALIFIED_CLASS_IDENTIFIER);
+        annotations.setDeclaration(n, null);
+        annotations.setTypeNode(n, null);
+        return Constants.QUALIFIED_CLASS_IDENTIFIER;
 
       }
 
-      public String visitBooleanLiteral(GNode n) {
-        n.setProperty(Constants.IDENTIFIER_TYPE, Constants.PRIMITIVE_TYPE_IDENTIFIER);
-        n.setProperty(Constants.IDENTIFIER_TYPE_NODE, GNode.create("Type", GNode.create("PrimitiveType", "boolean"), null));
-        return Constants.PRIMITIVE_TYPE_IDENTIFIER;
-      }
+    }
 
-      /**
-       * Set the appropriate properties for an IntegerLiteral
-       */
-      public String visitIntegerLiteral(GNode n){
-        n.setProperty(Constants.IDENTIFIER_TYPE, 
-            Constants.PRIMITIVE_TYPE_IDENTIFIER);
-        //TODO: Handle longs
-        if (n.getString(0).charAt(n.getString(0).length()-1) == 'l' ||
-            (n.getString(0).charAt(n.getString(0).length()-1) == 'L')) {
-          n.setProperty(Constants.IDENTIFIER_TYPE_NODE, 
-              GNode.create("Type", GNode.create("PrimitiveType", "long"), null));
-        } else {
-          n.setProperty(Constants.IDENTIFIER_TYPE_NODE, 
-              GNode.create("Type", GNode.create("PrimitiveType", "int"), null));
-        }
-        return Constants.PRIMITIVE_TYPE_IDENTIFIER;
+    public String visitBooleanLiteral(GNode n) {
+      annotations.setIdentifierType(n, Constants.PRIMITIVE_TYPE_IDENTIFIER);
+      annotations.setTypeNode(n, TypeDescriptor.BOOLEAN.toTypeNode());
+      return Constants.PRIMITIVE_TYPE_IDENTIFIER;
+    }
+
+    /**
+     * Set the appropriate properties for an IntegerLiteral
+     */
+    public String visitIntegerLiteral(GNode n){
+      annotations.setIdentifierType(n, Constants.PRIMITIVE_TYPE_IDENTIFIER);
+      //TODO: Handle longs
+      if (n.getString(0).charAt(n.getString(0).length()-1) == 'l' ||
+          (n.getString(0).charAt(n.getString(0).length()-1) == 'L')) {
+        annotations.setTypeNode(n, TypeDescriptor.LONG.toTypeNode());
+      } else {
+        annotations.setTypeNode(n, TypeDescriptor.INT.toTypeNode());
       }
+      return Constants.PRIMITIVE_TYPE_IDENTIFIER;
+    }
+    
+    /**
+     * Set the appropriate properties for a flp literal
+     */
+    public String visitFloatingPointLiteral(GNode n){
+      annotations.setIdentifierType(n, Constants.PRIMITIVE_TYPE_IDENTIFIER);
+      //TODO: Handle float
+      annotations.setTypeNode(n, TypeDescriptor.DOUBLE.toTypeNode());
+      return Constants.PRIMITIVE_TYPE_IDENTIFIER;
+    }
+
+    /**
+     * Set the appropriate properties for a char literal
+     */
+    public String visitCharacterLiteral(GNode n){
+      annotations.setIdentifierType(n, Constants.PRIMITIVE_TYPE_IDENTIFIER);
+      annotations.setTypeNode(n, TypeDescriptor.CHAR.toTypeNode());
+      return Constants.PRIMITIVE_TYPE_IDENTIFIER;
+    }
+
+    /**
+     * Set the appropriate properties for a string literal
+     */
+    public String visitStringLiteral(GNode n){
+      annotations.setIdentifierType(n, Constants.CLASS_IDENTIFIER);
+      annotations.setDeclaration(n, inheritanceTree.getClassDeclarationNode("java.lang.String"));
+      annotations.setTypeNode(n, TypeDescriptor.STRING.toTypeNode());
+      return Constants.CLASS_IDENTIFIER;
+    }
+
+    public String visitMultiplicativeExpression(GNode n){
+      // A multiplicative expression always returns a primitive type
+      annotations.setIdentifierType(n, Constants.PRIMITIVE_TYPE_IDENTIFIER);
+       
+      dispatch(n.getGeneric(0));
+      dispatch(n.getGeneric(2));
       
-      /**
-       * Set the appropriate properties for a flp literal
-       */
-      public String visitFloatingPointLiteral(GNode n){
-        n.setProperty(Constants.IDENTIFIER_TYPE, Constants.PRIMITIVE_TYPE_IDENTIFIER);
-        //TODO: Handle float
-        n.setProperty(Constants.IDENTIFIER_TYPE_NODE, GNode.create("Type", GNode.create("PrimitiveType", "double"), null));
-        return Constants.PRIMITIVE_TYPE_IDENTIFIER;
-      }
-
-      /**
-       * Set the appropriate properties for a char literal
-       */
-      public String visitCharacterLiteral(GNode n){
-        n.setProperty(Constants.IDENTIFIER_TYPE, Constants.PRIMITIVE_TYPE_IDENTIFIER);
-        n.setProperty(Constants.IDENTIFIER_TYPE_NODE, GNode.create("Type", GNode.create("PrimitiveType", "char"), null));
-        return Constants.PRIMITIVE_TYPE_IDENTIFIER;
-      }
-
-      /**
-       * Set the appropriate properties for a string literal
-       */
-      public String visitStringLiteral(GNode n){
-        n.setProperty(Constants.IDENTIFIER_TYPE, Constants.CLASS_IDENTIFIER);
-        n.setProperty(Constants.IDENTIFIER_DECLARATION, inheritanceTree.getClassDeclarationNode("java.lang.String"));
-        n.setProperty(Constants.IDENTIFIER_TYPE_NODE, GNode.create("Type", Disambiguator.disambiguate("java.lang.String"), null));
+      TypeDescriptor resultType = Type.compare(annotations.getType(n.getGeneric(0)),
+                                               annotations.getType(n.getGeneric(2)));
+      annotations.setTypeNode(n, resultType.toTypeNode());
+
+      return Constants.PRIMITIVE_TYPE_IDENTIFIER;
+    }
+
+    public String visitAdditiveExpression(GNode n){
+
+      if (n.get(0) instanceof String || n.get(2) instanceof String) {
+        annotations.setIdentifierType(n, Constants.CLASS_IDENTIFIER);
+        annotations.setDeclaration(n, inheritanceTree.getClassDeclarationNode("java.lang.String"));
+        annotations.setTypeNode(n, TypeDescriptor.STRING.toTypeNode());
         return Constants.CLASS_IDENTIFIER;
       }
 
-      public String visitMultiplicativeExpression(GNode n){
-        // A multiplicative expression always returns a primitive type
-        n.setProperty(Constants.IDENTIFIER_TYPE, Constants.PRIMITIVE_TYPE_IDENTIFIER);
-         
-        dispatch(n.getGeneric(0));
-        dispatch(n.getGeneric(2));
-        
-        String leftType = ((GNode)n.getGeneric(0).getProperty(Constants.IDENTIFIER_TYPE_NODE)).getGeneric(0).getString(0);
+      dispatch(n.getGeneric(0));
+      dispatch(n.getGeneric(2));
+
+      TypeDescriptor leftType = annotations.getType(n.getGeneric(0));
+      TypeDescriptor rightType = annotations.getType(n.getGeneric(2));
+
+      if ((leftType != null && leftType.getBase().isClass())
+            || (rightType != null && rightType.getBase().isClass()))
+      //if (n.getGeneric(0).getName().equals("QualifiedIdentifier") ||
+      //    n.getGeneric(2).getName().equals("QualifiedIdentifier"))
+      {
+        annotations.setIdentifierType(n, Constants.CLASS_IDENTIFIER);
+        annotations.setDeclaration(n, inheritanceTree.getClassDeclarationNode("java.lang.String"));
+        annotations.setTypeNode(n, TypeDescriptor.STRING.toTypeNode());
+        return Constants.CLASS_IDENTIFIER; 
+      }
+      
+      annotations.setIdentifierType(n, Constants.PRIMITIVE_TYPE_IDENTIFIER);
 
-        String rightType = ((GNode)n.getGeneric(2).getProperty(Constants.IDENTIFIER_TYPE_NODE)).getGeneric(0).getString(0);
+      if (null != leftType && null != rightType) {
+        annotations.setTypeNode(n, Type.compare(leftType, rightType).toTypeNode());
+      }
+      
+      return Constants.PRIMITIVE_TYPE_IDENTIFIER;    
+    }
 
-        String resultType = Type.compare(leftType, rightType);
-        n.setProperty(Constants.IDENTIFIER_TYPE_NODE, 
-            GNode.create("Type", 
-              GNode.create("PrimitiveType", resultType), null));
+    
 
-        return Constants.PRIMITIVE_TYPE_IDENTIFIER;
+    
+    public String visitThisExpression(GNode n){
+      // Just to be consistent for ThisExpressions
+      if (selectionExpressionBuilder != null){
+        selectionExpressionBuilder.insert(0, "__this");
       }
+      
+      annotations.setIdentifierType(n, Constants.CLASS_IDENTIFIER);
+      annotations.setDeclaration(n, cppClass);
+      annotations.setTypeNode(n, TypeDescriptor.forClass(cppClass.getString(0)).toTypeNode());
 
-      public String visitAdditiveExpression(GNode n){
+      return Constants.CLASS_IDENTIFIER;
+    }
 
-        if (n.get(0) instanceof String || n.get(2) instanceof String) {
-          n.setProperty(Constants.IDENTIFIER_TYPE, Constants.CLASS_IDENTIFIER);
-          n.setProperty(Constants.IDENTIFIER_DECLARATION, 
-              inheritanceTree.getClassDeclarationNode("java.lang.String"));
-          n.setProperty(Constants.IDENTIFIER_TYPE_NODE, 
-              GNode.create("Type", 
-                Disambiguator.disambiguate("java.lang.String"), null));
-          return Constants.CLASS_IDENTIFIER;
-        }
-  
-        dispatch(n.getGeneric(0));
-        dispatch(n.getGeneric(2));
-
-        GNode leftTypeNode = 
-          (GNode) n.getGeneric(0).getProperty(Constants.IDENTIFIER_TYPE_NODE);
-        GNode rightTypeNode = 
-          (GNode)n.getGeneric(2).getProperty(Constants.IDENTIFIER_TYPE_NODE);
-
-        if ((leftTypeNode != null && 
-              leftTypeNode.getGeneric(0).getName().equals("QualifiedIdentifier"))
-              || (rightTypeNode != null && 
-                rightTypeNode.getGeneric(0).getName().equals("QualifiedIdentifier")))
-        //if (n.getGeneric(0).getName().equals("QualifiedIdentifier") ||
-        //    n.getGeneric(2).getName().equals("QualifiedIdentifier"))
-        {
-          n.setProperty(Constants.IDENTIFIER_TYPE, Constants.CLASS_IDENTIFIER);
-          n.setProperty(Constants.IDENTIFIER_DECLARATION, 
-              inheritanceTree.getClassDeclarationNode("java.lang.String"));
-          n.setProperty(Constants.IDENTIFIER_TYPE_NODE, 
-              GNode.create("Type", 
-                Disambiguator.disambiguate("java.lang.String"), null));
-          return Constants.CLASS_IDENTIFIER; 
-        }
-        
-        n.setProperty(Constants.IDENTIFIER_TYPE, 
-                      Constants.PRIMITIVE_TYPE_IDENTIFIER);
-
-        if (null != leftTypeNode && null != rightTypeNode) {
-          String leftType = leftTypeNode.getGeneric(0).getString(0);
-          String rightType = rightTypeNode.getGeneric(0).getString(0);
-          String resultType = Type.compare(leftType, rightType);
-          n.setProperty(Constants.IDENTIFIER_TYPE_NODE, GNode.create("Type", 
-                GNode.create("PrimitiveType", resultType), null));
-        }
+    private int selectionExpressionDepth = 0;
+    private StringBuilder selectionExpressionBuilder;
+    /**
+     * Have the SelectionExpressions carry the innermost PrimaryIdentifier's type, except for the outermost one
+     * for a qualified identifier
+     */
+    public String visitSelectionExpression(GNode n){
+      if (selectionExpressionDepth == 0)
+        selectionExpressionBuilder = new StringBuilder();
+
+      selectionExpressionDepth++;
+      annotations.setIdentifierType(n, (String)dispatch(n.getGeneric(0)));
+      
+      selectionExpressionBuilder.append("." + n.getString(1));
+      //TODO: Debug code
+      if (annotations.getIdentifierType(n) == null){
         
-        return Constants.PRIMITIVE_TYPE_IDENTIFIER;    
+        throw new NullPointerException();
       }
-
+      // End debug code
+      annotations.setDeclaration(n, annotations.getDeclaration(n.getGeneric(0)));
       
-
+      annotations.setTypeNode(n, annotations.getTypeNode(n.getGeneric(0)));
       
-      public String visitThisExpression(GNode n){
-        // Just to be consistent for ThisExpressions
-        if (selectionExpressionBuilder != null){
-          selectionExpressionBuilder.insert(0, "__this");
-        }
-        
-        n.setProperty(Constants.IDENTIFIER_TYPE, Constants.CLASS_IDENTIFIER);
-        n.setProperty(Constants.IDENTIFIER_DECLARATION, cppClass);
-        n.setProperty(Constants.IDENTIFIER_TYPE_NODE, GNode.create("Type", Disambiguator.disambiguate(cppClass.getString(0)), null));
 
-        return Constants.CLASS_IDENTIFIER;
+      selectionExpressionDepth--;
+      String expression = selectionExpressionBuilder.toString();
+      // Bug out if it's System.out
+      if (expression.equals("System.out")) {
+         annotations.setIdentifierType(n, Constants.PRINT_IDENTIFIER);
+         //TODO:Hack
+         annotations.setDeclaration(n, new Object());
+         return Constants.PRINT_IDENTIFIER;
       }
 
-      private int selectionExpressionDepth = 0;
-      private StringBuilder selectionExpressionBuilder;
-      /**
-       * Have the SelectionExpressions carry the innermost PrimaryIdentifier's type, except for the outermost one
-       * for a qualified identifier
-       */
-      public String visitSelectionExpression(GNode n){
-        if (selectionExpressionDepth == 0)
-          selectionExpressionBuilder = new StringBuilder();
+      // Test if we're getting a field of ARRAY
+      if (!(annotations.getIdentifierType(n).equals(Constants.QUALIFIED_CLASS_IDENTIFIER) && annotations.getDeclaration(n) == null)){
+        if (annotations.getTypeNode(n).getGeneric(1) != null){
+          
+          annotations.setTypeNode(n, TypeDescriptor.ARRAY.toTypeNode());
+        }
+      }
 
-        selectionExpressionDepth++;
-        n.setProperty(Constants.IDENTIFIER_TYPE, dispatch(n.getGeneric(0)));
+      // Part of the way in, we may find that we have a fully qualified type. In that case set the class declaration
+      if (annotations.getIdentifierType(n).equals(Constants.QUALIFIED_CLASS_IDENTIFIER) && annotations.getDeclaration(n) == null){
         
-        selectionExpressionBuilder.append("." + n.getString(1));
-        //TODO: Debug code
-        if (n.getStringProperty(Constants.IDENTIFIER_TYPE) == null){
-          
-          throw new NullPointerException();
+        GNode classDeclaration = inheritanceTree.getClassDeclarationNode(selectionExpressionBuilder.toString());
+        if (classDeclaration != null){
+          annotations.setIdentifierType(n, Constants.QUALIFIED_CLASS_IDENTIFIER);
+          annotations.setDeclaration(n, classDeclaration);
+          annotations.setTypeNode(n, TypeDescriptor.forClass(classDeclaration.getString(0)).toTypeNode());
         }
-        // End debug code
-        n.setProperty(Constants.IDENTIFIER_DECLARATION, n.getGeneric(0).getProperty(Constants.IDENTIFIER_DECLARATION));
+      }
+      else if (annotations.getIdentifierType(n) == Constants.STACKVAR_IDENTIFIER){
         
-        n.setProperty(Constants.IDENTIFIER_TYPE_NODE, n.getGeneric(0).getProperty(Constants.IDENTIFIER_TYPE_NODE));
+        GNode foreignClass = inheritanceTree.getClassDeclarationNode(
+              annotations.getType(n).getBase().getClassName());
+
+        GNode foreignFieldDeclaration = resolveClassField(n.getString(1), foreignClass);
         
+         String underscores = foreignClass.getString(0);
+         underscores = underscores.replace('.', '_');
 
-        selectionExpressionDepth--;
-        String expression = selectionExpressionBuilder.toString();
-        // Bug out if it's System.out
-        if (expression.equals("System.out")) {
-           n.setProperty(Constants.IDENTIFIER_TYPE, Constants.PRINT_IDENTIFIER);
-           //TODO:Hack
-           n.setProperty(Constants.IDENTIFIER_DECLARATION, new Object());
-           return Constants.PRINT_IDENTIFIER;
-        }
+         n.set(1, underscores+"_"+n.getString(1));
+         
 
-        // Test if we're getting a field of ARRAY
-        if (!(n.getStringProperty(Constants.IDENTIFIER_TYPE).equals(Constants.QUALIFIED_CLASS_IDENTIFIER) && n.getProperty(Constants.IDENTIFIER_DECLARATION) == null)){
-          if (((GNode)n.getProperty(Constants.IDENTIFIER_TYPE_NODE)).getGeneric(1) != null){
-            
-            n.setProperty(Constants.IDENTIFIER_TYPE_NODE, GNode.create("Type", GNode.create("QualifiedIdentifier",
-                                                                      "__rt", "Array"), null));
-          }
-        }
+         n.set(1, foreignFieldDeclaration.getString(0));
 
-        // Part of the way in, we may find that we have a fully qualified type. In that case set the class declaration
-        if (n.getStringProperty(Constants.IDENTIFIER_TYPE).equals(Constants.QUALIFIED_CLASS_IDENTIFIER) && n.getProperty(Constants.IDENTIFIER_DECLARATION) == null){
-          
-          GNode classDeclaration = inheritanceTree.getClassDeclarationNode(selectionExpressionBuilder.toString());
-          if (classDeclaration != null){
-            n.setProperty(Constants.IDENTIFIER_TYPE, Constants.QUALIFIED_CLASS_IDENTIFIER);
-            n.setProperty(Constants.IDENTIFIER_DECLARATION, classDeclaration);
-            n.setProperty(Constants.IDENTIFIER_TYPE_NODE, GNode.create("Type", Disambiguator.disambiguate(classDeclaration.getString(0)), null));
-          }
-        }
-        else if (n.getStringProperty(Constants.IDENTIFIER_TYPE) == Constants.STACKVAR_IDENTIFIER){
-          
-          GNode foreignClass = inheritanceTree.getClassDeclarationNode(Disambiguator.getDotDelimitedName(
-                ((GNode)n.getProperty(Constants.IDENTIFIER_TYPE_NODE)).getGeneric(0)));
 
-          GNode foreignFieldDeclaration = resolveClassField(n.getString(1), foreignClass);
-          
-           String underscores = foreignClass.getString(0);
-           underscores = underscores.replace('.', '_');
-
-           n.set(1, underscores+"_"+n.getString(1));
-           
+        annotations.setIdentifierType(n, Constants.FOREIGN_CLASS_FIELD_IDENTIFIER);
+        annotations.setDeclaration(n, foreignFieldDeclaration);
+        annotations.setTypeNode(n, foreignFieldDeclaration.getGeneric(1));
+      }
 
-           n.set(1, foreignFieldDeclaration.getString(0));
+      // If our child is a CLASS_IDENTIFIER, and we're still in a SelectionExpression, we must be referring to some accessible field
+      else if ((annotations.getIdentifierType(n) == Constants.QUALIFIED_CLASS_IDENTIFIER
+                && annotations.getDeclaration(n) != null)
+               || annotations.getIdentifierType(n) == Constants.CLASS_IDENTIFIER) {
+         annotations.setIdentifierType(n, Constants.FOREIGN_CLASS_FIELD_IDENTIFIER);
+         GNode foreignFieldDeclaration = resolveClassField(n.getString(1), (GNode)annotations.getDeclaration(n));
+         // Debug
+         if (foreignFieldDeclaration == null) {
+            
+            
+            throw new RuntimeException("Failed to identify field " + n.getString(1));
+         }
+         // Reset the field to its proper name
 
+         String underscores = ((GNode)annotations.getDeclaration(n)).getString(0);
+         underscores = underscores.replace('.', '_');
 
-          n.setProperty(Constants.IDENTIFIER_TYPE, Constants.FOREIGN_CLASS_FIELD_IDENTIFIER);
-          n.setProperty(Constants.IDENTIFIER_DECLARATION, foreignFieldDeclaration);
-          n.setProperty(Constants.IDENTIFIER_TYPE_NODE, foreignFieldDeclaration.getGeneric(1));
-        }
+         n.set(1, underscores+"_"+n.getString(1));
+         
 
-        // If our child is a CLASS_IDENTIFIER, and we're still in a SelectionExpression, we must be referring to some accessible field
-        else if ((n.getStringProperty(Constants.IDENTIFIER_TYPE) == Constants.QUALIFIED_CLASS_IDENTIFIER
-                  && n.getProperty(Constants.IDENTIFIER_DECLARATION) != null)
-                 || n.getStringProperty(Constants.IDENTIFIER_TYPE) == Constants.CLASS_IDENTIFIER) {
-           n.setProperty(Constants.IDENTIFIER_TYPE, Constants.FOREIGN_CLASS_FIELD_IDENTIFIER);
-           GNode foreignFieldDeclaration = resolveClassField(n.getString(1), (GNode)n.getProperty(Constants.IDENTIFIER_DECLARATION));
-           // Debug
-           if (foreignFieldDeclaration == null) {
-              
-              
-              throw new RuntimeException("Failed to identify field " + n.getString(1));
-           }
-           // Reset the field to its proper name
-
-           String underscores = ((GNode)n.getProperty(Constants.IDENTIFIER_DECLARATION)).getString(0);
-           underscores = underscores.replace('.', '_');
-
-           n.set(1, underscores+"_"+n.getString(1));
-           
-
-           n.set(1, foreignFieldDeclaration.getString(0));
-
-           n.setProperty(Constants.IDENTIFIER_DECLARATION, foreignFieldDeclaration);
-           n.setProperty(Constants.IDENTIFIER_TYPE_NODE, foreignFieldDeclaration.getGeneric(1));
-        }
+         n.set(1, foreignFieldDeclaration.getString(0));
 
-        // If we're referring to some foreign class, we want to search it for this field's declaration
-        else if (n.getStringProperty(Constants.IDENTIFIER_TYPE).equals(Constants.FOREIGN_CLASS_FIELD_IDENTIFIER)){
-           GNode searchClassType = ((GNode)n.getProperty(Constants.IDENTIFIER_DECLARATION)).getGeneric(1);
-           // Use the Type's QualifiedIdentifier's class
-           String searchClassName = Disambiguator.getDotDelimitedName(searchClassType.getGeneric(0));          
-           GNode searchClassDeclaration = inheritanceTree.getClassDeclarationNode(searchClassName);
-           GNode fieldDeclaration = resolveClassField(n.getString(1), searchClassDeclaration);
-           if (fieldDeclaration == null) {
-              throw new NullPointerException();
-           }
+         annotations.setDeclaration(n, foreignFieldDeclaration);
+         annotations.setTypeNode(n, foreignFieldDeclaration.getGeneric(1));
+      }
 
-          String underscores = ((GNode)n.getProperty(Constants.IDENTIFIER_DECLARATION)).getString(0);
-          underscores = underscores.replace('.', '_');
+      // If we're referring to some foreign class, we want to search it for this field's declaration
+      else if (annotations.getIdentifierType(n).equals(Constants.FOREIGN_CLASS_FIELD_IDENTIFIER)){
+         GNode searchClassType = ((GNode)annotations.getDeclaration(n)).getGeneric(1);
+         // Use the Type's QualifiedIdentifier's class
+         String searchClassName = annotations.typeOf(searchClassType).getBase().getClassName();
+         GNode searchClassDeclaration = inheritanceTree.getClassDeclarationNode(searchClassName);
+         GNode fieldDeclaration = resolveClassField(n.getString(1), searchClassDeclaration);
+         if (fieldDeclaration == null) {
+            throw new NullPointerException();
+         }
 
-          n.set(1, underscores+"_"+n.getString(1));
+        String underscores = ((GNode)annotations.getDeclaration(n)).getString(0);
+        underscores = underscores.replace('.', '_');
 
-          
-           // Set the value of the reference to the value of the field declaration
+        n.set(1, underscores+"_"+n.getString(1));
 
-           
-           n.setProperty(Constants.IDENTIFIER_DECLARATION, fieldDeclaration);
-           n.setProperty(Constants.IDENTIFIER_TYPE, fieldDeclaration.getGeneric(1));
-        }
-        
         
+         // Set the value of the reference to the value of the field declaration
 
-        // Bye this point we should have figured out what the selectionExpression is referring to
-        if (selectionExpressionDepth == 0 && n.getProperty(Constants.IDENTIFIER_DECLARATION) == null){
-          
-          
-          
-          
-          
-          throw new RuntimeException("Selected unknown class or field!");
-        }
-
-        return n.getStringProperty(Constants.IDENTIFIER_TYPE);
+         
+         annotations.setDeclaration(n, fieldDeclaration);
+         annotations.setTypeNode(n, fieldDeclaration.getGeneric(1));
       }
+      
+      
 
-      public void visitInstanceOfExpression(GNode n) {
-        String rightSide =
-          Type.getClassTypeName(n.getGeneric(1).getGeneric(0));
-        n.set(1, rightSide); 
-        visit(n);
+      // Bye this point we should have figured out what the selectionExpression is referring to
+      if (selectionExpressionDepth == 0 && annotations.getDeclaration(n) == null){
+        
+        
+        
+        
+        
+        throw new RuntimeException("Selected unknown class or field!");
       }
 
-      public String visitCastExpression(GNode n){
-        visit(n);
-        n.setProperty(Constants.IDENTIFIER_TYPE, Constants.CLASS_IDENTIFIER);
-        GNode classDeclaration = inheritanceTree.getClassDeclarationNode(Disambiguator.getDotDelimitedName(n.getGeneric(0).getGeneric(0))); 
-        n.setProperty(Constants.IDENTIFIER_DECLARATION, classDeclaration);
-        n.setProperty(Constants.IDENTIFIER_TYPE_NODE, n.getGeneric(0));
+      return annotations.getIdentifierType(n);
+    }
 
-        return Constants.CLASS_IDENTIFIER;
-      }
+    public void visitInstanceOfExpression(GNode n) {
+      String rightSide =
+        Type.getClassTypeName(n.getGeneric(1).getGeneric(0));
+      n.set(1, rightSide); 
+      visit(n);
+    }
 
-      public String visitCallExpression(GNode n){
-        visit(n);
-        
-        GNode caller = n.getGeneric(0);
+    public String visitCastExpression(GNode n){
+      visit(n);
+      annotations.setIdentifierType(n, Constants.CLASS_IDENTIFIER);
+      String className = annotations.typeOf(n.getGeneric(0)).getBase().getClassName();
+      GNode classDeclaration = (null == className) 
+        ? null : inheritanceTree.getClassDeclarationNode(className); 
+      annotations.setDeclaration(n, classDeclaration);
+      annotations.setTypeNode(n, n.getGeneric(0));
 
-        GNode callerType;
-        String callType;
+      return Constants.CLASS_IDENTIFIER;
+    }
 
+    public String visitCallExpression(GNode n){
+      visit(n);
+      
+      GNode caller = n.getGeneric(0);
 
-        if (caller != null){
-          if (caller.getProperty(Constants.IDENTIFIER_TYPE) == Constants.PRINT_IDENTIFIER){
-            //Ignore print expressions, they are evil :P
-            return null;
-          }
-          callerType = (GNode)caller.getProperty(Constants.IDENTIFIER_TYPE_NODE);
-          
-          
+      TypeDescriptor callerType;
+      String callType;
 
-          if (callerType.size() > 1 && null != callerType.getGeneric(1)) {
-            GNode newQualifiedIdentifier = 
-              GNode.create("QualifiedIdentifier", "__rt", "Array");
-            GNode newTypeNode = GNode.create("Type", newQualifiedIdentifier, null);
-            callerType = newTypeNode;
-          }
-
-          if (caller.getProperty(Constants.IDENTIFIER_TYPE) == Constants.QUALIFIED_CLASS_IDENTIFIER){
-            callType = Constants.CALL_UNKNOWN;
-          }
-          // It must be a call from some object
-          else {
-            callType = Constants.CALL_UNKNOWN;
-          }
-        }
-        else {
-          callerType = GNode.create("Type", Disambiguator.disambiguate(cppClass.getString(0)), null);
-          // We cannot know if this is a static or dynamic call, we need MethodResolver to determine that
-          callType = Constants.CALL_UNKNOWN; 
+
+      if (caller != null){
+        if (annotations.getIdentifierType(caller) == Constants.PRINT_IDENTIFIER){
+          //Ignore print expressions, they are evil :P
+          return null;
         }
-        GNode argumentTypes = GNode.create("ArgumentTypes");
-        
-        for ( Object o : n.getGeneric(3)) {
-          
-          
-          argumentTypes.add(((GNode)o).getProperty(Constants.IDENTIFIER_TYPE_NODE));
+        Intrinsics.Intrinsic intrinsic = findIntrinsic(n);
+        if (null != intrinsic) {
+          annotations.setIntrinsic(n, intrinsic);
+          annotations.set(n, NodeAnnotations.STATIC, intrinsic.isStatic());
+          annotations.setIdentifierType(n, Constants.PRIMITIVE_TYPE_IDENTIFIER);
+          annotations.setTypeNode(n, intrinsic.getReturnType().toTypeNode());
+          return Constants.PRIMITIVE_TYPE_IDENTIFIER;
         }
+        callerType = annotations.getType(caller);
 
+        if (callerType.isArray()) {
+          callerType = TypeDescriptor.ARRAY;
+        }
 
-
-        GNode callInfo = null;
-        try {
-          
-          
-          
-          
-          
-          callInfo = MethodResolver.resolve(n.getString(2), callerType, argumentTypes, inheritanceTree, callType, cppClass); 
+        if (annotations.getIdentifierType(caller) == Constants.QUALIFIED_CLASS_IDENTIFIER){
+          callType = Constants.CALL_UNKNOWN;
         }
-        catch (Exception e) {
-          
-          
-          e.printStackTrace(System.err);
-          System.exit(1);
+        // It must be a call from some object
+        else {
+          callType = Constants.CALL_UNKNOWN;
         }
+      }
+      else {
+        callerType = TypeDescriptor.forClass(cppClass.getString(0));
+        // We cannot know if this is a static or dynamic call, we need MethodResolver to determine that
+        callType = Constants.CALL_UNKNOWN; 
+      }
+      GNode arguments = n.getGeneric(3);
+      TypeDescriptor[] argumentTypes = new TypeDescriptor[arguments.size()];
+      
+      for (int i = 0; i < argumentTypes.length; i++) {
+        argumentTypes[i] = annotations.getType(arguments.getGeneric(i));
+      }
 
-        // Rename the call
-        n.set(2, callInfo.getString(0));
-
-        GNode calledMethod = callInfo.getGeneric(2);
-        n.setProperty("static",  calledMethod.getProperty("static"));
-        n.setProperty("private", calledMethod.getProperty("private"));
-
+      GNode callInfo = null;
+      try {
+        callInfo = methodResolver.resolve(n.getString(2), callerType, argumentTypes, callType, cppClass); 
+      }
+      catch (RuntimeException e) {
+        throw new RuntimeException("Failed to resolve call to " + n.getString(2)
+            + " in " + cppClass.getString(0), e);
+      }
 
-        GNode returnType = callInfo.getGeneric(1);
-        
-        if (returnType.getGeneric(0).getName().equals("QualifiedIdentifier")){
-          n.setProperty(Constants.IDENTIFIER_TYPE, Constants.CLASS_IDENTIFIER);
-          n.setProperty(Constants.IDENTIFIER_DECLARATION,
-              inheritanceTree.getClassDeclarationNode(Disambiguator
-                .getDotDelimitedName(returnType.getGeneric(0))));
-        }
+      // Rename the call
+      n.set(2, callInfo.getString(0));
 
-        else {
-          n.setProperty(Constants.IDENTIFIER_TYPE,
-              Constants.PRIMITIVE_TYPE_IDENTIFIER);
-        }
+      GNode calledMethod = callInfo.getGeneric(2);
+      annotations.set(n, NodeAnnotations.STATIC,
+          annotations.is(calledMethod, NodeAnnotations.STATIC));
+      annotations.set(n, NodeAnnotations.PRIVATE,
+          annotations.is(calledMethod, NodeAnnotations.PRIVATE));
 
-        n.setProperty(Constants.IDENTIFIER_TYPE_NODE, returnType);
 
-        return n.getStringProperty(Constants.IDENTIFIER_TYPE);
+      GNode returnType = callInfo.getGeneric(1);
+      
+      TypeDescriptor returnBaseType = annotations.typeOf(returnType).getBase();
+      if (returnBaseType.isClass()){
+        annotations.setIdentifierType(n, Constants.CLASS_IDENTIFIER);
+        annotations.setDeclaration(n, inheritanceTree.getClassDeclarationNode(
+              returnBaseType.getClassName()));
       }
 
-      public void visitDeclarator(GNode n) {
-        if (null != n.getGeneric(1)) {
-          GNode fakePrimary = GNode.create("PrimaryIdentifier", n.getString(0));
-          fakePrimary.setProperty(Constants.SCOPE, 
-              n.getProperty(Constants.SCOPE));
-          GNode fieldNode = resolveScopes(fakePrimary);
-          fieldNode.getGeneric(1).set(1, n.getGeneric(1));
-        } 
-        visit(n);
+      else {
+        annotations.setIdentifierType(n, Constants.PRIMITIVE_TYPE_IDENTIFIER);
       }
 
+      annotations.setTypeNode(n, returnType);
 
-      public void visitSubscriptExpression(GNode n){
-        dispatch(n.getGeneric(0));
-        GNode primaryIdentifierType =
-          (GNode)n.getGeneric(0).getProperty(Constants.IDENTIFIER_TYPE_NODE);
-        // Make a Declarators of one dimension lower
-        GNode newDimensions = GNode.create("Dimensions");
-        
-        
-        
-        for (int i = 1; i < primaryIdentifierType.getGeneric(1).size(); i++)
-          newDimensions.add("[");
+      return annotations.getIdentifierType(n);
+    }
 
-        //If there are none, make it null
-        if (newDimensions.size() == 0)
-          newDimensions = null;
+    /**
+     * Find the intrinsic a call with a receiver stands for. A class the
+     * program does not declare, like Math, has no type, and is looked up
+     * by its name.
+     *
+     * @return the intrinsic, or null if the call is an ordinary call
+     */
+    private Intrinsics.Intrinsic findIntrinsic(GNode n) {
+      GNode caller = n.getGeneric(0);
+      GNode arguments = n.getGeneric(3);
+      TypeDescriptor[] argumentTypes = new TypeDescriptor[arguments.size()];
+      for (int i = 0; i < argumentTypes.length; i++) {
+        argumentTypes[i] = annotations.getType(arguments.getGeneric(i));
+      }
 
-        GNode newTypeNode = GNode.create("Type", primaryIdentifierType.getGeneric(0), newDimensions);
+      boolean isStatic =
+        annotations.getIdentifierType(caller) == Constants.QUALIFIED_CLASS_IDENTIFIER;
+      TypeDescriptor callerType = annotations.getType(caller);
+      if (null != callerType) {
+        if (!callerType.isClass()) {
+          return null;
+        }
+        return intrinsics.lookup(callerType.getClassName(), n.getString(2),
+                                 isStatic, argumentTypes);
+      } else if (isStatic && caller.hasName("PrimaryIdentifier")) {
+        return intrinsics.lookup(caller.getString(0), n.getString(2),
+                                 true, argumentTypes);
+      }
+      return null;
+    }
 
-        n.setProperty(Constants.IDENTIFIER_TYPE_NODE, newTypeNode);
+    public void visitDeclarator(GNode n) {
+      if (null != n.getGeneric(1)) {
+        GNode fieldNode = resolveScopes(annotations.getScope(n), n.getString(0));
+        fieldNode.getGeneric(1).set(1, n.getGeneric(1));
+      } 
+      visit(n);
+    }
 
-        dispatch(n.getGeneric(1));
-      }
 
-      /**
-       * Set the appropriate properties for a new class expression so it can be nested
-       */
-      public String visitNewClassExpression(GNode n) {
-        GNode classType = n.getGeneric(2);
-        
-        dispatch(classType);
-        
-        n.setProperty(Constants.IDENTIFIER_TYPE,
-            classType.getProperty(Constants.IDENTIFIER_TYPE));
-        
-        n.setProperty(Constants.IDENTIFIER_DECLARATION,
-            classType.getProperty(Constants.IDENTIFIER_DECLARATION));
-        
-        n.setProperty(Constants.IDENTIFIER_TYPE_NODE,
-            classType.getProperty(Constants.IDENTIFIER_TYPE_NODE));
+    /**
+     * Type an array element. An element is a value like a local
+     * variable, so fields can be selected from it.
+     */
+    public String visitSubscriptExpression(GNode n){
+      dispatch(n.getGeneric(0));
+      // The element type is one dimension lower
+      TypeDescriptor arrayType = annotations.getType(n.getGeneric(0));
+      annotations.setTypeNode(n, arrayType.getElement().toTypeNode());
+      annotations.setIdentifierType(n, Constants.STACKVAR_IDENTIFIER);
+
+      dispatch(n.getGeneric(1));
+      return Constants.STACKVAR_IDENTIFIER;
+    }
 
-        return n.getStringProperty(Constants.IDENTIFIER_TYPE);
-      } 
+    /**
+     * Set the appropriate properties for a new class expression so it can be nested
+     */
+    public String visitNewClassExpression(GNode n) {
+      GNode classType = n.getGeneric(2);
+      
+      dispatch(classType);
+      
+      annotations.setIdentifierType(n, annotations.getIdentifierType(classType));
+      
+      annotations.setDeclaration(n, annotations.getDeclaration(classType));
+      
+      annotations.setTypeNode(n, annotations.getTypeNode(classType));
 
-      /* 
-      public void tempVisitCallExpression(GNode n) {
-        if (n.getGeneric(0).getGeneric(0).getString(0).equals("System")
-                        && n.getGeneric(0).getString(1).equals("out")) {
-          String option = (n.getString(2).equals("println")) ? " << endl" : null;  
-          GNode printBody = dispatch(n.getGeneric(3));
-        }
+      return annotations.getIdentifierType(n);
+    } 
 
-        cpp.add(GNode.create("PrintExpression", option, printBody));  
+    /* 
+    public void tempVisitCallExpression(GNode n) {
+      if (n.getGeneric(0).getGeneric(0).getString(0).equals("System")
+                      && n.getGeneric(0).getString(1).equals("out")) {
+        String option = (n.getString(2).equals("println")) ? " << endl" : null;  
+        GNode printBody = dispatch(n.getGeneric(3));
       }
 
-      public void tempVisitArguments(GNode n) {
-        GNode body = GNode.create("PrintBody");
-        visit(n);
-        for (Object o : n) {
-          if (o instanceof Node) {
-            body.add((GNode)o);
-          } 
-          else { 
-            body.add((String)o); 
-          }
+      cpp.add(GNode.create("PrintExpression", option, printBody));  
+    }
+
+    public void tempVisitArguments(GNode n) {
+      GNode body = GNode.create("PrintBody");
+      visit(n);
+      for (Object o : n) {
+        if (o instanceof Node) {
+          body.add((GNode)o);
+        } 
+        else { 
+          body.add((String)o); 
         }
-        cpp.add(body);
       }
+      cpp.add(body);
+    }
 
-      public void tempVisitAdditiveExpression(GNode n) {
-        visit(n);
-        GNode expr;
-        left = dispatch(n.getGeneric(0));
-        right = dispatch(n.getGeneric(2));
-        if (getType(left) == getType(right)) {
-          expr = GNode.create("AdditiveExpression", left, n.getString(1), right);
-        }
-        else {
-          expr = GNode.create("ConcatExpression", left, "<<", right);
-        }
-        cpp.add(expr);
+    public void tempVisitAdditiveExpression(GNode n) {
+      visit(n);
+      GNode expr;
+      left = dispatch(n.getGeneric(0));
+      right = dispatch(n.getGeneric(2));
+      if (getType(left) == getType(right)) {
+        expr = GNode.create("AdditiveExpression", left, n.getString(1), right);
       }
-      */
+      else {
+        expr = GNode.create("ConcatExpression", left, "<<", right);
+      }
+      cpp.add(expr);
+    }
+    */
 
 
-      public void visit(Node n) {
-        for (Object o : n) if (o instanceof Node) dispatch((Node)o);
-      } 
+    public void visit(Node n) {
+      for (Object o : n) if (o instanceof Node) dispatch((Node)o);
+    } 
 
-    }.dispatch(java);
-    
-    return null; 
   }
 
   public GNode getType(GNode n) {
-    //declaration = n.getProperty(Constants.SCOPE).node();
+    //declaration = annotations.getScope(n).node();
     return null;
   }
 
   private GNode resolveScopes(GNode primaryIdentifier){
-    SymbolTable.Scope scope = (SymbolTable.Scope)primaryIdentifier.getProperty(Constants.SCOPE);
+    return resolveScopes(annotations.getScope(primaryIdentifier), 
+                         primaryIdentifier.getString(0));
+  }
 
+  private GNode resolveScopes(SymbolTable.Scope scope, String name){
     if (scope == null) {
       
       return null;
     }
-    GNode result = (GNode)scope.lookup(primaryIdentifier.getString(0)); 
+    GNode result = (GNode)scope.lookup(name); 
     
     if (result == null){ 
       
@@ -631,25 +805,18 @@ public class BlockMangler {
   }
 
   private GNode resolveClassField(String fieldName){
-    GNode targetClass = cppClass;
-    GNode fieldDeclaration = null;
-    while (targetClass != null &&  !targetClass.getString(0).equals("java.lang.Object")){
-      HashMap<String, GNode> fieldNameMap = (HashMap<String, GNode>)cppClass.getProperty("FieldMap");
-      
-      fieldDeclaration = fieldNameMap.get(fieldName);
-      
-      if (fieldDeclaration != null){
-        fieldDeclaration.setProperty("ContainingClass", targetClass);
-        return fieldDeclaration;
-      }
-      targetClass = (GNode)targetClass.getProperty("ParentClassNode");
+    // The field map of a class includes its ancestors' fields
+    MemberTable<GNode> fieldNameMap = CPPAST.getFieldMap(cppClass);
+    GNode fieldDeclaration = fieldNameMap.get(fieldName);
+    if (fieldDeclaration != null){
+      annotations.setContainingClass(fieldDeclaration, fieldNameMap.getDeclaringClass(fieldName));
     }
     return fieldDeclaration;
   }
 
   // Overload to refer to another class
   private GNode resolveClassField(String fieldName, GNode cppClass){
-    HashMap<String, GNode> fieldNameMap = (HashMap<String, GNode>)cppClass.getProperty("FieldMap");
+    MemberTable<GNode> fieldNameMap = CPPAST.getFieldMap(cppClass);
     GNode fieldDeclaration = fieldNameMap.get(fieldName);
     return fieldDeclaration;
   }
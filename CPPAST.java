@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.io.Reader;
 import java.io.PrintWriter;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 
 import xtc.lang.JavaFiveParser;
 
@@ -48,11 +49,27 @@ import java.util.ArrayList;
 public class CPPAST {
   public GNode compilationUnit, directives, declarations, classes;
   HashMap<String, GNode> classesMap;
-  HashMap<String, GNode> currentFieldMap; 
-  HashMap<String, ArrayList<GNode> > currentMethodMap;
+  MemberTable<GNode> currentFieldMap; 
+
+  /** The cached mangled names of method declarations. */
+  private final IdentityHashMap<GNode, String> mangledNames =
+    new IdentityHashMap<GNode, String>();
+
+  /** The flags of the declarations in this AST. */
+  public final NodeAnnotations annotations;
 
   /** Constructor */  
   public CPPAST() {
+    this(new NodeAnnotations());
+  }
+
+  /** 
+   * Constructor.
+   *
+   * @param annotations The annotation store for the declarations' flags.
+   */
+  public CPPAST(NodeAnnotations annotations) {
+      this.annotations = annotations;
       compilationUnit = GNode.create("CompilationUnit");
       compilationUnit.addNode(createDefaultDirectives());
       declarations = GNode.create("Declarations");
@@ -122,11 +139,11 @@ public class CPPAST {
     classNode.addNode(GNode.create("Constructors"));
     classNode.addNode(GNode.create("Fields"));
     classNode.addNode(GNode.create("Methods"));
-    currentFieldMap = new HashMap<String,GNode>();
+    currentFieldMap = new MemberTable<GNode>(classNode, null);
     classNode.setProperty("FieldMap", currentFieldMap);
 
-    currentMethodMap = new HashMap<String, ArrayList<GNode> >();
-    classNode.setProperty("MethodMap", currentMethodMap);
+    // The index of each method in the Methods node by mangled name
+    classNode.setProperty("MethodMap", new HashMap<String, Integer>());
 
     classes.addNode(classNode);
     
@@ -165,7 +182,7 @@ public class CPPAST {
     classNode.getGeneric(3).addNode(fieldNode);
     currentFieldMap.put(ambigName, fieldNode);
     if(isStatic)
-      fieldNode.setProperty("static", true);
+      annotations.set(fieldNode, NodeAnnotations.STATIC);
     return fieldNode;
   }
 
@@ -178,7 +195,7 @@ public class CPPAST {
     fieldNode.add(type);
     classNode.getGeneric(3).addNode(fieldNode);
     if(isStatic)
-      fieldNode.setProperty("static", true);
+      annotations.set(fieldNode, NodeAnnotations.STATIC);
     return fieldNode;
   }
   
@@ -268,28 +285,11 @@ public class CPPAST {
     methodNode.addNode(GNode.create("Block"));
     
     //Find if a method exists with the same name and input. If it does, overwrite it with the new implemented method
-    boolean overridingMethod = false;
-    GNode methodsNode = classNode.getGeneric(4);
-    
     setMethodParameters(parameters, methodNode);
     
     
-    for(int i = 0; i < methodsNode.size(); i++){
-      GNode method = methodsNode.getGeneric(i);
-      if(method.getName().equals("InheritedMethodContainer")) method = method.getGeneric(0);
-        //TODO: Check for exact match
-      if(Type.getCppMangledMethodName(method).equals(Type.getCppMangledMethodName(methodNode))){
-        
-        
-        methodsNode.set(i, methodNode);
-        overridingMethod = true;
-        break;
-      }
-    }
-    
-    //Otherwise just add it to the bottom of the methods
-    if(!overridingMethod)
-      methodsNode.addNode(methodNode);
+    //TODO: Check for exact match
+    putMethod(methodNode, classNode);
     
     return methodNode;
   }
@@ -310,20 +310,7 @@ public class CPPAST {
     methodNode.add(GNode.create("FormalParameters"));
     methodNode.addNode(GNode.create("From")).getNode(methodNode.size()-1).add(from);
     //Find if a method exists with the same name and input. If it does, overwrite it with the new implemented method
-    boolean overridingMethod = false;
-    GNode methodsNode = classNode.getGeneric(4);
-    for(int i = 0; i < methodsNode.size(); i++){
-      GNode method = methodsNode.getGeneric(i);
-      if(method.getName().equals("InheritedMethodContainer")) method = method.getGeneric(0);
-      if(Type.getCppMangledMethodName(method).equals(Type.getCppMangledMethodName(methodNode))){
-        methodsNode.set(i, methodNode);
-        overridingMethod = true;
-        break;
-      }
-    }
-    //Otherwise just add it to the bottom of the methods
-    if(!overridingMethod)
-      methodsNode.addNode(methodNode);
+    putMethod(methodNode, classNode);
     return methodNode;
   }
 
@@ -383,19 +370,77 @@ public class CPPAST {
       //Add the parent method to the class. If it is inherited from further up the tree than the parent it will already be formatted as an inherited method
       // Make sure we don't add private or static methods
       
-      if (inheritedMethod.getProperty("static") == null && inheritedMethod.getProperty("private") == null)
-        currentClass.getGeneric(4).addNode(inheritedMethod);
+      if (!annotations.is(inheritedMethod, NodeAnnotations.STATIC | NodeAnnotations.PRIVATE))
+        putMethod(inheritedMethod, currentClass);
+    }
+  }
+
+  /**
+   * Add a method to a class's Methods node, replacing the method with the
+   * same mangled name if there is one.
+   *
+   * @param method Method declaration or inherited method container.
+   * @param classNode Class node.
+   */
+  private void putMethod(GNode method, GNode classNode) {
+    GNode methodsNode = classNode.getGeneric(4);
+    HashMap<String, Integer> methodMap = getMethodMap(classNode);
+    String name = getMangledName(method.hasName("InheritedMethodContainer")
+                                 ? method.getGeneric(0) : method);
+
+    Integer index = methodMap.get(name);
+    if (null != index) {
+      methodsNode.set(index, method);
+    } else {
+      methodMap.put(name, methodsNode.size());
+      methodsNode.addNode(method);
+    }
+  }
+
+  /**
+   * Get the mangled name of a method declaration. The name is computed
+   * once per declaration, as inherited methods share their declaration
+   * with the parent class.
+   */
+  private String getMangledName(GNode method) {
+    String name = mangledNames.get(method);
+    if (null == name) {
+      name = Type.getCppMangledMethodName(method);
+      mangledNames.put(method, name);
     }
+    return name;
   }
 
+  /**
+   * Get the fields of a class by name, including inherited ones. The
+   * table is kept as the class node's FieldMap property.
+   */
+  @SuppressWarnings("unchecked")
+  static MemberTable<GNode> getFieldMap(GNode classNode) {
+    return (MemberTable<GNode>)classNode.getProperty("FieldMap");
+  }
+
+  /**
+   * Get the index of each method in a class's Methods node by mangled
+   * name, kept as the class node's MethodMap property.
+   */
+  @SuppressWarnings("unchecked")
+  private static HashMap<String, Integer> getMethodMap(GNode classNode) {
+    return (HashMap<String, Integer>)classNode.getProperty("MethodMap");
+  }
+
+  /**
+   * Layer the current class's field map over its parent's, and add the
+   * parent's instance fields to the class.
+   */
   void addAllInheritedFields(GNode parentClassNode, GNode currentClass){
-    currentClass.setProperty("FieldMap", new HashMap<String,GNode>((HashMap<String,GNode>)parentClassNode.getProperty("FieldMap")));
-    currentFieldMap = (HashMap<String,GNode>)currentClass.getProperty("FieldMap");
+    currentFieldMap = getFieldMap(currentClass);
+    currentFieldMap.setParent(getFieldMap(parentClassNode));
 
     for(Object fieldobj : parentClassNode.getGeneric(3)){
       GNode field = (GNode)fieldobj;
-      if (field.getProperty("static") == null)
-        addField(field.getString(0), field.getGeneric(1), currentClass, null != field.getProperty("static"));
+      if (!annotations.is(field, NodeAnnotations.STATIC))
+        addField(field.getString(0), field.getGeneric(1), currentClass, false);
     }
   }
   
@@ -493,43 +538,33 @@ public class CPPAST {
     int methodIndex = getInheritedMethodIndex(name, classNode);
     if(methodIndex != -1) classNode.getGeneric(5).remove(methodIndex);
     
-    //
-    
-    new Visitor () {
-      
-      public void visitInheritedMethods( GNode n ) {
-      
-        //
-        for (Object o : n){
-          Boolean matches = false;
-          if (o instanceof Node){ 
-            matches = (Boolean)dispatch((Node)o);
-            //
-          }
-          if ( matches == true ) {
-            n.remove(n.indexOf(o));
-            //
+    removeInheritedMethods(name, classNode);
+  }
+
+  /**
+   * Remove the method declarations with the given name from every
+   * InheritedMethods node below n.
+   *
+   * @param name Inherited method name.
+   * @param n The node to search.
+   */
+  private void removeInheritedMethods(String name, GNode n) {
+    for (Object o : n) {
+      if (!(o instanceof GNode)) continue;
+      GNode child = (GNode)o;
+      if (child.hasName("InheritedMethods")) {
+        for (int i = child.size() - 1; i >= 0; i--) {
+          Object method = child.get(i);
+          if (method instanceof GNode 
+              && ((GNode)method).hasName("MethodDeclaration")
+              && ((GNode)method).getString(0).equals(name)) {
+            child.remove(i);
           }
         }
+      } else {
+        removeInheritedMethods(name, child);
       }
-      
-      
-      public Boolean visitMethodDeclaration ( GNode n ) {
-        //
-        if (n.getString(0).equals(name)){
-          return true;
-        }
-        
-        else {
-          return false;
-        }
-      }
-      
-      public void visit(Node n) {
-        ////
-        for (Object o : n) if (o instanceof Node) dispatch((Node)o);
-      }
-    }.dispatch(classNode);
+    }
   }
   
   //Utility methods
@@ -567,7 +602,7 @@ public class CPPAST {
     GNode ArrayDec = 
       GNode.create("ClassDeclaration", "rt.Array", null, null, fields, methods);
 
-    HashMap<String, GNode> arrFieldMap = new HashMap<String, GNode>();
+    MemberTable<GNode> arrFieldMap = new MemberTable<GNode>(ArrayDec, null);
     arrFieldMap.put("length", lenField);
 
     ArrayDec.setProperty("FieldMap", arrFieldMap);
@@ -580,6 +615,12 @@ public class CPPAST {
     return stringDec;
   }
 
+  GNode generateStringBuilderClassDeclaration(){
+    GNode methods = generateStringBuilderMethods();
+    GNode builderDec = GNode.create("ClassDeclaration", "java.lang.StringBuilder", null, null, null, methods);
+    return builderDec;
+  }
+
   GNode generateClassClassDeclaration(){
     GNode methods = generateClassMethods();
     GNode objectDec = GNode.create("ClassDeclaration", "java.lang.Class", null, null, null, methods);
@@ -733,6 +774,57 @@ public class CPPAST {
     return objectMethods;
   }
 
+  /**
+   * Generate the methods of java.lang.StringBuilder, implemented by
+   * __StringBuilder in the runtime. Each append overload is mangled by
+   * its parameter type, like append_int.
+   */
+  GNode generateStringBuilderMethods(){
+    GNode methods = GNode.create("Methods");
+    GNode builderType = GNode.create("ReturnType",
+        GNode.create("QualifiedIdentifier", "java", "lang", "StringBuilder"), null);
+
+    methods.add(builtinMethod("hashCode", primitiveReturnType("int")));
+    methods.add(builtinMethod("equals", primitiveReturnType("boolean"),
+          GNode.create("FormalParameter", "obj", generateObjectType())));
+    methods.add(builtinMethod("getClass", GNode.create("ReturnType",
+          GNode.create("QualifiedIdentifier", "java", "lang", "Class"), null)));
+    methods.add(builtinMethod("toString", GNode.create("ReturnType",
+          GNode.create("QualifiedIdentifier", "java", "lang", "String"), null)));
+
+    String[] primitives = { "boolean", "char", "int", "long", "float", "double" };
+    for (String primitive : primitives) {
+      methods.add(builtinMethod("append", builderType, GNode.create("FormalParameter",
+            "x", GNode.create("Type", GNode.create("PrimitiveType", primitive), null))));
+    }
+    methods.add(builtinMethod("append", builderType, GNode.create("FormalParameter", "s",
+          GNode.create("Type", GNode.create("QualifiedIdentifier", "java", "lang", "String"), null))));
+    methods.add(builtinMethod("append", builderType,
+          GNode.create("FormalParameter", "obj", generateObjectType())));
+
+    methods.add(builtinMethod("length", primitiveReturnType("int")));
+    methods.add(builtinMethod("charAt", primitiveReturnType("char"),
+          GNode.create("FormalParameter", "i", GNode.create("Type", GNode.create("PrimitiveType", "int"), null))));
+    methods.add(builtinMethod("setLength", primitiveReturnType("void"),
+          GNode.create("FormalParameter", "newLength", GNode.create("Type", GNode.create("PrimitiveType", "int"), null))));
+    methods.add(builtinMethod("reverse", builderType));
+    return methods;
+  }
+
+  private static GNode primitiveReturnType(String primitive) {
+    return GNode.create("ReturnType", GNode.create("PrimitiveType", primitive), null);
+  }
+
+  /** Create the declaration of a method the runtime implements. */
+  private static GNode builtinMethod(String name, GNode returnType, GNode... parameters) {
+    GNode formals = GNode.create("FormalParameters");
+    for (GNode parameter : parameters) {
+      formals.add(parameter);
+    }
+    return GNode.create("ImplementedMethodDeclaration", name, returnType, formals,
+        GNode.create("Block"));
+  }
+
   GNode generateClassMethods(){
     GNode objectMethods = GNode.create("Methods");
     GNode objectType = generateObjectType();
@@ -0,0 +1,892 @@
+package qimpp;
+
+import java.math.BigInteger;
+
+import xtc.tree.GNode;
+import xtc.tree.Node;
+
+/**
+ * Folds constant expressions in mangled method bodies, before they are
+ * printed. Arithmetic, comparisons, casts and string concatenation of
+ * constants are evaluated with Java semantics and replaced by a single
+ * literal, references to static final fields with constant initializers
+ * are replaced by their values, and if and while statements with
+ * constant conditions are pruned.
+ *
+ * Values are represented by the boxed Java type of the expression (Byte,
+ * Short, Character, Integer, Long, Float, Double, Boolean or String), so
+ * evaluating in Java gives exactly the wraparound, division and widening
+ * rules of the translated program. Values without a C++ literal, like
+ * NaN, are left as the expressions that compute them.
+ *
+ * A class's static initializer is folded first. Its assignments to
+ * static final fields of primitive or String type that fold to constants
+ * record the constants on the field declarations, for the class's own
+ * methods and for classes translated later. Primitive constants are then
+ * initialized at compile time, see isCompileTimeConstant().
+ *
+ * @author QIMPP
+ */
+public class ConstantFolder extends DispatchingVisitor {
+
+  /** The name of the synthesized static initializer method. */
+  static final String STATIC_INIT = "__static_init";
+
+  /** Returned for a statement that is pruned altogether. */
+  private static final Object REMOVED = new Object();
+
+  private final InheritanceTreeManager inheritanceTree;
+  private final NodeAnnotations annotations;
+
+  public ConstantFolder(InheritanceTreeManager inheritanceTree,
+                        NodeAnnotations annotations) {
+    this.inheritanceTree = inheritanceTree;
+    this.annotations = annotations;
+  }
+
+  /**
+   * Fold the method and constructor bodies of a class, starting with its
+   * static initializer.
+   *
+   * @param cppClass The CPPAST ClassDeclaration.
+   */
+  public void foldClass(GNode cppClass) {
+    GNode methods = cppClass.getGeneric(4);
+    for (Object o : methods) {
+      GNode method = (GNode)o;
+      if (method.hasName("ImplementedMethodDeclaration")
+          && method.getString(0).equals(STATIC_INIT)) {
+        foldStaticInitializer(method);
+      }
+    }
+    for (Object o : methods) {
+      GNode method = (GNode)o;
+      if (method.hasName("ImplementedMethodDeclaration")
+          && !method.getString(0).equals(STATIC_INIT)) {
+        dispatch(method.getGeneric(3));
+      }
+    }
+    for (Object o : cppClass.getGeneric(2)) {
+      for (Object child : (GNode)o) {
+        if (child instanceof GNode && ((GNode)child).hasName("Block")) {
+          dispatch((GNode)child);
+        }
+      }
+    }
+  }
+
+  /**
+   * Fold a static initializer, recording the values of the constant
+   * fields it initializes. Assignments to compile-time constants are
+   * dropped, and an initializer left empty is marked TRIVIAL so the
+   * call to it can be skipped.
+   */
+  private void foldStaticInitializer(GNode method) {
+    GNode block = method.getGeneric(3);
+    for (int i = 0; i < block.size(); i++) {
+      Object result = dispatch(block.getGeneric(i));
+      if (REMOVED == result && block.hasVariable()) {
+        block.remove(i--);
+        continue;
+      }
+      replace(block, i, result);
+
+      GNode statement = block.getGeneric(i);
+      if (!statement.hasName("ExpressionStatement")
+          || !statement.getGeneric(0).hasName("Expression")) {
+        continue;
+      }
+      GNode assignment = statement.getGeneric(0);
+      GNode field = declarationOf(assignment.getGeneric(0));
+      if (null != field && "=".equals(assignment.getString(1))
+          && annotations.is(field, NodeAnnotations.STATIC)
+          && annotations.is(field, NodeAnnotations.FINAL)) {
+        Object value = assign(valueOf(assignment.getGeneric(2)),
+                              annotations.typeOf(field.getGeneric(1)));
+        if (null != value) {
+          annotations.setConstant(field, value);
+          if (isCompileTimeConstant(value) && block.hasVariable()) {
+            block.remove(i--);
+          }
+        }
+      }
+    }
+    annotations.set(method, NodeAnnotations.TRIVIAL, isEmpty(block));
+  }
+
+  /** Determine whether a block holds nothing but empty blocks. */
+  private static boolean isEmpty(GNode block) {
+    for (Object o : block) {
+      if (!(o instanceof GNode) || !((GNode)o).hasName("Block")
+          || !isEmpty((GNode)o)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Get the field declaration a field identifier refers to, or null. */
+  private GNode declarationOf(GNode identifier) {
+    if (!identifier.hasName("PrimaryIdentifier")
+        || annotations.getIdentifierType(identifier) != Constants.FIELD_IDENTIFIER) {
+      return null;
+    }
+    Object declaration = annotations.getDeclaration(identifier);
+    return (declaration instanceof GNode) ? (GNode)declaration : null;
+  }
+
+  /** Get the value of a literal, or null. */
+  private Object valueOf(GNode n) {
+    switch (NodeKind.of(n)) {
+    case NodeKind.INTEGER_LITERAL:
+    case NodeKind.FLOATING_POINT_LITERAL:
+    case NodeKind.CHARACTER_LITERAL:
+    case NodeKind.STRING_LITERAL:
+    case NodeKind.BOOLEAN_LITERAL:
+      return dispatch(n);
+    default:
+      return null;
+    }
+  }
+
+  // =========================================================================
+
+  /**
+   * Fold a node. Expressions return their constant value, or null if
+   * they are not constant. A node may also return a GNode to be replaced
+   * by, or REMOVED.
+   */
+  protected Object dispatch(int kind, GNode n) {
+    switch (kind) {
+    case NodeKind.BLOCK:
+      visitBlock(n);
+      return null;
+    case NodeKind.CONDITIONAL_STATEMENT:
+      return visitConditionalStatement(n);
+    case NodeKind.WHILE_STATEMENT:
+      return visitWhileStatement(n);
+    case NodeKind.EXPRESSION:
+      // Never replace the target of an assignment or increment
+      visit(n.getGeneric(0));
+      fold(n, 2);
+      return null;
+    case NodeKind.POSTFIX_EXPRESSION:
+      visit(n.getGeneric(0));
+      return null;
+    case NodeKind.CALL_EXPRESSION:
+      // The receiver decides how the call is printed, leave it be
+      if (null != n.get(0)) {
+        visit(n.getGeneric(0));
+      }
+      fold(n, 3);
+      return null;
+    case NodeKind.INTEGER_LITERAL:
+      return parseInteger(n.getString(0));
+    case NodeKind.FLOATING_POINT_LITERAL:
+      return parseFloatingPoint(n.getString(0));
+    case NodeKind.CHARACTER_LITERAL: {
+      String c = unescape(n.getString(0));
+      return (null == c || 1 != c.length()) ? null : (Object)c.charAt(0);
+    }
+    case NodeKind.STRING_LITERAL:
+      return unescape(n.getString(0));
+    case NodeKind.BOOLEAN_LITERAL:
+      return Boolean.valueOf(n.getString(0));
+    case NodeKind.PRIMARY_IDENTIFIER:
+      return visitPrimaryIdentifier(n);
+    case NodeKind.SELECTION_EXPRESSION:
+      return visitSelectionExpression(n);
+    case NodeKind.ADDITIVE_EXPRESSION:
+    case NodeKind.MULTIPLICATIVE_EXPRESSION:
+    case NodeKind.SHIFT_EXPRESSION:
+    case NodeKind.RELATIONAL_EXPRESSION:
+    case NodeKind.EQUALITY_EXPRESSION:
+      return visitBinaryExpression(n, n.getString(1), 0, 2);
+    case NodeKind.BITWISE_AND_EXPRESSION:
+      return visitBinaryExpression(n, "&", 0, 1);
+    case NodeKind.BITWISE_OR_EXPRESSION:
+      return visitBinaryExpression(n, "|", 0, 1);
+    case NodeKind.BITWISE_XOR_EXPRESSION:
+      return visitBinaryExpression(n, "^", 0, 1);
+    case NodeKind.LOGICAL_AND_EXPRESSION:
+      return visitLogicalExpression(n, false);
+    case NodeKind.LOGICAL_OR_EXPRESSION:
+      return visitLogicalExpression(n, true);
+    case NodeKind.LOGICAL_NEGATION_EXPRESSION:
+      return visitUnaryExpression(n, "!", 0);
+    case NodeKind.BITWISE_NEGATION_EXPRESSION:
+      return visitUnaryExpression(n, "~", 0);
+    case NodeKind.UNARY_EXPRESSION:
+      if ("++".equals(n.getString(0)) || "--".equals(n.getString(0))) {
+        visit(n.getGeneric(1));
+        return null;
+      }
+      return visitUnaryExpression(n, n.getString(0), 1);
+    case NodeKind.BASIC_CAST_EXPRESSION:
+      return visitBasicCastExpression(n);
+    case NodeKind.CONDITIONAL_EXPRESSION:
+      return visitConditionalExpression(n);
+    default:
+      visit(n);
+      return null;
+    }
+  }
+
+  /** Fold every child of a node. */
+  public void visit(Node n) {
+    for (int i = 0; i < n.size(); i++) {
+      fold((GNode)n, i);
+    }
+  }
+
+  /** Fold the statements of a block, dropping pruned ones. */
+  private void visitBlock(GNode n) {
+    for (int i = 0; i < n.size(); i++) {
+      Object child = n.get(i);
+      if (!(child instanceof GNode)) {
+        continue;
+      }
+      Object result = dispatch((GNode)child);
+      if (REMOVED == result && n.hasVariable()) {
+        n.remove(i--);
+      } else {
+        replace(n, i, result);
+      }
+    }
+  }
+
+  private Object visitConditionalStatement(GNode n) {
+    Object condition = fold(n, 0);
+    fold(n, 1);
+    if (null != n.get(2)) {
+      fold(n, 2);
+    }
+    if (!(condition instanceof Boolean)) {
+      return null;
+    }
+    if ((Boolean)condition) {
+      return n.getGeneric(1);
+    }
+    return (null == n.get(2)) ? REMOVED : n.getGeneric(2);
+  }
+
+  private Object visitWhileStatement(GNode n) {
+    Object condition = fold(n, 0);
+    if (Boolean.FALSE.equals(condition)) {
+      return REMOVED;
+    }
+    fold(n, 1);
+    return null;
+  }
+
+  private Object visitPrimaryIdentifier(GNode n) {
+    GNode field = declarationOf(n);
+    return (null == field) ? null : annotations.getConstant(field);
+  }
+
+  /** Fold a reference to a class's constant, as in Foo.X. */
+  private Object visitSelectionExpression(GNode n) {
+    GNode target = n.getGeneric(0);
+    if (annotations.getIdentifierType(target) != Constants.QUALIFIED_CLASS_IDENTIFIER) {
+      visit(n);
+      return null;
+    }
+    Object declaration = annotations.getDeclaration(n);
+    return (declaration instanceof GNode)
+      ? annotations.getConstant((GNode)declaration) : null;
+  }
+
+  private Object visitBinaryExpression(GNode n, String operator,
+                                       int left, int right) {
+    Object leftValue = evaluate(n, left);
+    Object rightValue = evaluate(n, right);
+    Object value = (null == leftValue || null == rightValue)
+      ? null : binary(leftValue, operator, rightValue);
+    if (null == value) {
+      replaceWithLiteral(n, left, leftValue);
+      replaceWithLiteral(n, right, rightValue);
+    }
+    return value;
+  }
+
+  /**
+   * Fold && or ||. A constant left operand decides the expression or
+   * drops out of it; a constant right operand cannot be dropped, since
+   * the left one may have side effects.
+   */
+  private Object visitLogicalExpression(GNode n, boolean isOr) {
+    Object left = evaluate(n, 0);
+    Object right = evaluate(n, 1);
+    if (left instanceof Boolean) {
+      if ((Boolean)left == isOr) {
+        return left;
+      }
+      if (null != right) {
+        return right;
+      }
+      return n.getGeneric(1);
+    }
+    replaceWithLiteral(n, 0, left);
+    replaceWithLiteral(n, 1, right);
+    return null;
+  }
+
+  private Object visitUnaryExpression(GNode n, String operator, int operand) {
+    Object value = evaluate(n, operand);
+    Object result = (null == value) ? null : unary(operator, value);
+    if (null == result) {
+      replaceWithLiteral(n, operand, value);
+    }
+    return result;
+  }
+
+  private Object visitBasicCastExpression(GNode n) {
+    Object value = evaluate(n, 2);
+    Object result = null;
+    if (null != value && null == n.get(1)) {
+      TypeDescriptor.Primitive type =
+        TypeDescriptor.Primitive.forName(n.getGeneric(0).getString(0));
+      result = (null == type) ? null : cast(value, type);
+    }
+    if (null == result) {
+      replaceWithLiteral(n, 2, value);
+    }
+    return result;
+  }
+
+  /**
+   * Fold c ? a : b. Only folded when both branches are constants of the
+   * same type, so the result type needs no promotion.
+   */
+  private Object visitConditionalExpression(GNode n) {
+    Object condition = evaluate(n, 0);
+    Object then = evaluate(n, 1);
+    Object otherwise = evaluate(n, 2);
+    if (condition instanceof Boolean && null != then && null != otherwise
+        && then.getClass() == otherwise.getClass()) {
+      return ((Boolean)condition) ? then : otherwise;
+    }
+    replaceWithLiteral(n, 0, condition);
+    replaceWithLiteral(n, 1, then);
+    replaceWithLiteral(n, 2, otherwise);
+    return null;
+  }
+
+  // =========================================================================
+
+  /**
+   * Fold the i-th child of a node, replacing it if it becomes another
+   * node, and get its value without replacing it by a literal.
+   */
+  private Object evaluate(GNode n, int i) {
+    Object child = n.get(i);
+    if (!(child instanceof GNode)) {
+      return null;
+    }
+    Object result = dispatch((GNode)child);
+    if (replace(n, i, result)) {
+      return null;
+    }
+    return result;
+  }
+
+  /** Fold the i-th child of a node, and replace it by its value. */
+  private Object fold(GNode n, int i) {
+    Object value = evaluate(n, i);
+    replaceWithLiteral(n, i, value);
+    return value;
+  }
+
+  /**
+   * Replace the i-th child of a node by the node a visit returned.
+   *
+   * @return true if the child was replaced
+   */
+  private boolean replace(GNode n, int i, Object result) {
+    if (REMOVED == result) {
+      n.set(i, GNode.create("Block"));
+      return true;
+    } else if (result instanceof GNode) {
+      n.set(i, result);
+      return true;
+    }
+    return false;
+  }
+
+  /** Replace the i-th child of a node by a literal of its value. */
+  private void replaceWithLiteral(GNode n, int i, Object value) {
+    if (null == value || isLiteral(n.getGeneric(i))) {
+      return;
+    }
+    GNode literal = literal(value);
+    if (null != literal) {
+      literal.setLocation(n.getGeneric(i));
+      n.set(i, literal);
+    }
+  }
+
+  private static boolean isLiteral(GNode n) {
+    switch (NodeKind.of(n)) {
+    case NodeKind.INTEGER_LITERAL:
+    case NodeKind.FLOATING_POINT_LITERAL:
+    case NodeKind.CHARACTER_LITERAL:
+    case NodeKind.STRING_LITERAL:
+    case NodeKind.BOOLEAN_LITERAL:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * Create the literal of a value, annotated like BlockMangler annotates
+   * literals.
+   *
+   * @return the literal, or null if the value has no C++ literal
+   */
+  GNode literal(Object value) {
+    String text = cppLiteral(value);
+    if (null == text) {
+      return null;
+    }
+    GNode literal;
+    TypeDescriptor type;
+    if (value instanceof String) {
+      literal = GNode.create("StringLiteral", text);
+      annotations.setIdentifierType(literal, Constants.CLASS_IDENTIFIER);
+      annotations.setDeclaration(literal,
+          inheritanceTree.getClassDeclarationNode("java.lang.String"));
+      annotations.setTypeNode(literal, TypeDescriptor.STRING.toTypeNode());
+      return literal;
+    } else if (value instanceof Boolean) {
+      literal = GNode.create("BooleanLiteral", text);
+      type = TypeDescriptor.BOOLEAN;
+    } else if (value instanceof Character) {
+      literal = GNode.create("CharacterLiteral", text);
+      type = TypeDescriptor.CHAR;
+    } else if (value instanceof Float || value instanceof Double) {
+      literal = GNode.create("FloatingPointLiteral", text);
+      type = (value instanceof Float) ? TypeDescriptor.FLOAT : TypeDescriptor.DOUBLE;
+    } else {
+      literal = GNode.create("IntegerLiteral", text);
+      type = (value instanceof Long) ? TypeDescriptor.LONG
+        : (value instanceof Byte) ? TypeDescriptor.BYTE
+        : (value instanceof Short) ? TypeDescriptor.SHORT : TypeDescriptor.INT;
+    }
+    annotations.setIdentifierType(literal, Constants.PRIMITIVE_TYPE_IDENTIFIER);
+    annotations.setTypeNode(literal, type.toTypeNode());
+    return literal;
+  }
+
+  /**
+   * Get the C++ text of a constant. Strings are quoted as printed inside
+   * __rt::literal().
+   *
+   * @return the text, or null if the value has no C++ literal
+   */
+  static String cppLiteral(Object value) {
+    if (value instanceof String) {
+      return quote((String)value, '"');
+    } else if (value instanceof Boolean) {
+      return value.toString();
+    } else if (value instanceof Character) {
+      return quote(value.toString(), '\'');
+    } else if (value instanceof Float || value instanceof Double) {
+      double d = ((Number)value).doubleValue();
+      if (Double.isNaN(d) || Double.isInfinite(d)) {
+        return null;
+      }
+      return signed(value.toString() + ((value instanceof Float) ? "f" : ""));
+    } else if (value instanceof Long) {
+      long l = (Long)value;
+      return (Long.MIN_VALUE == l)
+        ? "(-9223372036854775807L - 1)" : signed(l + "L");
+    } else if (value instanceof Number) {
+      int i = ((Number)value).intValue();
+      return (Integer.MIN_VALUE == i)
+        ? "(-2147483647 - 1)" : signed(Integer.toString(i));
+    }
+    return null;
+  }
+
+  /**
+   * Determine whether a constant static field with the given value is
+   * initialized at compile time, by HeaderWriter, rather than by the
+   * class's __static_init. Strings are objects and still need the
+   * initializer.
+   */
+  static boolean isCompileTimeConstant(Object value) {
+    return null != value && !(value instanceof String)
+      && null != cppLiteral(value);
+  }
+
+  /** Parenthesize a negative number, so it prints safely anywhere. */
+  private static String signed(String text) {
+    return text.startsWith("-") ? "(" + text + ")" : text;
+  }
+
+  // =========================================================================
+  // Java semantics
+
+  /**
+   * Evaluate a binary operator on constants.
+   *
+   * @return the value, or null if it cannot be folded
+   */
+  static Object binary(Object left, String operator, Object right) {
+    if ("+".equals(operator)
+        && (left instanceof String || right instanceof String)) {
+      return String.valueOf(left) + String.valueOf(right);
+    }
+    if (left instanceof Boolean && right instanceof Boolean) {
+      boolean l = (Boolean)left, r = (Boolean)right;
+      if ("&".equals(operator)) return l & r;
+      if ("|".equals(operator)) return l | r;
+      if ("^".equals(operator) || "!=".equals(operator)) return l != r;
+      if ("==".equals(operator)) return l == r;
+      return null;
+    }
+    if (!isNumeric(left) || !isNumeric(right)) {
+      return null;
+    }
+
+    if ("<<".equals(operator) || ">>".equals(operator)
+        || ">>>".equals(operator)) {
+      // Shifts promote their operands separately
+      if (isFloating(left) || isFloating(right)) {
+        return null;
+      }
+      long distance = toLong(right);
+      if (left instanceof Long) {
+        long l = (Long)left;
+        if ("<<".equals(operator)) return l << distance;
+        if (">>".equals(operator)) return l >> distance;
+        return l >>> distance;
+      }
+      int l = toInt(left);
+      if ("<<".equals(operator)) return l << distance;
+      if (">>".equals(operator)) return l >> distance;
+      return l >>> distance;
+    }
+
+    if (left instanceof Double || right instanceof Double) {
+      double l = toDouble(left), r = toDouble(right);
+      if ("+".equals(operator)) return l + r;
+      if ("-".equals(operator)) return l - r;
+      if ("*".equals(operator)) return l * r;
+      if ("/".equals(operator)) return l / r;
+      if ("%".equals(operator)) return l % r;
+      return compare(operator, (l < r) ? -1 : (l == r) ? 0 : 1,
+                     l != l || r != r, l == r);
+    } else if (left instanceof Float || right instanceof Float) {
+      float l = toFloat(left), r = toFloat(right);
+      if ("+".equals(operator)) return l + r;
+      if ("-".equals(operator)) return l - r;
+      if ("*".equals(operator)) return l * r;
+      if ("/".equals(operator)) return l / r;
+      if ("%".equals(operator)) return l % r;
+      return compare(operator, (l < r) ? -1 : (l == r) ? 0 : 1,
+                     l != l || r != r, l == r);
+    } else if (left instanceof Long || right instanceof Long) {
+      long l = toLong(left), r = toLong(right);
+      if ("+".equals(operator)) return l + r;
+      if ("-".equals(operator)) return l - r;
+      if ("*".equals(operator)) return l * r;
+      // Division by zero throws at run time
+      if ("/".equals(operator)) return (0 == r) ? null : (Object)(l / r);
+      if ("%".equals(operator)) return (0 == r) ? null : (Object)(l % r);
+      if ("&".equals(operator)) return l & r;
+      if ("|".equals(operator)) return l | r;
+      if ("^".equals(operator)) return l ^ r;
+      return compare(operator, (l < r) ? -1 : (l == r) ? 0 : 1, false, l == r);
+    } else {
+      int l = toInt(left), r = toInt(right);
+      if ("+".equals(operator)) return l + r;
+      if ("-".equals(operator)) return l - r;
+      if ("*".equals(operator)) return l * r;
+      if ("/".equals(operator)) return (0 == r) ? null : (Object)(l / r);
+      if ("%".equals(operator)) return (0 == r) ? null : (Object)(l % r);
+      if ("&".equals(operator)) return l & r;
+      if ("|".equals(operator)) return l | r;
+      if ("^".equals(operator)) return l ^ r;
+      return compare(operator, (l < r) ? -1 : (l == r) ? 0 : 1, false, l == r);
+    }
+  }
+
+  /**
+   * Evaluate a comparison. Comparisons with NaN are false, except !=.
+   */
+  private static Object compare(String operator, int order, boolean nan,
+                                boolean equal) {
+    if ("==".equals(operator)) return equal;
+    if ("!=".equals(operator)) return !equal;
+    if (nan) {
+      return ("<".equals(operator) || ">".equals(operator)
+              || "<=".equals(operator) || ">=".equals(operator))
+        ? Boolean.FALSE : null;
+    }
+    if ("<".equals(operator)) return order < 0;
+    if (">".equals(operator)) return order > 0;
+    if ("<=".equals(operator)) return order <= 0;
+    if (">=".equals(operator)) return order >= 0;
+    return null;
+  }
+
+  /** Evaluate a unary operator on a constant, or return null. */
+  static Object unary(String operator, Object value) {
+    if ("!".equals(operator)) {
+      return (value instanceof Boolean) ? (Object)!(Boolean)value : null;
+    }
+    if (!isNumeric(value)) {
+      return null;
+    }
+    if (value instanceof Double) {
+      double d = (Double)value;
+      return "-".equals(operator) ? (Object)(-d)
+        : "+".equals(operator) ? (Object)d : null;
+    } else if (value instanceof Float) {
+      float f = (Float)value;
+      return "-".equals(operator) ? (Object)(-f)
+        : "+".equals(operator) ? (Object)f : null;
+    } else if (value instanceof Long) {
+      long l = (Long)value;
+      return "-".equals(operator) ? (Object)(-l)
+        : "~".equals(operator) ? (Object)(~l)
+        : "+".equals(operator) ? (Object)l : null;
+    } else {
+      int i = toInt(value);
+      return "-".equals(operator) ? (Object)(-i)
+        : "~".equals(operator) ? (Object)(~i)
+        : "+".equals(operator) ? (Object)i : null;
+    }
+  }
+
+  /** Convert a constant to a primitive type, as a cast does. */
+  static Object cast(Object value, TypeDescriptor.Primitive type) {
+    if (TypeDescriptor.Primitive.BOOLEAN == type) {
+      return (value instanceof Boolean) ? value : null;
+    }
+    if (!isNumeric(value)) {
+      return null;
+    }
+    switch (type) {
+    case BYTE:
+      return isFloating(value) ? (byte)(int)toDouble(value)
+        : (Object)(byte)toLong(value);
+    case SHORT:
+      return isFloating(value) ? (short)(int)toDouble(value)
+        : (Object)(short)toLong(value);
+    case CHAR:
+      return isFloating(value) ? (char)(int)toDouble(value)
+        : (Object)(char)toLong(value);
+    case INT:
+      return isFloating(value) ? (int)toDouble(value)
+        : (Object)(int)toLong(value);
+    case LONG:
+      return isFloating(value) ? (long)toDouble(value)
+        : (Object)toLong(value);
+    case FLOAT:
+      return (value instanceof Double) ? (float)(double)(Double)value
+        : isFloating(value) ? value : (Object)(float)toLong(value);
+    case DOUBLE:
+      return (value instanceof Float) ? (double)(float)(Float)value
+        : isFloating(value) ? value : (Object)(double)toLong(value);
+    default:
+      return null;
+    }
+  }
+
+  /**
+   * Convert the constant initializer of a field to the field's type.
+   *
+   * @return the value, or null if the field cannot be a constant
+   */
+  static Object assign(Object value, TypeDescriptor type) {
+    if (null == value || null == type) {
+      return null;
+    }
+    if (TypeDescriptor.STRING == type) {
+      return (value instanceof String) ? value : null;
+    }
+    if (!type.isPrimitive() || value instanceof String) {
+      return null;
+    }
+    return cast(value, type.getPrimitive());
+  }
+
+  private static boolean isNumeric(Object value) {
+    return value instanceof Number || value instanceof Character;
+  }
+
+  private static boolean isFloating(Object value) {
+    return value instanceof Float || value instanceof Double;
+  }
+
+  private static int toInt(Object value) {
+    return (value instanceof Character)
+      ? (Character)value : ((Number)value).intValue();
+  }
+
+  private static long toLong(Object value) {
+    return (value instanceof Character)
+      ? (Character)value : ((Number)value).longValue();
+  }
+
+  /** Convert to float directly, as rounding a long through double twice differs. */
+  private static float toFloat(Object value) {
+    return (value instanceof Float) ? (Float)value : (float)toLong(value);
+  }
+
+  private static double toDouble(Object value) {
+    if (value instanceof Float) {
+      return (Float)value;
+    }
+    return (value instanceof Character)
+      ? (Character)value : ((Number)value).doubleValue();
+  }
+
+  // =========================================================================
+  // Literals
+
+  /** Parse an integer literal, e.g. 10, 0x1F, 017 or 10L. */
+  static Object parseInteger(String text) {
+    boolean isLong = text.endsWith("l") || text.endsWith("L");
+    String digits = (isLong ? text.substring(0, text.length() - 1) : text)
+      .replace("_", "");
+    int radix = 10;
+    if (digits.startsWith("0x") || digits.startsWith("0X")) {
+      radix = 16;
+      digits = digits.substring(2);
+    } else if (digits.startsWith("0b") || digits.startsWith("0B")) {
+      radix = 2;
+      digits = digits.substring(2);
+    } else if (digits.length() > 1 && digits.startsWith("0")) {
+      radix = 8;
+      digits = digits.substring(1);
+    }
+    try {
+      BigInteger value = new BigInteger(digits, radix);
+      // Hexadecimal and octal literals may fill the sign bit, and
+      // 2147483648 only appears negated
+      return isLong ? (Object)value.longValue() : (Object)value.intValue();
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /** Parse a floating point literal, e.g. 1.5, 1e10 or 2.5f. */
+  static Object parseFloatingPoint(String text) {
+    try {
+      if (text.endsWith("f") || text.endsWith("F")) {
+        return Float.parseFloat(text);
+      }
+      return Double.parseDouble(text);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Get the value of a quoted Java character or string literal.
+   *
+   * @return the value, or null if the literal is malformed
+   */
+  static String unescape(String literal) {
+    if (literal.length() < 2) {
+      return null;
+    }
+    String body = literal.substring(1, literal.length() - 1);
+    StringBuilder b = new StringBuilder(body.length());
+    for (int i = 0; i < body.length(); i++) {
+      char c = body.charAt(i);
+      if ('\\' != c) {
+        b.append(c);
+        continue;
+      }
+      if (++i == body.length()) {
+        return null;
+      }
+      c = body.charAt(i);
+      switch (c) {
+      case 'b': b.append('\b'); break;
+      case 't': b.append('\t'); break;
+      case 'n': b.append('\n'); break;
+      case 'f': b.append('\f'); break;
+      case 'r': b.append('\r'); break;
+      case '"': case '\'': case '\\': b.append(c); break;
+      case 'u': {
+        while (i < body.length() && 'u' == body.charAt(i)) {
+          i++;
+        }
+        if (i + 4 > body.length()) {
+          return null;
+        }
+        try {
+          b.append((char)Integer.parseInt(body.substring(i, i + 4), 16));
+        } catch (NumberFormatException e) {
+          return null;
+        }
+        i += 3;
+        break;
+      }
+      default: {
+        // Octal escape of up to three digits, at most \377
+        int end = i;
+        int max = ('0' <= c && c <= '3') ? 3 : 2;
+        while (end < body.length() && end - i < max
+               && '0' <= body.charAt(end) && body.charAt(end) <= '7') {
+          end++;
+        }
+        if (end == i) {
+          return null;
+        }
+        b.append((char)Integer.parseInt(body.substring(i, end), 8));
+        i = end - 1;
+      }
+      }
+    }
+    return b.toString();
+  }
+
+  /**
+   * Quote a value as a C++ character or string literal.
+   *
+   * @return the literal, or null if a character cannot be written in the
+   *   narrow literals the runtime uses
+   */
+  static String quote(String value, char quote) {
+    StringBuilder b = new StringBuilder(value.length() + 2);
+    b.append(quote);
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+      case '\b': b.append("\\b"); break;
+      case '\t': b.append("\\t"); break;
+      case '\n': b.append("\\n"); break;
+      case '\f': b.append("\\f"); break;
+      case '\r': b.append("\\r"); break;
+      case '\\': b.append("\\\\"); break;
+      case '"': case '\'':
+        if (c == quote) {
+          b.append('\\');
+        }
+        b.append(c);
+        break;
+      default:
+        if (c < 0x20 || 0x7f == c) {
+          b.append(String.format("\\%03o", (int)c));
+        } else if (c < 0x7f) {
+          b.append(c);
+        } else if ('"' == quote && c >= 0xa0
+                   && !Character.isSurrogate(c)) {
+          // Like Java's own escapes, which are printed unchanged
+          b.append(String.format("\\u%04x", (int)c));
+        } else {
+          return null;
+        }
+      }
+    }
+    return b.append(quote).toString();
+  }
+
+}
@@ -0,0 +1,135 @@
+package qimpp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import xtc.tree.GNode;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ConstantFolder.
+ *
+ * @author QIMPP
+ */
+public class ConstantFolderTest {
+
+  NodeAnnotations annotations;
+  ConstantFolder folder;
+
+  @Before public void setUp() {
+    annotations = new NodeAnnotations();
+    InheritanceTreeManager tree =
+      new InheritanceTreeManager(GNode.create("ClassDeclaration", "java.lang.Object"));
+    tree.insertClass(new ArrayList<String>(Arrays.asList("java", "lang", "String")),
+        null, GNode.create("ClassDeclaration", "java.lang.String"));
+    folder = new ConstantFolder(tree, annotations);
+  }
+
+  static GNode binary(String kind, GNode left, String operator, GNode right) {
+    return GNode.create(kind, left, operator, right);
+  }
+
+  static GNode integer(String text) {
+    return GNode.create("IntegerLiteral", text);
+  }
+
+  @Test public void testArithmetic() {
+    assertEquals(Integer.MIN_VALUE, ConstantFolder.binary(Integer.MAX_VALUE, "+", 1));
+    assertEquals(-2, ConstantFolder.binary(-7, "/", 3));
+    assertEquals(-1, ConstantFolder.binary(-7, "%", 3));
+    assertNull(ConstantFolder.binary(1, "/", 0));
+    assertEquals(4294967296L, ConstantFolder.binary(1L, "<<", 32));
+    assertEquals(1, ConstantFolder.binary(1, "<<", 32));
+    assertEquals(0x7fffffff, ConstantFolder.binary(-1, ">>>", 1));
+    assertEquals(98, ConstantFolder.binary('a', "+", 1));
+    assertEquals(0.5, ConstantFolder.binary(1, "/", 2.0));
+    assertEquals(Boolean.FALSE, ConstantFolder.binary(Double.NaN, "==", Double.NaN));
+    assertEquals(Boolean.FALSE, ConstantFolder.binary(-0.0, "<", 0.0));
+    // 2^60 + 2^36 + 1 rounds up to a float, but to a tie and then down through a double
+    long wide = (1L << 60) + (1L << 36) + 1;
+    assertEquals((float)wide, ConstantFolder.binary(wide, "+", 0.0f));
+    assertEquals(Boolean.FALSE, ConstantFolder.binary(wide, "==", (float)(1L << 60)));
+    assertEquals("a1c", ConstantFolder.binary(ConstantFolder.binary("a", "+", 1), "+", 'c'));
+    assertEquals((byte)-56, ConstantFolder.cast(200, TypeDescriptor.Primitive.BYTE));
+    assertEquals(Integer.MAX_VALUE, ConstantFolder.cast(1e20, TypeDescriptor.Primitive.INT));
+    assertEquals('A', ConstantFolder.cast(65, TypeDescriptor.Primitive.CHAR));
+  }
+
+  @Test public void testLiterals() {
+    assertEquals(-1, ConstantFolder.parseInteger("0xFFFFFFFF"));
+    assertEquals(Long.MIN_VALUE, ConstantFolder.parseInteger("0x8000000000000000L"));
+    assertEquals(15, ConstantFolder.parseInteger("017"));
+    assertEquals(2.5f, ConstantFolder.parseFloatingPoint("2.5f"));
+    assertEquals("a\"\n\u00e9", ConstantFolder.unescape("\"a\\\"\\n\\u00e9\""));
+    assertEquals("A", ConstantFolder.unescape("'\\101'"));
+    assertEquals("\"a\\\"\\n\\u00e9\"", ConstantFolder.quote("a\"\n\u00e9", '"'));
+    assertNull(ConstantFolder.quote("\u00e9", '\''));
+  }
+
+  @Test public void testFold() {
+    // if (1 + 2 * 3 == 7) { x = "a" + 1 + 'b'; } else { }
+    GNode assignment = GNode.create("Expression", GNode.create("PrimaryIdentifier", "x"), "=",
+        binary("AdditiveExpression",
+            binary("AdditiveExpression", GNode.create("StringLiteral", "\"a\""), "+", integer("1")),
+            "+", GNode.create("CharacterLiteral", "'b'")));
+    GNode then = GNode.create("Block", GNode.create("ExpressionStatement", assignment));
+    GNode condition = binary("EqualityExpression",
+        binary("AdditiveExpression", integer("1"), "+",
+            binary("MultiplicativeExpression", integer("2"), "*", integer("3"))),
+        "==", integer("7"));
+    GNode body = GNode.create("Block", GNode.create("ConditionalStatement", condition, then,
+        GNode.create("Block")));
+
+    folder.dispatch(body);
+    assertSame(then, body.getGeneric(0));
+    GNode folded = assignment.getGeneric(2);
+    assertEquals("StringLiteral", folded.getName());
+    assertEquals("\"a1b\"", folded.getString(0));
+    assertSame(TypeDescriptor.STRING, annotations.getType(folded));
+    assertEquals("x", assignment.getGeneric(0).getString(0));
+  }
+
+  @Test public void testPrune() {
+    GNode call = GNode.create("ExpressionStatement", GNode.create("PrimaryIdentifier", "f"));
+    GNode body = GNode.create("Block",
+        GNode.create("ConditionalStatement", GNode.create("BooleanLiteral", "false"), call, null),
+        GNode.create("WhileStatement",
+            GNode.create("LogicalAndExpression", GNode.create("PrimaryIdentifier", "b"),
+                GNode.create("BooleanLiteral", "false")), call),
+        call);
+    folder.dispatch(body);
+    assertEquals(2, body.size());
+    assertEquals("WhileStatement", body.getGeneric(0).getName());
+    assertSame(call, body.getGeneric(1));
+  }
+
+  @Test public void testStaticInitializer() {
+    // static final int N = 2 * 3;
+    GNode field = GNode.create("FieldDeclaration", "N",
+        GNode.create("Type", GNode.create("PrimitiveType", "int"), null));
+    annotations.set(field, NodeAnnotations.STATIC | NodeAnnotations.FINAL);
+    GNode name = GNode.create("PrimaryIdentifier", "N");
+    annotations.setIdentifierType(name, Constants.FIELD_IDENTIFIER);
+    annotations.setDeclaration(name, field);
+    GNode block = GNode.create("Block");
+    block.add(GNode.create("ExpressionStatement", GNode.create("Expression", name, "=",
+        binary("MultiplicativeExpression", integer("2"), "*", integer("3")))));
+    GNode init = GNode.create("ImplementedMethodDeclaration", ConstantFolder.STATIC_INIT,
+        null, null, block);
+    GNode cppClass = GNode.create("ClassDeclaration", "A", GNode.create("Parent"),
+        GNode.create("Constructors"), GNode.create("Fields", field),
+        GNode.create("Methods", init));
+
+    folder.foldClass(cppClass);
+    assertEquals(6, annotations.getConstant(field));
+    assertEquals(0, block.size());
+    assertTrue(annotations.is(init, NodeAnnotations.TRIVIAL));
+    assertFalse(ConstantFolder.isCompileTimeConstant("s"));
+    assertFalse(ConstantFolder.isCompileTimeConstant(Double.NaN));
+  }
+
+}
@@ -16,16 +16,9 @@ public class Constants {
 
   public static final char JAVA_ESCAPE = 0x08;
 
-  public static final String SCOPE = "qimpp.Constants.Scope";
-
   public static final String TYPE = "qimpp.Constants.Type";
 
-
   // Constants for the classification of PrimaryIdentifiers and SelectionExpressions
-  public static final String IDENTIFIER_TYPE = "qimpp.Constants.IdentifierType";
-  public static final String IDENTIFIER_DECLARATION = "qimpp.Constants.IdentifierDeclaration";
-  public static final String IDENTIFIER_TYPE_NODE = "qimpp.Constants.IdentifierTypeNode";
-
   public static final String CLASS_IDENTIFIER = "qimpp.Constants.ClassIdentifier";
   public static final String FIELD_IDENTIFIER = "qimpp.Constants.FieldIdentifier";
   public static final String STACKVAR_IDENTIFIER = "qimpp.Constants.StackvarIdentifier";
@@ -0,0 +1,45 @@
+package qimpp;
+
+import xtc.tree.GNode;
+import xtc.tree.Node;
+import xtc.tree.Visitor;
+
+/**
+ * A Visitor that dispatches on the interned NodeKind of a node with a
+ * switch instead of looking up visitXxx methods reflectively.
+ *
+ * Subclasses implement dispatch(int, GNode) with a switch over the kinds
+ * they handle, calling their visit methods directly, and return UNHANDLED
+ * for anything else. Unhandled nodes fall back to Visitor's reflective
+ * dispatch, so a visit method missing from the switch is still called.
+ *
+ * @author QIMPP
+ */
+public abstract class DispatchingVisitor extends Visitor {
+
+  /** Returned by dispatch(int, GNode) for kinds the switch does not cover. */
+  protected static final Object UNHANDLED = new Object();
+
+  public Object dispatch(Node n) {
+    if (null == n) {
+      return null;
+    }
+    if (n instanceof GNode) {
+      Object result = dispatch(NodeKind.of(n.getName()), (GNode)n);
+      if (UNHANDLED != result) {
+        return result;
+      }
+    }
+    return super.dispatch(n);
+  }
+
+  /**
+   * Visit a node of a known kind.
+   *
+   * @param kind the NodeKind of the node
+   * @param n the node
+   * @return the result of the visit method, or UNHANDLED
+   */
+  protected abstract Object dispatch(int kind, GNode n);
+
+}
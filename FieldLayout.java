@@ -0,0 +1,224 @@
+package qimpp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import xtc.tree.GNode;
+
+/**
+ * Plans the order of the instance fields of a generated struct so that
+ * as little space as possible is lost to padding.
+ *
+ * A struct repeats its parent's fields, and a pointer to it is used as a
+ * pointer to the parent, so the parent's fields must keep their offsets.
+ * The planner therefore starts from the parent's layout, places the
+ * class's own fields into the gaps the parent left, largest alignment
+ * first, and appends the rest. The fields are declared in offset order,
+ * so the C++ compiler lays them out exactly as planned.
+ *
+ * Sizes are those of the generated C++ types on an LP64 target, where a
+ * __rt::Ptr holds two pointers.
+ *
+ * @author QIMPP
+ */
+public class FieldLayout {
+
+  /** The size of a pointer. */
+  static final int POINTER_SIZE = 8;
+
+  /** The size of a __rt::Ptr: the address and the counter's address. */
+  static final int PTR_SIZE = 2 * POINTER_SIZE;
+
+  /** The sizes of the primitive types, as translated by Type.primitiveType. */
+  private static final HashMap<String, Integer> SIZES = new HashMap<String, Integer>();
+  static {
+    SIZES.put("boolean", 1);
+    SIZES.put("byte", 1);
+    SIZES.put("char", 1);
+    SIZES.put("short", 2);
+    SIZES.put("int", 4);
+    SIZES.put("float", 4);
+    SIZES.put("long", 8);
+    SIZES.put("double", 8);
+  }
+
+  /** A field at an offset. The vtable pointer has no field. */
+  private static class Slot {
+    final GNode field;
+    final int offset, size;
+
+    Slot(GNode field, int offset, int size) {
+      this.field = field;
+      this.offset = offset;
+      this.size = size;
+    }
+
+    int end() {
+      return offset + size;
+    }
+  }
+
+  /** The slots, in offset order, starting with the vtable pointer. */
+  private final ArrayList<Slot> slots = new ArrayList<Slot>();
+
+  /** The size of the struct with its fields in declaration order. */
+  private int declaredSize;
+
+  private FieldLayout() {
+    slots.add(new Slot(null, 0, POINTER_SIZE));
+  }
+
+  /**
+   * Plan the layout of a class's instance fields.
+   *
+   * @param fields The instance fields, inherited ones first, in
+   *  declaration order.
+   * @param parent The layout of the parent, or null if it has none.
+   * @return the layout
+   */
+  public static FieldLayout plan(List<GNode> fields, FieldLayout parent) {
+    FieldLayout layout = new FieldLayout();
+    layout.declaredSize = sequentialSize(fields);
+
+    ArrayList<GNode> own = new ArrayList<GNode>(fields);
+    if (null != parent) {
+      ArrayList<Slot> inherited = layout.inherit(parent, own);
+      if (null != inherited) {
+        layout.slots.clear();
+        layout.slots.addAll(inherited);
+      } else {
+        own = new ArrayList<GNode>(fields);
+      }
+    }
+
+    // Largest alignment first, so smaller fields fill what is left over
+    Collections.sort(own, new Comparator<GNode>() {
+      public int compare(GNode a, GNode b) {
+        return sizeOf(b) - sizeOf(a);
+      }
+    });
+    for (GNode field : own) {
+      layout.place(field);
+    }
+    return layout;
+  }
+
+  /**
+   * Map the parent's slots onto this class's copies of the inherited
+   * fields, removing them from the given fields.
+   *
+   * @return the slots, or null if some inherited field is missing
+   */
+  private ArrayList<Slot> inherit(FieldLayout parent, ArrayList<GNode> own) {
+    ArrayList<Slot> inherited = new ArrayList<Slot>();
+    for (Slot slot : parent.slots) {
+      if (null == slot.field) {
+        inherited.add(slot);
+        continue;
+      }
+      GNode field = remove(own, slot.field.getString(0));
+      if (null == field) {
+        return null;
+      }
+      inherited.add(new Slot(field, slot.offset, slot.size));
+    }
+    return inherited;
+  }
+
+  private static GNode remove(ArrayList<GNode> fields, String name) {
+    for (int i = 0; i < fields.size(); i++) {
+      if (fields.get(i).getString(0).equals(name)) {
+        return fields.remove(i);
+      }
+    }
+    return null;
+  }
+
+  /** Put a field at the lowest offset where it fits. */
+  private void place(GNode field) {
+    int size = sizeOf(field);
+    for (int i = 1; i < slots.size(); i++) {
+      int offset = align(slots.get(i - 1).end(), size);
+      if (offset + size <= slots.get(i).offset) {
+        slots.add(i, new Slot(field, offset, size));
+        return;
+      }
+    }
+    slots.add(new Slot(field, align(slots.get(slots.size() - 1).end(), size), size));
+  }
+
+  /** Get the fields, in the order to declare them. */
+  public List<GNode> fields() {
+    ArrayList<GNode> fields = new ArrayList<GNode>();
+    for (Slot slot : slots) {
+      if (null != slot.field) {
+        fields.add(slot.field);
+      }
+    }
+    return fields;
+  }
+
+  /** Get the size of the struct. */
+  public int size() {
+    return align(slots.get(slots.size() - 1).end(), POINTER_SIZE);
+  }
+
+  /** Get the bytes of the struct lost to padding. */
+  public int padding() {
+    int padding = size();
+    for (Slot slot : slots) {
+      padding -= slot.size;
+    }
+    return padding;
+  }
+
+  /** Get the size of the struct with its fields in declaration order. */
+  public int declaredSize() {
+    return declaredSize;
+  }
+
+  /**
+   * Describe the size and padding of a struct, compared to declaration
+   * order.
+   */
+  public String report(String struct) {
+    return struct + ": " + size() + " bytes, " + padding() + " of padding ("
+      + declaredSize + " bytes in declaration order)";
+  }
+
+  /**
+   * Get the size of a field's C++ type. Primitive types are aligned to
+   * their size, so this is its alignment too.
+   */
+  static int sizeOf(GNode field) {
+    GNode type = field.getGeneric(1);
+    boolean array = type.size() > 1 && null != type.get(1);
+    if (!array && type.getGeneric(0).hasName("PrimitiveType")) {
+      Integer size = SIZES.get(type.getGeneric(0).getString(0));
+      if (null != size) {
+        return size;
+      }
+    }
+    return PTR_SIZE;
+  }
+
+  /** Round an offset up to a multiple of a primitive size. */
+  private static int align(int offset, int size) {
+    int alignment = Math.min(size, POINTER_SIZE);
+    return (offset + alignment - 1) / alignment * alignment;
+  }
+
+  /** Get the size of a struct with the given fields in order. */
+  private static int sequentialSize(List<GNode> fields) {
+    int end = POINTER_SIZE;
+    for (GNode field : fields) {
+      int size = sizeOf(field);
+      end = align(end, size) + size;
+    }
+    return align(end, POINTER_SIZE);
+  }
+
+}
@@ -0,0 +1,56 @@
+package qimpp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import xtc.tree.GNode;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for FieldLayout.
+ *
+ * @author QIMPP
+ */
+public class FieldLayoutTest {
+
+  static GNode field(String name, String type) {
+    return GNode.create("FieldDeclaration", name,
+        GNode.create("Type", GNode.create("PrimitiveType", type), null));
+  }
+
+  static List<String> names(FieldLayout layout) {
+    ArrayList<String> names = new ArrayList<String>();
+    for (GNode f : layout.fields()) {
+      names.add(f.getString(0));
+    }
+    return names;
+  }
+
+  @Test public void testPlan() {
+    // byte a; long b; byte c;
+    List<GNode> parentFields = Arrays.asList(
+        field("a", "byte"), field("b", "long"), field("c", "byte"));
+    FieldLayout parent = FieldLayout.plan(parentFields, null);
+    assertEquals(Arrays.asList("b", "a", "c"), names(parent));
+    assertEquals(32, parent.declaredSize());
+    assertEquals(24, parent.size());
+    assertEquals(6, parent.padding());
+
+    // The inherited copies, then int d; short e; Object f;
+    GNode object = GNode.create("FieldDeclaration", "f",
+        GNode.create("Type", GNode.create("QualifiedIdentifier", "Object"), null));
+    List<GNode> fields = Arrays.asList(
+        field("a", "byte"), field("b", "long"), field("c", "byte"),
+        field("d", "int"), field("e", "short"), object);
+    FieldLayout child = FieldLayout.plan(fields, parent);
+    assertEquals(Arrays.asList("b", "a", "c", "e", "d", "f"), names(child));
+    assertSame(fields.get(0), child.fields().get(1));
+    assertEquals(40, child.size());
+    assertEquals(0, child.padding());
+  }
+
+}
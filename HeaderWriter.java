@@ -7,6 +7,8 @@ import java.io.Reader;
 import java.io.PrintWriter;
 import java.util.Iterator;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 
 import xtc.tree.GNode;
@@ -22,7 +24,7 @@ import xtc.util.Tool;
 *   This class handles inheritance, function declarations, and vtable generation.
 *   @author QIMPP
 */
-public class HeaderWriter extends Visitor {
+public class HeaderWriter extends DispatchingVisitor {
   
   private Printer printer;
   private ArrayList<GNode> inherited_methods;
@@ -30,6 +32,20 @@ public class HeaderWriter extends Visitor {
   private ArrayList<GNode> methods;
   private ArrayList<GNode> fields;
   private boolean inherited;
+  private ArrayTemplatePrinter arrayTemplatePrinter;
+  /** The macro the one translation unit holding the definitions defines. */
+  public static final String DEFINITIONS = "QIMPP_DEFINITIONS";
+  /** The macro that enables the runtime's counters, see qimpp_stats.h. */
+  public static final String STATS = "QIMPP_STATS";
+  private NodeAnnotations annotations;
+  /** The field layouts of the classes written so far, by qualified name. */
+  private HashMap<String, FieldLayout> layouts = new HashMap<String, FieldLayout>();
+  private boolean layoutReport;
+  private boolean erasedArrays;
+  private boolean stats;
+  private boolean separateDefinitions;
+  /** The classes whose arrays are flattened. */
+  private ValueClasses valueClasses = ValueClasses.none();
   //private String current_class;
   /** Constructor. Opens a new file called defined_classes.h
   *
@@ -58,7 +74,18 @@ public class HeaderWriter extends Visitor {
   // TODO: Need to change the HeaderWriter to take a GNode, instead of an array of GNodes
   
   public HeaderWriter(Printer printer) {
+    this(printer, new NodeAnnotations());
+  }
+
+  /** 
+   * Constructor.
+   *
+   * @param printer The printer.
+   * @param annotations The annotation store holding the declarations' flags.
+   */
+  public HeaderWriter(Printer printer, NodeAnnotations annotations) {
     this.printer = printer;
+    this.annotations = annotations;
     inherited_methods = new ArrayList<GNode>();
     implemented_methods = new ArrayList<GNode>();
     methods = new ArrayList<GNode>();
@@ -67,6 +94,56 @@ public class HeaderWriter extends Visitor {
     //current_class = "";
     printer.register(this);  
   }
+
+  /** Comment each struct with its size and padding. */
+  public void setLayoutReport(boolean layoutReport) {
+    this.layoutReport = layoutReport;
+  }
+
+  /** Have all arrays of references share the runtime's one implementation. */
+  public void setErasedArrays(boolean erasedArrays) {
+    this.erasedArrays = erasedArrays;
+  }
+
+  /** Define STATS, so the runtime counts what the program does. */
+  public void setStats(boolean stats) {
+    this.stats = stats;
+  }
+
+  /**
+   * Only define static fields and array classes where DEFINITIONS is
+   * defined, so the header can be included by several translation units.
+   */
+  public void setSeparateDefinitions(boolean separateDefinitions) {
+    this.separateDefinitions = separateDefinitions;
+  }
+
+  /** Write the value types of the classes whose arrays are flattened. */
+  public void setValueClasses(ValueClasses valueClasses) {
+    this.valueClasses = valueClasses;
+  }
+
+  protected Object dispatch(int kind, GNode n) {
+    switch (kind) {
+    case NodeKind.COMPILATION_UNIT: visitCompilationUnit(n); return null;
+    case NodeKind.DECLARATIONS: visitDeclarations(n); return null;
+    case NodeKind.DECLARATION: visitDeclaration(n); return null;
+    case NodeKind.CLASSES: visitClasses(n); return null;
+    case NodeKind.CLASS_DECLARATION: visitClassDeclaration(n); return null;
+    case NodeKind.FIELDS: visitFields(n); return null;
+    case NodeKind.FIELD_DECLARATION: visitFieldDeclaration(n); return null;
+    case NodeKind.INHERITED_METHOD_CONTAINER: visitInheritedMethodContainer(n); return null;
+    case NodeKind.IMPLEMENTED_METHOD_DECLARATION: visitImplementedMethodDeclaration(n); return null;
+    case NodeKind.DIRECTIVES:
+    case NodeKind.PARENT:
+    case NodeKind.CONSTRUCTORS:
+    case NodeKind.METHODS:
+      visit(n);
+      return null;
+    default:
+      return UNHANDLED;
+    }
+  }
   
  // ===================
  //  VISITOR
@@ -77,6 +154,9 @@ public class HeaderWriter extends Visitor {
     compilationUnit = n;
     writeDependencies(); 
     visit(n);
+    if (separateDefinitions) {
+      printer.p("#endif").pln();
+    }
     printer.flush();
   }
 
@@ -150,7 +230,11 @@ public class HeaderWriter extends Visitor {
           indentOut().pln("}");
         }
 
-        new ArrayTemplatePrinter(printer).dispatch(n);
+        if (null == arrayTemplatePrinter) {
+          arrayTemplatePrinter = new ArrayTemplatePrinter(printer, valueClasses);
+          arrayTemplatePrinter.separateDefinitions = separateDefinitions;
+        }
+        arrayTemplatePrinter.dispatch(n);
 
       //current_class = "";
       } catch ( Exception e) { e.printStackTrace(); }
@@ -202,7 +286,22 @@ public class HeaderWriter extends Visitor {
   /** Write out the dependencies for the header */
   //TODO: this method should probably do more. Not sure ATM.
   private void writeDependencies() {
-    printer.p("#pragma once").pln();
+    // A guard, as a precompiled copy may be included before this file
+    if (separateDefinitions) {
+      printer.p("#ifndef QIMPP_OUT_H").pln()
+        .p("#define QIMPP_OUT_H").pln();
+    } else {
+      printer.p("#pragma once").pln();
+    }
+    if (erasedArrays) {
+      printer.p("#define QIMPP_ERASED_ARRAYS").pln();
+    }
+    if (stats) {
+      // The runtime is compiled with it as well
+      printer.p("#ifndef ").p(STATS).pln()
+        .p("#define ").p(STATS).pln()
+        .p("#endif").pln();
+    }
     printer.p("#include \"java_lang.h\"").pln() 
       .p("#include <stdint.h>").pln()
       .p("#include \"qimpp_utils.h\"").pln()
@@ -215,7 +314,10 @@ public class HeaderWriter extends Visitor {
   */
   public void writeTypeDeclaration(GNode node){
     indentOut().p("struct ").p("__").p(name(node)).p(";\n");
-    indentOut().p("struct ").p("__").p(name(node)).p("_VT;\n").pln();
+    indentOut().p("struct ").p("__").p(name(node)).p("_VT;\n");
+    if (valueClasses.contains(node.getString(0)))
+      indentOut().p("struct ").p("__").p(name(node)).p("_value;\n");
+    printer.pln();
 
     
   }
@@ -249,6 +351,8 @@ public class HeaderWriter extends Visitor {
       writeFields(n);
       printer.pln();
       writeConstructor(n);
+      if (valueClasses.contains(n.getString(0)))
+        writeValueConversions(n);
       printer.pln();
       writeMethods(n);
       printer.pln();
@@ -258,14 +362,97 @@ public class HeaderWriter extends Visitor {
     printer.decr();
     indentOut().p("};\n").pln();
     printer.pln();
+    if (valueClasses.contains(n.getString(0)))
+      writeValueType(n);
     isOutsideStruct = true;
+    boolean guard = separateDefinitions && hasStaticFields();
+    if (guard)
+      printer.p("#ifdef ").p(DEFINITIONS).pln();
     writeFields(n);
+    if (guard)
+      printer.p("#endif").pln();
     isOutsideStruct = false;
     printer.pln();
     }catch(Exception e) { e.printStackTrace(); }
   }
 
+
+  /** Determine whether the class being written has static fields. */
+  private boolean hasStaticFields(){
+    for (GNode f : fields) {
+      if (annotations.is(f, NodeAnnotations.STATIC))
+        return true;
+    }
+    return false;
+  }
   
+  /** Declare the conversions between an object and its value type. */
+  private void writeValueConversions(GNode n){
+    String value = "__" + name(n) + "_value";
+    indentOut().p("__").p(name(n)).p("(const ").p(value).p("& __value);\n");
+    indentOut().p("static ").p(name(n)).p(" __box(const ").p(value).p("& __value);\n");
+    indentOut().p("static ").p(value).p(" __unbox(").p(name(n)).p(" __object);\n");
+  }
+
+  /** 
+   * Write the element type of a flattened array: the instance fields,
+   * largest first, and whether the element is not null.
+   */
+  private void writeValueType(GNode n){
+    String struct = "__" + name(n);
+    String value = struct + "_value";
+    ArrayList<GNode> instanceFields = new ArrayList<GNode>();
+    for (GNode f : fields) {
+      if (!annotations.is(f, NodeAnnotations.STATIC))
+        instanceFields.add(f);
+    }
+    Collections.sort(instanceFields, new Comparator<GNode>() {
+      public int compare(GNode a, GNode b) {
+        return FieldLayout.sizeOf(b) - FieldLayout.sizeOf(a);
+      }
+    });
+
+    indentOut().p("struct ").p(value).p(" {\n");
+    printer.incr();
+    for (GNode f : instanceFields)
+      indentOut().p(getType(f, true)).p(" ").p(getFieldPrefix(f)).p(";\n");
+    indentOut().p("bool __present;\n");
+    printer.decr();
+    indentOut().p("};\n").pln();
+
+    indentOut().p("inline ").p(struct).p("::").p(struct).p("(const ").p(value)
+      .p("& __value) : __vptr(&__vtable) {\n");
+    printer.incr();
+    for (GNode f : instanceFields)
+      indentOut().p(getFieldPrefix(f)).p(" = __value.").p(getFieldPrefix(f)).p(";\n");
+    printer.decr();
+    indentOut().p("}\n").pln();
+
+    indentOut().p("inline ").p(name(n)).p(" ").p(struct).p("::__box(const ").p(value)
+      .p("& __value) {\n");
+    printer.incr();
+    indentOut().p("if (!__value.__present) return __rt::null();\n");
+    indentOut().p("return new ").p(struct).p("(__value);\n");
+    printer.decr();
+    indentOut().p("}\n").pln();
+
+    indentOut().p("inline ").p(value).p(" ").p(struct).p("::__unbox(").p(name(n))
+      .p(" __object) {\n");
+    printer.incr();
+    indentOut().p(value).p(" __value = ").p(value).p("();\n");
+    indentOut().p("if (__rt::null() != __object) {\n");
+    printer.incr();
+    for (GNode f : instanceFields)
+      indentOut().p("__value.").p(getFieldPrefix(f)).p(" = __object->")
+        .p(getFieldPrefix(f)).p(";\n");
+    indentOut().p("__value.__present = true;\n");
+    printer.decr();
+    indentOut().p("}\n");
+    indentOut().p("return __value;\n");
+    printer.decr();
+    indentOut().p("}\n").pln();
+  }
+
   private void writeVPtr(GNode node){
     indentOut().p("__").p(name(node)).p("_VT* __vptr;\n");
   }
@@ -295,10 +482,33 @@ public class HeaderWriter extends Visitor {
    * @param index The index of the class we are writing.
    */
   private void writeFields(GNode n) {
-    //Interate through the FieldDeclarations
+    if (isOutsideStruct) {
+      for (GNode f : fields) {
+        writeField(f, n);
+      }
+      return;
+    }
+
+    // Instance fields in the order that needs the least padding, then statics
+    ArrayList<GNode> instanceFields = new ArrayList<GNode>();
     for (GNode f : fields) {
+      if (!annotations.is(f, NodeAnnotations.STATIC))
+        instanceFields.add(f);
+    }
+    GNode parent = (GNode)n.getProperty("ParentClassNode");
+    FieldLayout layout = FieldLayout.plan(instanceFields,
+        (null == parent) ? null : layouts.get(parent.getString(0)));
+    layouts.put(n.getString(0), layout);
+
+    if (layoutReport)
+      indentOut().p("// ").p(layout.report("__" + name(n))).p("\n");
+    for (GNode f : layout.fields()) {
       writeField(f, n);
     }
+    for (GNode f : fields) {
+      if (annotations.is(f, NodeAnnotations.STATIC))
+        writeField(f, n);
+    }
     /** 
     for(Iterator<Object> iter = node.getGeneric(2).iterator(); iter.hasNext();){
       Object objCurrent = iter.next();
@@ -343,6 +553,14 @@ public class HeaderWriter extends Visitor {
       
     }
 
+    // Arrays of a flattened class hold its value type
+    if (type.getName().equals("QualifiedIdentifier") && n.getGeneric(1).size() > 1
+        && null != n.getGeneric(1).get(1)) {
+      String className = Disambiguator.getDotDelimitedName(type);
+      if (valueClasses.contains(className))
+        ret = ValueClasses.valueTypeName(className);
+    }
+
     //If the type has a dimension array and it's not null, then add in the dimensions. If it's the return type for a java.lang.Object method (constructed by hand) it won't have a null at 1 index, so we have to check for that.
     GNode dimensions = (n.getGeneric(1).size() > 1) ? n.getGeneric(1).getGeneric(1) : null;
     if(dimensions != null){
@@ -364,7 +582,11 @@ public class HeaderWriter extends Visitor {
 
   private void writeField(GNode n, GNode k) {
     String type = getType(n, true); 
-    if (n.getProperty("static") != null)
+    Object constant = annotations.getConstant(n);
+    if (annotations.is(n, NodeAnnotations.STATIC)
+        && ConstantFolder.isCompileTimeConstant(constant))
+      writeConstantField(n, k, type, constant);
+    else if (annotations.is(n, NodeAnnotations.STATIC))
       if (!isOutsideStruct)
         indentOut().p("static ").p(type).p(" ").p(getFieldPrefix(n)).p(";\n");
       else
@@ -375,6 +597,22 @@ public class HeaderWriter extends Visitor {
         indentOut().p(type).p(" ").p(getFieldPrefix(n)).p(";\n"); 
   }
 
+  /** 
+   * Write a static field initialized at compile time, as a constexpr
+   * member usable in constant expressions whatever its type. Before
+   * C++17 a member that is odr-used also needs the definition written
+   * outside the struct.
+   */
+  private void writeConstantField(GNode n, GNode k, String type, Object constant) {
+    if (!isOutsideStruct) {
+      indentOut().p("static constexpr ").p(type).p(" ").p(getFieldPrefix(n))
+        .p(" = ").p(ConstantFolder.cppLiteral(constant)).p(";\n");
+    } else {
+      indentOut().p("constexpr ").p(type).p(" ").p(Type.getClassTypeName(k.getString(0)))
+        .p("::").p(getFieldPrefix(n)).p(";\n");
+    }
+  }
+
   private void writeMethods(GNode n){
     String current_class = name(n);
     for (GNode m : implemented_methods) {
@@ -387,31 +625,21 @@ public class HeaderWriter extends Visitor {
     indentOut().p("static ");
     printer.p(getType(n, true)).p(" ");
     printer.p(Type.getCppMangledMethodName(n)).p("(");
-    if (n.getProperty("static") == null) {
+    if (!annotations.is(n, NodeAnnotations.STATIC)) {
       printer.p(current_class);
       isStatic = false;
     } else { isStatic = true; }
    
-    final boolean isStaticFinal = isStatic;
-
-    // visit params 
-    new Visitor() {
-      public void visitFormalParameters(GNode n) {
-        if (!isStaticFinal && n.size() >= 1) { printer.p(", "); }
-        for (Iterator<?> iter = n.iterator(); iter.hasNext(); ) {
-          GNode formalParameter = (GNode)iter.next();
-          printer.p(getType(formalParameter, true));
-          if (iter.hasNext()) {
-            printer.p(", ");
-          }
-        }
+    // write params 
+    GNode formalParameters = n.getGeneric(2);
+    if (!isStatic && formalParameters.size() >= 1) { printer.p(", "); }
+    for (Iterator<?> iter = formalParameters.iterator(); iter.hasNext(); ) {
+      GNode formalParameter = (GNode)iter.next();
+      printer.p(getType(formalParameter, true));
+      if (iter.hasNext()) {
+        printer.p(", ");
       }
-
-      public void visit(GNode n) {
-        for (Object o : n) if (o instanceof Node) dispatch((Node)o);
-      } 
-
-    }.dispatch(n);
+    }
 
     printer.p(");\n");
   }
@@ -468,7 +696,7 @@ public class HeaderWriter extends Visitor {
     String current_class = name(n);
     for (GNode m : inherited_methods) {
       //Get the implementedMethodDec node of the inheritedMethodContainer and write the VT method from it.
-      if (m.getProperty("static") == null && m.getProperty("private") == null)
+      if (!annotations.is(m, NodeAnnotations.STATIC | NodeAnnotations.PRIVATE))
         writeVTMethod(m.getGeneric(0), current_class);
     }
   }
@@ -484,7 +712,7 @@ public class HeaderWriter extends Visitor {
         writeVTMethod(m.getGeneric(0), current_class);
       }
       else {
-        if (m.getProperty("static") == null && m.getProperty("private") == null)
+        if (!annotations.is(m, NodeAnnotations.STATIC | NodeAnnotations.PRIVATE))
           writeVTMethod(m, current_class);
       }
     }
@@ -495,22 +723,18 @@ public class HeaderWriter extends Visitor {
     printer.p("(*").p(Type.getCppMangledMethodName(n)).p(")(").p(current_class);
     // if (n.getGeneric(2).size() != 0) 
      // printer.p(", <formal params>");
-    
-    new Visitor() {
-  
-      public void visitFormalParameter(GNode n) {
-        printer.p(", ").p(getType(n, true));
-      }
-
-      public void visit(GNode n) {
-        for (Object o : n) if (o instanceof Node) dispatch((Node)o);
-      } 
-
-    }.dispatch(n);
+    writeParameterTypes(n);
     
     printer.p(");\n");
   }
 
+  /** Write out ", type" for each formal parameter of a method */
+  private void writeParameterTypes(GNode method) {
+    for (Object o : method.getGeneric(2)) {
+      printer.p(", ").p(getType((GNode)o, true));
+    }
+  }
+
   /** Write out the VT Constructor 
    * @param i the index of the class we are writing */
   private void writeVTConstructor(GNode node) {
@@ -554,7 +778,7 @@ public class HeaderWriter extends Visitor {
         writeInheritedVTAddress(m, current_class);
       }
       else {
-        if (m.getProperty("static") == null && m.getProperty("private") == null){
+        if (!annotations.is(m, NodeAnnotations.STATIC | NodeAnnotations.PRIVATE)){
           if (methods.indexOf(m) != 0)
             printer.p(",\n");
           writeVTAddress(m, current_class);
@@ -574,18 +798,7 @@ public class HeaderWriter extends Visitor {
     printer.p(getType(n, true));
     printer.p("(*)(").p(current_class);
     //if (n.getGeneric(2).size() != 0)
-      
-    new Visitor() {
-  
-      public void visitFormalParameter(GNode n) {
-        printer.p(", ").p(getType(n, true));
-      }
-
-      public void visit(GNode n) {
-        for (Object o : n) if (o instanceof Node) dispatch((Node)o);
-      } 
-
-    }.dispatch(n);
+    writeParameterTypes(n);
   
       //printer.p(", <formal params>");
     // following line gets From field from method node
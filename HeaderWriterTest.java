@@ -40,6 +40,29 @@ public class HeaderWriterTest {
   }
  
  
+  @Test
+  public void erasedArraysTest() throws UnsupportedEncodingException {
+    HeaderWriter writer = new HeaderWriter(printer);
+    writer.setErasedArrays(true);
+    writer.dispatch(GNode.create("CompilationUnit"));
+    String output = out.toString("UTF8");
+    int define = output.indexOf("#define QIMPP_ERASED_ARRAYS\n");
+    assertTrue(define >= 0);
+    assertTrue(define < output.indexOf("#include \"java_lang.h\""));
+  }
+
+  @Test
+  public void statsTest() throws UnsupportedEncodingException {
+    HeaderWriter writer = new HeaderWriter(printer);
+    writer.setStats(true);
+    writer.dispatch(GNode.create("CompilationUnit"));
+    String output = out.toString("UTF8");
+    // The runtime may have been compiled with the macro already
+    int define = output.indexOf("#ifndef QIMPP_STATS\n#define QIMPP_STATS\n#endif\n");
+    assertTrue(define >= 0);
+    assertTrue(define < output.indexOf("#include \"java_lang.h\""));
+  }
+
   @Test
   public void writeStructTest() {
     GNode modifiers = GNode.create("Modifiers");
@@ -1,9 +1,16 @@
 package qimpp;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 
 import xtc.tree.LineMarker;
+import xtc.tree.Location;
 import xtc.tree.Node;
 import xtc.tree.GNode;
 import xtc.tree.Pragma;
@@ -17,12 +24,12 @@ import xtc.tree.Visitor;
  *
  * @author QIMPP
  */
-public class ImplementationPrinter extends Visitor {
+public class ImplementationPrinter extends DispatchingVisitor {
 
   /**
    * The printer.
    */
-  protected final Printer printer;
+  protected Printer printer;
 
 	/**
 	 * The current class in the traversal.
@@ -116,18 +123,107 @@ public class ImplementationPrinter extends Visitor {
   /** The root of the CPP AST*/
   public GNode compilationUnit;
 
+  /** The analysis results of BlockMangler and SymbolTable */
+  public NodeAnnotations annotations;
+
+  /**
+   * Whether rectangular two-dimensional arrays are allocated in one
+   * block, see __rt::Array::__new(rows, columns).
+   */
+  public boolean contiguousArrays;
+
+  /** The classes whose arrays hold their field values inline. */
+  public ValueClasses valueClasses = ValueClasses.none();
+
+  /** Whether the next subscript is printed as the value, not boxed. */
+  private boolean rawElement;
+
+  /**
+   * Whether to count the calls of methods, the receiver classes of
+   * virtual calls and the trips of loops, see __rt::profile.
+   */
+  public boolean profileGenerate;
+
+  /** The profile to optimize for, or null. */
+  public ProfileData profile;
+
+  /**
+   * Whether to count allocations and virtual calls, see __rt::stats.
+   * The header must define QIMPP_STATS.
+   */
+  public boolean stats;
+
+  /**
+   * The map to record the functions printed in, or null. With lines
+   * set as well, the statements of methods are preceded by #line
+   * directives naming their Java source.
+   */
+  public SourceMap sourceMap;
+
+  /** The output, counting its lines, or null. */
+  public SourceMap.LineCounter lines;
+
+  /**
+   * The loops whose iterations can run in parallel, which are printed
+   * as OpenMP parallel loops. Without -fopenmp the pragmas are ignored.
+   */
+  public ParallelLoops parallelLoops = ParallelLoops.none();
+
+  /** The smallest number of iterations a parallel loop is run in parallel for. */
+  public int parallelThreshold = ParallelLoops.THRESHOLD;
+
+  /** The loops to lower for the auto-vectorizer. */
+  public VectorLoops vectorLoops = VectorLoops.none();
+
+  /** The loop whose body is printed lowered, or null. */
+  private VectorLoops.Loop lowered;
+
+  /** The Java line of the last #line directive, or -1 if none is in effect. */
+  private int javaLine = -1;
+
+  /** The Java source of the last #line directive. */
+  private String javaFile;
+
+  /** The output line the last #line directive applies to. */
+  private int directiveLine;
+
+  /** The profile keys of the current method's virtual calls and loops. */
+  private final IdentityHashMap<GNode, String> profileKeys =
+    new IdentityHashMap<GNode, String>();
+
+  /** The calls and loops with keys, in the order they appear. */
+  private final List<GNode> profiled = new ArrayList<GNode>();
+
+  /** The counters of the current method's calls and loops. */
+  private final IdentityHashMap<GNode, String> profileCounters =
+    new IdentityHashMap<GNode, String>();
+
+  /** The counter of the current method, to increment when its body starts. */
+  private String methodCounter;
+
+  /** The number of counters printed. */
+  private int counters;
+
+  /** The loop whose control is printed next is counted by this counter. */
+  private String loopCounter;
+
+  /** The classes, by name without a leading dot. */
+  private HashMap<String, GNode> classes;
+
   /** 
 	 * Create a new C++ printer.
 	 *
 	 * @param printer The printer.
    * @param lineUp The flag for whether to line up declarations and 
    * statements with their source locations.
+   * @param annotations The analysis results of BlockMangler and SymbolTable.
 	 */
-	public ImplementationPrinter(Printer printer, InheritanceTreeManager inheritanceTree, GNode compilationUnit) {
+	public ImplementationPrinter(Printer printer, InheritanceTreeManager inheritanceTree, GNode compilationUnit, NodeAnnotations annotations) {
 		this.printer = printer;
 		this.lineUp = true;
     this.inheritanceTree = inheritanceTree;
     this.compilationUnit = compilationUnit;
+    this.annotations = annotations;
     printer.register(this);
 	}
 
@@ -312,16 +408,112 @@ public class ImplementationPrinter extends Visitor {
     for (int i=0; i<n; i++) printer.p("[]");
   }
 
+  protected Object dispatch(int kind, GNode n) {
+    if (null != lines && (inMethod || inConstructor) && isStatement(kind)) {
+      printLine(n);
+    }
+    switch (kind) {
+    case NodeKind.COMPILATION_UNIT: visitCompilationUnit(n); return null;
+    case NodeKind.CLASS_DECLARATION: visitClassDeclaration(n); return null;
+    case NodeKind.CONSTRUCTOR_DECLARATION: visitConstructorDeclaration(n); return null;
+    case NodeKind.PARENT: visitParent(n); return null;
+    case NodeKind.INHERITED_METHOD_CONTAINER: visitInheritedMethodContainer(n); return null;
+    case NodeKind.IMPLEMENTED_METHOD_DECLARATION: visitImplementedMethodDeclaration(n); return null;
+    case NodeKind.BLOCK: visitBlock(n); return null;
+    case NodeKind.ARGUMENTS: visitArguments(n); return null;
+    case NodeKind.CALL_EXPRESSION: visitCallExpression(n); return null;
+    case NodeKind.NEW_CLASS_EXPRESSION: visitNewClassExpression(n); return null;
+    case NodeKind.NEW_ARRAY_EXPRESSION: visitNewArrayExpression(n); return null;
+    case NodeKind.RETURN_TYPE: visitReturnType(n); return null;
+    case NodeKind.FROM: visitFrom(n); return null;
+    case NodeKind.EXPRESSION: visitExpression(n); return null;
+    case NodeKind.EXPRESSION_STATEMENT: visitExpressionStatement(n); return null;
+    case NodeKind.SELECTION_EXPRESSION: visitSelectionExpression(n); return null;
+    case NodeKind.SUBSCRIPT_EXPRESSION: visitSubscriptExpression(n); return null;
+    case NodeKind.PRIMARY_IDENTIFIER: visitPrimaryIdentifier(n); return null;
+    case NodeKind.THIS_EXPRESSION: visitThisExpression(n); return null;
+    case NodeKind.STRING_LITERAL: visitStringLiteral(n); return null;
+    case NodeKind.BOOLEAN_LITERAL: visitBooleanLiteral(n); return null;
+    case NodeKind.FORMAL_PARAMETERS: visitFormalParameters(n); return null;
+    case NodeKind.TYPE: visitType(n); return null;
+    case NodeKind.FIELD_DECLARATION: visitFieldDeclaration(n); return null;
+    case NodeKind.PRIMITIVE_TYPE: visitPrimitiveType(n); return null;
+    case NodeKind.QUALIFIED_IDENTIFIER: visitQualifiedIdentifier(n); return null;
+    case NodeKind.FORMAL_PARAMETER: visitFormalParameter(n); return null;
+    case NodeKind.BREAK_STATEMENT: visitBreakStatement(n); return null;
+    case NodeKind.CONTINUE_STATEMENT: visitContinueStatement(n); return null;
+    case NodeKind.RETURN_STATEMENT: visitReturnStatement(n); return null;
+    case NodeKind.ADDITIVE_EXPRESSION: visitAdditiveExpression(n); return null;
+    case NodeKind.MULTIPLICATIVE_EXPRESSION: visitMultiplicativeExpression(n); return null;
+    case NodeKind.CAST_EXPRESSION: visitCastExpression(n); return null;
+    case NodeKind.BASIC_CAST_EXPRESSION: visitBasicCastExpression(n); return null;
+    case NodeKind.CONDITIONAL_STATEMENT: visitConditionalStatement(n); return null;
+    case NodeKind.LOGICAL_OR_EXPRESSION: visitLogicalOrExpression(n); return null;
+    case NodeKind.LOGICAL_AND_EXPRESSION: visitLogicalAndExpression(n); return null;
+    case NodeKind.LOGICAL_NEGATION_EXPRESSION: visitLogicalNegationExpression(n); return null;
+    case NodeKind.INSTANCE_OF_EXPRESSION: visitInstanceOfExpression(n); return null;
+    case NodeKind.FOR_STATEMENT: visitForStatement(n); return null;
+    case NodeKind.BASIC_FOR_CONTROL: visitBasicForControl(n); return null;
+    case NodeKind.WHILE_STATEMENT: visitWhileStatement(n); return null;
+    case NodeKind.TRY_CATCH_FINALLY_STATEMENT: visitTryCatchFinallyStatement(n); return null;
+    case NodeKind.CATCH_CLAUSE: visitCatchClause(n); return null;
+    case NodeKind.EQUALITY_EXPRESSION: visitEqualityExpression(n); return null;
+    case NodeKind.DECLARATOR: visitDeclarator(n); return null;
+    case NodeKind.FLOATING_POINT_LITERAL: visitFloatingPointLiteral(n); return null;
+    case NodeKind.CHARACTER_LITERAL: visitCharacterLiteral(n); return null;
+    case NodeKind.UNARY_EXPRESSION: visitUnaryExpression(n); return null;
+    case NodeKind.NULL_LITERAL: visitNullLiteral(n); return null;
+    case NodeKind.INTEGER_LITERAL: visitIntegerLiteral(n); return null;
+    case NodeKind.POSTFIX_EXPRESSION: visitPostfixExpression(n); return null;
+    case NodeKind.EXPRESSION_LIST: visitExpressionList(n); return null;
+    case NodeKind.RELATIONAL_EXPRESSION: visitRelationalExpression(n); return null;
+    case NodeKind.DECLARATORS: visitDeclarators(n); return null;
+    case NodeKind.CLASSES:
+    case NodeKind.DECLARATIONS:
+    case NodeKind.DECLARATION:
+    case NodeKind.DIRECTIVES:
+    case NodeKind.CONSTRUCTORS:
+    case NodeKind.FIELDS:
+    case NodeKind.METHODS:
+    case NodeKind.MODIFIERS:
+    case NodeKind.DIMENSIONS:
+    case NodeKind.CONCRETE_DIMENSIONS:
+      visit(n);
+      return null;
+    default:
+      return UNHANDLED;
+    }
+  }
+
   /** Visit the specified compilation unit node. */
 	public void visitCompilationUnit(GNode n) {
+    printPreamble();
+    visit(n);
+    		printer.flush();
+	}
+
+  /**
+   * Print the includes that start the implementation. Classes can then be
+   * printed one at a time by dispatching on their declarations, as they
+   * are translated.
+   */
+  public void printPreamble() {
 		printer.p("#include <iostream>\n");
     printer.p("#include <sstream>\n");
     printer.p("#include <string>\n");
 		printer.p("#include \"out.h\"\n\n");
     printer.pln();
-    visit(n);
-    		printer.flush();
-	}
+  }
+
+  /**
+   * Print what follows with another printer, e.g. to put each class in
+   * its own translation unit.
+   */
+  public void setPrinter(Printer printer) {
+    this.printer.flush();
+    this.printer = printer;
+    printer.register(this);
+  }
 
   /** Visit the specified define preprocessing directive node. */
 	public void visitDefineDirective(GNode n) {
@@ -371,7 +563,13 @@ public class ImplementationPrinter extends Visitor {
 		
 		//visit(n.getGeneric(3));
 		
-		visit(n.getGeneric(4));
+    if (null == profile) {
+      visit(n.getGeneric(4));
+    } else {
+      for (GNode m : byCalls(n.getGeneric(4))) {
+        dispatch(m);
+      }
+    }
 		printer.flush();
     printer.pln();
 	}
@@ -382,6 +580,12 @@ public class ImplementationPrinter extends Visitor {
   /** Visit the specified constructor declaration node. */  
 	public void visitConstructorDeclaration(GNode n){
 	  // class constructor
+    if (null != sourceMap) {
+      GNode parameters = (n.size() > 2 && n.get(2) instanceof GNode) ? n.getGeneric(2) : null;
+      sourceMap.add(currentNamespace + "__" + currentClass + "::__" + currentClass,
+                    javaMethod("<init>", parameters), n.getLocation());
+    }
+    printLine(n);
     inConstructor = true;
 	  printer.p(currentNamespace).p("__").p(this.currentClass).p("::__")
 			.p(this.currentClass)
@@ -395,6 +599,7 @@ public class ImplementationPrinter extends Visitor {
     printer.decr();
     printer.pln();
     inConstructor = false;
+    printOutputLine();
 	}
 
   /** Visit the specified parent class node. */
@@ -432,12 +637,34 @@ public class ImplementationPrinter extends Visitor {
         }
     }
 
+    String key = ProfileData.methodKey(currentClassNode.getString(0),
+                                       Type.getCppMangledMethodName(n));
+    if (profileGenerate || null != profile) {
+      assignProfileKeys(n.getGeneric(3), key);
+    }
+    if (profileGenerate) {
+      printCounters(key);
+    } else if (null != profile && !inMain) {
+      if (profile.isHot(key)) {
+        printer.p("__attribute__((hot)) ");
+      } else if (profile.isCold(key)) {
+        printer.p("__attribute__((cold)) ");
+      }
+    }
+
+    if (null != sourceMap) {
+      sourceMap.add(inMain ? "main" : currentNamespace + "__" + currentClass + "::"
+                    + Type.getCppMangledMethodName(n),
+                    javaMethod(n.getString(0), n.getGeneric(2)), n.getLocation());
+    }
+    printLine(n);
+
     dispatch(n.getGeneric(1)); // return type
 
     if (!inMain) {
       printer.p(" ").p(currentNamespace).p("__").p(this.currentClass);
       printer.p("::").p(Type.getCppMangledMethodName(n)); // method name  
-      if (n.getProperty("static") != null)
+      if (annotations.is(n, NodeAnnotations.STATIC))
         staticMethod = true;
       //Print the FormalParameters
       dispatch(n.getGeneric(2));
@@ -451,16 +678,104 @@ public class ImplementationPrinter extends Visitor {
 
     inMethod = false;
     inMain = false;
+    printOutputLine();
 	}
 
+  /** Get a Java method's name as Class.method(parameter types). */
+  private String javaMethod(String name, GNode parameters) {
+    StringBuilder method = new StringBuilder();
+    method.append(ProfileData.normalize(currentClassNode.getString(0)))
+      .append('.').append(name).append('(');
+    if (null != parameters) {
+      for (int i = 0; i < parameters.size(); i++) {
+        if (0 < i) {
+          method.append(", ");
+        }
+        String type = String.valueOf(TypeDescriptor.of(parameters.getGeneric(i).getGeneric(1)));
+        method.append(type.substring(type.lastIndexOf('.') + 1));
+      }
+    }
+    return method.append(')').toString();
+  }
+
+  /** Determine whether a node kind is a statement, which gets a #line directive. */
+  private static boolean isStatement(int kind) {
+    switch (kind) {
+    case NodeKind.EXPRESSION_STATEMENT:
+    case NodeKind.FIELD_DECLARATION:
+    case NodeKind.RETURN_STATEMENT:
+    case NodeKind.BREAK_STATEMENT:
+    case NodeKind.CONTINUE_STATEMENT:
+    case NodeKind.CONDITIONAL_STATEMENT:
+    case NodeKind.FOR_STATEMENT:
+    case NodeKind.WHILE_STATEMENT:
+    case NodeKind.TRY_CATCH_FINALLY_STATEMENT:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * Print a #line directive for a node's Java source, unless the output
+   * is already at that line.
+   */
+  private void printLine(GNode n) {
+    if (null == lines || !n.hasLocation()) {
+      return;
+    }
+    Location location = n.getLocation();
+    printer.flush();
+    if (location.file.equals(javaFile)
+        && location.line == javaLine + lines.getLine() - directiveLine) {
+      return;
+    }
+    if (!lines.atLineStart()) {
+      printer.pln();
+    }
+    printer.p("#line ").p(location.line).p(" \"").p(escape(location.file)).pln("\"");
+    printer.indent().flush();
+    javaLine = location.line;
+    javaFile = location.file;
+    directiveLine = lines.getLine();
+  }
+
+  /** Return the line numbers to those of the output itself. */
+  private void printOutputLine() {
+    if (null == lines || -1 == javaLine) {
+      return;
+    }
+    printer.flush();
+    if (!lines.atLineStart()) {
+      printer.pln();
+      printer.flush();
+    }
+    printer.p("#line ").p(lines.getLine() + 1).p(" \"").p(escape(lines.getName())).pln("\"");
+    javaLine = -1;
+    javaFile = null;
+  }
+
+  /** Escape a file name for a #line directive. */
+  private static String escape(String file) {
+    return file.replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+
   boolean printedInitializers;
 
   public void visitBlock(GNode n) {
     
     printer.pln(" {");
     printer.incr();
+    if (null != methodCounter) {
+      indentOut().p("++").p(methodCounter).pln(".calls;");
+      if (inMain)
+        indentOut().pln("__rt::profile::start();");
+      methodCounter = null;
+    }
     if (inMain && !printedInitializers){
-      StaticInitializerPrinter sip = new StaticInitializerPrinter(printer);
+      if (stats)
+        indentOut().pln("__rt::stats::start();");
+      StaticInitializerPrinter sip = new StaticInitializerPrinter(printer, annotations);
       sip.dispatch(compilationUnit);      
       printedInitializers = true;
     }
@@ -493,9 +808,13 @@ public class ImplementationPrinter extends Visitor {
     //If we're using a local call
     inCallExpression   = true;
     boolean staticCall = false;
-    if (n.getGeneric(0) == null){
+    Intrinsics.Intrinsic intrinsic = annotations.getIntrinsic(n);
+    if (null != intrinsic) {
+      printIntrinsic(n, intrinsic);
+    }
+    else if (n.getGeneric(0) == null){
       //Print the call
-      if (n.getProperty("static") != null && n.getProperty("private") != null){        
+      if (annotations.is(n, NodeAnnotations.STATIC) && annotations.is(n, NodeAnnotations.PRIVATE)){        
         printer.p(" __this->__vptr->");
       } else {
         printer.p(Type.getClassTypeName(currentClassNode.getString(0))).p("::");
@@ -503,7 +822,7 @@ public class ImplementationPrinter extends Visitor {
       printer.p(n.getString(2));
       printer.p("(");
       // Print the parameters
-      if (n.getProperty("static") == null){
+      if (!annotations.is(n, NodeAnnotations.STATIC)){
           printer.p(" __this ");
           if (n.getGeneric(3).size()!= 0)
             printer.p(", ");
@@ -511,7 +830,7 @@ public class ImplementationPrinter extends Visitor {
       dispatch(n.getGeneric(3));
       printer.p(")");
     }
-    else if (n.getGeneric(0).getProperty(Constants.IDENTIFIER_TYPE) == Constants.PRINT_IDENTIFIER)
+    else if (annotations.getIdentifierType(n.getGeneric(0)) == Constants.PRINT_IDENTIFIER)
     {
       indentOut().p("std::cout << ");
       inPrintStatement = true;
@@ -527,12 +846,12 @@ public class ImplementationPrinter extends Visitor {
     }
 
     else {
-      if (n.getProperty("static") == null){        
+      if (!annotations.is(n, NodeAnnotations.STATIC)){        
         //TODO: Chained calls
         // Print the correct call here
         // Get the type of the calling expression or field name, and make a _this to reference it
         // It is necessarily an instance, and should be associated with a QualifiedIdentifier
-        GNode callingTypeNode = (GNode)n.getGeneric(0).getProperty(Constants.IDENTIFIER_TYPE_NODE);
+        GNode callingTypeNode = annotations.getTypeNode(n.getGeneric(0));
         printer.p("({ ");
         dispatch(callingTypeNode);
         printer.p(" _this = ");
@@ -542,7 +861,16 @@ public class ImplementationPrinter extends Visitor {
         printer.p(" ;");
 
         // Print the actual call
-        if (n.getProperty("private") == null){
+        if (!annotations.is(n, NodeAnnotations.PRIVATE)){
+          if (profileCounters.containsKey(n)) {
+            printer.p(" __rt::profile::receiver(").p(profileCounters.get(n))
+              .p(", _this);");
+          }
+          if (stats) {
+            printer.p(" static __rt::stats::Counter __stats(__rt::stats::CALL, \"")
+              .p(calledMethod(n)).p("\"); __rt::stats::count(__stats);");
+          }
+          printDirectCall(n);
           printer.p(" _this->__vptr->");
         }
         else{
@@ -558,7 +886,7 @@ public class ImplementationPrinter extends Visitor {
         printer.p(");").p(" })");
       }
       else {
-        GNode callingTypeNode = (GNode)n.getGeneric(0).getProperty(Constants.IDENTIFIER_TYPE_NODE);
+        GNode callingTypeNode = annotations.getTypeNode(n.getGeneric(0));
         isTypeStaticReference = true;
         dispatch(callingTypeNode);
         isTypeStaticReference = false;
@@ -572,6 +900,266 @@ public class ImplementationPrinter extends Visitor {
     printer.flush();
   }
 
+  /**
+   * Print a call to the implementation of the class the profile says
+   * receives nearly all calls at a virtual call site, guarded by a check
+   * of the receiver's vtable, followed by the alternative of the virtual
+   * call. Only one of the two evaluates the arguments.
+   */
+  private void printDirectCall(GNode n) {
+    String receiver = (null == profile) ? null
+      : profile.getMonomorphicReceiver(profileKeys.get(n));
+    GNode receiverClass = (null == receiver) ? null : getClasses().get(receiver);
+    GNode implementing = receiverClass;
+    GNode method = null;
+    while (null != implementing
+           && null == (method = implementedMethod(implementing, n.getString(2)))) {
+      implementing = (GNode)implementing.getProperty("ParentClassNode");
+    }
+    TypeDescriptor returnType = annotations.getType(n);
+    if (null == method || annotations.is(method, NodeAnnotations.STATIC)
+        || null == returnType || !returnType.equals(TypeDescriptor.of(method.getGeneric(1)))) {
+      return;
+    }
+    printer.p(" (void*)_this->__vptr == (void*)&")
+      .p(Type.getClassTypeName(receiverClass.getString(0))).p("::__vtable ? ")
+      .p(Type.getClassTypeName(implementing.getString(0)))
+      .p("::").p(n.getString(2)).p("( _this ");
+    boolean call = inCallExpression;
+    if (n.getGeneric(3).size() != 0) {
+      printer.p(", ");
+      dispatch(n.getGeneric(3));
+    }
+    inCallExpression = call;
+    printer.p(") :");
+  }
+
+  /** Get the name of the method a virtual call calls, as Class.method. */
+  private String calledMethod(GNode n) {
+    TypeDescriptor receiver = annotations.getType(n.getGeneric(0));
+    String className = (null != receiver && receiver.isClass())
+      ? ProfileData.normalize(receiver.getClassName()) : String.valueOf(receiver);
+    return className + "." + n.getString(2);
+  }
+
+  /** Find the method a class implements under a mangled name, or null. */
+  private static GNode implementedMethod(GNode classNode, String method) {
+    for (Object o : classNode.getGeneric(4)) {
+      GNode m = (GNode)o;
+      if (m.hasName("ImplementedMethodDeclaration")
+          && method.equals(Type.getCppMangledMethodName(m))) {
+        return m;
+      }
+    }
+    return null;
+  }
+
+  /** Get the classes of the program, by name without a leading dot. */
+  private HashMap<String, GNode> getClasses() {
+    if (null == classes) {
+      classes = new HashMap<String, GNode>();
+      for (Object o : compilationUnit) {
+        if (o instanceof GNode && ((GNode)o).hasName("Classes")) {
+          for (Object k : (GNode)o) {
+            classes.put(ProfileData.normalize(((GNode)k).getString(0)), (GNode)k);
+          }
+        }
+      }
+    }
+    return classes;
+  }
+
+  /**
+   * Give the virtual calls and loops of a method body their profile keys,
+   * see ProfileData.
+   */
+  private void assignProfileKeys(GNode body, String method) {
+    profileKeys.clear();
+    profiled.clear();
+    profileCounters.clear();
+    assignProfileKeys(body, method, new HashMap<String, Integer>());
+  }
+
+  private void assignProfileKeys(GNode n, String method, HashMap<String, Integer> ordinals) {
+    String key = null;
+    if (isVirtualCall(n)) {
+      key = ProfileData.siteKey(method, n.getString(2), next(ordinals, n.getString(2)));
+    } else if (n.hasName("ForStatement") || n.hasName("WhileStatement")) {
+      key = ProfileData.loopKey(method, next(ordinals, "@"));
+    }
+    if (null != key) {
+      profileKeys.put(n, key);
+      profiled.add(n);
+    }
+    for (Object o : n) {
+      if (o instanceof GNode) {
+        assignProfileKeys((GNode)o, method, ordinals);
+      }
+    }
+  }
+
+  private static int next(HashMap<String, Integer> ordinals, String name) {
+    Integer ordinal = ordinals.get(name);
+    int result = (null == ordinal) ? 0 : ordinal;
+    ordinals.put(name, result + 1);
+    return result;
+  }
+
+  /** Determine whether a call is printed as a call through the vtable. */
+  private boolean isVirtualCall(GNode n) {
+    return n.hasName("CallExpression")
+      && null == annotations.getIntrinsic(n)
+      && null != n.get(0)
+      && annotations.getIdentifierType(n.getGeneric(0)) != Constants.PRINT_IDENTIFIER
+      && !annotations.is(n, NodeAnnotations.STATIC)
+      && !annotations.is(n, NodeAnnotations.PRIVATE);
+  }
+
+  /** Print the counters of a method and of its virtual calls and loops. */
+  private void printCounters(String method) {
+    methodCounter = "__profile_" + counters++;
+    printer.p("static __rt::profile::Method ").p(methodCounter)
+      .p("(\"").p(method).pln("\");");
+    for (GNode n : profiled) {
+      String counter = "__profile_" + counters++;
+      profileCounters.put(n, counter);
+      printer.p("static __rt::profile::")
+        .p(n.hasName("CallExpression") ? "Site " : "Loop ").p(counter)
+        .p("(\"").p(profileKeys.get(n)).pln("\");");
+    }
+  }
+
+  /** Order the methods of a class by their calls, most called first. */
+  private List<GNode> byCalls(GNode methods) {
+    List<GNode> result = new ArrayList<GNode>();
+    for (Object o : methods) {
+      result.add((GNode)o);
+    }
+    Collections.sort(result, new Comparator<GNode>() {
+      public int compare(GNode a, GNode b) {
+        return Long.compare(calls(b), calls(a));
+      }
+    });
+    return result;
+  }
+
+  private long calls(GNode method) {
+    if (!method.hasName("ImplementedMethodDeclaration")) {
+      return -1;
+    }
+    return profile.getCalls(ProfileData.methodKey(currentClassNode.getString(0),
+                                                  Type.getCppMangledMethodName(method)));
+  }
+
+  /**
+   * Print a call to an intrinsic by filling in its template with the
+   * receiver and arguments. The template does its own null checks.
+   *
+   * C++ does not specify the order in which a template's function
+   * arguments are evaluated. If that could be observed, the operands are
+   * first bound to temporaries in Java's order, in a lambda called in
+   * place.
+   */
+  private void printIntrinsic(GNode n, Intrinsics.Intrinsic intrinsic) {
+    boolean ordered = false;
+    for (int i = 0; i < intrinsic.size() && 1 < intrinsic.size(); i++) {
+      if (!isSimpleOperand(intrinsicOperand(n, intrinsic.getOperand(i)))) {
+        ordered = true;
+      }
+    }
+    if (ordered) {
+      printer.p("[&]() { ");
+      for (int i = 0; i < intrinsic.size(); i++) {
+        printer.p("auto __operand").p(intrinsic.getOperand(i)).p(" = ");
+        inCallExpression = false;
+        dispatch(intrinsicOperand(n, intrinsic.getOperand(i)));
+        printer.p("; ");
+      }
+      printer.p("return ");
+    }
+    for (int i = 0; i < intrinsic.size(); i++) {
+      printer.p(intrinsic.getText(i));
+      if (ordered) {
+        printer.p("__operand").p(intrinsic.getOperand(i));
+      } else {
+        inCallExpression = false;
+        dispatch(intrinsicOperand(n, intrinsic.getOperand(i)));
+      }
+    }
+    printer.p(intrinsic.getText(intrinsic.size()));
+    if (ordered) {
+      printer.p("; }()");
+    }
+  }
+
+  /**
+   * Print a call to a runtime function on an array, an index and one
+   * more operand. As in printIntrinsic(), operands that are not all
+   * simple are evaluated in Java's order first: the array is copied into
+   * the parameter of a lambda called in place, so it lives until the end
+   * of the full expression like any other temporary, and the index into
+   * a local. The last operand is then the only one left to evaluate.
+   */
+  private void printArrayCall(String function, GNode array, GNode index, GNode operand) {
+    boolean ordered = !isSimpleOperand(array) || !isSimpleOperand(index)
+      || !isSimpleOperand(operand);
+    if (ordered) {
+      printer.p("[&](auto&& __array) -> decltype(auto) { auto __index = ");
+      dispatch(index);
+      printer.p("; return ").p(function).p("(__array, __index, ");
+      dispatch(operand);
+      printer.p("); }(__rt::value(");
+      dispatch(array);
+      printer.p("))");
+    } else {
+      printer.p(function).p('(');
+      dispatch(array);
+      printer.p(", ");
+      dispatch(index);
+      printer.p(", ");
+      dispatch(operand);
+      printer.p(')');
+    }
+  }
+
+  /** Get the receiver, for 0, or an argument of a call. */
+  private static GNode intrinsicOperand(GNode call, int operand) {
+    return 0 == operand ? call.getGeneric(0) : call.getGeneric(3).getGeneric(operand - 1);
+  }
+
+  /**
+   * Determine whether evaluating an operand neither has side effects nor
+   * can throw, so that it may be evaluated out of order.
+   */
+  private boolean isSimpleOperand(GNode n) {
+    switch (NodeKind.of(n)) {
+    case NodeKind.PRIMARY_IDENTIFIER:
+    case NodeKind.THIS_EXPRESSION:
+    case NodeKind.INTEGER_LITERAL:
+    case NodeKind.FLOATING_POINT_LITERAL:
+    case NodeKind.CHARACTER_LITERAL:
+    case NodeKind.BOOLEAN_LITERAL:
+    case NodeKind.STRING_LITERAL:
+    case NodeKind.NULL_LITERAL:
+      return true;
+    case NodeKind.ADDITIVE_EXPRESSION:
+      // Concatenation may call toString()
+      return TypeDescriptor.STRING != annotations.getType(n)
+        && isSimpleOperand(n.getGeneric(0)) && isSimpleOperand(n.getGeneric(2));
+    case NodeKind.RELATIONAL_EXPRESSION:
+    case NodeKind.SHIFT_EXPRESSION:
+      return isSimpleOperand(n.getGeneric(0)) && isSimpleOperand(n.getGeneric(2));
+    case NodeKind.MULTIPLICATIVE_EXPRESSION:
+      // Integer division throws on zero
+      return "*".equals(n.getString(1))
+        && isSimpleOperand(n.getGeneric(0)) && isSimpleOperand(n.getGeneric(2));
+    case NodeKind.BASIC_CAST_EXPRESSION:
+      return isSimpleOperand(n.getGeneric(2));
+    default:
+      return false;
+    }
+  }
+
   /**
    * Visit the specified class instantiation, and print internal types in
    * varying modes, static for the instantiated type, instance for the argument
@@ -580,6 +1168,8 @@ public class ImplementationPrinter extends Visitor {
   public void visitNewClassExpression(GNode n){
     //Indicate that the reference to the type is the underscore name, not an instance
     isTypeStaticReference = true;
+    if (stats)
+      printer.p(" __rt::stats::allocated(");
     printer.p(" new ");
     // Dispatch on the Type node
     dispatch(n.getGeneric(2));
@@ -587,10 +1177,16 @@ public class ImplementationPrinter extends Visitor {
     isTypeStaticReference = false;
     dispatch(n.getGeneric(3));
     printer.p(")");
+    if (stats)
+      printer.p(")");
   }
   
   /**
-   * Visit the specified array instantiantiation
+   * Visit the specified array instantiantiation. Arrays are allocated
+   * with __rt::Array::__new, which puts the elements in the same
+   * allocation as the header. With contiguous arrays, an allocation
+   * whose first two dimensions are given allocates those two in a
+   * single block.
    */
   public void visitNewArrayExpression(GNode n){
     int arrayDimCount = 0;
@@ -608,33 +1204,28 @@ public class ImplementationPrinter extends Visitor {
     // Get the first dimension in the concrete dimensions node.
     dispatch(n.getGeneric(1).getGeneric(0));
     printer.p(";");
-    
-    for (int i = 0; i < arrayDimCount; i++)
-      printer.p(" __rt::Ptr<__rt::Array< ");
-
-    // Dispatch on the Type node
-    dispatch(n.getGeneric(0));
 
-    for (int i = 0; i < arrayDimCount; i++)
-      printer.p(" > > ");
-
-    printer.p(" temp = new __rt::Array< ");
-    
-    for (int i = 1; i < arrayDimCount; i++)
-      printer.p(" __rt::Ptr<__rt::Array< ");
-
-    // Dispatch on the Type node
-    dispatch(n.getGeneric(0));
-
-    for (int i = 1; i < arrayDimCount; i++)
-      printer.p(" > > ");
+    if (contiguousArrays && concreteDimCount == 2) {
+      printer.p(" int32_t dim2 = ");
+      dispatch(n.getGeneric(1).getGeneric(1));
+      printer.p(";");
+      printArrayType(n.getGeneric(0), arrayDimCount);
+      printer.p(" temp = __rt::Array< ");
+      printArrayType(n.getGeneric(0), arrayDimCount - 2);
+      printer.p(">::__new(dim, dim2); ");
+      printer.p(" temp ; })");
+      return;
+    }
 
-    printer.p("> (dim); ");
+    printArrayType(n.getGeneric(0), arrayDimCount);
+    printer.p(" temp = __rt::Array< ");
+    printArrayType(n.getGeneric(0), arrayDimCount - 1);
+    printer.p(">::__new(dim); ");
 
     if (concreteDimCount > 1){
       
       // Print the for loop to fill it, recursing on a smaller type and dimensions node
-      printer.p("for (int32_t i = 0; i < dim; i++){\n temp->__data[i] = ");
+      printer.p("for (int32_t i = 0; i < dim; i++){\n temp->__data()[i] = ");
 
       GNode newConcreteDimensions = GNode.create("ConcreteDimensions");
       GNode newDimensions = GNode.create("Dimensions");
@@ -654,6 +1245,22 @@ public class ImplementationPrinter extends Visitor {
     printer.p(" temp ; })");
   }
 
+  /** Print the C++ type of an array of the given type and dimensions. */
+  private void printArrayType(GNode type, int dimensions) {
+    for (int i = 0; i < dimensions; i++)
+      printer.p(" __rt::Ptr<__rt::Array< ");
+
+    // Dispatch on the Type node
+    if (0 < dimensions && type.hasName("QualifiedIdentifier")
+        && valueClasses.contains(Disambiguator.getDotDelimitedName(type)))
+      printer.p(ValueClasses.valueTypeName(Disambiguator.getDotDelimitedName(type)));
+    else
+      dispatch(type);
+
+    for (int i = 0; i < dimensions; i++)
+      printer.p(" > > ");
+  }
+
   boolean inReturnType = false;
 
   /** Visit the specified return type node. */  
@@ -678,6 +1285,24 @@ public class ImplementationPrinter extends Visitor {
 
   /** Visit the specified expression node. */
 	public void visitExpression(GNode n) {
+    if (contiguousArrays && isRowStore(n)) {
+      // Replacing a row, which a contiguous array must know about
+      GNode subscript = n.getGeneric(0);
+      printArrayCall("__rt::storeRow", subscript.getGeneric(0),
+                     subscript.getGeneric(1), n.getGeneric(2));
+      return;
+    }
+    if (isFlattenedElement(n.getGeneric(0))) {
+      // Storing into a flattened array copies the object's fields
+      rawElement = true;
+      dispatch(n.getGeneric(0));
+      printer.p(" = ")
+        .p(ValueClasses.structName(annotations.getType(n.getGeneric(0)).getClassName()))
+        .p("::__unbox(");
+      dispatch(n.getGeneric(2));
+      printer.p(")");
+      return;
+    }
 	  dontCheckNull = true;	
     dispatch(n.getGeneric(0));
     dontCheckNull = false;
@@ -685,6 +1310,19 @@ public class ImplementationPrinter extends Visitor {
 		dispatch(n.getGeneric(2));
 	}
 
+  /**
+   * Determine whether an assignment may store a row of an array of
+   * arrays, either through its own type or through an Object[] alias.
+   */
+  private boolean isRowStore(GNode n) {
+    if (!"=".equals(n.getString(1))
+        || !n.getGeneric(0).hasName("SubscriptExpression")) {
+      return false;
+    }
+    TypeDescriptor type = annotations.getType(n.getGeneric(0));
+    return null != type && (type.isArray() || TypeDescriptor.OBJECT == type);
+  }
+
   public void visitExpressionStatement(GNode n) {
     visit(n);
     printer.pln(";");
@@ -695,11 +1333,20 @@ public class ImplementationPrinter extends Visitor {
   /** Visit a SelectionExpression node, and print at the most shallow level */
   public void visitSelectionExpression(GNode n){
     // Don't do anything for print commands
-    if (n.getProperty(Constants.IDENTIFIER_TYPE) == Constants.PRINT_IDENTIFIER)
+    if (annotations.getIdentifierType(n) == Constants.PRINT_IDENTIFIER)
       return;
     
-    String childIdentifierType = n.getGeneric(0).getStringProperty(Constants.IDENTIFIER_TYPE);
-    GNode childIdentifierDeclaration = (GNode) n.getGeneric(0).getProperty(Constants.IDENTIFIER_DECLARATION); 
+    // A field of a flattened element is read in place
+    if (isFlattenedElement(n.getGeneric(0))) {
+      printer.p("__rt::present(");
+      rawElement = true;
+      dispatch(n.getGeneric(0));
+      printer.p(").").p(n.getString(1));
+      return;
+    }
+
+    String childIdentifierType = annotations.getIdentifierType(n.getGeneric(0));
+    GNode childIdentifierDeclaration = (GNode) annotations.getDeclaration(n.getGeneric(0)); 
    
     if(childIdentifierType == Constants.QUALIFIED_CLASS_IDENTIFIER){
       printer.p(Type.getClassTypeName(n.getGeneric(0).getString(0)));
@@ -723,11 +1370,42 @@ public class ImplementationPrinter extends Visitor {
     
   }
 
+  /**
+   * Visit a subscript. With contiguous arrays, two subscripts in a row
+   * go through __rt::element, which indexes a rectangular array's block
+   * directly.
+   */
   public void visitSubscriptExpression(GNode n){
-    dispatch(n.getGeneric(0));
-    printer.p("->__data[");
-    dispatch(n.getGeneric(1));
-    printer.p("]");
+    // An element of a flattened array is boxed, unless only its value is needed
+    TypeDescriptor element = annotations.getType(n);
+    boolean box = !rawElement && valueClasses.contains(element);
+    rawElement = false;
+    if (box)
+      printer.p(ValueClasses.structName(element.getClassName())).p("::__box(");
+
+    if (contiguousArrays && n.getGeneric(0).hasName("SubscriptExpression")) {
+      GNode row = n.getGeneric(0);
+      printArrayCall("__rt::element", row.getGeneric(0), row.getGeneric(1),
+                     n.getGeneric(1));
+    } else if (null != lowered && null != lowered.getArray(n.getGeneric(0))) {
+      printer.p(lowered.getArray(n.getGeneric(0)).getLocal()).p('[');
+      dispatch(n.getGeneric(1));
+      printer.p(']');
+    } else {
+      dispatch(n.getGeneric(0));
+      printer.p("->__data()[");
+      dispatch(n.getGeneric(1));
+      printer.p("]");
+    }
+
+    if (box)
+      printer.p(")");
+  }
+
+  /** Determine whether a node is an element of a flattened array. */
+  private boolean isFlattenedElement(GNode n) {
+    return n.hasName("SubscriptExpression")
+      && valueClasses.contains(annotations.getType(n));
   }
 
 
@@ -739,26 +1417,24 @@ public class ImplementationPrinter extends Visitor {
    */
 	public void visitPrimaryIdentifier(GNode n) {
     boolean isQualifiedIdentifier = false;
-    GNode typeNode = (GNode)n.getProperty(Constants.IDENTIFIER_TYPE_NODE);
-    if (typeNode != null && typeNode.getGeneric(0).getName().equals("QualifiedIdentifier"))  
+    TypeDescriptor type = annotations.getType(n);
+    if (type != null && type.getBase().isClass())  
       isQualifiedIdentifier = true;
     if (inCallExpression && !inConstructor && !dontCheckNull && isQualifiedIdentifier) {
 
       printer.p("({").p(" __rt::checkNotNull(");
      
-      if (null != n.getProperty(Constants.IDENTIFIER_DECLARATION) && null == ((GNode)n.getProperty(Constants.IDENTIFIER_DECLARATION))
-          .getProperty("static") &&
-          n.getProperty(Constants.IDENTIFIER_TYPE) == Constants.FIELD_IDENTIFIER) {
+      if (null != annotations.getDeclaration(n) && !annotations.is((GNode)annotations.getDeclaration(n), NodeAnnotations.STATIC) &&
+          annotations.getIdentifierType(n) == Constants.FIELD_IDENTIFIER) {
         if (inConstructor)
           printer.p("this->");
         else 
           printer.p("__this->");
-      } else if (null != n.getProperty(Constants.IDENTIFIER_DECLARATION) && null != ((GNode)n.getProperty(Constants.IDENTIFIER_DECLARATION))
-          .getProperty("static")) {
-         GNode fieldDeclaration = (GNode)n.getProperty(Constants.IDENTIFIER_DECLARATION);
-         String className = ((GNode)fieldDeclaration.getProperty("ContainingClass")).getString(0);
+      } else if (null != annotations.getDeclaration(n) && annotations.is((GNode)annotations.getDeclaration(n), NodeAnnotations.STATIC)) {
+         GNode fieldDeclaration = (GNode)annotations.getDeclaration(n);
+         String className = annotations.getContainingClass(fieldDeclaration).getString(0);
          printer.p(Type.getClassTypeName(className)).p("::");
-      } /*else if (null != n.getProperty(Constants.IDENTIFIER_DECLARATION) && null != ((GNode)n.getProperty(Constants.IDENTIFIER_DECLARATION)).getProperty("static")){
+      } /*else if (null != annotations.getDeclaration(n) && annotations.is((GNode)annotations.getDeclaration(n), NodeAnnotations.STATIC)){
          int colonIndex = n.getString(0).indexOf("::");
          if(colonIndex != -1){
          String className = n.getString(0).substring(0, n.getString(0).indexOf("::"));
@@ -768,7 +1444,7 @@ public class ImplementationPrinter extends Visitor {
       }*/
 
       //TODO: change this
-      //GNode typeNode = (GNode)n.getProperty(Constants.IDENTIFIER_TYPE_NODE);
+      //GNode typeNode = annotations.getTypeNode(n);
       //if (inPrintStatement && typeNode != null) {
       //  if (typeNode.getGeneric(0).getString(0).equals("boolean")) {
       //    
@@ -781,23 +1457,21 @@ public class ImplementationPrinter extends Visitor {
       printer.p("); ");
     }
     
-    if (typeNode != null && typeNode.getGeneric(0).getString(0).equals("byte") 
+    if (type != null && type.getBase() == TypeDescriptor.BYTE 
         && (inPrintStatement || inConcatExpression)) {
       printer.p("(int)");
     }
     
-    if (null == ((GNode)n.getProperty(Constants.IDENTIFIER_DECLARATION))
-        .getProperty("static") &&
-        n.getProperty(Constants.IDENTIFIER_TYPE) == Constants.FIELD_IDENTIFIER) {
+    if (!annotations.is((GNode)annotations.getDeclaration(n), NodeAnnotations.STATIC) &&
+        annotations.getIdentifierType(n) == Constants.FIELD_IDENTIFIER) {
       if (inConstructor) printer.p("this->");
       else printer.p("__this->");
-    } else if ( null != n.getProperty(Constants.IDENTIFIER_DECLARATION) && null != ((GNode)n.getProperty(Constants.IDENTIFIER_DECLARATION))
-        .getProperty("static")) {
+    } else if ( null != annotations.getDeclaration(n) && annotations.is((GNode)annotations.getDeclaration(n), NodeAnnotations.STATIC)) {
 
-       GNode fieldDeclaration = (GNode)n.getProperty(Constants.IDENTIFIER_DECLARATION);
-       String className = ((GNode)fieldDeclaration.getProperty("ContainingClass")).getString(0);
+       GNode fieldDeclaration = (GNode)annotations.getDeclaration(n);
+       String className = annotations.getContainingClass(fieldDeclaration).getString(0);
        printer.p(Type.getClassTypeName(className)).p("::");
-    } /* else if (null != n.getProperty(Constants.IDENTIFIER_DECLARATION) && null != ((GNode)n.getProperty(Constants.IDENTIFIER_DECLARATION)).getProperty("static")){
+    } /* else if (null != annotations.getDeclaration(n) && annotations.is((GNode)annotations.getDeclaration(n), NodeAnnotations.STATIC)){
          int colonIndex = n.getString(0).indexOf("::");
          if(colonIndex != -1){
          String className = n.getString(0).substring(0, n.getString(0).indexOf("::"));
@@ -876,8 +1550,12 @@ public class ImplementationPrinter extends Visitor {
         printer.p(" __rt::Ptr<__rt::Array<");
       }
     }
-      
-		visit(n);
+
+    TypeDescriptor type = TypeDescriptor.of(n);
+    if (valueClasses.isFlattenedArray(type))
+      printer.p(ValueClasses.valueTypeName(type.getBase().getClassName()));
+    else
+		  visit(n);
 
     if (dimensions != null) {
       for (int i = 0; i < dimensions.size(); i++) {
@@ -1002,29 +1680,21 @@ public class ImplementationPrinter extends Visitor {
     final int prec1 = startExpression(120);
     boolean isConcatExpression = false;
     
-    GNode leftTypeNode = (GNode)n.getGeneric(0)
-            .getProperty(Constants.IDENTIFIER_TYPE_NODE);
-    GNode rightTypeNode = (GNode)n.getGeneric(2)
-            .getProperty(Constants.IDENTIFIER_TYPE_NODE);
+    TypeDescriptor leftType = annotations.getType(n.getGeneric(0));
+    TypeDescriptor rightType = annotations.getType(n.getGeneric(2));
     
     boolean rightIsChar = false;
-    if (leftTypeNode != null && leftTypeNode.getGeneric(0).getName()
-        .equals("QualifiedIdentifier")) {
-      isConcatExpression = leftTypeNode.getGeneric(0).getString(2)
-            .equals("String");
+    if (leftType != null && leftType.getBase().isClass()) {
+      isConcatExpression = leftType.getBase() == TypeDescriptor.STRING;
     }
-    if (rightTypeNode != null && rightTypeNode.getGeneric(0).getName()
-          .equals("PrimitiveType")) {
-      rightIsChar = leftTypeNode.getGeneric(0).getString(0)
-          .equals("char");
+    if (rightType != null && rightType.getBase().isPrimitive()) {
+      rightIsChar = leftType.getBase() == TypeDescriptor.CHAR;
     }
     if (n.getGeneric(2).getName().equals("CharacterLiteral")) {
       rightIsChar = true; 
     }
-    if (!rightIsChar && leftTypeNode != null && leftTypeNode.getGeneric(0).getName()
-        .equals("PrimitiveType")) {
-      isConcatExpression = leftTypeNode.getGeneric(0).getString(0)
-        .equals("char");
+    if (!rightIsChar && leftType != null && leftType.getBase().isPrimitive()) {
+      isConcatExpression = leftType.getBase() == TypeDescriptor.CHAR;
     }
    if (n.getGeneric(0).getName().equals("BasicCastExpression")) {
       
@@ -1044,7 +1714,7 @@ public class ImplementationPrinter extends Visitor {
 
     printer.p(' ');
     dispatch(n.getGeneric(0));
-    if ((n.getStringProperty(Constants.IDENTIFIER_TYPE) 
+    if ((annotations.getIdentifierType(n) 
         == Constants.CLASS_IDENTIFIER) || isConcatExpression) {
       printer.p(" << ");
     }
@@ -1179,13 +1849,109 @@ public class ImplementationPrinter extends Visitor {
   public void visitForStatement(GNode n) { 
     final boolean nested = startStatement(STMT_ANY);
 
-    printer.indent().p("for (").p(n.getNode(0)).p(')');
+    String counter = profileCounters.get(n);
+    VectorLoops.Loop vector = (null == counter) ? vectorLoops.get(n) : null;
+    if (null != vector) {
+      printVectorLoop(n, vector);
+      endStatement(nested);
+      return;
+    }
+    printer.indent();
+    if (null != counter)
+      printer.p("{ ++").p(counter).p(".entries; ");
+    else
+      printParallel(n);
+    loopCounter = counter;
+    printer.p("for (").p(n.getNode(0)).p(')');
+    loopCounter = null;
     prepareNested();
     printer.p(n.getNode(1));
+    if (null != counter)
+      indentOut().pln("}");
                   
     endStatement(nested);
   }
 
+  /**
+   * Print a loop lowered for the auto-vectorizer, see VectorLoops: the
+   * bound is evaluated once and the elements are reached through
+   * restrict pointers, if the arrays stored into are distinct from the
+   * others of their type. Otherwise the loop runs as it was.
+   */
+  private void printVectorLoop(GNode n, VectorLoops.Loop loop) {
+    printer.indent().p("{ const ").p(loop.getType()).p(" __end = ");
+    final int prec = enterContext(PREC_BASE);
+    printer.p(loop.getBound());
+    exitContext(prec);
+    printer.p("; ");
+
+    List<VectorLoops.Array[]> distinct = loop.getDistinct();
+    if (!distinct.isEmpty()) {
+      printer.p("if (");
+      String separator = "";
+      for (VectorLoops.Array[] pair : distinct) {
+        printer.p(separator).p(pair[0].getIdentifier()).p(".raw() != ")
+          .p(pair[1].getIdentifier()).p(".raw()");
+        separator = " && ";
+      }
+      printer.p(") { ");
+    }
+    for (VectorLoops.Array array : loop.getArrays().values()) {
+      if (!array.isStored())
+        printer.p("const ");
+      printer.p(array.getElement().toTypeNode()).p("* __restrict ").p(array.getLocal())
+        .p(" = ").p(array.getIdentifier()).p("->__data(); ");
+    }
+    lowered = loop;
+    printVectorControl(n, loop);
+    lowered = null;
+    if (!distinct.isEmpty()) {
+      indentOut().p("} else ");
+      printVectorControl(n, loop);
+    }
+    indentOut().pln("}");
+  }
+
+  /** Print the canonical control and the body of a lowered loop. */
+  private void printVectorControl(GNode n, VectorLoops.Loop loop) {
+    printParallel(n);
+    printer.p("for (").p(loop.getType()).p(' ').p(loop.getVariable()).p(" = ");
+    final int prec = enterContext(PREC_BASE);
+    printer.p(loop.getInit());
+    exitContext(prec);
+    printer.p("; ").p(loop.getVariable()).p(' ').p(loop.getOperator())
+      .p(" __end; ++").p(loop.getVariable()).p(')');
+    prepareNested();
+    printer.p(n.getNode(1));
+  }
+
+  /**
+   * Print the pragma running a loop in parallel, if its iterations are
+   * independent and, by the profile if any, numerous enough. The loop
+   * only runs in parallel for at least parallelThreshold iterations.
+   */
+  private void printParallel(GNode n) {
+    ParallelLoops.Loop loop = parallelLoops.get(n);
+    if (null == loop) {
+      return;
+    }
+    if (null != profile && null != profileKeys.get(n)) {
+      double trips = profile.getTripCount(profileKeys.get(n));
+      if (0 <= trips && trips < parallelThreshold) {
+        return;
+      }
+    }
+    printer.p("_Pragma(\"omp parallel for if((int64_t)(");
+    final int prec = enterContext(PREC_BASE);
+    printer.p(loop.getBound()).p(") - (int64_t)(").p(loop.getInit());
+    exitContext(prec);
+    printer.p(") >= ").p(parallelThreshold).p(')');
+    for (Map.Entry<String, String> r : loop.getReductions().entrySet()) {
+      printer.p(" reduction(").p(r.getValue()).p(':').p(r.getKey()).p(')');
+    }
+    printer.p("\") ");
+  }
+
   /** Visit the specified basic for control. */
   public void visitBasicForControl(GNode n) { 
     printer.p(n.getNode(0));
@@ -1195,11 +1961,19 @@ public class ImplementationPrinter extends Visitor {
     printer.p(n.getNode(2)).p("; ");
     exitContext(prec1);
 
+    String counter = loopCounter;
+    loopCounter = null;
+    if (null != counter)
+      printer.p("__rt::profile::trip(").p(counter).p(", ");
     if (null != n.get(3)) {
       final int prec2 = enterContext(PREC_BASE);
       formatAsTruthValue(n.getNode(3));
       exitContext(prec2);
-    }    
+    } else if (null != counter) {
+      printer.p("true");
+    }
+    if (null != counter)
+      printer.p(")");
     
     printer.p("; ");
     final int prec3 = enterContext(PREC_BASE);
@@ -1210,9 +1984,17 @@ public class ImplementationPrinter extends Visitor {
   /** Visit the specified while statement. */
   public void visitWhileStatement(GNode n) {
     final boolean nested = startStatement(STMT_ANY);
-    printer.indent().p("while (").p(n.getNode(0)).p(')');
+    String counter = profileCounters.get(n);
+    printer.indent();
+    if (null != counter)
+      printer.p("{ ++").p(counter).p(".entries; ")
+        .p("while (__rt::profile::trip(").p(counter).p(", ").p(n.getNode(0)).p("))");
+    else
+      printer.p("while (").p(n.getNode(0)).p(')');
     prepareNested();
     printer.p(n.getNode(1));
+    if (null != counter)
+      indentOut().pln("}");
     endStatement(nested);
   }
 
@@ -1405,7 +2187,7 @@ public class ImplementationPrinter extends Visitor {
   /** Utility methods **/
 
   private GNode resolveScopes(GNode primaryIdentifier){
-    SymbolTable.Scope scope = (SymbolTable.Scope)primaryIdentifier.getProperty(Constants.SCOPE);
+    SymbolTable.Scope scope = annotations.getScope(primaryIdentifier);
     
     if ( scope == null ){
       return null;
@@ -1419,7 +2201,7 @@ public class ImplementationPrinter extends Visitor {
   }
 
   private GNode resolveClassField(String fieldName){
-    HashMap<String, GNode> fieldNameMap = (HashMap<String, GNode>)currentClassNode.getProperty("FieldMap");
+    MemberTable<GNode> fieldNameMap = CPPAST.getFieldMap(currentClassNode);
     GNode fieldDeclaration = fieldNameMap.get(fieldName);
     return fieldDeclaration;
   }
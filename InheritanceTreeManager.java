@@ -74,6 +74,48 @@ public class InheritanceTreeManager {
 
   private ArrayList<String> rootClassName; 
 
+  /** Whether this tree is a read-only snapshot made by freeze(). */
+  private boolean frozen;
+
+  /** Create a frozen copy of a tree, see freeze(). */
+  private InheritanceTreeManager(InheritanceTreeManager tree) {
+    root = copyPackages(tree.root);
+    rootClassNode = tree.rootClassNode;
+    rootClassName = tree.rootClassName;
+    frozen = true;
+  }
+
+  /**
+   * Get a read-only snapshot of the tree. Lookups in the snapshot keep
+   * no state, so it can be used from several threads at once, and
+   * classes inserted into this tree later do not show up in it.
+   *
+   * The snapshot shares this tree's ClassTreeNodes, so classes in it
+   * must not be reparented while it is in use.
+   */
+  public InheritanceTreeManager freeze() {
+    return frozen ? this : new InheritanceTreeManager(this);
+  }
+
+  /** Copy the package nodes of the tree, sharing the class tree nodes. */
+  private static GNode copyPackages(GNode n) {
+    GNode copy = GNode.create(n.getName());
+    if (n.hasProperty(QUALIFIER_NAME)) {
+      copy.setProperty(QUALIFIER_NAME, n.getProperty(QUALIFIER_NAME));
+    }
+    for (Object o : n) {
+      GNode child = (GNode)o;
+      copy.add(child.hasName(PACKAGE_QUALIFIER) ? copyPackages(child) : child);
+    }
+    return copy;
+  }
+
+  private void checkNotFrozen() {
+    if (frozen) {
+      throw new IllegalStateException("Inheritance tree is frozen");
+    }
+  }
+
   /** An overload where java.lang.Object is implicit */
   public InheritanceTreeManager(GNode rootClassDeclaration) {  
     
@@ -163,64 +205,78 @@ public class InheritanceTreeManager {
   /** Get the ClassNode based on its fully qualified package name 
    *  Also sets deepestPackageNode
    * */
-  public GNode dereference(final ArrayList<String> className){
-    // Traverse with state variables
-    //
-    //System.err.print("finding ");
-    for (String s: className){
-      //System.err.print(s);
+  public GNode dereference(ArrayList<String> className){
+    if (frozen) {
+      return lookup(root, className, 0);
     }
-    //
-    
     foundNode = null;
     dereferenceDepth = 0;
     deepestDereference = 0;
     deepestPackageNode = root; 
 
-    new Visitor() {
-
-      public void visitClassTreeNode(GNode n){
-        if (dereferenceDepth >= className.size())
-          return;
-        if (
-        getClassTreeNodeName(n).equals
-          (className.get(dereferenceDepth))
-        ){
-          //////
-          foundNode = n;
-        }
-        else {
-          //////
+    dereference(root, className);
+
+    return foundNode;
+  }
+
+  /** Search the children of a package node for the qualifier at 
+   *  dereferenceDepth, descending into matching packages */
+  private void dereference(GNode n, ArrayList<String> className){
+    if (dereferenceDepth >= className.size())
+      return;
+    String name = className.get(dereferenceDepth);
+
+    for (Object o : n) {
+      GNode child = (GNode)o;
+      if (child.hasName(CLASS_TREE_NODE)) {
+        if (getClassTreeNodeName(child).equals(name)) {
+          foundNode = child;
         }
       }
-
-      public void visitPackageQualifier(GNode n){
-        if (dereferenceDepth >= className.size())
-          return;
-        if (n.getStringProperty(QUALIFIER_NAME).equals(className.get(dereferenceDepth))) {
+      else if (child.hasName(PACKAGE_QUALIFIER)) {
+        if (child.getStringProperty(QUALIFIER_NAME).equals(name)) {
           dereferenceDepth++;
           if (dereferenceDepth > deepestDereference)
             deepestDereference = dereferenceDepth;
-          deepestPackageNode = n;
-          visit(n);
+          deepestPackageNode = child;
+          dereference(child, className);
           dereferenceDepth--;
         }
-        else {
-            //////
+      }
+    }
+  }
+  
+  /**
+   * Look up a class without touching the dereference() state. Finds the
+   * same node as dereference(): the last match in tree order.
+   */
+  private GNode lookup(GNode n, ArrayList<String> className, int depth){
+    if (depth >= className.size())
+      return null;
+    String name = className.get(depth);
+
+    GNode found = null;
+    for (Object o : n) {
+      GNode child = (GNode)o;
+      if (child.hasName(CLASS_TREE_NODE)) {
+        if (getClassTreeNodeName(child).equals(name)) {
+          found = child;
         }
       }
-
-      public void visit(Node n) {
-        for (Object o : n) if (o instanceof Node) dispatch((Node)o);
+      else if (child.hasName(PACKAGE_QUALIFIER)) {
+        if (child.getStringProperty(QUALIFIER_NAME).equals(name)) {
+          GNode deeper = lookup(child, className, depth + 1);
+          if (null != deeper) {
+            found = deeper;
+          }
+        }
       }
-    }.dispatch(root);
-
-    //////
-
-    return foundNode;
+    }
+    return found;
   }
   
   public void reparent(ArrayList<String> child, ArrayList<String> parent){
+    checkNotFrozen();
     GNode childNode = dereference(child);
     GNode parentNode = dereference(parent);
     
@@ -259,6 +315,7 @@ public class InheritanceTreeManager {
    *  "No such parent class [className]"
    *  */
   public GNode insertClass(ArrayList<String> className, ArrayList<String> parentName, GNode classDeclaration){
+    checkNotFrozen();
     GNode classTreeNode = GNode.create(CLASS_TREE_NODE);
     if ( null == parentName ) {
       // If the parent isn't specified, set it to Object
@@ -123,7 +123,32 @@ public class InheritanceTreeManagerTest  {
                         != treeManager.getParent(colorNode) );
           assertTrue( otherColorNode != colorNode );
         }
-         
+
+        /** See that a frozen tree finds the same classes and stays fixed */
+        @Test public void testFreeze () {
+          InheritanceTreeManager frozen = treeManager.freeze();
+          ArrayList<String> colorPoint = new ArrayList<String>(
+              Arrays.asList("qimpp", "ColorPoint") );
+          assertSame( treeManager.dereference(colorPoint),
+                      frozen.dereference(colorPoint) );
+          assertSame( treeManager.getClassDeclarationNode("org.fake.ColorPoint"),
+                      frozen.getClassDeclarationNode("org.fake.ColorPoint") );
+
+          // Classes inserted later are not in the snapshot
+          ArrayList<String> line = new ArrayList<String>(
+              Arrays.asList("qimpp", "Line") );
+          treeManager.insertClass(line, null, GNode.create("ClassDeclaration", "Line"));
+          assertTrue( treeManager.dereference(line) != null );
+          assertNull( frozen.dereference(line) );
+
+          try {
+            frozen.insertClass(line, null, GNode.create("ClassDeclaration", "Line"));
+            fail("Inserted into a frozen tree");
+          } catch (IllegalStateException e) {
+            // Expected
+          }
+        }
+
         public static junit.framework.Test suite() {
                  return new JUnit4TestAdapter(InheritanceTreeManagerTest.class);
         }
@@ -0,0 +1,266 @@
+package qimpp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A registry of intrinsics: library methods whose calls are printed as
+ * inline C++ rather than as calls through a vtable or to out-of-line
+ * runtime functions.
+ *
+ * An intrinsic is registered with the Java signature it stands for and
+ * a C++ template, in which $0 is the receiver and $1, $2, ... are the
+ * arguments. BlockMangler looks calls up here before resolving them and
+ * annotates the ones it finds, and ImplementationPrinter prints those by
+ * filling in the template, so a new intrinsic needs no other change.
+ *
+ * Templates must keep Java's semantics, including its exceptions, and
+ * evaluate each operand exactly once. Those that need checks call the
+ * inline functions in the runtime's __rt namespace. A template's
+ * operands are usually function arguments, which C++ evaluates in no
+ * particular order, so ImplementationPrinter evaluates them into
+ * temporaries in Java's order first whenever one may have side effects
+ * or throw.
+ *
+ * Intrinsics are registered before translation starts; lookups, which
+ * the parallel manglers make concurrently, only read the registry.
+ *
+ * @author QIMPP
+ */
+public class Intrinsics {
+
+  /** A method and the C++ its calls are printed as. */
+  public static class Intrinsic {
+    final String className;
+    final String name;
+    final boolean isStatic;
+    final TypeDescriptor returnType;
+    final TypeDescriptor[] parameters;
+
+    /** The template's text around the placeholders. */
+    final String[] text;
+
+    /** The operand each placeholder stands for, 0 for the receiver. */
+    final int[] operands;
+
+    Intrinsic(String className, String name, boolean isStatic,
+              TypeDescriptor returnType, TypeDescriptor[] parameters,
+              String template) {
+      this.className = className;
+      this.name = name;
+      this.isStatic = isStatic;
+      this.returnType = returnType;
+      this.parameters = parameters;
+
+      ArrayList<String> text = new ArrayList<String>();
+      ArrayList<Integer> operands = new ArrayList<Integer>();
+      int start = 0;
+      int i = template.indexOf('$');
+      while (-1 != i) {
+        int end = i + 1;
+        while (end < template.length() && Character.isDigit(template.charAt(end))) {
+          end++;
+        }
+        if (end > i + 1) {
+          int operand = Integer.parseInt(template.substring(i + 1, end));
+          if (operand > parameters.length || (isStatic && 0 == operand)
+              || (!operands.isEmpty() && operand <= operands.get(operands.size() - 1))) {
+            throw new IllegalArgumentException("Bad operand $" + operand + " in " + template);
+          }
+          text.add(template.substring(start, i));
+          operands.add(operand);
+          start = end;
+        }
+        i = template.indexOf('$', end);
+      }
+      text.add(template.substring(start));
+      if (operands.size() != parameters.length + (isStatic ? 0 : 1)) {
+        throw new IllegalArgumentException("Not every operand used once in " + template);
+      }
+
+      this.text = text.toArray(new String[text.size()]);
+      this.operands = new int[operands.size()];
+      for (int j = 0; j < this.operands.length; j++) {
+        this.operands[j] = operands.get(j);
+      }
+    }
+
+    public boolean isStatic() {
+      return isStatic;
+    }
+
+    public TypeDescriptor getReturnType() {
+      return returnType;
+    }
+
+    /** Get the number of placeholders in the template. */
+    public int size() {
+      return operands.length;
+    }
+
+    /** Get the text before a placeholder, or after the last one. */
+    public String getText(int i) {
+      return text[i];
+    }
+
+    /** Get the operand a placeholder stands for, 0 for the receiver. */
+    public int getOperand(int i) {
+      return operands[i];
+    }
+
+    /** Determine whether arguments of the given types can be passed. */
+    boolean accepts(TypeDescriptor[] arguments) {
+      if (arguments.length != parameters.length) {
+        return false;
+      }
+      for (int i = 0; i < arguments.length; i++) {
+        if (!isAssignable(arguments[i], parameters[i])) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    public String toString() {
+      return className + "." + name;
+    }
+  }
+
+  /** The intrinsics, by class name "." method name, in registration order. */
+  private final HashMap<String, ArrayList<Intrinsic>> intrinsics =
+    new HashMap<String, ArrayList<Intrinsic>>();
+
+  /** The registry of the standard intrinsics. */
+  private static final Intrinsics STANDARD = new Intrinsics();
+  static {
+    STANDARD.registerStandard();
+  }
+
+  /** Get the registry of the standard intrinsics. */
+  public static Intrinsics standard() {
+    return STANDARD;
+  }
+
+  /**
+   * Register an intrinsic. Overloads are tried in registration order, so
+   * register the most specific one first.
+   *
+   * @param className The dot-delimited name of the declaring class.
+   * @param name The method's name.
+   * @param isStatic Whether the method is static.
+   * @param returnType The method's return type.
+   * @param parameters The method's parameter types.
+   * @param template The C++ to print, with $0 for the receiver and $1,
+   *  $2, ... for the arguments, each exactly once and in ascending order.
+   */
+  public void register(String className, String name, boolean isStatic,
+                       TypeDescriptor returnType, TypeDescriptor[] parameters,
+                       String template) {
+    String key = className + "." + name;
+    ArrayList<Intrinsic> overloads = intrinsics.get(key);
+    if (null == overloads) {
+      overloads = new ArrayList<Intrinsic>();
+      intrinsics.put(key, overloads);
+    }
+    overloads.add(new Intrinsic(className, name, isStatic, returnType, parameters, template));
+  }
+
+  /**
+   * Find the intrinsic a call stands for. A simple class name also
+   * denotes the java.lang class of that name.
+   *
+   * @param className The dot-delimited name of the receiver's class.
+   * @param name The method's name.
+   * @param isStatic Whether the receiver is a class rather than an object.
+   * @param arguments The argument types.
+   * @return the intrinsic, or null if the call is an ordinary call
+   */
+  public Intrinsic lookup(String className, String name, boolean isStatic,
+                            TypeDescriptor[] arguments) {
+    ArrayList<Intrinsic> overloads = intrinsics.get(className + "." + name);
+    if (null == overloads && -1 == className.indexOf('.')) {
+      overloads = intrinsics.get("java.lang." + className + "." + name);
+    }
+    if (null != overloads) {
+      for (Intrinsic intrinsic : overloads) {
+        if (intrinsic.isStatic == isStatic && intrinsic.accepts(arguments)) {
+          return intrinsic;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Determine whether a value of one type can be passed for a parameter
+   * of another without a cast. Class types other than Object must match
+   * exactly; reference arrays are covariant.
+   */
+  static boolean isAssignable(TypeDescriptor source, TypeDescriptor target) {
+    if (null == source) {
+      return false;
+    } else if (source.isPrimitive() || target.isPrimitive()) {
+      return source.widensTo(target);
+    } else if (source == target || TypeDescriptor.OBJECT == target) {
+      return true;
+    } else if (source.isArray() && target.isArray()) {
+      TypeDescriptor element = source.getElement();
+      return !element.isPrimitive() && isAssignable(element, target.getElement());
+    }
+    return false;
+  }
+
+  // =========================================================================
+
+  private static TypeDescriptor[] types(TypeDescriptor... types) {
+    return types;
+  }
+
+  /** The C++ types of the primitive types, as in Type.primitiveType. */
+  private static String cppType(TypeDescriptor type) {
+    return Type.primitiveType(type.getPrimitive().getName());
+  }
+
+  private void registerStandard() {
+    TypeDescriptor integer = TypeDescriptor.INT;
+    register("java.lang.String", "length", false, integer, types(),
+             "__rt::length($0)");
+    register("java.lang.String", "charAt", false, TypeDescriptor.CHAR, types(integer),
+             "__rt::charAt($0, $1)");
+
+    // Overloads from the narrowest type, as Java picks the most specific
+    TypeDescriptor[] numbers = {
+      TypeDescriptor.INT, TypeDescriptor.LONG, TypeDescriptor.FLOAT, TypeDescriptor.DOUBLE
+    };
+    for (TypeDescriptor t : numbers) {
+      String cpp = cppType(t);
+      boolean integral = TypeDescriptor.INT == t || TypeDescriptor.LONG == t;
+      // std::abs, std::min and std::max differ from Java on the most
+      // negative integer, NaN and negative zero
+      register("java.lang.Math", "abs", true, t, types(t),
+               integral ? "__rt::abs($1)" : "std::fabs($1)");
+      register("java.lang.Math", "min", true, t, types(t, t),
+               (integral ? "std::min<" : "__rt::minimum<") + cpp + ">($1, $2)");
+      register("java.lang.Math", "max", true, t, types(t, t),
+               (integral ? "std::max<" : "__rt::maximum<") + cpp + ">($1, $2)");
+    }
+    register("java.lang.Math", "sqrt", true, TypeDescriptor.DOUBLE,
+             types(TypeDescriptor.DOUBLE), "std::sqrt($1)");
+
+    // Primitive arrays of the same type are copied with memmove
+    for (TypeDescriptor.Primitive p : TypeDescriptor.Primitive.values()) {
+      if (TypeDescriptor.Primitive.VOID == p) {
+        continue;
+      }
+      TypeDescriptor array = TypeDescriptor.forPrimitive(p).arrayOf();
+      register("java.lang.System", "arraycopy", true, TypeDescriptor.VOID,
+               types(array, integer, array, integer, integer),
+               "__rt::arraycopy($1, $2, $3, $4, $5)");
+    }
+    TypeDescriptor objects = TypeDescriptor.OBJECT.arrayOf();
+    register("java.lang.System", "arraycopy", true, TypeDescriptor.VOID,
+             types(objects, integer, objects, integer, integer),
+             "__rt::arraycopy($1, $2, $3, $4, $5)");
+  }
+
+}
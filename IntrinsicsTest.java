@@ -0,0 +1,54 @@
+package qimpp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for Intrinsics.
+ *
+ * @author QIMPP
+ */
+public class IntrinsicsTest {
+
+  static TypeDescriptor[] types(TypeDescriptor... types) {
+    return types;
+  }
+
+  @Test public void testLookup() {
+    Intrinsics intrinsics = Intrinsics.standard();
+    TypeDescriptor i = TypeDescriptor.INT;
+
+    Intrinsics.Intrinsic min = intrinsics.lookup("Math", "min", true,
+        types(TypeDescriptor.BYTE, TypeDescriptor.LONG));
+    assertSame(TypeDescriptor.LONG, min.getReturnType());
+    assertEquals("std::min<int64_t>(", min.getText(0));
+    assertEquals(1, min.getOperand(0));
+    assertEquals(", ", min.getText(1));
+    assertEquals(2, min.getOperand(1));
+    assertEquals(")", min.getText(2));
+    assertNull(intrinsics.lookup("Math", "min", false, types(i, i)));
+    assertNull(intrinsics.lookup(".Math", "min", true, types(i, i)));
+
+    Intrinsics.Intrinsic length =
+      intrinsics.lookup("java.lang.String", "length", false, types());
+    assertEquals(1, length.size());
+    assertEquals(0, length.getOperand(0));
+
+    TypeDescriptor ints = i.arrayOf();
+    TypeDescriptor strings = TypeDescriptor.STRING.arrayOf();
+    assertNotNull(intrinsics.lookup("System", "arraycopy", true,
+        types(ints, i, ints, i, i)));
+    assertNotNull(intrinsics.lookup("System", "arraycopy", true,
+        types(strings, i, TypeDescriptor.OBJECT.arrayOf(), i, TypeDescriptor.CHAR)));
+    assertNull(intrinsics.lookup("System", "arraycopy", true,
+        types(ints, i, TypeDescriptor.LONG.arrayOf(), i, i)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testOperandUsedTwice() {
+    new Intrinsics().register("A", "f", true, TypeDescriptor.INT,
+        types(TypeDescriptor.INT), "$1 * $1");
+  }
+
+}
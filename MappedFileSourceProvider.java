@@ -0,0 +1,165 @@
+package qimpp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * A SourceProvider that reads source files through NIO. Large files are
+ * memory-mapped and small ones read with a single channel read, and
+ * either way the bytes are decoded in one bulk operation into a char
+ * buffer that is reused for every file. The parser reads the decoded
+ * characters straight out of that buffer.
+ *
+ * Because the buffers are shared, only one reader may be open at a time,
+ * and a reader is invalid once the next one is requested. The translator
+ * parses one source at a time, so that is all it needs. Instances are not
+ * thread-safe.
+ *
+ * @author QIMPP
+ */
+public abstract class MappedFileSourceProvider implements SourceProvider {
+
+  /** Files smaller than this are read rather than mapped. */
+  static final int MAP_THRESHOLD = 64 * 1024;
+
+  private final CharsetDecoder decoder;
+
+  /** The pooled buffer for reading small files. */
+  private ByteBuffer bytes;
+
+  /** The pooled buffer holding the decoded source. */
+  private CharBuffer chars;
+
+  /** The name and decoded length of the last source read. */
+  private String lastName;
+  private int lastLength;
+
+  /**
+   * Create a provider.
+   *
+   * @param charset The encoding of the source files.
+   */
+  public MappedFileSourceProvider(Charset charset) {
+    // Replace bad input like InputStreamReader does
+    decoder = charset.newDecoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    bytes = ByteBuffer.allocate(MAP_THRESHOLD);
+    chars = CharBuffer.allocate(MAP_THRESHOLD);
+  }
+
+  /**
+   * Find the file holding the named source.
+   *
+   * @throws IOException if there is no such file
+   */
+  protected abstract File locate(String name) throws IOException;
+
+  public Reader getReader(String name) throws IOException {
+    CharBuffer source = decode(locate(name));
+    lastName = name;
+    lastLength = source.remaining();
+    return new CharBufferReader(source);
+  }
+
+  public int getLength(String name) throws IOException {
+    if (name.equals(lastName)) {
+      return lastLength;
+    }
+    return (int)locate(name).length();
+  }
+
+  /**
+   * Decode a file into the pooled char buffer.
+   *
+   * @return the buffer, positioned at the start of the source
+   */
+  CharBuffer decode(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      long size = channel.size();
+      if (Integer.MAX_VALUE < size) {
+        throw new IllegalArgumentException(file + ": file too large");
+      }
+
+      ByteBuffer input;
+      if (size < MAP_THRESHOLD) {
+        bytes.clear();
+        while (bytes.position() < size && channel.read(bytes) >= 0) {
+          // Keep reading until the file is in.
+        }
+        bytes.flip();
+        input = bytes;
+      } else {
+        input = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      }
+      return decode(input);
+    } finally {
+      in.close();
+    }
+  }
+
+  private CharBuffer decode(ByteBuffer input) throws CharacterCodingException {
+    int capacity = (int)Math.min(Integer.MAX_VALUE,
+        (long)Math.ceil(input.remaining() * (double)decoder.maxCharsPerByte()));
+    if (chars.capacity() < capacity) {
+      chars = CharBuffer.allocate(capacity);
+    }
+    chars.clear();
+    decoder.reset();
+    CoderResult result = decoder.decode(input, chars, true);
+    if (result.isUnderflow()) {
+      result = decoder.flush(chars);
+    }
+    if (!result.isUnderflow()) {
+      result.throwException();
+    }
+    chars.flip();
+    return chars;
+  }
+
+  /** A Reader over a char buffer, copying characters out in bulk. */
+  private static class CharBufferReader extends Reader {
+    private final CharBuffer buffer;
+
+    CharBufferReader(CharBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    public int read(char[] cbuf, int off, int len) {
+      if (0 == len) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      len = Math.min(len, buffer.remaining());
+      buffer.get(cbuf, off, len);
+      return len;
+    }
+
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() : -1;
+    }
+
+    public boolean ready() {
+      return true;
+    }
+
+    public void close() {
+      // Nothing to release, the buffer is pooled.
+    }
+  }
+
+}
@@ -0,0 +1,83 @@
+package qimpp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for MappedFileSourceProvider.
+ *
+ * @author QIMPP
+ */
+public class MappedFileSourceProviderTest {
+
+  File dir;
+  MappedFileSourceProvider provider;
+
+  @Before public void setUp() throws IOException {
+    dir = File.createTempFile("qimpp", "");
+    dir.delete();
+    dir.mkdir();
+    provider = new MappedFileSourceProvider(Charset.forName("UTF-8")) {
+      protected File locate(String name) {
+        return new File(dir, name);
+      }
+    };
+  }
+
+  @After public void tearDown() {
+    for (File f : dir.listFiles()) {
+      f.delete();
+    }
+    dir.delete();
+  }
+
+  void write(String name, String source) throws IOException {
+    FileOutputStream out = new FileOutputStream(new File(dir, name));
+    out.write(source.getBytes("UTF-8"));
+    out.close();
+  }
+
+  String read(String name) throws IOException {
+    Reader in = provider.getReader(name);
+    StringBuilder b = new StringBuilder();
+    char[] buf = new char[1000];
+    for (int n; (n = in.read(buf, 0, buf.length)) > 0; ) {
+      b.append(buf, 0, n);
+    }
+    in.close();
+    return b.toString();
+  }
+
+  @Test public void testSmallFile() throws IOException {
+    String source = "class A { char c = '\u00e9'; }";
+    write("A.java", source);
+    assertEquals(source, read("A.java"));
+    assertEquals(source.length(), provider.getLength("A.java"));
+  }
+
+  @Test public void testMappedFiles() throws IOException {
+    StringBuilder b = new StringBuilder();
+    while (b.length() <= MappedFileSourceProvider.MAP_THRESHOLD) {
+      b.append("// \u00fcber\n");
+    }
+    String large = b.toString();
+    write("Large.java", large);
+    write("B.java", "class B {}");
+
+    // The buffers are reused from one file to the next
+    assertEquals("class B {}", read("B.java"));
+    assertEquals(large, read("Large.java"));
+    assertEquals(large.length(), provider.getLength("Large.java"));
+    assertEquals("class B {}", read("B.java"));
+  }
+
+}
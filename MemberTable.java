@@ -0,0 +1,103 @@
+package qimpp;
+
+import java.util.HashMap;
+
+import xtc.tree.GNode;
+
+/**
+ * A class's table of members by name, layered over its parent class's
+ * table. A table holds only the members its own class declares and
+ * delegates every other name to its parent, so a subclass shares its
+ * ancestors' entries instead of copying them.
+ *
+ * Tables are filled top-down: a parent's table is complete before its
+ * subclasses look names up through it.
+ *
+ * @author QIMPP
+ */
+public class MemberTable<V> {
+
+  /** The ClassDeclaration this table belongs to. */
+  private final GNode owner;
+
+  /** The members declared by the owner. */
+  private final HashMap<String, V> members;
+
+  /** The nearest ancestor table declaring any members, or null. */
+  private MemberTable<V> parent;
+
+  /**
+   * Create an empty table.
+   *
+   * @param owner The ClassDeclaration of the class.
+   * @param parent The table of the parent class, or null.
+   */
+  public MemberTable(GNode owner, MemberTable<V> parent) {
+    this.owner = owner;
+    this.members = new HashMap<String, V>();
+    setParent(parent);
+  }
+
+  /** Get the ClassDeclaration this table belongs to. */
+  public GNode getOwner() {
+    return owner;
+  }
+
+  /**
+   * Layer this table over a parent class's table. Tables of ancestors
+   * that declare nothing are skipped.
+   *
+   * @param parent The table of the parent class, or null.
+   */
+  public void setParent(MemberTable<V> parent) {
+    while (null != parent && parent.members.isEmpty()) {
+      parent = parent.parent;
+    }
+    this.parent = parent;
+  }
+
+  /** Declare a member in this table's class. */
+  public void put(String name, V member) {
+    members.put(name, member);
+  }
+
+  /**
+   * Look up a member in this class or its ancestors.
+   *
+   * @return the member, or null if no class declares it
+   */
+  public V get(String name) {
+    MemberTable<V> table = find(name);
+    return (null == table) ? null : table.members.get(name);
+  }
+
+  /**
+   * Get the class declaring a member.
+   *
+   * @return the ClassDeclaration, or null if no class declares it
+   */
+  public GNode getDeclaringClass(String name) {
+    MemberTable<V> table = find(name);
+    return (null == table) ? null : table.owner;
+  }
+
+  /** Determine whether this class or one of its ancestors has a member. */
+  public boolean containsKey(String name) {
+    return null != find(name);
+  }
+
+  /** Determine whether this table's own class declares a member. */
+  public boolean declares(String name) {
+    return members.containsKey(name);
+  }
+
+  private MemberTable<V> find(String name) {
+    for (MemberTable<V> table = this; null != table; table = table.parent) {
+      if (table.members.containsKey(name)) {
+        return table;
+      }
+    }
+    return null;
+  }
+
+}
@@ -0,0 +1,57 @@
+package qimpp;
+
+import xtc.tree.GNode;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for MemberTable.
+ *
+ * @author QIMPP
+ */
+public class MemberTableTest {
+
+  GNode a, b, c;
+  MemberTable<GNode> tableA, tableB, tableC;
+
+  @Before public void setUp() {
+    a = GNode.create("ClassDeclaration", "A");
+    b = GNode.create("ClassDeclaration", "B");
+    c = GNode.create("ClassDeclaration", "C");
+    tableA = new MemberTable<GNode>(a, null);
+    tableA.put("x", GNode.create("FieldDeclaration", "A_x"));
+    tableA.put("y", GNode.create("FieldDeclaration", "A_y"));
+    // B declares nothing, C extends B
+    tableB = new MemberTable<GNode>(b, tableA);
+    tableC = new MemberTable<GNode>(c, tableB);
+    tableC.put("y", GNode.create("FieldDeclaration", "C_y"));
+  }
+
+  @Test public void testInherited() {
+    assertEquals("A_x", tableC.get("x").getString(0));
+    assertSame(a, tableC.getDeclaringClass("x"));
+    assertTrue(tableB.containsKey("x"));
+    assertFalse(tableB.declares("x"));
+    assertNull(tableC.get("z"));
+    assertNull(tableC.getDeclaringClass("z"));
+  }
+
+  @Test public void testShadowed() {
+    assertEquals("C_y", tableC.get("y").getString(0));
+    assertSame(c, tableC.getDeclaringClass("y"));
+    assertEquals("A_y", tableB.get("y").getString(0));
+  }
+
+  @Test public void testSetParent() {
+    MemberTable<GNode> table = new MemberTable<GNode>(b, null);
+    table.put("z", GNode.create("FieldDeclaration", "B_z"));
+    assertNull(table.get("x"));
+    table.setParent(tableA);
+    assertEquals("A_x", table.get("x").getString(0));
+    assertEquals("B_z", table.get("z").getString(0));
+  }
+
+}
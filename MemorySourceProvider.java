@@ -0,0 +1,74 @@
+package qimpp;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A SourceProvider that serves Java sources held in memory.
+ *
+ * Sources may be keyed by path ("qimpp/Foo.java") or by qualified class
+ * name ("qimpp.Foo"); both are stored under the path form.
+ *
+ * @author QIMPP
+ */
+public class MemorySourceProvider implements SourceProvider {
+
+  private HashMap<String, CharSequence> sources;
+
+  public MemorySourceProvider() {
+    sources = new HashMap<String, CharSequence>();
+  }
+
+  public MemorySourceProvider(Map<String, ? extends CharSequence> sources) {
+    this();
+    for (Map.Entry<String, ? extends CharSequence> e : sources.entrySet()) {
+      put(e.getKey(), e.getValue());
+    }
+  }
+
+  /**
+   * Add or replace a source.
+   *
+   * @param name the path or qualified class name of the source
+   * @param source the Java source text
+   */
+  public void put(String name, CharSequence source) {
+    sources.put(toPath(name), source);
+  }
+
+  public boolean contains(String name) {
+    return sources.containsKey(toPath(name));
+  }
+
+  public Reader getReader(String name) throws IOException {
+    return new StringReader(get(name).toString());
+  }
+
+  public int getLength(String name) throws IOException {
+    return get(name).length();
+  }
+
+  private CharSequence get(String name) throws IOException {
+    CharSequence source = sources.get(toPath(name));
+    if (null == source) {
+      throw new FileNotFoundException(name);
+    }
+    return source;
+  }
+
+  /**
+   * Convert a qualified class name to the path form used by the
+   * translator. Paths are returned unchanged.
+   */
+  static String toPath(String name) {
+    if (name.endsWith(".java")) {
+      return name;
+    }
+    return name.replace('.', '/') + ".java";
+  }
+
+}
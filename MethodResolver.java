@@ -2,36 +2,53 @@ package qimpp;
 import xtc.tree.*;
 import java.util.*;
 
+/**
+ * Resolves method calls to the declarations they invoke. A resolver keeps
+ * no state between calls, so one resolver may be used from several
+ * threads as long as its inheritance tree and annotations are not
+ * modified meanwhile, e.g. with a frozen tree and an annotation overlay
+ * per thread.
+ *
+ * @author QIMPP
+ */
 public class MethodResolver {
 
-  private static InheritanceTreeManager inheritanceTree;
-  private static String callType;
-  private static GNode callingClassDeclaration;
+  private final InheritanceTreeManager inheritanceTree;
+  private final NodeAnnotations annotations;
 
   /**
-   * @param methodName the unmangled method name, printers should mangle 
-   *  names by argument types
-   * @param classDeclaration the Type node of the calling class
-   * @param argumentTypes a Node containing the Types of the arguments
+   * Create a resolver.
+   *
    * @param inheritanceTree the data structure describing the inheritance 
    *  relationships between translated classes
+   * @param annotations the annotation store holding the methods' modifiers
+   */
+  public MethodResolver(InheritanceTreeManager inheritanceTree, NodeAnnotations annotations) {
+    this.inheritanceTree = inheritanceTree;
+    this.annotations = annotations;
+  }
+
+  /**
+   * @param methodName the unmangled method name, printers should mangle 
+   *  names by argument types
+   * @param classType the type of the called object
+   * @param argTypes the types of the arguments
+   * @param callType one of the Constants CALL_* strings
+   * @param callingClassDeclaration the class making the call
    * @return a GNode the mangled method name, and the return Type node
   */
 
-  public static GNode resolve (String methodName, GNode classType, GNode argTypes, InheritanceTreeManager inheritanceTree, String callType, GNode callingClassDeclaration ) {
-    MethodResolver.callType = callType;
+  public GNode resolve (String methodName, TypeDescriptor classType, TypeDescriptor[] argTypes, String callType, GNode callingClassDeclaration) {
     //TODO: Implement overloading. For now we just return the first method with the right name
-    MethodResolver.inheritanceTree = inheritanceTree;
-    String className = Disambiguator.getDotDelimitedName(classType.getGeneric(0));
+    String className = classType.getClassName();
     GNode classDeclaration = inheritanceTree.getClassDeclarationNode(className);
-    MethodResolver.callingClassDeclaration = callingClassDeclaration;
-    ArrayList<GNode> nameMatches = findNameMatches(methodName, classDeclaration); 
+    ArrayList<GNode> nameMatches = findNameMatches(methodName, classDeclaration, callType, callingClassDeclaration); 
 
     
     
     
     
-    ArrayList<GNode> argLengthMatches = findArgLengthMatches(nameMatches, argTypes.size());
+    ArrayList<GNode> argLengthMatches = findArgLengthMatches(nameMatches, argTypes.length);
     ArrayList<GNode> argCastMatches = findArgCastMatches(argLengthMatches, argTypes);
 
     GNode calledMethod = getMostSpecific(argCastMatches);
@@ -44,23 +61,14 @@ public class MethodResolver {
   /**
    * Get the best match
    */
-  private static GNode getMostSpecific(ArrayList<GNode> possibleMatches){
+  private GNode getMostSpecific(ArrayList<GNode> possibleMatches){
     // Bubble up, because I'm lazy
     // This will work without complaint if the result is actually ambiguous,
     // we are assuming the Java program actually works.
 
     for (int i = 0; i < possibleMatches.size() - 1; i++){
-      GNode formalParameters = possibleMatches.get(i).getGeneric(2);
-      GNode sourceTypes = GNode.create("ArgTypes");
-      for ( Object o : formalParameters ){
-        sourceTypes.add(((GNode)o).getGeneric(1));
-      }
-
-      formalParameters = possibleMatches.get(i+1).getGeneric(2);
-      GNode targetTypes = GNode.create("ArgTypes");
-      for (Object o : formalParameters ) {
-        targetTypes.add(((GNode) o).getGeneric(1));
-      }
+      TypeDescriptor[] sourceTypes = getParameterTypes(possibleMatches.get(i));
+      TypeDescriptor[] targetTypes = getParameterTypes(possibleMatches.get(i+1));
 
       if (isCastable(sourceTypes, targetTypes)){
         possibleMatches.set(i + 1, possibleMatches.get(i));
@@ -71,35 +79,47 @@ public class MethodResolver {
   }
 
   /**
-   * Check if one type is upcastable to another
+   * Get the types of a method's parameters
+   */
+  private TypeDescriptor[] getParameterTypes(GNode method){
+    GNode formalParameters = method.getGeneric(2);
+    TypeDescriptor[] types = new TypeDescriptor[formalParameters.size()];
+    for (int i = 0; i < types.length; i++){
+      types[i] = annotations.typeOf(formalParameters.getGeneric(i).getGeneric(1));
+    }
+    return types;
+  }
+
+  /**
+   * Check if one type is upcastable to another. As before, only the
+   * element types of arrays are compared.
    */
-  private static boolean isCastable(GNode sourceArgTypes, GNode targetArgTypes){
-   
-   
-   
-   for (int i = 0; i < targetArgTypes.size(); i++){
-    // They must both be PrimitiveType or both QualifiedIdentifier
-    GNode targetType = targetArgTypes.getGeneric(i);
-    GNode sourceType = sourceArgTypes.getGeneric(i);
-
-    if (!targetType.getGeneric(0).getName().equals(sourceType.getGeneric(0).getName())){
-       
+  private boolean isCastable(TypeDescriptor[] sourceArgTypes, TypeDescriptor[] targetArgTypes){
+   for (int i = 0; i < targetArgTypes.length; i++){
+    if (null == sourceArgTypes[i] || null == targetArgTypes[i]){
+      return false;
+    }
+    TypeDescriptor targetType = targetArgTypes[i].getBase();
+    TypeDescriptor sourceType = sourceArgTypes[i].getBase();
+
+    if (sourceType == targetType){
+      continue;
+    }
+
+    // They must both be primitive or both classes
+    if (targetType.isPrimitive() != sourceType.isPrimitive()){
       return false;
     }
     
-    if (targetType.getGeneric(0).getName().equals("QualifiedIdentifier")){
+    if (targetType.isClass()){
       if (!isClassCastable(sourceType, targetType)){
-        
         return false;
       }
     }
 
     // Primitive type
-    else {
-      if (!isPrimitiveTypeCastable(sourceType, targetType)){
-        
-        return false;
-      }
+    else if (!sourceType.widensTo(targetType)){
+      return false;
     }
    }
 
@@ -109,20 +129,15 @@ public class MethodResolver {
   /**
    * Determine if one class type is castable to another
    */
-  private static boolean isClassCastable(GNode sourceType, GNode targetType){
-    String sourceName = Disambiguator.getDotDelimitedName(sourceType.getGeneric(0));
-    String targetName = Disambiguator.getDotDelimitedName(targetType.getGeneric(0));
+  private boolean isClassCastable(TypeDescriptor sourceType, TypeDescriptor targetType){
+    if (sourceType == targetType) return true;
 
-    if (sourceName.equals(targetName)) return true;
-
-    
+    String sourceName = sourceType.getClassName();
+    String targetName = targetType.getClassName();
     
     GNode sourceClassTreeNode = inheritanceTree.getClassTreeNode(sourceName);
-    GNode targetClassTreeNode = inheritanceTree.getClassTreeNode(targetName);
 
     while (!sourceName.equals("java.lang.Object")){
-      
-      
       sourceClassTreeNode = (GNode)sourceClassTreeNode.getProperty(InheritanceTreeManager.PARENT_CLASS);
       sourceName = (String)((GNode)sourceClassTreeNode.getProperty(InheritanceTreeManager.CLASS_DECLARATION)).get(0);
       if (sourceName.equals(targetName)) return true;
@@ -131,20 +146,10 @@ public class MethodResolver {
     return false;
   }
 
-  /**
-   * Determine if an primitive argument of one type can be casted to another
-   */
-  private static boolean isPrimitiveTypeCastable(GNode sourceType, GNode targetType){
-    String sourceName = sourceType.getGeneric(0).getString(0);
-    String targetName = targetType.getGeneric(0).getString(0);
-
-    return Type.canWiden(sourceName, targetName);    
-  }
-
   /**
    * Get all the methods with matching length of arguments
    */
-  private static ArrayList<GNode> findArgLengthMatches(ArrayList<GNode> nameMatches, int numArgs){
+  private ArrayList<GNode> findArgLengthMatches(ArrayList<GNode> nameMatches, int numArgs){
     ArrayList<GNode> lengthMatches = new ArrayList<GNode>();
 
     for (GNode n : nameMatches){
@@ -160,24 +165,21 @@ public class MethodResolver {
   /**
    * Get all the methods whose arguments can be cast to from the given argument types
    */
-  private static ArrayList<GNode> findArgCastMatches(ArrayList<GNode> argLengthMatches, GNode argTypes){
+  private ArrayList<GNode> findArgCastMatches(ArrayList<GNode> argLengthMatches, TypeDescriptor[] argTypes){
     ArrayList<GNode> argCastMatches = new ArrayList<GNode>();    
     
-    for ( Object o : argLengthMatches ){
-      GNode formalParameters = ((GNode)o).getGeneric(2);
-      GNode targetArgTypes = GNode.create("ArgTypes");
-      for ( Object p : formalParameters ){
-        targetArgTypes.add(((GNode)p).getGeneric(1)); 
-      }
-      if (isCastable(argTypes, targetArgTypes)){
-        argCastMatches.add((GNode)o);
+    for ( GNode method : argLengthMatches ){
+      if (isCastable(argTypes, getParameterTypes(method))){
+        argCastMatches.add(method);
       }
     }
     return argCastMatches;
   }
 
-  private static ArrayList<GNode> findNameMatches(String methodName,
-                                                  GNode classDeclaration) {
+  private ArrayList<GNode> findNameMatches(String methodName,
+                                           GNode classDeclaration,
+                                           String callType,
+                                           GNode callingClassDeclaration) {
     GNode methodContainer = classDeclaration.getGeneric(4);
     ArrayList<GNode> matches = new ArrayList<GNode>();
     //
@@ -190,19 +192,19 @@ public class MethodResolver {
       }
       
       if (method.getString(0).equals(methodName)) {
-        if (method.getProperty("static") != null){
+        if (annotations.is(method, NodeAnnotations.STATIC)){
           
           if (callType == Constants.CALL_DYNAMIC)
             continue;
         }
-        if (method.getProperty("private") != null){
+        if (annotations.is(method, NodeAnnotations.PRIVATE)){
           
           if (callingClassDeclaration != classDeclaration){
             continue;
           } 
         }
         /*
-        if (method.getProperty("public") == null){
+        if (!annotations.is(method, NodeAnnotations.PUBLIC)){
           
           
 
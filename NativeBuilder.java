@@ -0,0 +1,403 @@
+package qimpp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compiles a translation into an executable, reusing the work of earlier
+ * builds.
+ *
+ * The runtime, java_lang.cc, is compiled once into a static library,
+ * cached under a hash of the runtime's sources and the compiler flags.
+ * The header is precompiled once for each distinct out.h, and each
+ * translation unit is compiled to an object cached under a hash of its
+ * text, the header and the flags. An edit that leaves out.h alone thus
+ * recompiles only the classes it changed, and all of them in parallel.
+ *
+ * Everything cached is written under a temporary name and then renamed,
+ * so a build that fails or is interrupted leaves no broken entries.
+ *
+ * @author QIMPP
+ */
+public class NativeBuilder {
+
+  /** The number of precompiled headers kept in the cache. */
+  static final int PRECOMPILED_HEADERS = 4;
+
+  /** The runtime sources the library and every unit depend on. */
+  static final String[] RUNTIME_SOURCES = {
+    "java_lang.h", "java_lang.cc", "ptr.h", "qimpp_utils.h", "qimpp_stats.h"
+  };
+
+  /** A translation unit. */
+  static class Unit {
+    final File source;
+    /** Whether the unit starts by including the precompiled header. */
+    final boolean precompiled;
+
+    Unit(File source, boolean precompiled) {
+      this.source = source;
+      this.precompiled = precompiled;
+    }
+  }
+
+  private String compiler = "g++";
+  private final List<String> flags = new ArrayList<String>();
+  private final File runtimeDir;
+  private File cacheDir;
+  private int jobs = Runtime.getRuntime().availableProcessors();
+  private File header;
+  private final List<Unit> units = new ArrayList<Unit>();
+
+  /** The number of units the last build compiled rather than reused. */
+  private int compiled;
+
+  /**
+   * Create a new builder.
+   *
+   * @param runtimeDir The directory holding java_lang.cc and its headers.
+   */
+  public NativeBuilder(File runtimeDir) {
+    this.runtimeDir = runtimeDir;
+    this.cacheDir = new File(runtimeDir, ".qimpp-cache");
+  }
+
+  /** Use another compiler than g++. */
+  public void setCompiler(String compiler) {
+    this.compiler = compiler;
+  }
+
+  /** Pass a flag to every compilation and the link. */
+  public void addFlag(String flag) {
+    flags.add(flag);
+  }
+
+  /** Keep the cache in another directory than .qimpp-cache. */
+  public void setCacheDir(File cacheDir) {
+    this.cacheDir = cacheDir;
+  }
+
+  /** Run at most the given number of compilers at once. */
+  public void setJobs(int jobs) {
+    this.jobs = Math.max(1, jobs);
+  }
+
+  /** Precompile the given header, usually out.h. */
+  public void setHeader(File header) {
+    this.header = header;
+  }
+
+  /**
+   * Add a translation unit.
+   *
+   * @param source The unit's source.
+   * @param precompiled Whether the unit may be compiled with the
+   *  precompiled header included first, which requires it to include the
+   *  header before anything the header depends on.
+   */
+  public void addUnit(File source, boolean precompiled) {
+    units.add(new Unit(source, precompiled));
+  }
+
+  /** Get the number of units the last build compiled rather than reused. */
+  public int getCompiled() {
+    return compiled;
+  }
+
+  /** Get the number of units. */
+  public int size() {
+    return units.size();
+  }
+
+  /**
+   * Compile the units that are not cached and link them with the runtime.
+   *
+   * @param executable The executable to write.
+   * @throws IOException if a compiler fails or the cache cannot be written.
+   */
+  public void build(File executable) throws IOException {
+    Files.deleteIfExists(executable.toPath());
+    File objects = new File(cacheDir, "objects");
+    objects.mkdirs();
+
+    String runtimeKey = runtimeKey();
+    File library = runtimeLibrary(runtimeKey);
+    File pch = (null == header) ? null : precompiledHeader(runtimeKey);
+
+    List<String> link = command();
+    List<Callable<Void>> compilations = new ArrayList<Callable<Void>>();
+    String headerText = (null == header) ? "" : read(header);
+    for (final Unit unit : units) {
+      final File pchCopy = unit.precompiled ? pch : null;
+      final File object = new File(objects, digest(runtimeKey, headerText,
+          String.valueOf(null != pchCopy), read(unit.source)) + ".o");
+      link.add(object.getPath());
+      if (!object.exists()) {
+        compilations.add(new Callable<Void>() {
+          public Void call() throws IOException {
+            compile(unit.source, pchCopy, object);
+            return null;
+          }
+        });
+      }
+    }
+    compiled = compilations.size();
+    runAll(compilations);
+
+    link.add(library.getPath());
+    link.add("-o");
+    link.add(executable.getPath());
+    run(link);
+  }
+
+  // =========================================================================
+
+  /** Get the hash of the runtime's sources, the compiler and its flags. */
+  private String runtimeKey() throws IOException {
+    StringBuilder sources = new StringBuilder();
+    for (String name : RUNTIME_SOURCES) {
+      File f = new File(runtimeDir, name);
+      sources.append(name).append('\0');
+      if (f.exists()) {
+        sources.append(read(f));
+      }
+      sources.append('\0');
+    }
+    return digest(compiler, flags.toString(), sources.toString());
+  }
+
+  /** Get the runtime library, compiling it if it is not cached. */
+  private File runtimeLibrary(String key) throws IOException {
+    File dir = new File(cacheDir, "runtime-" + key);
+    File library = new File(dir, "libjava_lang.a");
+    if (library.exists()) {
+      return library;
+    }
+    dir.mkdirs();
+    File object = new File(dir, "java_lang.o");
+    compile(new File(runtimeDir, "java_lang.cc"), null, object);
+    File temp = File.createTempFile("libjava_lang", ".a", dir);
+    Files.delete(temp.toPath());
+    run(Arrays.asList("ar", "rcs", temp.getPath(), object.getPath()));
+    rename(temp, library);
+    return library;
+  }
+
+  /**
+   * Get the precompiled header, compiling it if it is not cached. The
+   * header is compiled from a copy next to the result, which units then
+   * include first.
+   */
+  private File precompiledHeader(String runtimeKey) throws IOException {
+    String key = digest(runtimeKey, read(header));
+    File dir = new File(cacheDir, "pch-" + key);
+    File copy = new File(dir, header.getName());
+    if (new File(dir, header.getName() + ".gch").exists()) {
+      dir.setLastModified(System.currentTimeMillis());
+      return copy;
+    }
+
+    File temp = Files.createTempDirectory(cacheDir.toPath(), "pch").toFile();
+    File tempCopy = new File(temp, header.getName());
+    Files.copy(header.toPath(), tempCopy.toPath());
+    List<String> command = command();
+    command.add("-I" + header.getAbsoluteFile().getParent());
+    command.add("-x");
+    command.add("c++-header");
+    command.add(tempCopy.getPath());
+    command.add("-o");
+    command.add(tempCopy.getPath() + ".gch");
+    run(command);
+    if (!temp.renameTo(dir)) {
+      // Another build cached the same header meanwhile
+      delete(temp);
+    }
+    prune();
+    return copy;
+  }
+
+  /** Remove all but the most recently used precompiled headers. */
+  private void prune() {
+    File[] headers = cacheDir.listFiles();
+    if (null == headers) {
+      return;
+    }
+    List<File> pchs = new ArrayList<File>();
+    for (File f : headers) {
+      if (f.getName().startsWith("pch-")) {
+        pchs.add(f);
+      }
+    }
+    Collections.sort(pchs, new Comparator<File>() {
+      public int compare(File a, File b) {
+        return Long.compare(b.lastModified(), a.lastModified());
+      }
+    });
+    for (int i = PRECOMPILED_HEADERS; i < pchs.size(); i++) {
+      delete(pchs.get(i));
+    }
+  }
+
+  /**
+   * Compile a source into an object.
+   *
+   * @param pch The header to include first, or null.
+   */
+  private void compile(File source, File pch, File object) throws IOException {
+    File temp = File.createTempFile("unit", ".o", object.getParentFile());
+    List<String> command = command();
+    if (null != pch) {
+      command.add("-Winvalid-pch");
+      command.add("-include");
+      command.add(pch.getPath());
+    }
+    command.add("-c");
+    command.add(source.getPath());
+    command.add("-o");
+    command.add(temp.getPath());
+    try {
+      run(command);
+    } catch (IOException x) {
+      Files.deleteIfExists(temp.toPath());
+      throw x;
+    }
+    rename(temp, object);
+  }
+
+  /** Get the start of a compiler command. */
+  private List<String> command() {
+    List<String> command = new ArrayList<String>();
+    command.add(compiler);
+    command.addAll(flags);
+    command.add("-I" + runtimeDir.getPath());
+    return command;
+  }
+
+  /** Run the compilations, at most jobs at once. */
+  private void runAll(List<Callable<Void>> compilations) throws IOException {
+    if (compilations.isEmpty()) {
+      return;
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(jobs, compilations.size()));
+    try {
+      List<Future<Void>> results = new ArrayList<Future<Void>>();
+      for (Callable<Void> c : compilations) {
+        results.add(pool.submit(c));
+      }
+      IOException failure = null;
+      for (Future<Void> result : results) {
+        try {
+          result.get();
+        } catch (ExecutionException x) {
+          if (null == failure) {
+            failure = (x.getCause() instanceof IOException)
+              ? (IOException)x.getCause() : new IOException(x.getCause());
+          }
+        } catch (InterruptedException x) {
+          throw new IOException(x);
+        }
+      }
+      if (null != failure) {
+        throw failure;
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Run a command, passing on its output.
+   *
+   * @throws IOException if it fails.
+   */
+  private static void run(List<String> command) throws IOException {
+    Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+    String output = new String(readAll(process.getInputStream()));
+    int status;
+    try {
+      status = process.waitFor();
+    } catch (InterruptedException x) {
+      process.destroy();
+      throw new IOException(x);
+    }
+    if (0 != status) {
+      throw new IOException(command.get(0) + " failed with status " + status
+                            + ":\n" + output);
+    }
+    if (!output.isEmpty()) {
+      synchronized (System.err) {
+        System.err.print(output);
+      }
+    }
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    for (int n = in.read(buffer); -1 != n; n = in.read(buffer)) {
+      out.write(buffer, 0, n);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+
+  private static String read(File f) throws IOException {
+    return new String(Files.readAllBytes(f.toPath()), "UTF-8");
+  }
+
+  /** Move a file into the cache, replacing what another build put there. */
+  private static void rename(File from, File to) throws IOException {
+    Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static void delete(File f) {
+    File[] children = f.listFiles();
+    if (null != children) {
+      for (File c : children) {
+        delete(c);
+      }
+    }
+    f.delete();
+  }
+
+  /** Get the hex SHA-1 of the given strings, separated so they cannot run together. */
+  static String digest(String... parts) {
+    try {
+      MessageDigest sha = MessageDigest.getInstance("SHA-1");
+      for (String part : parts) {
+        sha.update(part.getBytes("UTF-8"));
+        sha.update((byte)0);
+        sha.update(String.valueOf(part.length()).getBytes("UTF-8"));
+        sha.update((byte)0);
+      }
+      StringBuilder hex = new StringBuilder();
+      for (byte b : sha.digest()) {
+        hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+          .append(Character.forDigit(b & 0xf, 16));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException x) {
+      throw new AssertionError(x);
+    } catch (java.io.UnsupportedEncodingException x) {
+      throw new AssertionError(x);
+    }
+  }
+
+}
@@ -0,0 +1,194 @@
+package qimpp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for NativeBuilder's cache. The compiler is a shell script that
+ * logs its arguments and writes whatever file -o names, so the tests see
+ * exactly which compilations each build ran.
+ *
+ * @author QIMPP
+ */
+public class NativeBuilderTest {
+
+  static final String COMPILER =
+    "#!/bin/sh\n"
+    + "echo \"$@\" >> \"$(dirname \"$0\")/log\"\n"
+    + "while [ $# -gt 0 ]; do\n"
+    + "  if [ \"$1\" = \"-o\" ]; then echo stub > \"$2\"; fi\n"
+    + "  shift\n"
+    + "done\n";
+
+  File dir;
+  File runtime;
+  File log;
+  File header;
+  File executable;
+
+  @Before public void setUp() throws IOException {
+    dir = Files.createTempDirectory("qimpp-builder").toFile();
+    runtime = new File(dir, "runtime");
+    runtime.mkdirs();
+    write(new File(runtime, "java_lang.h"), "// runtime\n");
+    write(new File(runtime, "java_lang.cc"), "#include \"java_lang.h\"\n");
+    File compiler = new File(dir, "stub-compiler");
+    write(compiler, COMPILER);
+    compiler.setExecutable(true);
+    log = new File(dir, "log");
+    header = new File(dir, "out.h");
+    write(header, "struct A;\n");
+    executable = new File(dir, "a.out");
+  }
+
+  @After public void tearDown() {
+    delete(dir);
+  }
+
+  NativeBuilder builder(String... units) throws IOException {
+    NativeBuilder builder = new NativeBuilder(runtime);
+    builder.setCompiler(new File(dir, "stub-compiler").getPath());
+    builder.setCacheDir(new File(dir, "cache"));
+    builder.setHeader(header);
+    for (String unit : units) {
+      File source = new File(dir, unit);
+      if (!source.exists()) {
+        write(source, "// " + unit + "\n");
+      }
+      builder.addUnit(source, true);
+    }
+    return builder;
+  }
+
+  /** Build, returning the compiler commands the build ran. */
+  List<String> build(NativeBuilder builder) throws IOException {
+    log.delete();
+    builder.build(executable);
+    assertTrue(executable.exists());
+    List<String> commands = new ArrayList<String>();
+    if (log.exists()) {
+      for (String line : new String(Files.readAllBytes(log.toPath()), "UTF-8").split("\n")) {
+        if (!line.contains("libjava_lang.a")) {
+          commands.add(line);
+        }
+      }
+    }
+    return commands;
+  }
+
+  static int count(List<String> commands, String part) {
+    int count = 0;
+    for (String command : commands) {
+      if (command.contains(part)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  int cached(String prefix) {
+    int count = 0;
+    for (File f : new File(dir, "cache").listFiles()) {
+      if (f.getName().startsWith(prefix)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Test public void testReuse() throws IOException {
+    NativeBuilder builder = builder("A.cc", "B.cc");
+    List<String> commands = build(builder);
+    assertEquals(2, builder.getCompiled());
+    assertEquals(1, count(commands, "java_lang.cc"));
+    assertEquals(1, count(commands, "c++-header"));
+    assertEquals(1, count(commands, "A.cc"));
+    assertEquals(1, count(commands, "B.cc"));
+
+    // Nothing changed, so only the link runs
+    commands = build(builder);
+    assertEquals(0, builder.getCompiled());
+    assertTrue(commands.isEmpty());
+
+    // Only the edited unit is compiled again
+    write(new File(dir, "B.cc"), "// B, edited\n");
+    commands = build(builder("A.cc", "B.cc"));
+    assertEquals(1, count(commands, "B.cc"));
+    assertEquals(0, count(commands, "A.cc"));
+    assertEquals(0, count(commands, "c++-header"));
+  }
+
+  @Test public void testKeys() throws IOException {
+    build(builder("A.cc"));
+
+    // A new header is precompiled and every unit compiled against it
+    write(header, "struct A;\nstruct B;\n");
+    NativeBuilder builder = builder("A.cc");
+    List<String> commands = build(builder);
+    assertEquals(1, builder.getCompiled());
+    assertEquals(1, count(commands, "c++-header"));
+    assertEquals(0, count(commands, "java_lang.cc"));
+    assertEquals(1, cached("runtime-"));
+
+    // A flag changes the library and every object
+    builder = builder("A.cc");
+    builder.addFlag("-O2");
+    commands = build(builder);
+    assertEquals(1, builder.getCompiled());
+    assertEquals(1, count(commands, "java_lang.cc"));
+    assertEquals(2, cached("runtime-"));
+
+    // So does a change to the runtime
+    write(new File(runtime, "java_lang.h"), "// runtime, edited\n");
+    builder = builder("A.cc");
+    commands = build(builder);
+    assertEquals(1, builder.getCompiled());
+    assertEquals(1, count(commands, "java_lang.cc"));
+    assertEquals(3, cached("runtime-"));
+  }
+
+  @Test public void testPrune() throws IOException {
+    int headers = NativeBuilder.PRECOMPILED_HEADERS + 1;
+    for (int i = 0; i < headers; i++) {
+      write(header, "struct A" + i + ";\n");
+      assertEquals(1, count(build(builder("A.cc")), "c++-header"));
+      // Age the cached headers, so the order they were used in is clear
+      for (File f : new File(dir, "cache").listFiles()) {
+        if (f.getName().startsWith("pch-")) {
+          f.setLastModified(f.lastModified() - 60000);
+        }
+      }
+    }
+    assertEquals(NativeBuilder.PRECOMPILED_HEADERS, cached("pch-"));
+
+    // The most recent header is kept, and the oldest was removed
+    assertEquals(0, count(build(builder("A.cc")), "c++-header"));
+    write(header, "struct A0;\n");
+    assertEquals(1, count(build(builder("A.cc")), "c++-header"));
+    assertEquals(NativeBuilder.PRECOMPILED_HEADERS, cached("pch-"));
+  }
+
+  static void write(File f, String text) throws IOException {
+    Files.write(f.toPath(), text.getBytes("UTF-8"));
+  }
+
+  static void delete(File f) {
+    File[] children = f.listFiles();
+    if (null != children) {
+      for (File c : children) {
+        delete(c);
+      }
+    }
+    f.delete();
+  }
+
+}
@@ -0,0 +1,631 @@
+package qimpp;
+
+import java.util.Arrays;
+
+import xtc.tree.GNode;
+import xtc.tree.Node;
+
+/**
+ * A side table of the analysis results the translator attaches to AST
+ * nodes: identifier classification, declaration, type node and scope of
+ * expressions, modifier flags of declarations, the mangled flag of blocks,
+ * the TypeDescriptor of Type nodes, the values of constant fields and
+ * the intrinsics calls are replaced with.
+ *
+ * Nodes are assigned dense ids on first annotation through an identity
+ * hash table, and each annotation is a column indexed by id, with the
+ * identifier type packed into a byte and the modifiers into an int. That
+ * keeps per-node overhead to a few words instead of a property HashMap on
+ * every annotated node.
+ *
+ * Reading an annotation of a node that was never annotated returns the
+ * default value (null, or no flags) without assigning it an id. Removing
+ * a node's annotations frees its id for reuse, so the table only grows
+ * with the number of nodes annotated at once.
+ *
+ * An overlay is a table layered over a base table. Reading it falls
+ * through to the base for nodes the overlay has not annotated, and
+ * writing it leaves the base untouched until commit() copies the
+ * annotations set in the overlay through. Threads that must not write a
+ * shared table, like BlockMangler's parallel workers, each annotate their
+ * own overlay; the base may be read concurrently as long as nobody writes
+ * it. Tables themselves are not thread-safe.
+ *
+ * @author QIMPP
+ */
+public class NodeAnnotations {
+
+  // Flags
+  public static final int PUBLIC = 1 << 0;
+  public static final int PROTECTED = 1 << 1;
+  public static final int PRIVATE = 1 << 2;
+  public static final int STATIC = 1 << 3;
+  public static final int FINAL = 1 << 4;
+  public static final int ABSTRACT = 1 << 5;
+  public static final int NATIVE = 1 << 6;
+  public static final int SYNCHRONIZED = 1 << 7;
+  public static final int TRANSIENT = 1 << 8;
+  public static final int VOLATILE = 1 << 9;
+  public static final int STRICTFP = 1 << 10;
+  /** Set on a Block once BlockMangler has mangled it. */
+  public static final int MANGLED = 1 << 11;
+  /** Set on a method whose body does nothing, so calls to it can be dropped. */
+  public static final int TRIVIAL = 1 << 12;
+
+  private static final String[] MODIFIERS = {
+    "public", "protected", "private", "static", "final", "abstract",
+    "native", "synchronized", "transient", "volatile", "strictfp"
+  };
+
+  /** The identifier types, indexed by their code. Code 0 is unset. */
+  private static final String[] IDENTIFIER_TYPES = {
+    null,
+    Constants.CLASS_IDENTIFIER,
+    Constants.FIELD_IDENTIFIER,
+    Constants.STACKVAR_IDENTIFIER,
+    Constants.QUALIFIED_CLASS_IDENTIFIER,
+    Constants.FOREIGN_CLASS_FIELD_IDENTIFIER,
+    Constants.PRINT_IDENTIFIER,
+    Constants.PRIMITIVE_TYPE_IDENTIFIER
+  };
+
+  private static final int INITIAL_CAPACITY = 256;
+
+  // The columns an overlay tracks writes of
+  private static final byte IDENTIFIER_TYPE_COLUMN = 1 << 0;
+  private static final byte DECLARATION_COLUMN = 1 << 1;
+  private static final byte TYPE_NODE_COLUMN = 1 << 2;
+  private static final byte SCOPE_COLUMN = 1 << 3;
+  private static final byte CONTAINING_CLASS_COLUMN = 1 << 4;
+  private static final byte TYPE_COLUMN = 1 << 5;
+  private static final byte CONSTANT_COLUMN = 1 << 6;
+  private static final byte INTRINSIC_COLUMN = (byte)(1 << 7);
+
+  /** The table this one is an overlay of, or null. */
+  private final NodeAnnotations base;
+
+  // Identity hash table from node to id, open addressing with linear
+  // probing. The table is kept at most half full.
+  private Node[] keys;
+  private int[] ids;
+
+  /** The number of nodes with an id. */
+  private int size;
+
+  /** The number of ids handed out, including freed ones. */
+  private int next;
+
+  /** The freed ids, a stack of freeCount entries. */
+  private int[] free;
+  private int freeCount;
+
+  // Annotation columns, indexed by id
+  private byte[] identifierTypes;
+  private int[] flags;
+  private Object[] declarations;
+  private GNode[] typeNodes;
+  private SymbolTable.Scope[] scopes;
+  private GNode[] containingClasses;
+  private TypeDescriptor[] types;
+  private Object[] constants;
+  private Intrinsics.Intrinsic[] intrinsics;
+
+  // For overlays, the columns and flags written, indexed by id
+  private byte[] written;
+  private int[] changedFlags;
+
+  public NodeAnnotations() {
+    this(null);
+  }
+
+  /**
+   * Create an overlay of a table.
+   *
+   * @param base The table to read through to and commit to, or null for
+   *   a plain table.
+   */
+  public NodeAnnotations(NodeAnnotations base) {
+    this.base = base;
+    keys = new Node[INITIAL_CAPACITY * 2];
+    ids = new int[INITIAL_CAPACITY * 2];
+    identifierTypes = new byte[INITIAL_CAPACITY];
+    flags = new int[INITIAL_CAPACITY];
+    declarations = new Object[INITIAL_CAPACITY];
+    typeNodes = new GNode[INITIAL_CAPACITY];
+    scopes = new SymbolTable.Scope[INITIAL_CAPACITY];
+    containingClasses = new GNode[INITIAL_CAPACITY];
+    types = new TypeDescriptor[INITIAL_CAPACITY];
+    constants = new Object[INITIAL_CAPACITY];
+    intrinsics = new Intrinsics.Intrinsic[INITIAL_CAPACITY];
+    free = new int[16];
+    if (null != base) {
+      written = new byte[INITIAL_CAPACITY];
+      changedFlags = new int[INITIAL_CAPACITY];
+    }
+  }
+
+  /** Get the number of annotated nodes, not counting the base's. */
+  public int size() {
+    return size;
+  }
+
+  // =========================================================================
+
+  /**
+   * Get the classification of an identifier or expression.
+   *
+   * @return one of the Constants *_IDENTIFIER strings, or null
+   */
+  public String getIdentifierType(Node n) {
+    int id = find(n);
+    if (id < 0) {
+      return (null == base) ? null : base.getIdentifierType(n);
+    }
+    return IDENTIFIER_TYPES[identifierTypes[id]];
+  }
+
+  /**
+   * Set the classification of an identifier or expression.
+   *
+   * @param type one of the Constants *_IDENTIFIER strings, or null
+   */
+  public void setIdentifierType(Node n, String type) {
+    int id = id(n);
+    identifierTypes[id] = identifierTypeCode(type);
+    written(id, IDENTIFIER_TYPE_COLUMN);
+  }
+
+  /** Get the declaration an identifier or expression refers to. */
+  public Object getDeclaration(Node n) {
+    int id = find(n);
+    if (id < 0) {
+      return (null == base) ? null : base.getDeclaration(n);
+    }
+    return declarations[id];
+  }
+
+  public void setDeclaration(Node n, Object declaration) {
+    int id = id(n);
+    declarations[id] = declaration;
+    written(id, DECLARATION_COLUMN);
+  }
+
+  /** Get the Type node of an identifier or expression. */
+  public GNode getTypeNode(Node n) {
+    int id = find(n);
+    if (id < 0) {
+      return (null == base) ? null : base.getTypeNode(n);
+    }
+    return typeNodes[id];
+  }
+
+  public void setTypeNode(Node n, GNode typeNode) {
+    int id = id(n);
+    typeNodes[id] = typeNode;
+    written(id, TYPE_NODE_COLUMN);
+  }
+
+  /** Get the scope SymbolTable marked a node with. */
+  public SymbolTable.Scope getScope(Node n) {
+    int id = find(n);
+    if (id < 0) {
+      return (null == base) ? null : base.getScope(n);
+    }
+    return scopes[id];
+  }
+
+  public void setScope(Node n, SymbolTable.Scope scope) {
+    int id = id(n);
+    scopes[id] = scope;
+    written(id, SCOPE_COLUMN);
+  }
+
+  public boolean hasScope(Node n) {
+    return null != getScope(n);
+  }
+
+  /** Get the class declaring a field declaration. */
+  public GNode getContainingClass(Node n) {
+    int id = find(n);
+    if (id < 0) {
+      return (null == base) ? null : base.getContainingClass(n);
+    }
+    return containingClasses[id];
+  }
+
+  public void setContainingClass(Node n, GNode classDeclaration) {
+    int id = id(n);
+    containingClasses[id] = classDeclaration;
+    written(id, CONTAINING_CLASS_COLUMN);
+  }
+
+  /**
+   * Get the compile-time constant value of a constant field's
+   * declaration, a boxed primitive or a String.
+   *
+   * @return the value, or null if the field is not a known constant
+   */
+  public Object getConstant(Node n) {
+    int id = find(n);
+    if (id < 0) {
+      return (null == base) ? null : base.getConstant(n);
+    }
+    return constants[id];
+  }
+
+  public void setConstant(Node n, Object value) {
+    int id = id(n);
+    constants[id] = value;
+    written(id, CONSTANT_COLUMN);
+  }
+
+  /**
+   * Get the intrinsic BlockMangler replaced a call with.
+   *
+   * @return the intrinsic, or null if the call is printed as a call
+   */
+  public Intrinsics.Intrinsic getIntrinsic(Node n) {
+    int id = find(n);
+    if (id < 0) {
+      return (null == base) ? null : base.getIntrinsic(n);
+    }
+    return intrinsics[id];
+  }
+
+  public void setIntrinsic(Node n, Intrinsics.Intrinsic intrinsic) {
+    int id = id(n);
+    intrinsics[id] = intrinsic;
+    written(id, INTRINSIC_COLUMN);
+  }
+
+  /**
+   * Get the descriptor of a Type node, computing it on first use. Type
+   * nodes must not be modified once their descriptor has been taken.
+   *
+   * @return the descriptor, or null if typeNode is null or not a type
+   */
+  public TypeDescriptor typeOf(GNode typeNode) {
+    if (null == typeNode) {
+      return null;
+    }
+    TypeDescriptor type = cachedType(typeNode);
+    if (null == type) {
+      type = TypeDescriptor.of(typeNode);
+      int id = id(typeNode);
+      types[id] = type;
+      written(id, TYPE_COLUMN);
+    }
+    return type;
+  }
+
+  /** Get the cached descriptor of a Type node without assigning an id. */
+  private TypeDescriptor cachedType(Node typeNode) {
+    int id = find(typeNode);
+    if (id < 0) {
+      return (null == base) ? null : base.cachedType(typeNode);
+    }
+    return types[id];
+  }
+
+  /** Get the descriptor of the type of an identifier or expression. */
+  public TypeDescriptor getType(Node n) {
+    return typeOf(getTypeNode(n));
+  }
+
+  // =========================================================================
+
+  /** Get all flags of a node. */
+  public int getFlags(Node n) {
+    int id = find(n);
+    if (id < 0) {
+      return (null == base) ? 0 : base.getFlags(n);
+    }
+    return flags[id];
+  }
+
+  /** Determine whether a node has the given flag set. */
+  public boolean is(Node n, int flag) {
+    return 0 != (getFlags(n) & flag);
+  }
+
+  /** Set the given flags on a node. */
+  public void set(Node n, int flag) {
+    int id = id(n);
+    flags[id] |= flag;
+    changed(id, flag);
+  }
+
+  /** Clear the given flags on a node. */
+  public void clear(Node n, int flag) {
+    if (0 != (getFlags(n) & flag)) {
+      int id = id(n);
+      flags[id] &= ~flag;
+      changed(id, flag);
+    }
+  }
+
+  /** Set or clear the given flags on a node. */
+  public void set(Node n, int flag, boolean value) {
+    if (value) {
+      set(n, flag);
+    } else {
+      clear(n, flag);
+    }
+  }
+
+  /**
+   * Set the flag of each modifier in a Modifiers node on a declaration.
+   *
+   * @param declaration the declaration to annotate
+   * @param modifiers the Java Modifiers node
+   */
+  public void setModifiers(Node declaration, GNode modifiers) {
+    for (Object o : modifiers) {
+      int flag = modifierFlag(((GNode)o).getString(0));
+      if (0 != flag) {
+        set(declaration, flag);
+      }
+    }
+  }
+
+  /**
+   * Get the flag of a Java modifier.
+   *
+   * @return the flag, or 0 if the modifier is unknown
+   */
+  public static int modifierFlag(String modifier) {
+    for (int i = 0; i < MODIFIERS.length; i++) {
+      if (MODIFIERS[i].equals(modifier)) {
+        return 1 << i;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Remove all annotations of a node.
+   *
+   * @throws UnsupportedOperationException if this table is an overlay
+   */
+  public void remove(Node n) {
+    if (null != base) {
+      throw new UnsupportedOperationException("Removing from an overlay");
+    }
+    if (null == n) {
+      return;
+    }
+    int mask = keys.length - 1;
+    int i = hash(n, mask);
+    for (; keys[i] != n; i = (i + 1) & mask) {
+      if (null == keys[i]) {
+        return;
+      }
+    }
+
+    int id = ids[i];
+    identifierTypes[id] = 0;
+    flags[id] = 0;
+    declarations[id] = null;
+    typeNodes[id] = null;
+    scopes[id] = null;
+    containingClasses[id] = null;
+    types[id] = null;
+    constants[id] = null;
+    intrinsics[id] = null;
+    if (freeCount == free.length) {
+      free = Arrays.copyOf(free, freeCount * 2);
+    }
+    free[freeCount++] = id;
+    size--;
+
+    // Shift later entries of the probe sequence back into the hole
+    for (int j = (i + 1) & mask; null != keys[j]; j = (j + 1) & mask) {
+      int h = hash(keys[j], mask);
+      if ((i < j) ? (h <= i || j < h) : (h <= i && j < h)) {
+        keys[i] = keys[j];
+        ids[i] = ids[j];
+        i = j;
+      }
+    }
+    keys[i] = null;
+  }
+
+  /** Remove all annotations of a node and its descendants. */
+  public void removeAll(Node n) {
+    if (null == n) {
+      return;
+    }
+    remove(n);
+    for (Object o : n) {
+      if (o instanceof Node) {
+        removeAll((Node)o);
+      }
+    }
+  }
+
+  /**
+   * Copy the annotations set in this overlay to its base. Annotations of
+   * a node the overlay did not set are left as they are in the base, so
+   * overlays that annotate different aspects of a shared node do not
+   * undo each other. The overlay should be discarded afterwards.
+   */
+  public void commit() {
+    for (int i = 0; i < keys.length; i++) {
+      Node n = keys[i];
+      if (null == n) {
+        continue;
+      }
+      int from = ids[i];
+      int columns = written[from];
+      int changed = changedFlags[from];
+      if (0 == columns && 0 == changed) {
+        continue;
+      }
+
+      int to = base.id(n);
+      base.flags[to] = (base.flags[to] & ~changed) | (flags[from] & changed);
+      base.changed(to, changed);
+      if (0 != (columns & IDENTIFIER_TYPE_COLUMN)) {
+        base.identifierTypes[to] = identifierTypes[from];
+      }
+      if (0 != (columns & DECLARATION_COLUMN)) {
+        base.declarations[to] = declarations[from];
+      }
+      if (0 != (columns & TYPE_NODE_COLUMN)) {
+        base.typeNodes[to] = typeNodes[from];
+      }
+      if (0 != (columns & SCOPE_COLUMN)) {
+        base.scopes[to] = scopes[from];
+      }
+      if (0 != (columns & CONTAINING_CLASS_COLUMN)) {
+        base.containingClasses[to] = containingClasses[from];
+      }
+      if (0 != (columns & TYPE_COLUMN)) {
+        base.types[to] = types[from];
+      }
+      if (0 != (columns & CONSTANT_COLUMN)) {
+        base.constants[to] = constants[from];
+      }
+      if (0 != (columns & INTRINSIC_COLUMN)) {
+        base.intrinsics[to] = intrinsics[from];
+      }
+      base.written(to, (byte)columns);
+    }
+  }
+
+  // =========================================================================
+
+  /** Record that an overlay wrote the given columns of a node. */
+  private void written(int id, byte columns) {
+    if (null != written) {
+      written[id] |= columns;
+    }
+  }
+
+  /** Record that an overlay set or cleared the given flags of a node. */
+  private void changed(int id, int flag) {
+    if (null != changedFlags) {
+      changedFlags[id] |= flag;
+    }
+  }
+
+  private static byte identifierTypeCode(String type) {
+    if (null == type) {
+      return 0;
+    }
+    // The types are compared by identity throughout, try that first
+    for (int i = 1; i < IDENTIFIER_TYPES.length; i++) {
+      if (IDENTIFIER_TYPES[i] == type) {
+        return (byte)i;
+      }
+    }
+    for (int i = 1; i < IDENTIFIER_TYPES.length; i++) {
+      if (IDENTIFIER_TYPES[i].equals(type)) {
+        return (byte)i;
+      }
+    }
+    throw new IllegalArgumentException("Unknown identifier type " + type);
+  }
+
+  private static int hash(Node n, int mask) {
+    int h = System.identityHashCode(n);
+    // Spread the bits, identity hashes tend to be clustered
+    h ^= (h >>> 16);
+    h *= 0x85ebca6b;
+    h ^= (h >>> 13);
+    return h & mask;
+  }
+
+  /** Get the id of a node, or -1 if it has none. */
+  private int find(Node n) {
+    if (null == n) {
+      return -1;
+    }
+    int mask = keys.length - 1;
+    for (int i = hash(n, mask); ; i = (i + 1) & mask) {
+      Node key = keys[i];
+      if (key == n) {
+        return ids[i];
+      }
+      if (null == key) {
+        return -1;
+      }
+    }
+  }
+
+  /**
+   * Get the id of a node, assigning one if it has none. The columns may
+   * be reallocated, so call it before reading a column to index.
+   */
+  private int id(Node n) {
+    if (null == n) {
+      throw new NullPointerException("Annotating null node");
+    }
+    int mask = keys.length - 1;
+    int i = hash(n, mask);
+    for (; null != keys[i]; i = (i + 1) & mask) {
+      if (keys[i] == n) {
+        return ids[i];
+      }
+    }
+
+    int id = (0 < freeCount) ? free[--freeCount] : next++;
+    size++;
+    keys[i] = n;
+    ids[i] = id;
+    if (size * 2 > keys.length) {
+      rehash(keys.length * 2);
+    }
+    if (id == flags.length) {
+      growColumns(flags.length * 2);
+    }
+    if (null != base) {
+      // Start from the base's annotations, so reads stay consistent
+      identifierTypes[id] = identifierTypeCode(base.getIdentifierType(n));
+      flags[id] = base.getFlags(n);
+      declarations[id] = base.getDeclaration(n);
+      typeNodes[id] = base.getTypeNode(n);
+      scopes[id] = base.getScope(n);
+      containingClasses[id] = base.getContainingClass(n);
+      types[id] = base.cachedType(n);
+      constants[id] = base.getConstant(n);
+      intrinsics[id] = base.getIntrinsic(n);
+    }
+    return id;
+  }
+
+  private void rehash(int capacity) {
+    Node[] oldKeys = keys;
+    int[] oldIds = ids;
+    keys = new Node[capacity];
+    ids = new int[capacity];
+    int mask = capacity - 1;
+    for (int j = 0; j < oldKeys.length; j++) {
+      if (null != oldKeys[j]) {
+        int i = hash(oldKeys[j], mask);
+        while (null != keys[i]) {
+          i = (i + 1) & mask;
+        }
+        keys[i] = oldKeys[j];
+        ids[i] = oldIds[j];
+      }
+    }
+  }
+
+  private void growColumns(int capacity) {
+    identifierTypes = Arrays.copyOf(identifierTypes, capacity);
+    flags = Arrays.copyOf(flags, capacity);
+    declarations = Arrays.copyOf(declarations, capacity);
+    typeNodes = Arrays.copyOf(typeNodes, capacity);
+    scopes = Arrays.copyOf(scopes, capacity);
+    containingClasses = Arrays.copyOf(containingClasses, capacity);
+    types = Arrays.copyOf(types, capacity);
+    constants = Arrays.copyOf(constants, capacity);
+    intrinsics = Arrays.copyOf(intrinsics, capacity);
+    if (null != written) {
+      written = Arrays.copyOf(written, capacity);
+      changedFlags = Arrays.copyOf(changedFlags, capacity);
+    }
+  }
+
+}
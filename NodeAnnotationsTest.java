@@ -0,0 +1,114 @@
+package qimpp;
+
+import java.util.ArrayList;
+
+import xtc.tree.GNode;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+
+public class NodeAnnotationsTest {
+  NodeAnnotations annotations;
+
+  @Before public void initialize() {
+    annotations = new NodeAnnotations();
+  }
+
+  @Test
+  public void testUnannotated() {
+    GNode n = GNode.create("PrimaryIdentifier", "x");
+    assertNull(annotations.getIdentifierType(n));
+    assertNull(annotations.getTypeNode(n));
+    assertFalse(annotations.is(n, NodeAnnotations.STATIC));
+    assertEquals(0, annotations.size());
+  }
+
+  @Test
+  public void testFlags() {
+    GNode method = GNode.create("ImplementedMethodDeclaration");
+    annotations.setModifiers(method, GNode.create("Modifiers",
+          GNode.create("Modifier", "public"), GNode.create("Modifier", "static")));
+    assertTrue(annotations.is(method, NodeAnnotations.STATIC));
+    assertTrue(annotations.is(method, NodeAnnotations.STATIC | NodeAnnotations.PRIVATE));
+    assertFalse(annotations.is(method, NodeAnnotations.PRIVATE));
+    annotations.set(method, NodeAnnotations.STATIC, false);
+    assertEquals(NodeAnnotations.PUBLIC, annotations.getFlags(method));
+  }
+
+  @Test
+  public void testManyNodes() {
+    // Equal nodes are still distinct keys
+    ArrayList<GNode> nodes = new ArrayList<GNode>();
+    for (int i = 0; i < 5000; i++) {
+      GNode n = GNode.create("IntegerLiteral", "1");
+      nodes.add(n);
+      annotations.setIdentifierType(n, (0 == i % 2) 
+          ? Constants.PRIMITIVE_TYPE_IDENTIFIER : Constants.FIELD_IDENTIFIER);
+      annotations.setDeclaration(n, nodes);
+    }
+    assertEquals(5000, annotations.size());
+    for (int i = 0; i < nodes.size(); i++) {
+      assertSame((0 == i % 2) 
+          ? Constants.PRIMITIVE_TYPE_IDENTIFIER : Constants.FIELD_IDENTIFIER,
+          annotations.getIdentifierType(nodes.get(i)));
+      assertSame(nodes, annotations.getDeclaration(nodes.get(i)));
+    }
+  }
+
+  @Test
+  public void testRemove() {
+    ArrayList<GNode> nodes = new ArrayList<GNode>();
+    GNode block = GNode.create("Block");
+    for (int i = 0; i < 2000; i++) {
+      GNode n = GNode.create("IntegerLiteral", "1");
+      nodes.add(n);
+      annotations.set(n, NodeAnnotations.FINAL);
+      if (0 == i % 3) {
+        block.add(n);
+      }
+    }
+    annotations.set(block, NodeAnnotations.MANGLED);
+    annotations.removeAll(block);
+    assertEquals(2000 - 667, annotations.size());
+    assertFalse(annotations.is(block, NodeAnnotations.MANGLED));
+    for (int i = 0; i < nodes.size(); i++) {
+      assertEquals(0 != i % 3, annotations.is(nodes.get(i), NodeAnnotations.FINAL));
+    }
+
+    // Freed ids are reused without disturbing the remaining nodes
+    GNode n = GNode.create("IntegerLiteral", "2");
+    annotations.setIdentifierType(n, Constants.FIELD_IDENTIFIER);
+    assertSame(Constants.FIELD_IDENTIFIER, annotations.getIdentifierType(n));
+    assertFalse(annotations.is(n, NodeAnnotations.FINAL));
+    assertTrue(annotations.is(nodes.get(1), NodeAnnotations.FINAL));
+  }
+
+  @Test
+  public void testOverlay() {
+    GNode field = GNode.create("FieldDeclaration");
+    GNode call = GNode.create("CallExpression");
+    annotations.set(field, NodeAnnotations.PRIVATE);
+    annotations.setIdentifierType(field, Constants.FIELD_IDENTIFIER);
+
+    NodeAnnotations first = new NodeAnnotations(annotations);
+    NodeAnnotations second = new NodeAnnotations(annotations);
+    first.set(field, NodeAnnotations.STATIC);
+    first.setIdentifierType(call, Constants.CLASS_IDENTIFIER);
+    second.setContainingClass(field, field);
+    second.clear(field, NodeAnnotations.PRIVATE);
+
+    // Overlays read through to the base, which is left alone
+    assertSame(Constants.FIELD_IDENTIFIER, first.getIdentifierType(field));
+    assertTrue(first.is(field, NodeAnnotations.PRIVATE | NodeAnnotations.STATIC));
+    assertFalse(annotations.is(field, NodeAnnotations.STATIC));
+    assertNull(annotations.getIdentifierType(call));
+
+    // Each commit only writes what its overlay set
+    first.commit();
+    second.commit();
+    assertEquals(NodeAnnotations.STATIC, annotations.getFlags(field));
+    assertSame(Constants.FIELD_IDENTIFIER, annotations.getIdentifierType(field));
+    assertSame(field, annotations.getContainingClass(field));
+    assertSame(Constants.CLASS_IDENTIFIER, annotations.getIdentifierType(call));
+  }
+}
@@ -0,0 +1,209 @@
+package qimpp;
+
+import java.util.HashMap;
+
+import xtc.tree.Node;
+
+/**
+ * Interned integer codes for the node names the translator's passes
+ * handle, so a pass can switch on a node's kind instead of having
+ * Visitor look up a visitXxx method reflectively.
+ *
+ * To add a kind, add its constant and its name in NAMES at the same
+ * index.
+ *
+ * @author QIMPP
+ */
+public final class NodeKind {
+
+  public static final int UNKNOWN = 0;
+
+  // Structure of the Java and C++ ASTs
+  public static final int COMPILATION_UNIT = 1;
+  public static final int CLASSES = 2;
+  public static final int CLASS_DECLARATION = 3;
+  public static final int CLASS_BODY = 4;
+  public static final int INTERFACE_DECLARATION = 5;
+  public static final int DECLARATIONS = 6;
+  public static final int DECLARATION = 7;
+  public static final int DIRECTIVES = 8;
+  public static final int PARENT = 9;
+  public static final int CONSTRUCTORS = 10;
+  public static final int CONSTRUCTOR_DECLARATION = 11;
+  public static final int FIELDS = 12;
+  public static final int FIELD_DECLARATION = 13;
+  public static final int METHODS = 14;
+  public static final int IMPLEMENTED_METHOD_DECLARATION = 15;
+  public static final int INHERITED_METHOD_CONTAINER = 16;
+  public static final int FROM = 17;
+  public static final int RETURN_TYPE = 18;
+  public static final int FORMAL_PARAMETERS = 19;
+  public static final int FORMAL_PARAMETER = 20;
+  public static final int MODIFIERS = 21;
+  public static final int TYPE = 22;
+  public static final int PRIMITIVE_TYPE = 23;
+  public static final int QUALIFIED_IDENTIFIER = 24;
+  public static final int DIMENSIONS = 25;
+  public static final int DECLARATORS = 26;
+  public static final int DECLARATOR = 27;
+
+  // Statements
+  public static final int BLOCK = 28;
+  public static final int EXPRESSION_STATEMENT = 29;
+  public static final int CONDITIONAL_STATEMENT = 30;
+  public static final int FOR_STATEMENT = 31;
+  public static final int BASIC_FOR_CONTROL = 32;
+  public static final int WHILE_STATEMENT = 33;
+  public static final int RETURN_STATEMENT = 34;
+  public static final int BREAK_STATEMENT = 35;
+  public static final int CONTINUE_STATEMENT = 36;
+  public static final int TRY_CATCH_FINALLY_STATEMENT = 37;
+  public static final int CATCH_CLAUSE = 38;
+
+  // Expressions
+  public static final int EXPRESSION = 39;
+  public static final int EXPRESSION_LIST = 40;
+  public static final int ARGUMENTS = 41;
+  public static final int CALL_EXPRESSION = 42;
+  public static final int SELECTION_EXPRESSION = 43;
+  public static final int SUBSCRIPT_EXPRESSION = 44;
+  public static final int PRIMARY_IDENTIFIER = 45;
+  public static final int THIS_EXPRESSION = 46;
+  public static final int NEW_CLASS_EXPRESSION = 47;
+  public static final int NEW_ARRAY_EXPRESSION = 48;
+  public static final int CONCRETE_DIMENSIONS = 49;
+  public static final int CAST_EXPRESSION = 50;
+  public static final int BASIC_CAST_EXPRESSION = 51;
+  public static final int INSTANCE_OF_EXPRESSION = 52;
+  public static final int ADDITIVE_EXPRESSION = 53;
+  public static final int MULTIPLICATIVE_EXPRESSION = 54;
+  public static final int RELATIONAL_EXPRESSION = 55;
+  public static final int EQUALITY_EXPRESSION = 56;
+  public static final int LOGICAL_AND_EXPRESSION = 57;
+  public static final int LOGICAL_OR_EXPRESSION = 58;
+  public static final int LOGICAL_NEGATION_EXPRESSION = 59;
+  public static final int UNARY_EXPRESSION = 60;
+  public static final int POSTFIX_EXPRESSION = 61;
+  public static final int STRING_LITERAL = 62;
+  public static final int INTEGER_LITERAL = 63;
+  public static final int FLOATING_POINT_LITERAL = 64;
+  public static final int CHARACTER_LITERAL = 65;
+  public static final int BOOLEAN_LITERAL = 66;
+  public static final int NULL_LITERAL = 67;
+  public static final int CONDITIONAL_EXPRESSION = 68;
+  public static final int SHIFT_EXPRESSION = 69;
+  public static final int BITWISE_AND_EXPRESSION = 70;
+  public static final int BITWISE_OR_EXPRESSION = 71;
+  public static final int BITWISE_XOR_EXPRESSION = 72;
+  public static final int BITWISE_NEGATION_EXPRESSION = 73;
+
+  /** The node name of each kind, indexed by kind. */
+  private static final String[] NAMES = {
+    null,
+    "CompilationUnit",
+    "Classes",
+    "ClassDeclaration",
+    "ClassBody",
+    "InterfaceDeclaration",
+    "Declarations",
+    "Declaration",
+    "Directives",
+    "Parent",
+    "Constructors",
+    "ConstructorDeclaration",
+    "Fields",
+    "FieldDeclaration",
+    "Methods",
+    "ImplementedMethodDeclaration",
+    "InheritedMethodContainer",
+    "From",
+    "ReturnType",
+    "FormalParameters",
+    "FormalParameter",
+    "Modifiers",
+    "Type",
+    "PrimitiveType",
+    "QualifiedIdentifier",
+    "Dimensions",
+    "Declarators",
+    "Declarator",
+    "Block",
+    "ExpressionStatement",
+    "ConditionalStatement",
+    "ForStatement",
+    "BasicForControl",
+    "WhileStatement",
+    "ReturnStatement",
+    "BreakStatement",
+    "ContinueStatement",
+    "TryCatchFinallyStatement",
+    "CatchClause",
+    "Expression",
+    "ExpressionList",
+    "Arguments",
+    "CallExpression",
+    "SelectionExpression",
+    "SubscriptExpression",
+    "PrimaryIdentifier",
+    "ThisExpression",
+    "NewClassExpression",
+    "NewArrayExpression",
+    "ConcreteDimensions",
+    "CastExpression",
+    "BasicCastExpression",
+    "InstanceOfExpression",
+    "AdditiveExpression",
+    "MultiplicativeExpression",
+    "RelationalExpression",
+    "EqualityExpression",
+    "LogicalAndExpression",
+    "LogicalOrExpression",
+    "LogicalNegationExpression",
+    "UnaryExpression",
+    "PostfixExpression",
+    "StringLiteral",
+    "IntegerLiteral",
+    "FloatingPointLiteral",
+    "CharacterLiteral",
+    "BooleanLiteral",
+    "NullLiteral",
+    "ConditionalExpression",
+    "ShiftExpression",
+    "BitwiseAndExpression",
+    "BitwiseOrExpression",
+    "BitwiseXorExpression",
+    "BitwiseNegationExpression"
+  };
+
+  private static final HashMap<String, Integer> KINDS =
+    new HashMap<String, Integer>();
+
+  static {
+    for (int i = 1; i < NAMES.length; i++) {
+      KINDS.put(NAMES[i], i);
+    }
+  }
+
+  private NodeKind() {}
+
+  /**
+   * Get the kind of the node with the given name.
+   *
+   * @return the kind, or UNKNOWN if no pass handles the name specially
+   */
+  public static int of(String name) {
+    Integer kind = KINDS.get(name);
+    return (null == kind) ? UNKNOWN : kind;
+  }
+
+  /** Get the kind of the given node. */
+  public static int of(Node n) {
+    return of(n.getName());
+  }
+
+  /** Get the node name of the given kind. */
+  public static String name(int kind) {
+    return NAMES[kind];
+  }
+
+}
@@ -0,0 +1,37 @@
+package qimpp;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import xtc.tree.GNode;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+
+public class NodeKindTest {
+
+  /** Convert a node name like "CallExpression" to "CALL_EXPRESSION". */
+  private static String constantName(String nodeName) {
+    return nodeName.replaceAll("([a-z])([A-Z])", "$1_$2").toUpperCase();
+  }
+
+  @Test
+  public void testNamesMatchConstants() throws Exception {
+    for (Field f : NodeKind.class.getFields()) {
+      if (!Modifier.isStatic(f.getModifiers()) || f.getType() != int.class
+          || f.getName().equals("UNKNOWN")) {
+        continue;
+      }
+      int kind = f.getInt(null);
+      assertEquals(f.getName(), constantName(NodeKind.name(kind)));
+      assertEquals(kind, NodeKind.of(NodeKind.name(kind)));
+    }
+  }
+
+  @Test
+  public void testOf() {
+    assertEquals(NodeKind.CALL_EXPRESSION,
+        NodeKind.of(GNode.create("CallExpression")));
+    assertEquals(NodeKind.UNKNOWN, NodeKind.of("NoSuchNode"));
+  }
+}
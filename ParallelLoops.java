@@ -0,0 +1,657 @@
+package qimpp;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import xtc.tree.GNode;
+
+/**
+ * The loops whose iterations can run in parallel, which
+ * ImplementationPrinter prints as OpenMP parallel loops.
+ *
+ * A loop qualifies if it counts an int or long variable up by one to a
+ * bound that does not change while it runs, as in
+ * <pre>
+ * for (int i = 0; i &lt; a.length; i++) b[i] = f(a[i]);
+ * </pre>
+ * and no iteration can observe another. That is, its body:
+ * <ul>
+ * <li>only stores into elements [i] of arrays of primitives, and reads
+ *   arrays of the types it stores into only at [i], since two array
+ *   variables may denote the same array;</li>
+ * <li>assigns no fields, and no local variables declared outside the
+ *   loop except through a compound assignment like s += x to an int or
+ *   long it does not otherwise read, which becomes a reduction;</li>
+ * <li>only calls Math intrinsics and pure methods: static methods of
+ *   primitives that only compute on their parameters and locals;</li>
+ * <li>copies no references, whose counts are not atomic, and does not
+ *   allocate, print, throw, return or break out of the loop.</li>
+ * </ul>
+ * Loops inside a parallel loop are left sequential.
+ *
+ * The analysis needs every class's mangled bodies, so it only runs on a
+ * complete program, not in streaming mode.
+ *
+ * @author QIMPP
+ */
+public class ParallelLoops {
+
+  /** The default smallest number of iterations worth running in parallel. */
+  public static final int THRESHOLD = 10000;
+
+  /** The compound assignments that are OpenMP reductions, by operator. */
+  private static final Map<String, String> REDUCTIONS = new HashMap<String, String>();
+  static {
+    REDUCTIONS.put("+=", "+");
+    REDUCTIONS.put("-=", "-");
+    REDUCTIONS.put("*=", "*");
+    REDUCTIONS.put("&=", "&");
+    REDUCTIONS.put("|=", "|");
+    REDUCTIONS.put("^=", "^");
+    REDUCTIONS.put("++", "+");
+    REDUCTIONS.put("--", "-");
+  }
+
+  /** A loop whose iterations can run in parallel. */
+  public static class Loop {
+    final GNode statement;
+    final String variable;
+    final GNode init;
+    final GNode bound;
+    final LinkedHashMap<String, String> reductions;
+
+    Loop(GNode statement, String variable, GNode init, GNode bound,
+         LinkedHashMap<String, String> reductions) {
+      this.statement = statement;
+      this.variable = variable;
+      this.init = init;
+      this.bound = bound;
+      this.reductions = reductions;
+    }
+
+    /** Get the loop variable. */
+    public String getVariable() {
+      return variable;
+    }
+
+    /** Get the loop variable's first value. */
+    public GNode getInit() {
+      return init;
+    }
+
+    /** Get the bound the loop variable stays below. */
+    public GNode getBound() {
+      return bound;
+    }
+
+    /** Get the operator of each local the loop accumulates into. */
+    public Map<String, String> getReductions() {
+      return reductions;
+    }
+  }
+
+  private final NodeAnnotations annotations;
+
+  /** The parallel loops, by ForStatement. */
+  private final IdentityHashMap<GNode, Loop> loops = new IdentityHashMap<GNode, Loop>();
+
+  /** The pure methods. */
+  private final IdentityHashMap<GNode, GNode> pure = new IdentityHashMap<GNode, GNode>();
+
+  /** The classes, by name without a leading dot. */
+  private final HashMap<String, GNode> classes = new HashMap<String, GNode>();
+
+  private ParallelLoops(NodeAnnotations annotations) {
+    this.annotations = annotations;
+  }
+
+  /** The analysis of a program without parallel loops. */
+  public static ParallelLoops none() {
+    return new ParallelLoops(null);
+  }
+
+  /**
+   * Find the loops to run in parallel.
+   *
+   * @param compilationUnit The CPPAST of the whole program.
+   * @param annotations The analysis results of BlockMangler.
+   */
+  public static ParallelLoops analyze(GNode compilationUnit, NodeAnnotations annotations) {
+    ParallelLoops result = new ParallelLoops(annotations);
+    result.findClasses(compilationUnit);
+    result.findPureMethods();
+    for (GNode classNode : result.classes.values()) {
+      for (Object o : classNode.getGeneric(4)) {
+        GNode method = (GNode)o;
+        if (method.hasName("ImplementedMethodDeclaration")) {
+          result.findLoops(method.getGeneric(3), classNode);
+        }
+      }
+    }
+    return result;
+  }
+
+  /** Get the parallel loop of a ForStatement, or null if it is sequential. */
+  public Loop get(GNode forStatement) {
+    return loops.get(forStatement);
+  }
+
+  /** Get the number of parallel loops. */
+  public int size() {
+    return loops.size();
+  }
+
+  /** Determine whether a method is pure. */
+  public boolean isPure(GNode method) {
+    return pure.containsKey(method);
+  }
+
+  // =========================================================================
+
+  private void findClasses(GNode n) {
+    if (n.hasName("ClassDeclaration")) {
+      classes.put(ProfileData.normalize(n.getString(0)), n);
+      return;
+    }
+    for (Object o : n) {
+      if (o instanceof GNode) {
+        findClasses((GNode)o);
+      }
+    }
+  }
+
+  /**
+   * Find the pure methods: assume every candidate is, then drop those
+   * that call one that is not, until none is dropped. Methods that only
+   * call each other thus stay pure.
+   */
+  private void findPureMethods() {
+    for (GNode classNode : classes.values()) {
+      for (Object o : classNode.getGeneric(4)) {
+        GNode method = (GNode)o;
+        if (isPureCandidate(method)) {
+          pure.put(method, classNode);
+        }
+      }
+    }
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (GNode method : new HashSet<GNode>(pure.keySet())) {
+        Checker checker = new Checker(pure.get(method), null, new HashSet<String>());
+        checker.pure = true;
+        if (!checker.statement(method.getGeneric(3))) {
+          pure.remove(method);
+          changed = true;
+        }
+      }
+    }
+  }
+
+  /** Determine whether a method is static and of primitives only. */
+  private boolean isPureCandidate(GNode method) {
+    if (!method.hasName("ImplementedMethodDeclaration")
+        || !annotations.is(method, NodeAnnotations.STATIC)
+        || "main".equals(method.getString(0))) {
+      return false;
+    }
+    TypeDescriptor returnType = TypeDescriptor.of(method.getGeneric(1));
+    if (null == returnType || !returnType.isPrimitive()) {
+      return false;
+    }
+    for (Object o : method.getGeneric(2)) {
+      TypeDescriptor type = TypeDescriptor.of(((GNode)o).getGeneric(1));
+      if (null == type || !type.isPrimitive()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Find the parallel loops in a method body, outermost first. */
+  private void findLoops(GNode n, GNode classNode) {
+    if (null == n) {
+      return;
+    }
+    if (n.hasName("ForStatement")) {
+      Loop loop = analyzeLoop(n, classNode);
+      if (null != loop) {
+        loops.put(n, loop);
+        return;
+      }
+    }
+    for (Object o : n) {
+      if (o instanceof GNode) {
+        findLoops((GNode)o, classNode);
+      }
+    }
+  }
+
+  /** Analyze a loop, returning it if its iterations are independent. */
+  private Loop analyzeLoop(GNode n, GNode classNode) {
+    GNode control = n.getGeneric(0);
+    if (!control.hasName("BasicForControl") || null == control.get(1)
+        || null == control.get(3) || null == control.get(4)) {
+      return null;
+    }
+    TypeDescriptor type = TypeDescriptor.of(control.getGeneric(1));
+    GNode declarators = control.getGeneric(2);
+    if ((TypeDescriptor.INT != type && TypeDescriptor.LONG != type)
+        || 1 != declarators.size() || null != declarators.getGeneric(0).get(1)
+        || null == declarators.getGeneric(0).get(2)) {
+      return null;
+    }
+    String variable = declarators.getGeneric(0).getString(0);
+    GNode init = declarators.getGeneric(0).getGeneric(2);
+
+    // i < bound or i <= bound
+    GNode condition = control.getGeneric(3);
+    if (!condition.hasName("RelationalExpression")
+        || !isVariable(condition.getGeneric(0), variable)
+        || !("<".equals(condition.getString(1)) || "<=".equals(condition.getString(1)))) {
+      return null;
+    }
+    GNode bound = condition.getGeneric(2);
+
+    // i++, ++i or i += 1
+    GNode update = control.getGeneric(4);
+    if (1 != update.size() || !isIncrement(update.getGeneric(0), variable)) {
+      return null;
+    }
+
+    HashSet<String> locals = new HashSet<String>();
+    declaredNames(n.getGeneric(1), locals);
+    Checker checker = new Checker(classNode, variable, locals);
+    checker.collectWrites(n.getGeneric(1));
+    if (!checker.statement(n.getGeneric(1)) || !checker.checkReads()
+        || !checker.invariant(init) || !checker.invariant(bound)) {
+      return null;
+    }
+    return new Loop(n, variable, init, bound, checker.reductions);
+  }
+
+  private boolean isVariable(GNode n, String name) {
+    return n.hasName("PrimaryIdentifier") && name.equals(n.getString(0))
+      && Constants.STACKVAR_IDENTIFIER == annotations.getIdentifierType(n);
+  }
+
+  private boolean isIncrement(GNode n, String variable) {
+    if (n.hasName("PostfixExpression")) {
+      return isVariable(n.getGeneric(0), variable) && "++".equals(n.getString(1));
+    } else if (n.hasName("UnaryExpression")) {
+      return "++".equals(n.getString(0)) && isVariable(n.getGeneric(1), variable);
+    } else if (n.hasName("Expression")) {
+      return isVariable(n.getGeneric(0), variable) && "+=".equals(n.getString(1))
+        && n.getGeneric(2).hasName("IntegerLiteral")
+        && "1".equals(n.getGeneric(2).getString(0));
+    }
+    return false;
+  }
+
+  /**
+   * Collect the names of the local variables declared in a loop body.
+   * Java does not let them shadow other locals, so inside the body the
+   * name of one always denotes it.
+   */
+  private static void declaredNames(GNode n, HashSet<String> names) {
+    if (n.hasName("Declarator")) {
+      names.add(n.getString(0));
+    }
+    for (Object o : n) {
+      if (o instanceof GNode) {
+        declaredNames((GNode)o, names);
+      }
+    }
+  }
+
+  /** Get the method a static call calls, or null. */
+  private GNode callee(GNode call, GNode classNode) {
+    if (!annotations.is(call, NodeAnnotations.STATIC)) {
+      return null;
+    }
+    GNode receiver = classNode;
+    if (null != call.getGeneric(0)) {
+      TypeDescriptor type = annotations.getType(call.getGeneric(0));
+      receiver = (null == type || !type.isClass()) ? null
+        : classes.get(ProfileData.normalize(type.getClassName()));
+    }
+    for (; null != receiver; receiver = (GNode)receiver.getProperty("ParentClassNode")) {
+      for (Object o : receiver.getGeneric(4)) {
+        GNode m = (GNode)o;
+        if (m.hasName("ImplementedMethodDeclaration")
+            && call.getString(2).equals(Type.getCppMangledMethodName(m))) {
+          return m;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Checks a loop body, or with pure set a method body, for anything
+   * that makes its iterations, or calls, interfere.
+   */
+  private class Checker {
+    final GNode classNode;
+    /** The loop variable, or null for a method body. */
+    final String variable;
+    /** The locals declared in the body. */
+    final HashSet<String> locals;
+    /** Whether to check a method body for purity. */
+    boolean pure;
+
+    /** The operator of each outer local assigned, null if not a reduction. */
+    final LinkedHashMap<String, String> reductions = new LinkedHashMap<String, String>();
+    /** The element types of the arrays stored into. */
+    final HashSet<TypeDescriptor> stored = new HashSet<TypeDescriptor>();
+    /** The elements read. */
+    final IdentityHashMap<GNode, GNode> reads = new IdentityHashMap<GNode, GNode>();
+
+    Checker(GNode classNode, String variable, HashSet<String> locals) {
+      this.classNode = classNode;
+      this.variable = variable;
+      this.locals = locals;
+    }
+
+    /** Determine whether an identifier is a local declared outside the body. */
+    boolean isOuter(GNode n) {
+      return n.hasName("PrimaryIdentifier")
+        && Constants.STACKVAR_IDENTIFIER == annotations.getIdentifierType(n)
+        && !n.getString(0).equals(variable) && !locals.contains(n.getString(0));
+    }
+
+    /** Record the outer locals assigned, and whether each is a reduction. */
+    void collectWrites(GNode n) {
+      GNode target = null;
+      String operator = null;
+      if (n.hasName("Expression")) {
+        target = n.getGeneric(0);
+        operator = n.getString(1);
+      } else if (n.hasName("PostfixExpression")) {
+        target = n.getGeneric(0);
+        operator = n.getString(1);
+      } else if (n.hasName("UnaryExpression")) {
+        target = n.getGeneric(1);
+        operator = n.getString(0);
+      }
+      if (null != target && isOuter(target)) {
+        String name = target.getString(0);
+        String reduction = REDUCTIONS.get(operator);
+        TypeDescriptor type = annotations.getType(target);
+        if (null == reduction
+            || (TypeDescriptor.INT != type && TypeDescriptor.LONG != type)
+            || (reductions.containsKey(name) && !reduction.equals(reductions.get(name)))) {
+          reduction = null;
+        }
+        reductions.put(name, reduction);
+      }
+      for (Object o : n) {
+        if (o instanceof GNode) {
+          collectWrites((GNode)o);
+        }
+      }
+    }
+
+    boolean statement(GNode n) {
+      if (null == n) {
+        return true;
+      }
+      switch (NodeKind.of(n)) {
+      case NodeKind.BLOCK:
+        for (Object o : n) {
+          if (!(o instanceof GNode) || !statement((GNode)o)) {
+            return false;
+          }
+        }
+        return true;
+      case NodeKind.EXPRESSION_STATEMENT:
+        return assignment(n.getGeneric(0), true)
+          || (n.getGeneric(0).hasName("CallExpression") && expression(n.getGeneric(0)));
+      case NodeKind.FIELD_DECLARATION:
+        return declaration(n);
+      case NodeKind.CONDITIONAL_STATEMENT:
+        return expression(n.getGeneric(0)) && statement(n.getGeneric(1))
+          && statement(n.getGeneric(2));
+      case NodeKind.WHILE_STATEMENT:
+        return expression(n.getGeneric(0)) && statement(n.getGeneric(1));
+      case NodeKind.FOR_STATEMENT:
+        GNode control = n.getGeneric(0);
+        if (!control.hasName("BasicForControl")
+            || (null != control.get(1) && !declaration(control))
+            || (null != control.get(3) && !expression(control.getGeneric(3)))) {
+          return false;
+        }
+        if (null != control.get(4)) {
+          for (Object o : control.getGeneric(4)) {
+            if (!assignment((GNode)o, true)) {
+              return false;
+            }
+          }
+        }
+        return statement(n.getGeneric(1));
+      case NodeKind.CONTINUE_STATEMENT:
+        return 0 == n.size() || null == n.get(0);
+      case NodeKind.BREAK_STATEMENT:
+        // Only leaves a loop of the method, not the parallel one
+        return pure && (0 == n.size() || null == n.get(0));
+      case NodeKind.RETURN_STATEMENT:
+        return pure && (null == n.get(0) || expression(n.getGeneric(0)));
+      default:
+        return n.hasName("EmptyStatement");
+      }
+    }
+
+    /** Check a declaration of primitive locals, or of a loop's control. */
+    boolean declaration(GNode n) {
+      TypeDescriptor type = TypeDescriptor.of(n.getGeneric(1));
+      if (null == type || !type.isPrimitive()) {
+        return false;
+      }
+      for (Object o : n.getGeneric(2)) {
+        GNode declarator = (GNode)o;
+        if (null != declarator.get(1)
+            || (null != declarator.get(2) && !expression(declarator.getGeneric(2)))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /** Check an assignment, increment or decrement. */
+    boolean assignment(GNode n, boolean statement) {
+      GNode target;
+      GNode value = null;
+      if (n.hasName("Expression")) {
+        target = n.getGeneric(0);
+        value = n.getGeneric(2);
+      } else if (n.hasName("PostfixExpression")) {
+        target = n.getGeneric(0);
+      } else if (n.hasName("UnaryExpression")
+                 && ("++".equals(n.getString(0)) || "--".equals(n.getString(0)))) {
+        target = n.getGeneric(1);
+      } else {
+        return false;
+      }
+      if (null != value && !expression(value)) {
+        return false;
+      }
+
+      if (target.hasName("PrimaryIdentifier")
+          && Constants.STACKVAR_IDENTIFIER == annotations.getIdentifierType(target)) {
+        String name = target.getString(0);
+        if (pure || locals.contains(name)) {
+          return true;
+        }
+        // Only an accumulation whose value is not used
+        return !name.equals(variable) && statement && null != reductions.get(name);
+      }
+
+      // a[i] of an array of primitives
+      if (pure || !target.hasName("SubscriptExpression")) {
+        return false;
+      }
+      TypeDescriptor element = annotations.getType(target);
+      GNode array = target.getGeneric(0);
+      if (null == element || !element.isPrimitive() || !isArray(array)
+          || !isVariable(target.getGeneric(1), variable)) {
+        return false;
+      }
+      stored.add(element);
+      return true;
+    }
+
+    /** Determine whether a node is an array variable the body does not assign. */
+    boolean isArray(GNode n) {
+      if (!n.hasName("PrimaryIdentifier")) {
+        return false;
+      }
+      String kind = annotations.getIdentifierType(n);
+      TypeDescriptor type = annotations.getType(n);
+      return null != type && type.isArray()
+        && (Constants.FIELD_IDENTIFIER == kind
+            || (Constants.STACKVAR_IDENTIFIER == kind && isOuter(n)
+                && !reductions.containsKey(n.getString(0))));
+    }
+
+    /**
+     * Check an expression of a primitive value. References are only
+     * used where they are not copied: to subscript or take the length.
+     */
+    boolean expression(GNode n) {
+      switch (NodeKind.of(n)) {
+      case NodeKind.INTEGER_LITERAL:
+      case NodeKind.FLOATING_POINT_LITERAL:
+      case NodeKind.CHARACTER_LITERAL:
+      case NodeKind.BOOLEAN_LITERAL:
+        return true;
+      case NodeKind.PRIMARY_IDENTIFIER:
+        TypeDescriptor type = annotations.getType(n);
+        String kind = annotations.getIdentifierType(n);
+        if (null == type || !type.isPrimitive()) {
+          return false;
+        } else if (Constants.FIELD_IDENTIFIER == kind) {
+          return !pure;
+        }
+        return Constants.STACKVAR_IDENTIFIER == kind
+          && (pure || !reductions.containsKey(n.getString(0)));
+      case NodeKind.ADDITIVE_EXPRESSION:
+      case NodeKind.MULTIPLICATIVE_EXPRESSION:
+      case NodeKind.RELATIONAL_EXPRESSION:
+      case NodeKind.EQUALITY_EXPRESSION:
+      case NodeKind.LOGICAL_AND_EXPRESSION:
+      case NodeKind.LOGICAL_OR_EXPRESSION:
+      case NodeKind.SHIFT_EXPRESSION:
+      case NodeKind.BITWISE_AND_EXPRESSION:
+      case NodeKind.BITWISE_OR_EXPRESSION:
+      case NodeKind.BITWISE_XOR_EXPRESSION:
+        return isPrimitive(n) && expression(n.getGeneric(0)) && expression(n.getGeneric(2));
+      case NodeKind.LOGICAL_NEGATION_EXPRESSION:
+      case NodeKind.BITWISE_NEGATION_EXPRESSION:
+        return expression(n.getGeneric(0));
+      case NodeKind.UNARY_EXPRESSION:
+        return ("+".equals(n.getString(0)) || "-".equals(n.getString(0)))
+          ? expression(n.getGeneric(1)) : assignment(n, false);
+      case NodeKind.POSTFIX_EXPRESSION:
+      case NodeKind.EXPRESSION:
+        return assignment(n, false);
+      case NodeKind.CONDITIONAL_EXPRESSION:
+        return expression(n.getGeneric(0)) && expression(n.getGeneric(1))
+          && expression(n.getGeneric(2));
+      case NodeKind.BASIC_CAST_EXPRESSION:
+        return null == n.get(1) && expression(n.getGeneric(2));
+      case NodeKind.SUBSCRIPT_EXPRESSION:
+        TypeDescriptor element = annotations.getType(n);
+        if (pure || null == element || !element.isPrimitive()) {
+          return false;
+        }
+        reads.put(n, n);
+        return array(n.getGeneric(0)) && expression(n.getGeneric(1));
+      case NodeKind.SELECTION_EXPRESSION:
+        return !pure && "length".equals(n.getString(1)) && array(n.getGeneric(0));
+      case NodeKind.CALL_EXPRESSION:
+        Intrinsics.Intrinsic intrinsic = annotations.getIntrinsic(n);
+        if (null != intrinsic) {
+          if (!"java.lang.Math".equals(intrinsic.className)) {
+            return false;
+          }
+        } else if (!ParallelLoops.this.pure.containsKey(callee(n, classNode))) {
+          return false;
+        }
+        if (null != n.getGeneric(0) && null == intrinsic
+            && Constants.QUALIFIED_CLASS_IDENTIFIER != annotations.getIdentifierType(n.getGeneric(0))) {
+          return false;
+        }
+        for (Object o : n.getGeneric(3)) {
+          if (!expression((GNode)o)) {
+            return false;
+          }
+        }
+        return true;
+      default:
+        return false;
+      }
+    }
+
+    boolean isPrimitive(GNode n) {
+      TypeDescriptor type = annotations.getType(n);
+      return null == type || type.isPrimitive();
+    }
+
+    /** Check an array that is subscripted or whose length is taken. */
+    boolean array(GNode n) {
+      if (n.hasName("SubscriptExpression")) {
+        TypeDescriptor type = annotations.getType(n);
+        return null != type && type.isArray() && array(n.getGeneric(0))
+          && expression(n.getGeneric(1));
+      }
+      return isArray(n);
+    }
+
+    /**
+     * Check that each element read of a type stored into is the
+     * iteration's own, a[i], as the arrays may be the same.
+     */
+    boolean checkReads() {
+      for (GNode read : reads.keySet()) {
+        if (stored.contains(annotations.getType(read))
+            && (!isArray(read.getGeneric(0)) || !isVariable(read.getGeneric(1), variable))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Determine whether an expression has the same value throughout the
+     * loop, so OpenMP may evaluate it once, and evaluating it again has
+     * no effect.
+     */
+    boolean invariant(GNode n) {
+      switch (NodeKind.of(n)) {
+      case NodeKind.INTEGER_LITERAL:
+      case NodeKind.CHARACTER_LITERAL:
+        return true;
+      case NodeKind.PRIMARY_IDENTIFIER:
+        TypeDescriptor type = annotations.getType(n);
+        return null != type && type.isPrimitive()
+          && (Constants.FIELD_IDENTIFIER == annotations.getIdentifierType(n)
+              || (isOuter(n) && !reductions.containsKey(n.getString(0))));
+      case NodeKind.ADDITIVE_EXPRESSION:
+      case NodeKind.MULTIPLICATIVE_EXPRESSION:
+        return invariant(n.getGeneric(0)) && invariant(n.getGeneric(2));
+      case NodeKind.UNARY_EXPRESSION:
+        return "-".equals(n.getString(0)) && invariant(n.getGeneric(1));
+      case NodeKind.BASIC_CAST_EXPRESSION:
+        return null == n.get(1) && invariant(n.getGeneric(2));
+      case NodeKind.SELECTION_EXPRESSION:
+        return "length".equals(n.getString(1)) && isArray(n.getGeneric(0));
+      default:
+        return false;
+      }
+    }
+  }
+
+}
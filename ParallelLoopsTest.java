@@ -0,0 +1,148 @@
+package qimpp;
+
+import xtc.tree.GNode;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ParallelLoops.
+ *
+ * @author QIMPP
+ */
+public class ParallelLoopsTest {
+
+  NodeAnnotations annotations = new NodeAnnotations();
+
+  static GNode type(String name, boolean array) {
+    return GNode.create("Type", GNode.create("PrimitiveType", name),
+        array ? GNode.create("Dimensions", "[") : null);
+  }
+
+  GNode local(String name, String type, boolean array) {
+    GNode n = GNode.create("PrimaryIdentifier", name);
+    annotations.setIdentifierType(n, Constants.STACKVAR_IDENTIFIER);
+    annotations.setTypeNode(n, type(type, array));
+    return n;
+  }
+
+  GNode field(String name) {
+    GNode n = GNode.create("PrimaryIdentifier", name);
+    annotations.setIdentifierType(n, Constants.FIELD_IDENTIFIER);
+    annotations.setTypeNode(n, type("int", false));
+    return n;
+  }
+
+  GNode element(GNode array, GNode index) {
+    GNode n = GNode.create("SubscriptExpression", array, index);
+    annotations.setTypeNode(n, type("int", false));
+    return n;
+  }
+
+  GNode call(String name, GNode argument) {
+    GNode n = GNode.create("CallExpression", null, null, name,
+        GNode.create("Arguments", argument));
+    annotations.set(n, NodeAnnotations.STATIC);
+    return n;
+  }
+
+  /** for (int i = 0; i &lt; n; i++) body */
+  GNode loop(GNode body) {
+    GNode i = local("i", "int", false);
+    return GNode.create("ForStatement",
+        GNode.create("BasicForControl", null, type("int", false),
+            GNode.create("Declarators",
+                GNode.create("Declarator", "i", null, GNode.create("IntegerLiteral", "0"))),
+            GNode.create("RelationalExpression", i, "<", local("n", "int", false)),
+            GNode.create("ExpressionList",
+                GNode.create("PostfixExpression", local("i", "int", false), "++"))),
+        body);
+  }
+
+  static GNode statement(GNode expression) {
+    return GNode.create("ExpressionStatement", expression);
+  }
+
+  GNode method(String name, int flags, GNode body) {
+    GNode m = GNode.create("ImplementedMethodDeclaration", name,
+        GNode.create("ReturnType", GNode.create("PrimitiveType", "int"), null),
+        GNode.create("FormalParameters",
+            GNode.create("FormalParameter", "x", type("int", false))),
+        body);
+    annotations.set(m, flags);
+    return m;
+  }
+
+  @Test public void testAnalyze() {
+    int stat = NodeAnnotations.STATIC;
+    // static int square(int x) { return x * x; }
+    GNode square = method("square", stat, GNode.create("Block",
+        GNode.create("ReturnStatement", GNode.create("MultiplicativeExpression",
+            local("x", "int", false), "*", local("x", "int", false)))));
+    // static int scaled(int x) { return x * k; }, k a field
+    GNode scaled = method("scaled", stat, GNode.create("Block",
+        GNode.create("ReturnStatement", GNode.create("MultiplicativeExpression",
+            local("x", "int", false), "*", field("k")))));
+    // static int twice(int x) { return square(x) + x; }
+    GNode twice = method("twice", stat, GNode.create("Block",
+        GNode.create("ReturnStatement", GNode.create("AdditiveExpression",
+            call("square_int", local("x", "int", false)), "+", local("x", "int", false)))));
+
+    // b[i] = square(a[i]);
+    GNode map = loop(statement(GNode.create("Expression",
+        element(local("b", "int", true), local("i", "int", false)), "=",
+        call("square_int", element(local("a", "int", true), local("i", "int", false))))));
+    // a[i] = a[i - 1];
+    GNode shift = loop(statement(GNode.create("Expression",
+        element(local("a", "int", true), local("i", "int", false)), "=",
+        element(local("a", "int", true), GNode.create("AdditiveExpression",
+            local("i", "int", false), "-", GNode.create("IntegerLiteral", "1"))))));
+    // s += twice(a[i]);
+    GNode sum = loop(statement(GNode.create("Expression", local("s", "int", false), "+=",
+        call("twice_int", element(local("a", "int", true), local("i", "int", false))))));
+    // s += s;
+    GNode doubling = loop(statement(GNode.create("Expression", local("s", "int", false), "+=",
+        local("s", "int", false))));
+    // b[i] = scaled(i);
+    GNode impure = loop(statement(GNode.create("Expression",
+        element(local("b", "int", true), local("i", "int", false)), "=",
+        call("scaled_int", local("i", "int", false)))));
+    // b[i] = a[i]; a[i + 1] = 0;
+    GNode ahead = loop(GNode.create("Block",
+        statement(GNode.create("Expression",
+            element(local("b", "int", true), local("i", "int", false)), "=",
+            element(local("a", "int", true), local("i", "int", false)))),
+        statement(GNode.create("Expression",
+            element(local("a", "int", true), GNode.create("AdditiveExpression",
+                local("i", "int", false), "+", GNode.create("IntegerLiteral", "1"))), "=",
+            GNode.create("IntegerLiteral", "0")))));
+
+    GNode main = GNode.create("ImplementedMethodDeclaration", "main", null,
+        GNode.create("FormalParameters"),
+        GNode.create("Block", map, shift, sum, doubling, impure, ahead));
+    GNode cls = GNode.create("ClassDeclaration", ".Main", GNode.create("Parent"),
+        GNode.create("Constructors"), GNode.create("Fields"),
+        GNode.create("Methods", square, scaled, twice, main));
+    GNode unit = GNode.create("CompilationUnit", GNode.create("Classes", cls));
+
+    ParallelLoops loops = ParallelLoops.analyze(unit, annotations);
+    assertTrue(loops.isPure(square));
+    assertFalse(loops.isPure(scaled));
+    assertTrue(loops.isPure(twice));
+
+    assertEquals(2, loops.size());
+    ParallelLoops.Loop loop = loops.get(map);
+    assertNotNull(loop);
+    assertEquals("i", loop.getVariable());
+    assertTrue(loop.getReductions().isEmpty());
+    assertNull(loops.get(shift));
+    assertEquals("+", loops.get(sum).getReductions().get("s"));
+    assertNull(loops.get(doubling));
+    assertNull(loops.get(impure));
+    assertNull(loops.get(ahead));
+
+    assertEquals(0, ParallelLoops.none().size());
+  }
+
+}
@@ -0,0 +1,239 @@
+package qimpp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The profile an instrumented build wrote, which a later translation
+ * optimizes for.
+ *
+ * A translation with profileGenerate set gives every method, virtual
+ * call site and loop a counter, see __rt::profile in the runtime. The
+ * counters are keyed by where they are in the Java program: a method by
+ * its class and mangled name, a call site by its method, the called
+ * method and how many calls to it precede it in the method, and a loop
+ * by its method and how many loops precede it. Keys thus survive edits
+ * to other methods, and a stale entry only costs an optimization.
+ *
+ * The file has one counter per line, after a "qimpp-profile 1" line:
+ * <pre>
+ * method Foo.bar_int 1200
+ * loop Foo.bar_int@0 1200 48000
+ * call Foo.bar_int:area#0 0 Square 1150 Circle 50
+ * </pre>
+ * giving a method's calls, a loop's entries and iterations, and the
+ * calls on other classes than those listed at a call site, followed by
+ * the receiver classes and their calls. Lines with the same key add up,
+ * so the profiles of several runs can be concatenated.
+ *
+ * @author QIMPP
+ */
+public class ProfileData {
+
+  /** The share of a site's calls one class must receive to call it directly. */
+  static final double MONOMORPHIC = 0.9;
+
+  /** The share of all calls the hot methods make up. */
+  static final double HOT = 0.9;
+
+  /** The calls of each method. */
+  private final HashMap<String, Long> methods = new HashMap<String, Long>();
+
+  /** The entries and iterations of each loop. */
+  private final HashMap<String, long[]> loops = new HashMap<String, long[]>();
+
+  /** The calls on each receiver class of each call site. */
+  private final HashMap<String, LinkedHashMap<String, Long>> sites =
+    new HashMap<String, LinkedHashMap<String, Long>>();
+
+  /** The calls of each site on classes not listed. */
+  private final HashMap<String, Long> others = new HashMap<String, Long>();
+
+  /** The hot methods, or null if not determined yet. */
+  private HashSet<String> hot;
+
+  /** Read a profile file. */
+  public static ProfileData read(File file) throws IOException {
+    FileReader in = new FileReader(file);
+    try {
+      return read(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Read a profile.
+   *
+   * @throws IOException if it cannot be read or is malformed.
+   */
+  public static ProfileData read(Reader in) throws IOException {
+    ProfileData profile = new ProfileData();
+    BufferedReader lines = new BufferedReader(in);
+    int number = 0;
+    for (String line = lines.readLine(); null != line; line = lines.readLine()) {
+      number++;
+      String[] fields = line.trim().split("\\s+");
+      try {
+        if ("method".equals(fields[0]) && 3 == fields.length) {
+          profile.add(profile.methods, fields[1], Long.parseLong(fields[2]));
+        } else if ("loop".equals(fields[0]) && 4 == fields.length) {
+          long[] counts = profile.loops.get(fields[1]);
+          if (null == counts) {
+            counts = new long[2];
+            profile.loops.put(fields[1], counts);
+          }
+          counts[0] += Long.parseLong(fields[2]);
+          counts[1] += Long.parseLong(fields[3]);
+        } else if ("call".equals(fields[0]) && 3 <= fields.length
+                   && 1 == fields.length % 2) {
+          profile.add(profile.others, fields[1], Long.parseLong(fields[2]));
+          LinkedHashMap<String, Long> receivers = profile.sites.get(fields[1]);
+          if (null == receivers) {
+            receivers = new LinkedHashMap<String, Long>();
+            profile.sites.put(fields[1], receivers);
+          }
+          for (int i = 3; i < fields.length; i += 2) {
+            profile.add(receivers, normalize(fields[i]), Long.parseLong(fields[i + 1]));
+          }
+        } else if (!"qimpp-profile".equals(fields[0]) && !"".equals(fields[0])) {
+          throw new IOException("Malformed profile line " + number + ": " + line);
+        }
+      } catch (NumberFormatException x) {
+        throw new IOException("Malformed profile line " + number + ": " + line);
+      }
+    }
+    return profile;
+  }
+
+  private void add(Map<String, Long> counts, String key, long count) {
+    Long old = counts.get(key);
+    counts.put(key, (null == old) ? count : old + count);
+  }
+
+  /** Strip the leading dot of a class in the default package. */
+  static String normalize(String className) {
+    return className.startsWith(".") ? className.substring(1) : className;
+  }
+
+  /** Get the key of a method. */
+  public static String methodKey(String className, String mangledName) {
+    return normalize(className) + "." + mangledName;
+  }
+
+  /**
+   * Get the key of a virtual call site.
+   *
+   * @param method The key of the calling method.
+   * @param callee The mangled name of the called method.
+   * @param ordinal The number of earlier calls to it in the method.
+   */
+  public static String siteKey(String method, String callee, int ordinal) {
+    return method + ":" + callee + "#" + ordinal;
+  }
+
+  /**
+   * Get the key of a loop.
+   *
+   * @param method The key of the method.
+   * @param ordinal The number of earlier loops in the method.
+   */
+  public static String loopKey(String method, int ordinal) {
+    return method + "@" + ordinal;
+  }
+
+  // =========================================================================
+
+  /** Determine whether the profile has a method's counter. */
+  public boolean contains(String method) {
+    return methods.containsKey(method);
+  }
+
+  /** Get the calls of a method, or -1 if the profile does not have it. */
+  public long getCalls(String method) {
+    Long calls = methods.get(method);
+    return (null == calls) ? -1 : calls;
+  }
+
+  /**
+   * Determine whether a method is hot: the most called methods, which
+   * together make up HOT of all calls.
+   */
+  public boolean isHot(String method) {
+    if (null == hot) {
+      hot = new HashSet<String>();
+      ArrayList<Map.Entry<String, Long>> byCalls =
+        new ArrayList<Map.Entry<String, Long>>(methods.entrySet());
+      Collections.sort(byCalls, new Comparator<Map.Entry<String, Long>>() {
+        public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+          return Long.compare(b.getValue(), a.getValue());
+        }
+      });
+      long total = 0;
+      for (Map.Entry<String, Long> e : byCalls) {
+        total += e.getValue();
+      }
+      long sum = 0;
+      for (Map.Entry<String, Long> e : byCalls) {
+        if (0 == e.getValue() || sum >= HOT * total) {
+          break;
+        }
+        hot.add(e.getKey());
+        sum += e.getValue();
+      }
+    }
+    return hot.contains(method);
+  }
+
+  /** Determine whether a method was never called. */
+  public boolean isCold(String method) {
+    return 0 == getCalls(method);
+  }
+
+  /**
+   * Get the class that receives nearly all calls at a virtual call site.
+   *
+   * @return the class's dot-delimited name, or null if the site is
+   *  polymorphic or was never reached.
+   */
+  public String getMonomorphicReceiver(String site) {
+    LinkedHashMap<String, Long> receivers = sites.get(site);
+    if (null == receivers) {
+      return null;
+    }
+    long total = others.get(site);
+    for (long calls : receivers.values()) {
+      total += calls;
+    }
+    for (Map.Entry<String, Long> e : receivers.entrySet()) {
+      if (0 < total && e.getValue() >= MONOMORPHIC * total) {
+        return e.getKey();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Get the average number of iterations of a loop.
+   *
+   * @return the iterations per entry, or -1 if the loop was never entered.
+   */
+  public double getTripCount(String loop) {
+    long[] counts = loops.get(loop);
+    if (null == counts || 0 == counts[0]) {
+      return -1;
+    }
+    return (double)counts[1] / counts[0];
+  }
+
+}
@@ -0,0 +1,59 @@
+package qimpp;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ProfileData.
+ *
+ * @author QIMPP
+ */
+public class ProfileDataTest {
+
+  static ProfileData read(String text) throws IOException {
+    return ProfileData.read(new StringReader(text));
+  }
+
+  @Test public void testRead() throws IOException {
+    ProfileData profile = read("qimpp-profile 1\n"
+        + "method Shape.area 0\n"
+        + "method Square.area 900\n"
+        + "method Circle.area 50\n"
+        + "method Main.main_String_array 1\n"
+        + "method Main.sum_int 49\n"
+        + "loop Main.sum_int@0 49 4900\n"
+        + "call Main.sum_int:area#0 0 .Square 900 Circle 50\n"
+        + "call Main.sum_int:area#1 0 Square 10 Circle 10\n"
+        + "\n"
+        + "method Main.sum_int 1\n"
+        + "loop Main.sum_int@0 1 100\n");
+
+    assertEquals("Main.sum_int", ProfileData.methodKey(".Main", "sum_int"));
+    assertEquals(50, profile.getCalls("Main.sum_int"));
+    assertEquals(-1, profile.getCalls("Main.other"));
+    assertTrue(profile.contains("Shape.area"));
+    assertTrue(profile.isCold("Shape.area"));
+    assertFalse(profile.isCold("Main.other"));
+    assertTrue(profile.isHot("Square.area"));
+    assertFalse(profile.isHot("Main.main_String_array"));
+
+    String loop = ProfileData.loopKey("Main.sum_int", 0);
+    assertEquals(100.0, profile.getTripCount(loop), 0.0);
+    assertEquals(-1.0, profile.getTripCount(ProfileData.loopKey("Main.sum_int", 1)), 0.0);
+
+    String site = ProfileData.siteKey("Main.sum_int", "area", 0);
+    assertEquals("Square", profile.getMonomorphicReceiver(site));
+    assertNull(profile.getMonomorphicReceiver(ProfileData.siteKey("Main.sum_int", "area", 1)));
+    assertNull(profile.getMonomorphicReceiver(ProfileData.siteKey("Main.sum_int", "area", 2)));
+  }
+
+  @Test(expected = IOException.class)
+  public void testMalformed() throws IOException {
+    read("qimpp-profile 1\nmethod Main.main many\n");
+  }
+
+}
@@ -20,14 +20,20 @@
 package qimpp;
 
 import java.io.File;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import xtc.lang.JavaFiveParser;
 
@@ -62,20 +68,293 @@ public class QimppTranslator extends Tool {
   String currentPackageName;
   String parentName;
   CPPAST cppast;
+  NodeAnnotations annotations;
   InheritanceTreeManager treeManager;
-  GNode root;
   //bool inReturnStatement;
   HashMap<String, String> currentNameMap;
   HashMap<String, Boolean> enqueued;
   LinkedList<Node> readQueue;
 
-  boolean inBlock;
   boolean processImmediately;
   int blockDepth = 0;
 
+  /** Where Java sources are read from. Defaults to the filesystem. */
+  SourceProvider sources;
+
+  /** Where out.h and out.cc are written, or null to write the files. */
+  Writer headerOut, implementationOut;
+
+  /**
+   * Whether to print each class's implementation as soon as it is
+   * translated and then drop its method bodies.
+   */
+  boolean streaming;
+
+  /** The implementation printer of a streaming translation. */
+  ImplementationPrinter implementationPrinter;
+
+  /** The pool method bodies are mangled on, or null to mangle them in turn. */
+  ForkJoinPool pool;
+
+  /** Whether to report the size and padding of each struct in the header. */
+  boolean layoutReport;
+
+  /** Whether rectangular two-dimensional arrays are allocated in one block. */
+  boolean contiguousArrays;
+
+  /** Whether arrays of small immutable classes hold their fields inline. */
+  boolean flattenValues;
+
+  /** Whether all arrays of references share one implementation. */
+  boolean erasedArrays;
+
+  /** Whether to compile the translation into a.out. */
+  boolean build;
+
+  /** Whether to count calls, receiver classes and loop trips at run time. */
+  boolean profileGenerate;
+
+  /** The profile to optimize for, or null. */
+  ProfileData profile;
+
+  /** Whether to count allocations, virtual calls and checks at run time. */
+  boolean stats;
+
+  /** The map of generated functions to Java methods, or null. */
+  SourceMap sourceMap;
+
+  /** Whether to run loops with independent iterations in parallel. */
+  boolean parallelLoops;
+
+  /** The smallest number of iterations a loop is run in parallel for. */
+  int parallelThreshold = ParallelLoops.THRESHOLD;
+
+  /** Whether to lower loops over arrays of primitives for the auto-vectorizer. */
+  boolean vectorLoops;
+
+  /** Whether the translator runs through translate() rather than run(). */
+  private boolean embedded;
+
+  /** The first error writing the output when embedded, or null. */
+  private IOException failure;
+
   /** Create a new translator. */
   public QimppTranslator() {
-    cppast = new CPPAST();
+    annotations = new NodeAnnotations();
+    cppast = new CPPAST(annotations);
+    sources = new FileSourceProvider();
+  }
+
+  /**
+   * The generated header and implementation of an in-memory translation.
+   */
+  public static class Output {
+    public final StringBuilder header = new StringBuilder();
+    public final StringBuilder implementation = new StringBuilder();
+  }
+
+  /**
+   * Translate a program held in memory, without reading or writing any
+   * files.
+   *
+   * @param sources the Java sources of the program, keyed by path
+   *  ("qimpp/Foo.java") or qualified class name ("qimpp.Foo")
+   * @param main the name of the class containing main
+   * @return the generated header and implementation
+   */
+  public static Output translate(Map<String, ? extends CharSequence> sources,
+      String main) throws IOException, ParseException {
+    Output output = new Output();
+    translate(sources, main, output.header, output.implementation);
+    return output;
+  }
+
+  /**
+   * Translate a program held in memory, streaming the generated code to
+   * the given destinations.
+   *
+   * @param sources the Java sources of the program
+   * @param main the name of the class containing main
+   * @param header receives the contents of out.h
+   * @param implementation receives the contents of out.cc
+   */
+  public static void translate(Map<String, ? extends CharSequence> sources,
+      String main, Appendable header, Appendable implementation)
+      throws IOException, ParseException {
+    QimppTranslator translator = new QimppTranslator();
+    translator.setSourceProvider(new MemorySourceProvider(sources));
+    translator.setOutput(header, implementation);
+    translator.translate(MemorySourceProvider.toPath(main));
+  }
+
+  /** Set where Java sources, including dependencies, are read from. */
+  public void setSourceProvider(SourceProvider sources) {
+    this.sources = sources;
+  }
+
+  /**
+   * Print each class's implementation as soon as the class is translated,
+   * and release its method bodies once printed, so memory use does not
+   * grow with the size of the program. Classes are then printed in the
+   * order they are finished rather than the order they are declared.
+   */
+  public void setStreaming(boolean streaming) {
+    this.streaming = streaming;
+  }
+
+  /**
+   * Mangle the method and constructor bodies of each class in parallel.
+   * The output is the same as without.
+   */
+  public void setParallel(boolean parallel) {
+    pool = parallel ? new ForkJoinPool() : null;
+  }
+
+  /**
+   * Comment each struct in the header with its size and the padding its
+   * field layout leaves, next to the size in declaration order.
+   */
+  public void setLayoutReport(boolean layoutReport) {
+    this.layoutReport = layoutReport;
+  }
+
+  /**
+   * Allocate fully specified two-dimensional arrays, like new int[n][m],
+   * as one contiguous block, and index them without loading the row.
+   * Replacing a row makes the array fall back to indexing through its
+   * rows.
+   */
+  public void setContiguousArrays(boolean contiguousArrays) {
+    this.contiguousArrays = contiguousArrays;
+  }
+
+  /**
+   * Flatten arrays of small final classes with final primitive fields
+   * that the program never uses by identity, see ValueClasses. Ignored
+   * in streaming mode, which prints classes before the whole program is
+   * known.
+   */
+  public void setFlattenValues(boolean flattenValues) {
+    this.flattenValues = flattenValues;
+  }
+
+  /**
+   * Have all arrays of references share one implementation in the
+   * runtime, which holds untyped pointers, instead of instantiating the
+   * array template for each element type. Only the class descriptor
+   * remains per type. Arrays of primitives and of flattened classes
+   * keep their own instantiations.
+   */
+  public void setErasedArrays(boolean erasedArrays) {
+    this.erasedArrays = erasedArrays;
+  }
+
+  /**
+   * Compile the translation into a.out with NativeBuilder, which reuses
+   * the runtime, the precompiled header and the objects of unchanged
+   * classes from earlier builds. The implementation is then printed as
+   * one translation unit per class, out_Foo.cc, with out.cc holding the
+   * static fields. Ignored when translating to memory.
+   */
+  public void setBuild(boolean build) {
+    this.build = build;
+  }
+
+  /**
+   * Instrument the translation to count the calls of each method, the
+   * receiver classes at each virtual call site and the trips of each
+   * loop, and to write them to qimpp.profile, or $QIMPP_PROFILE, when it
+   * exits. See ProfileData.
+   */
+  public void setProfileGenerate(boolean profileGenerate) {
+    this.profileGenerate = profileGenerate;
+  }
+
+  /**
+   * Optimize the translation for a profile written by an instrumented
+   * build: call the one class a virtual call site nearly always sees
+   * directly, behind a check of the receiver's class, mark hot and never
+   * called methods, and print each class's methods most called first.
+   *
+   * @param profile the profile, or null to translate without one
+   */
+  public void setProfile(ProfileData profile) {
+    this.profile = profile;
+  }
+
+  /**
+   * Count the objects and arrays of each class the translated program
+   * allocates and their bytes, the virtual calls of each method, the
+   * null, store and bounds checks and the string literals created, and
+   * write them to qimpp-stats.csv, or $QIMPP_STATS, at exit and on
+   * SIGUSR1. The runtime must be compiled with QIMPP_STATS defined,
+   * which a build with setBuild does. See qimpp_stats.h.
+   */
+  public void setStats(boolean stats) {
+    this.stats = stats;
+  }
+
+  /**
+   * Precede the statements of each method with #line directives naming
+   * its Java source, and write out.map, which maps the generated
+   * functions to the Java methods, for StackFolder.
+   */
+  public void setSourceMap(boolean sourceMap) {
+    this.sourceMap = sourceMap ? new SourceMap() : null;
+  }
+
+  /**
+   * Run the loops whose iterations are independent in parallel with
+   * OpenMP, see ParallelLoops. A build with setBuild compiles with
+   * -fopenmp; other builds must too, or the loops stay sequential.
+   * Ignored in streaming mode.
+   */
+  public void setParallelLoops(boolean parallelLoops) {
+    this.parallelLoops = parallelLoops;
+  }
+
+  /**
+   * Run parallel loops sequentially when they iterate fewer times than
+   * this, or, by the profile, do so on average.
+   */
+  public void setParallelThreshold(int parallelThreshold) {
+    this.parallelThreshold = parallelThreshold;
+  }
+
+  /**
+   * Lower the loops over arrays of primitives into a form the C++
+   * auto-vectorizer recognizes, see VectorLoops, and report them. A
+   * build with setBuild optimizes with -O2 -ftree-vectorize. Ignored in
+   * streaming mode and when generating a profile.
+   */
+  public void setVectorLoops(boolean vectorLoops) {
+    this.vectorLoops = vectorLoops;
+  }
+
+  /** Send the generated header and implementation to the given destinations. */
+  public void setOutput(Appendable header, Appendable implementation) {
+    headerOut = toWriter(header);
+    implementationOut = toWriter(implementation);
+  }
+
+  /**
+   * Translate the named source and everything it depends on. Used instead
+   * of run() when the translator is embedded.
+   *
+   * @param name the source name, e.g. "qimpp/Foo.java"
+   */
+  public void translate(String name) throws IOException, ParseException {
+    init();
+    runtime.initDefaultValues();
+    prepare();
+    setUp();
+    currentClassName = name;
+    embedded = true;
+    failure = null;
+    process(name);
+    if (null != failure) {
+      throw failure;
+    }
   }
 
   public String getName() {
@@ -88,10 +367,84 @@ public class QimppTranslator extends Tool {
 
   public void init() {
     super.init();
+    runtime.bool("streaming", "optionStreaming", false,
+                 "Print each class as soon as it is translated.");
+    runtime.bool("parallel", "optionParallel", false,
+                 "Mangle method bodies in parallel.");
+    runtime.bool("layoutReport", "optionLayoutReport", false,
+                 "Report the size and padding of each struct in out.h.");
+    runtime.bool("contiguousArrays", "optionContiguousArrays", false,
+                 "Allocate rectangular two-dimensional arrays in one block.");
+    runtime.bool("flattenValues", "optionFlattenValues", false,
+                 "Store the fields of small immutable objects inline in arrays.");
+    runtime.bool("erasedArrays", "optionErasedArrays", false,
+                 "Share one implementation among all arrays of references.");
+    runtime.bool("build", "optionBuild", false,
+                 "Compile the translation into a.out, reusing earlier builds.");
+    runtime.bool("profileGenerate", "optionProfileGenerate", false,
+                 "Count calls and loop trips, and write them to qimpp.profile.");
+    runtime.word("profileUse", "optionProfileUse", false,
+                 "Optimize for the profile of an instrumented build.");
+    runtime.bool("stats", "optionStats", false,
+                 "Count allocations, virtual calls and checks at run time.");
+    runtime.bool("sourceMap", "optionSourceMap", false,
+                 "Print #line directives and map functions to methods in out.map.");
+    runtime.bool("parallelLoops", "optionParallelLoops", false,
+                 "Run loops with independent iterations in parallel with OpenMP.");
+    runtime.number("parallelThreshold", "optionParallelThreshold", ParallelLoops.THRESHOLD,
+                   "Run parallel loops sequentially below this many iterations.");
+    runtime.bool("vectorLoops", "optionVectorLoops", false,
+                 "Lower loops over primitive arrays for the auto-vectorizer.");
   }
 
   public void prepare() {
     super.prepare();
+    if (runtime.test("optionStreaming")) {
+      streaming = true;
+    }
+    if (runtime.test("optionParallel") && null == pool) {
+      setParallel(true);
+    }
+    if (runtime.test("optionLayoutReport")) {
+      layoutReport = true;
+    }
+    if (runtime.test("optionContiguousArrays")) {
+      contiguousArrays = true;
+    }
+    if (runtime.test("optionFlattenValues")) {
+      flattenValues = true;
+    }
+    if (runtime.test("optionErasedArrays")) {
+      erasedArrays = true;
+    }
+    if (runtime.test("optionBuild")) {
+      build = true;
+    }
+    if (runtime.test("optionProfileGenerate")) {
+      profileGenerate = true;
+    }
+    if (runtime.test("optionStats")) {
+      stats = true;
+    }
+    if (runtime.test("optionSourceMap")) {
+      setSourceMap(true);
+    }
+    if (runtime.test("optionParallelLoops")) {
+      parallelLoops = true;
+    }
+    if (runtime.test("optionVectorLoops")) {
+      vectorLoops = true;
+    }
+    if (runtime.hasValue("optionParallelThreshold")) {
+      parallelThreshold = runtime.getInt("optionParallelThreshold");
+    }
+    if (runtime.hasValue("optionProfileUse")) {
+      try {
+        profile = ProfileData.read(new File(runtime.getString("optionProfileUse")));
+      } catch (IOException x) {
+        runtime.error(x.getMessage());
+      }
+    }
 
     // Perform consistency checks on command line arguments.
   }
@@ -105,57 +458,108 @@ public class QimppTranslator extends Tool {
   }
 
   public Node parse(Reader in, File file) throws IOException, ParseException {
-    JavaFiveParser parser =
-      new JavaFiveParser(in, file.toString(), (int)file.length());
+    return parse(in, file.toString(), (int)file.length());
+  }
+
+  public Node parse(Reader in, String name, int length)
+      throws IOException, ParseException {
+    JavaFiveParser parser = new JavaFiveParser(in, name, length);
     Result result = parser.pCompilationUnit(0);
     return (Node)parser.value(result);
   }
+
+  /** Parse the named source, reading it through the source provider. */
+  Node parseSource(String name) throws IOException, ParseException {
+    Reader in = sources.getReader(name);
+    try {
+      return parse(in, name, sources.getLength(name));
+    } finally {
+      try {
+        in.close();
+      } catch (IOException x) {
+        // Ignore.
+      }
+    }
+  }
+
+  public void process(String name) throws IOException, ParseException {
+    process(parseSource(name));
+  }
   
   public void run(String[] args){
+    setUp();
+
+    // This gets the class name from the command line of the root class. Fix this later, as it only supports one argument
+    currentClassName = args[args.length - 1];
+    
+    super.run(args);
+    //cppast.printAST();
+  }
+
+  /** Register the built-in classes before the first source is processed. */
+  void setUp() {
     treeManager = new InheritanceTreeManager(cppast.generateObjectClassDeclaration()); 
     readQueue = new LinkedList<Node>();
     enqueued = new HashMap<String, Boolean>();
     String[] stringQualified = {"java", "lang", "String"};
     String[] classQualified = {"java", "lang", "Class"};
+    String[] builderQualified = {"java", "lang", "StringBuilder"};
     String[] arrayQualified = {"__rt", "Array"};
     treeManager.insertClass(new ArrayList<String>(Arrays.asList(stringQualified)), null, cppast.generateStringClassDeclaration());
     treeManager.insertClass(new ArrayList<String>(Arrays.asList(classQualified)), null, cppast.generateClassClassDeclaration());
+    treeManager.insertClass(new ArrayList<String>(Arrays.asList(builderQualified)), null, cppast.generateStringBuilderClassDeclaration());
     treeManager.insertClass(new ArrayList<String>(Arrays.asList(arrayQualified)), null, cppast.generateArrayClassDeclaration());
-
-    // This gets the class name from the command line of the root class. Fix this later, as it only supports one argument
-    currentClassName = args[args.length - 1];
-    
-    super.run(args);
-    //cppast.printAST();
   }
 
   public void processEnqueue(String name) throws IOException, ParseException {
+    if (enqueued.containsKey(name)){
+      return;
+    }
 
-    // Locate the file.
-    File file = locate(name);
-
-    // Open the file.
-    Reader in = runtime.getReader(file);
+    // Parse the source and queue the AST for processing.
+    Node root = parseSource(name);
+    readQueue.add(root);
+    enqueued.put(name, new Boolean(true));
+  }
 
-    // Parse the file.
-    Node root;
-    try {
-      root = parse(in, file);
-    } finally {
-      // Close the file.
-      try {
-        in.close();
-      } catch (IOException x) {
-        // Ignore.
-      }
+  /**
+   * The default source provider, which locates sources on disk and maps
+   * them into a buffer reused across the run.
+   */
+  private class FileSourceProvider extends MappedFileSourceProvider {
+    FileSourceProvider() {
+      super(Charset.defaultCharset());
     }
 
-    if (!enqueued.containsKey(name)){
-      // Process the AST.
-      readQueue.add(root);
-      enqueued.put(name, new Boolean(true));
+    protected File locate(String name) throws IOException {
+      return QimppTranslator.this.locate(name);
+    }
+  }
 
+  /** Adapt an Appendable to the Writer a Printer needs. */
+  private static Writer toWriter(final Appendable out) {
+    if (out instanceof Writer) {
+      return (Writer)out;
     }
+    return new Writer() {
+      public void write(char[] buf, int off, int len) throws IOException {
+        out.append(new String(buf, off, len));
+      }
+
+      public void write(String str, int off, int len) throws IOException {
+        out.append(str, off, off + len);
+      }
+
+      public void flush() throws IOException {
+        if (out instanceof Flushable) {
+          ((Flushable)out).flush();
+        }
+      }
+
+      public void close() throws IOException {
+        flush();
+      }
+    };
   }
 
   int processDepth = -1;
@@ -167,6 +571,7 @@ public class QimppTranslator extends Tool {
         put("String", "java.lang.String");
         put("Object", "java.lang.Object");
         put("Class", "java.lang.Class");
+        put("StringBuilder", "java.lang.StringBuilder");
         put("Exception", "java.lang.Exception"); 
       }};
     }
@@ -182,6 +587,7 @@ public class QimppTranslator extends Tool {
           //Add the current class to the cppast, and set it as the current class global variable.
           String qualifiedClassName = currentPackageName + "." + n.getString(1);
           currentClass = cppast.addClass(qualifiedClassName);
+          annotations.setModifiers(currentClass, n.getGeneric(0));
           currentClassName = qualifiedClassName;
           parentClassNode = currentClass;
 
@@ -273,11 +679,7 @@ public class QimppTranslator extends Tool {
                 addStaticInitializerStatement(name, statement);
               }
               GNode currentField = cppast.addField(currentClassName.replace('.', '_') + "_" + name, name, type, currentClass, false);
-              GNode modifiers = n.getGeneric(0);
-
-              for (Object o : modifiers){
-                currentField.setProperty(((GNode)o).getString(0), new Boolean(true));
-              }
+              annotations.setModifiers(currentField, n.getGeneric(0));
             }
           }
         }
@@ -308,7 +710,7 @@ public class QimppTranslator extends Tool {
           staticInitializerMethod = cppast.addMethod(methodName, returnType, currentClass, parameters);
 
           
-          staticInitializerMethod.setProperty("static", new Boolean(true));
+          annotations.set(staticInitializerMethod, NodeAnnotations.STATIC);
         }
 
         public void addStaticInitializerStatement(String identifier, GNode statement){
@@ -353,18 +755,15 @@ public class QimppTranslator extends Tool {
             GNode returnType = (GNode)dispatch(n.getGeneric(2));
             GNode parameters = (GNode)dispatch(n.getGeneric(4));
             currentMethod = cppast.addMethod(methodName, returnType, currentClass, parameters);
+            currentMethod.setLocation(n);
             //Add the method block gotten by dispatching the block node
 
           dispatch(n.getGeneric(7));
           GNode block = n.getGeneric(7);
           cppast.setMethodInstructions(block, currentMethod);
 
-          // Add any modifiers as a property of the method node
-          GNode modifiers = n.getGeneric(0);
-
-          for (Object o : modifiers){
-            currentMethod.setProperty(((GNode)o).getString(0), new Boolean(true));
-          }
+          // Add any modifiers as flags of the method node
+          annotations.setModifiers(currentMethod, n.getGeneric(0));
            
           } catch(Exception e) { e.printStackTrace(); }
         }
@@ -437,6 +836,7 @@ public class QimppTranslator extends Tool {
           // Fix this later in treeManager
           if ( typename.equals("java.lang.String") 
               || typename.equals("java.lang.Class") 
+              || typename.equals("java.lang.StringBuilder")
               || typename.equals("java.lang.Object") 
               || typename.equals("java.lang.Exception")
              ) {
@@ -514,10 +914,7 @@ public class QimppTranslator extends Tool {
                      n.set(0, qualifiedIdentifierNode);
                   }
                   catch (Exception f){
-                    
-                    cppast.printAST();
-                    e.printStackTrace();
-                    System.exit(1);
+                    throw new IllegalArgumentException("cannot locate " + typename, e);
                   }
                 }
                 // Fail and crash with error if the file cannot be located
@@ -653,6 +1050,7 @@ public class QimppTranslator extends Tool {
           
           //Add a constructor to currentClass and get the associated GNode
           currentConstructor = cppast.addConstructor(currentClass);
+          currentConstructor.setLocation(n);
 
           //If there are formal parameters for the constructor, visit them and add them to the currentConstructor
           if(n.getGeneric(4) != null){ 
@@ -701,151 +1099,260 @@ public class QimppTranslator extends Tool {
     }
 
     /** SYMBOL TABLE */
-    SymbolTable table = new SymbolTable();
-    table.incorporate(currentClass);
-    // Now we can call .getProperty("qimpp.Constants.SCOPE") on certain
-    // scope-defining nodes and we'll get back a Scope object (look in
-    // SymbolTable).
-    
-    final BlockMangler mangler = new BlockMangler(currentClass, treeManager, new MethodResolver());
-
-    new Visitor() {
-
-      /**
-       * Visit a block of code, and mangle it appropriately before we print it
-       * Do not visit deeper here
-       */
-      public GNode visitBlock(GNode n) {
-        inBlock = true;
-        GNode block = GNode.create("Block");
-        if ( n.getProperty("Mangled") == null){ 
-          mangler.mangle(n);
-          n.setProperty("Mangled", new Boolean(true));
-        }
-        inBlock = false;
+    // Build the class's scopes and mangle its blocks in one walk. Now we
+    // can call annotations.getScope() on certain scope-defining nodes and
+    // we'll get back a Scope object (look in SymbolTable).
+    SymbolTable table = new SymbolTable(annotations);
+    BlockMangler mangler = new BlockMangler(currentClass, treeManager,
+        new MethodResolver(treeManager, annotations), annotations);
+    if (null == pool) {
+      mangler.mangleClass(table);
+    } else {
+      mangler.mangleClass(table, pool);
+    }
+    new ConstantFolder(treeManager, annotations).foldClass(currentClass);
 
-        return n;
+    if (streaming) {
+      try {
+        emitImplementation(currentClass);
+      } catch (IOException e) {
+        fail(e);
       }
+    }
 
-      /*public GNode visitCallExpression(GNode n) {
-        // if this is a system call
-        if (n.getGeneric(0).getGeneric(0).getString(0).equals("System")) {
-          // if this is system.out
-          if (n.getGeneric(0).getString(1).equals("out")) {
-            // if this is system.out.print
-            if (n.getString(2).equals("print")) {
-              return cppast.addPrintExpression(null, n.getGeneric(3)); 
-            }
+    if (processDepth == 0){
+      try{
+          boolean compile = build && null == headerOut && null == implementationOut;
+          boolean split = compile && !streaming;
+          Writer h = (null == headerOut) ? new PrintWriter("out.h") : headerOut;
+          ValueClasses valueClasses = (flattenValues && !streaming)
+            ? ValueClasses.analyze(cppast.compilationUnit, annotations)
+            : ValueClasses.none();
+          ParallelLoops loops = (parallelLoops && !streaming)
+            ? ParallelLoops.analyze(cppast.compilationUnit, annotations)
+            : ParallelLoops.none();
+          VectorLoops vectors = (vectorLoops && !streaming && !profileGenerate)
+            ? VectorLoops.analyze(cppast.compilationUnit, annotations)
+            : VectorLoops.none();
+          for (VectorLoops.Loop loop : vectors.getLoops()) {
+            runtime.console().pln(loop.toString());
           }
+          runtime.console().flush();
+          HeaderWriter headerWriter = new HeaderWriter(new Printer(h), annotations);
+          headerWriter.setLayoutReport(layoutReport);
+          headerWriter.setErasedArrays(erasedArrays);
+          headerWriter.setStats(stats);
+          headerWriter.setSeparateDefinitions(split);
+          headerWriter.setValueClasses(valueClasses);
+          headerWriter.dispatch(cppast.compilationUnit);
+//          cppast.printAST();
+
+          List<File> units = null;
+          if (split) {
+            units = printUnits(valueClasses, loops, vectors);
+          } else if (!streaming) {
+            Writer cc = (null == implementationOut) ? new PrintWriter("out.cc") : implementationOut;
+            ImplementationPrinter implementation = createImplementationPrinter(cc, "out.cc", valueClasses, loops, vectors);
+            implementation.dispatch(cppast.compilationUnit);
+          } else if (null != implementationPrinter) {
+            implementationPrinter.printer.flush();
+            implementationPrinter = null;
+          }
+          if (null != sourceMap && null == implementationOut) {
+            Writer map = new PrintWriter("out.map");
+            sourceMap.write(map);
+            map.close();
+          }
+          if (compile) {
+            h.flush();
+            build(units);
+          }
+        } catch (IOException e) {
+          fail(e);
         }
-        return n;
-      }*/
+    }
+    
+    processDepth--;
+  }
 
-      public void visitClassBody(GNode n){
-        visit(n);
-      }
-        
-      public void visitClassDeclaration(GNode n){
-        // Add a default no-arg constructor. If there is an explicit constructor, we can add it
-        // later.
-        //Add a constructor to currentClass and get the associated GNode
-        visit(n);
-      }
+  /**
+   * Report an error writing the output. process(Node) cannot throw it,
+   * so when embedded the first error is kept for translate() to rethrow.
+   */
+  private void fail(IOException e) {
+    if (!embedded) {
+      runtime.error(e.getMessage());
+    } else if (null == failure) {
+      failure = e;
+    }
+  }
 
-      public void visitCompilationUnit(GNode n) {
-        root = n;     
-        //
-        visit(n);
-        //
-        //Print the AST after we're done for debugging
-        //cppast.printAST();
-        
-      }
-      
-      
+  /**
+   * Create a printer for the implementation with the translation's options.
+   *
+   * @param out The output.
+   * @param name The output's name, for #line directives.
+   * @param valueClasses The classes whose arrays are flattened.
+   * @param loops The loops to run in parallel.
+   * @param vectors The loops to lower for the auto-vectorizer.
+   */
+  ImplementationPrinter createImplementationPrinter(Writer out, String name,
+                                                    ValueClasses valueClasses,
+                                                    ParallelLoops loops,
+                                                    VectorLoops vectors) {
+    SourceMap.LineCounter lines = countLines(out, name);
+    ImplementationPrinter implementation = new ImplementationPrinter(new Printer((null == lines) ? out : lines), treeManager, cppast.compilationUnit, annotations);
+    implementation.lines = lines;
+    implementation.contiguousArrays = contiguousArrays;
+    implementation.valueClasses = valueClasses;
+    implementation.profileGenerate = profileGenerate;
+    implementation.profile = profile;
+    implementation.stats = stats;
+    implementation.sourceMap = sourceMap;
+    implementation.parallelLoops = loops;
+    implementation.parallelThreshold = parallelThreshold;
+    implementation.vectorLoops = vectors;
+    return implementation;
+  }
 
-      
-      
-      
-      public GNode visitExpressionStatement(GNode n) {
-        //TODO: figure out what we need to do to the expressionstatements to make them parseable including fetching needed files
-        return n;
-      }
+  /** Count the lines of an output for #line directives, or return null without a source map. */
+  SourceMap.LineCounter countLines(Writer out, String name) {
+    return (null == sourceMap) ? null : new SourceMap.LineCounter(out, name);
+  }
 
-      public void visitExpression(GNode n){
-        visit(n);
+  /**
+   * Print the implementation as one translation unit per class. Each
+   * includes the header, which only declares the static fields and array
+   * classes; out.cc defines them.
+   *
+   * @param valueClasses The classes whose arrays are flattened.
+   * @param loops The loops to run in parallel.
+   * @param vectors The loops to lower for the auto-vectorizer.
+   * @return the units of the classes.
+   */
+  List<File> printUnits(ValueClasses valueClasses, ParallelLoops loops,
+                        VectorLoops vectors) throws IOException {
+    PrintWriter definitions = new PrintWriter("out.cc");
+    ImplementationPrinter implementation = createImplementationPrinter(definitions, "out.cc", valueClasses, loops, vectors);
+    implementation.printer.p("#define ").p(HeaderWriter.DEFINITIONS).pln();
+    implementation.printPreamble();
+    for (Object o : cppast.compilationUnit) {
+      if (o instanceof GNode && o != cppast.classes) {
+        implementation.dispatch((GNode)o);
       }
-                      
-      public void visitNewClassExpression(GNode n) {       
-        visit(n);
-      }  
+    }
 
-      public void visitPackageDeclaration(GNode n){
-        //
-      }
+    List<File> units = new ArrayList<File>();
+    for (Object o : cppast.classes) {
+      GNode classNode = (GNode)o;
+      File file = new File("out_" + classNode.getString(0).replaceAll("^\\.", "")
+                           .replace('.', '_') + ".cc");
+      PrintWriter unit = new PrintWriter(file);
+      SourceMap.LineCounter lines = countLines(unit, file.getName());
+      implementation.setPrinter(new Printer((null == lines) ? unit : lines));
+      implementation.lines = lines;
+      implementation.printPreamble();
+      implementation.dispatch(classNode);
+      implementation.printer.flush();
+      unit.close();
+      units.add(file);
+    }
+    definitions.close();
+    return units;
+  }
 
-      public void visitStringLiteral(GNode n){
-        visit(n);
+  /**
+   * Compile out.cc and the given units, with the precompiled header, into
+   * a.out.
+   *
+   * @param units The units of the classes, or null if out.cc holds the
+   *  whole implementation.
+   */
+  void build(List<File> units) {
+    NativeBuilder builder = new NativeBuilder(new File("."));
+    if (stats) {
+      builder.addFlag("-D" + HeaderWriter.STATS);
+    }
+    if (parallelLoops) {
+      builder.addFlag("-fopenmp");
+    }
+    if (vectorLoops) {
+      builder.addFlag("-O2");
+      builder.addFlag("-ftree-vectorize");
+    }
+    builder.addUnit(new File("out.cc"), false);
+    if (null != units) {
+      builder.setHeader(new File("out.h"));
+      for (File unit : units) {
+        builder.addUnit(unit, true);
       }
-        
-        
-      
-      
-      public GNode visitType(GNode n) {
-        //Determine the type translated into C++ using Type.primitiveType(String) and Type.qualifiedIdentifier(String)
-        visit(n);
-        GNode identifier = n.getGeneric(0);
-        String typename = identifier.getString(0);
-
-        if (identifier.hasName("PrimitiveType")) {
-          return n;
-        }
-
-        // Fix this later in treeManager
-        else if ( typename.equals("String") || typename.equals("Class") || typename.equals("Object") ) {
-          GNode type = GNode.create("Type");
-          type.add(Disambiguator.disambiguate(typename));
-          type.add(n.get(1));
-          return type;
-        } 
+    }
+    try {
+      builder.build(new File("a.out"));
+      runtime.console().p("Compiled ").p(builder.getCompiled()).p(" of ")
+        .p(builder.size()).pln(" translation units").flush();
+    } catch (IOException x) {
+      runtime.error(x.getMessage());
+    }
+  }
 
-        else {
+  /**
+   * Print the implementation of a translated class, then release its
+   * method bodies. Only the declarations later classes resolve against
+   * and the header needs are kept.
+   *
+   * @param classNode The class declaration in the CPPAST.
+   */
+  void emitImplementation(GNode classNode) throws IOException {
+    if (null == implementationPrinter) {
+      Writer cc = (null == implementationOut) ? new PrintWriter("out.cc") : implementationOut;
+      implementationPrinter = createImplementationPrinter(cc, "out.cc", ValueClasses.none(),
+                                                          ParallelLoops.none(),
+                                                          VectorLoops.none());
+      implementationPrinter.printPreamble();
+    }
+    implementationPrinter.dispatch(classNode);
+    releaseBodies(classNode);
+  }
 
-          GNode type = GNode.create("Type");
-          type.add(Disambiguator.disambiguate(typename));
-          type.add(n.get(1));
-          return type;
+  /**
+   * Replace the blocks of a printed class's constructors and methods with
+   * empty ones, and drop the annotations and scopes of its bodies.
+   *
+   * @param classNode The class declaration in the CPPAST.
+   */
+  void releaseBodies(GNode classNode) {
+    annotations.setScope(classNode, null);
+    for (Object o : classNode.getGeneric(2)) {
+      GNode constructor = (GNode)o;
+      annotations.setScope(constructor, null);
+      for (int i = 0; i < constructor.size(); i++) {
+        Object child = constructor.get(i);
+        if (child instanceof GNode && ((GNode)child).hasName("Block")) {
+          constructor.set(i, releaseBlock((GNode)child));
+        } else if (child instanceof GNode) {
+          annotations.removeAll((GNode)child);
         }
       }
-      
-      public GNode visitReturnStatement(GNode n) {
-        
-        return n;
-      }
- 
-      public void visit(Node n) {
-        //
-        //
-        for (Object o : n) if (o instanceof Node) dispatch((Node)o);
-      }
-
-    }.dispatch(currentClass);
-
-    if (processDepth == 0){
-      try{
-          PrintWriter h = new PrintWriter("out.h");
-          new HeaderWriter(new Printer(h)).dispatch(cppast.compilationUnit);
-//          cppast.printAST();
-
-          PrintWriter cc = new PrintWriter("out.cc");
-          new ImplementationPrinter(new Printer(cc), treeManager, cppast.compilationUnit).dispatch(cppast.compilationUnit);
-        } catch (Exception e) {
-          //
-          e.printStackTrace();
+    }
+    for (Object o : classNode.getGeneric(4)) {
+      GNode method = (GNode)o;
+      if (method.hasName("ImplementedMethodDeclaration")) {
+        annotations.setScope(method, null);
+        for (Object parameter : method.getGeneric(2)) {
+          annotations.setScope((GNode)parameter, null);
         }
+        cppast.setMethodInstructions(releaseBlock(method.getGeneric(3)), method);
+      }
     }
-    
-    processDepth--;
+  }
+
+  /** Drop the annotations of a block, returning an empty replacement. */
+  private GNode releaseBlock(GNode block) {
+    annotations.removeAll(block);
+    GNode empty = GNode.create("Block");
+    annotations.set(empty, NodeAnnotations.MANGLED);
+    return empty;
   }
 
   /**
@@ -0,0 +1,104 @@
+package qimpp;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for translating programs held in memory.
+ *
+ * @author QIMPP
+ */
+public class QimppTranslatorTest {
+
+  static final String MAIN =
+    "package qimpp.tests;\n"
+    + "public class Main {\n"
+    + "  public static void main(String[] args) {\n"
+    + "    Helper helper = new Helper();\n"
+    + "    System.out.println(helper.twice(21));\n"
+    + "  }\n"
+    + "}\n";
+
+  static final String HELPER =
+    "package qimpp.tests;\n"
+    + "public class Helper {\n"
+    + "  public int twice(int x) {\n"
+    + "    return 2 * x;\n"
+    + "  }\n"
+    + "}\n";
+
+  @Test public void testTranslate() throws Exception {
+    HashMap<String, String> sources = new HashMap<String, String>();
+    sources.put("qimpp.tests.Main", MAIN);
+    sources.put("qimpp/tests/Helper.java", HELPER);
+    final List<String> read = new ArrayList<String>();
+    MemorySourceProvider provider = new MemorySourceProvider(sources) {
+      public Reader getReader(String name) throws IOException {
+        read.add(name);
+        return super.getReader(name);
+      }
+    };
+
+    StringBuilder header = new StringBuilder();
+    StringBuilder implementation = new StringBuilder();
+    QimppTranslator translator = new QimppTranslator();
+    translator.setSourceProvider(provider);
+    translator.setOutput(header, implementation);
+    translator.translate("qimpp/tests/Main.java");
+
+    // Helper is only found through Main's reference to it
+    assertEquals("qimpp/tests/Main.java", read.get(0));
+    assertTrue(read.contains("qimpp/tests/Helper.java"));
+    assertTrue(header.indexOf("__Main") >= 0);
+    assertTrue(header.indexOf("__Helper") >= 0);
+    assertTrue(implementation.indexOf("__Helper::twice_int") >= 0);
+    assertTrue(implementation.indexOf(" main(int argc") >= 0);
+  }
+
+  @Test public void testOutput() throws Exception {
+    HashMap<String, String> sources = new HashMap<String, String>();
+    sources.put("qimpp.tests.Main", MAIN);
+    sources.put("qimpp.tests.Helper", HELPER);
+    QimppTranslator.Output output = QimppTranslator.translate(sources, "qimpp.tests.Main");
+    assertTrue(output.header.indexOf("__Helper") >= 0);
+    assertTrue(output.implementation.indexOf("__Helper::twice_int") >= 0);
+  }
+
+  @Test public void testStats() throws Exception {
+    HashMap<String, String> sources = new HashMap<String, String>();
+    sources.put("qimpp.tests.Main", MAIN);
+    sources.put("qimpp.tests.Helper", HELPER);
+    StringBuilder header = new StringBuilder();
+    StringBuilder implementation = new StringBuilder();
+    QimppTranslator translator = new QimppTranslator();
+    translator.setSourceProvider(new MemorySourceProvider(sources));
+    translator.setOutput(header, implementation);
+    translator.setStats(true);
+    translator.translate("qimpp/tests/Main.java");
+
+    // The header enables the counters before the runtime is included
+    int define = header.indexOf("#define " + HeaderWriter.STATS);
+    assertTrue(define >= 0);
+    assertTrue(define < header.indexOf("#include \"java_lang.h\""));
+    // main() starts counting, and the allocation and the call are counted
+    assertTrue(implementation.indexOf("__rt::stats::start();") >= 0);
+    assertTrue(implementation.indexOf("__rt::stats::allocated( new ") >= 0);
+    int call = implementation.indexOf("__rt::stats::Counter __stats(__rt::stats::CALL, \"");
+    assertTrue(call >= 0);
+    assertTrue(implementation.indexOf("twice", call) >= 0);
+  }
+
+  @Test(expected = FileNotFoundException.class)
+  public void testMissingSource() throws Exception {
+    QimppTranslator.translate(new HashMap<String, String>(), "qimpp.tests.Main");
+  }
+
+}
@@ -0,0 +1,252 @@
+package qimpp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import xtc.tree.Location;
+
+/**
+ * The generated C++ functions and the Java methods they implement, so
+ * that profiles of a translated program can be read in terms of the
+ * Java program.
+ *
+ * With a source map, ImplementationPrinter precedes the statements of
+ * each method with #line directives naming the Java source, which a
+ * debugger or perf annotate then shows, and records each function here.
+ * The translator writes the map to out.map, one function per line:
+ * <pre>
+ * __Shape::area	Shape.area()	Shape.java:12
+ * main	Main.main(String[])	Main.java:3
+ * </pre>
+ * which StackFolder uses to turn sampled C++ stacks into Java ones.
+ *
+ * @author QIMPP
+ */
+public class SourceMap {
+
+  /** A generated function and the Java method it implements. */
+  public static class Entry {
+    final String function;
+    final String method;
+    final String file;
+    final int line;
+
+    Entry(String function, String method, String file, int line) {
+      this.function = function;
+      this.method = method;
+      this.file = file;
+      this.line = line;
+    }
+
+    /** Get the Java method, as Class.method(parameter types). */
+    public String getMethod() {
+      return method;
+    }
+
+    /** Get the Java source of the method, or null if unknown. */
+    public String getFile() {
+      return file;
+    }
+
+    /** Get the line the method starts at, or 0 if unknown. */
+    public int getLine() {
+      return line;
+    }
+  }
+
+  /**
+   * A writer that counts the lines written through it, so that the
+   * printer can return the line numbers to those of the output after
+   * the #line directives of a method.
+   */
+  public static class LineCounter extends FilterWriter {
+    private final String name;
+    private int lines = 1;
+    private boolean atLineStart = true;
+
+    /**
+     * Create a new line counter.
+     *
+     * @param out The output.
+     * @param name The name of the output in #line directives.
+     */
+    public LineCounter(Writer out, String name) {
+      super(out);
+      this.name = name;
+    }
+
+    public void write(int c) throws IOException {
+      out.write(c);
+      count((char)c);
+    }
+
+    public void write(char[] buffer, int offset, int length) throws IOException {
+      out.write(buffer, offset, length);
+      for (int i = offset; i < offset + length; i++) {
+        count(buffer[i]);
+      }
+    }
+
+    public void write(String s, int offset, int length) throws IOException {
+      out.write(s, offset, length);
+      for (int i = offset; i < offset + length; i++) {
+        count(s.charAt(i));
+      }
+    }
+
+    private void count(char c) {
+      if ('\n' == c) {
+        lines++;
+      }
+      atLineStart = '\n' == c;
+    }
+
+    /** Get the name of the output. */
+    public String getName() {
+      return name;
+    }
+
+    /** Get the number of the line being written. */
+    public int getLine() {
+      return lines;
+    }
+
+    /** Determine whether nothing was written to the current line yet. */
+    public boolean atLineStart() {
+      return atLineStart;
+    }
+  }
+
+  /** The entries, in the order added. */
+  private final List<Entry> entries = new ArrayList<Entry>();
+
+  /** The entries, by function. */
+  private final HashMap<String, Entry> functions = new HashMap<String, Entry>();
+
+  /**
+   * Record a function.
+   *
+   * @param function The C++ function, qualified but without parameters.
+   * @param method The Java method, as Class.method(parameter types).
+   * @param location Where the method is declared, or null.
+   */
+  public void add(String function, String method, Location location) {
+    // Classes in the default package are printed as ::__Foo
+    if (function.startsWith("::")) {
+      function = function.substring(2);
+    }
+    Entry entry = (null == location)
+      ? new Entry(function, method, null, 0)
+      : new Entry(function, method, location.file, location.line);
+    entries.add(entry);
+    functions.put(function, entry);
+  }
+
+  /** Get the number of functions. */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Find the Java method a frame of a sampled stack is in.
+   *
+   * @param frame The function as perf or gprof print it, demangled.
+   * @return the entry, or null if the function is not generated.
+   */
+  public Entry lookup(String frame) {
+    return functions.get(function(frame));
+  }
+
+  /**
+   * Strip a demangled function of its parameters, offset and clone
+   * suffix, e.g. "__Shape::area(__rt::Ptr&lt;__Shape&gt;)+0x1c" to
+   * "__Shape::area".
+   */
+  static String function(String frame) {
+    String f = frame.trim();
+    int clone = f.indexOf(" [clone");
+    if (-1 != clone) {
+      f = f.substring(0, clone);
+    }
+    int offset = f.lastIndexOf("+0x");
+    if (-1 != offset) {
+      f = f.substring(0, offset);
+    }
+    // The parameters start at the first parenthesis outside templates
+    int depth = 0;
+    for (int i = 0; i < f.length(); i++) {
+      char c = f.charAt(i);
+      if ('<' == c) {
+        depth++;
+      } else if ('>' == c) {
+        depth--;
+      } else if ('(' == c && 0 == depth && i > 0) {
+        return f.substring(0, i);
+      }
+    }
+    return f;
+  }
+
+  // =========================================================================
+
+  /** Write the map. */
+  public void write(Writer out) throws IOException {
+    for (Entry e : entries) {
+      out.write(e.function + "\t" + e.method + "\t"
+                + ((null == e.file) ? "" : e.file + ":" + e.line) + "\n");
+    }
+    out.flush();
+  }
+
+  /** Read a map file. */
+  public static SourceMap read(File file) throws IOException {
+    FileReader in = new FileReader(file);
+    try {
+      return read(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Read a map.
+   *
+   * @throws IOException if it cannot be read or is malformed.
+   */
+  public static SourceMap read(Reader in) throws IOException {
+    SourceMap map = new SourceMap();
+    BufferedReader lines = new BufferedReader(in);
+    int number = 0;
+    for (String line = lines.readLine(); null != line; line = lines.readLine()) {
+      number++;
+      if (line.isEmpty()) {
+        continue;
+      }
+      String[] fields = line.split("\t", -1);
+      if (3 != fields.length) {
+        throw new IOException("Malformed source map line " + number + ": " + line);
+      }
+      Location location = null;
+      int colon = fields[2].lastIndexOf(':');
+      if (-1 != colon) {
+        try {
+          location = new Location(fields[2].substring(0, colon),
+                                  Integer.parseInt(fields[2].substring(colon + 1)), 0);
+        } catch (NumberFormatException x) {
+          throw new IOException("Malformed source map line " + number + ": " + line);
+        }
+      }
+      map.add(fields[0], fields[1], location);
+    }
+    return map;
+  }
+
+}
@@ -0,0 +1,84 @@
+package qimpp;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import xtc.tree.Location;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for SourceMap and StackFolder.
+ *
+ * @author QIMPP
+ */
+public class SourceMapTest {
+
+  @Test public void testLineCounter() throws IOException {
+    StringWriter out = new StringWriter();
+    SourceMap.LineCounter lines = new SourceMap.LineCounter(out, "out.cc");
+    assertEquals(1, lines.getLine());
+    lines.write("int x;\nint y;");
+    assertEquals(2, lines.getLine());
+    assertFalse(lines.atLineStart());
+    lines.write('\n');
+    assertEquals(3, lines.getLine());
+    assertTrue(lines.atLineStart());
+    assertEquals("int x;\nint y;\n", out.toString());
+  }
+
+  @Test public void testFold() throws IOException {
+    SourceMap map = new SourceMap();
+    map.add("__Shape::area", "Shape.area()", new Location("Shape.java", 12, 0));
+    map.add("main", "Main.main(String[])", new Location("Main.java", 3, 0));
+    StringWriter written = new StringWriter();
+    map.write(written);
+    map = SourceMap.read(new StringReader(written.toString()));
+    assertEquals(2, map.size());
+    assertEquals(12, map.lookup("__Shape::area(__rt::Ptr<__Shape>)+0x1c").getLine());
+    assertEquals("__rt::Array<int>::__new",
+                 SourceMap.function("__rt::Array<int>::__new(int) [clone .isra.0]"));
+
+    String perf = "a.out 4711 10.000001: 250000 cpu-clock:\n"
+      + "\t    4005d6 __Shape::area(__rt::Ptr<__Shape>)+0x16 (/tmp/a.out)\n"
+      + "\t    4006a0 main+0x40 (/tmp/a.out)\n"
+      + "\n"
+      + "a.out 4711 10.000002: 250000 cpu-clock:\n"
+      + "\t    4007f0 __rt::checkNotNull<java::lang::String>(java::lang::String)+0x8 (/tmp/a.out)\n"
+      + "\t    4005d6 __Shape::area(__rt::Ptr<__Shape>)+0x16 (/tmp/a.out)\n"
+      + "\t    4006a0 main+0x40 (/tmp/a.out)\n"
+      + "\n";
+    StackFolder folder = new StackFolder(map, false);
+    folder.read(new StringReader(perf));
+    assertEquals(Long.valueOf(1),
+                 folder.getStacks().get("Main.main(String[]);Shape.area()"));
+    assertEquals(Long.valueOf(1), folder.getStacks().get(
+        "Main.main(String[]);Shape.area();__rt::checkNotNull<java::lang::String>"));
+
+    folder = new StackFolder(map, true);
+    folder.read(new StringReader(perf));
+    assertEquals(Long.valueOf(2),
+                 folder.getStacks().get("Main.main(String[]);Shape.area()"));
+
+    String gprof = "Flat profile:\n\n"
+      + "Each sample counts as 0.01 seconds.\n"
+      + "  %   cumulative   self              self     total\n"
+      + " time   seconds   seconds    calls  ms/call  ms/call  name\n"
+      + " 60.00      0.03     0.03     1000     0.03     0.03  __Shape::area(__rt::Ptr<__Shape>)\n"
+      + " 40.00      0.05     0.02                             main\n"
+      + "\n";
+    folder = new StackFolder(map, false);
+    folder.read(new StringReader(gprof));
+    assertEquals(Long.valueOf(30), folder.getStacks().get("Shape.area()"));
+    assertEquals(Long.valueOf(20), folder.getStacks().get("Main.main(String[])"));
+  }
+
+  @Test(expected = IOException.class)
+  public void testMalformed() throws IOException {
+    SourceMap.read(new StringReader("main\tMain.main()\n"));
+  }
+
+}
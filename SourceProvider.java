@@ -0,0 +1,33 @@
+package qimpp;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Supplies the Java sources the translator reads. Sources are named the
+ * way dependencies are resolved, e.g. "qimpp/Foo.java".
+ *
+ * @author QIMPP
+ */
+public interface SourceProvider {
+
+  /**
+   * Open the named source for reading.
+   *
+   * @param name the source name, e.g. "qimpp/Foo.java"
+   * @return a reader positioned at the start of the source
+   * @throws IOException if the source cannot be found or opened
+   */
+  Reader getReader(String name) throws IOException;
+
+  /**
+   * Get the length of the named source in characters, used to size the
+   * parser's buffers. Only needs to be an estimate.
+   *
+   * @param name the source name
+   * @return the approximate length of the source
+   * @throws IOException if the source cannot be found
+   */
+  int getLength(String name) throws IOException;
+
+}
@@ -0,0 +1,193 @@
+package qimpp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Folds the samples of a profiler run on a translated program into Java
+ * stacks, in the format flamegraph.pl reads:
+ * <pre>
+ * Main.main(String[]);Shape.total(Shape[]);Square.area() 1873
+ * </pre>
+ * Usage:
+ * <pre>
+ * java qimpp.StackFolder [-javaOnly] out.map [profile]
+ * </pre>
+ * where the profile, or standard input, is the output of perf script,
+ * or of gprof, whose flat profile has no stacks and is folded into one
+ * frame per function, weighted by its self time in milliseconds.
+ * Frames of generated functions are replaced by the Java methods out.map
+ * gives; others, such as the runtime's, are kept as they are, or with
+ * -javaOnly left out, so their time counts toward the Java method that
+ * called them.
+ *
+ * @author QIMPP
+ */
+public class StackFolder {
+
+  private final SourceMap map;
+  private final boolean javaOnly;
+
+  /** The samples of each stack, in the order first seen. */
+  private final LinkedHashMap<String, Long> stacks = new LinkedHashMap<String, Long>();
+
+  /**
+   * Create a new folder.
+   *
+   * @param map The functions of the translation.
+   * @param javaOnly Whether to leave out frames of other functions.
+   */
+  public StackFolder(SourceMap map, boolean javaOnly) {
+    this.map = map;
+    this.javaOnly = javaOnly;
+  }
+
+  /** Read perf script or gprof output. */
+  public void read(Reader in) throws IOException {
+    BufferedReader lines = new BufferedReader(in);
+    List<String> frames = new ArrayList<String>();
+    boolean inSample = false;
+    for (String line = lines.readLine(); null != line; line = lines.readLine()) {
+      if (line.startsWith("Flat profile:")) {
+        readGprof(lines);
+        return;
+      } else if (line.trim().isEmpty()) {
+        if (inSample) {
+          add(frames, 1);
+        }
+        frames.clear();
+        inSample = false;
+      } else if (Character.isWhitespace(line.charAt(0))) {
+        // "\t  4005d6 __Shape::area(__rt::Ptr<__Shape>)+0x16 (/tmp/a.out)"
+        String frame = line.trim();
+        int space = frame.indexOf(' ');
+        int dso = frame.lastIndexOf(" (");
+        if (-1 != space) {
+          frames.add(frame.substring(space + 1, (dso > space) ? dso : frame.length()));
+        }
+      } else {
+        // The sample's header, "a.out 4711 123.456: 250000 cpu-clock:"
+        inSample = true;
+      }
+    }
+    if (inSample) {
+      add(frames, 1);
+    }
+  }
+
+  /** Read the flat profile of gprof, from after its title. */
+  private void readGprof(BufferedReader lines) throws IOException {
+    boolean inTable = false;
+    for (String line = lines.readLine(); null != line; line = lines.readLine()) {
+      String trimmed = line.trim();
+      if (trimmed.startsWith("time")) {
+        inTable = true;
+      } else if (inTable && trimmed.isEmpty()) {
+        return;
+      } else if (inTable) {
+        // "%time cumulative self [calls self/call total/call] name"
+        String[] fields = trimmed.split("\\s+", 4);
+        if (4 > fields.length) {
+          continue;
+        }
+        String rest = fields[3];
+        String[] calls = rest.split("\\s+", 4);
+        String name = (4 == calls.length && calls[0].matches("\\d+")) ? calls[3] : rest;
+        try {
+          long millis = Math.round(Double.parseDouble(fields[2]) * 1000);
+          List<String> frames = new ArrayList<String>();
+          frames.add(name);
+          add(frames, millis);
+        } catch (NumberFormatException x) {
+          // Not a row of the table
+        }
+      }
+    }
+  }
+
+  /** Add a stack, given from the innermost frame. */
+  private void add(List<String> frames, long weight) {
+    if (0 >= weight) {
+      return;
+    }
+    StringBuilder stack = new StringBuilder();
+    for (int i = frames.size() - 1; i >= 0; i--) {
+      String frame = frames.get(i);
+      SourceMap.Entry entry = map.lookup(frame);
+      String name;
+      if (null != entry) {
+        name = entry.getMethod();
+      } else if (javaOnly) {
+        continue;
+      } else {
+        name = SourceMap.function(frame);
+      }
+      if (0 != stack.length()) {
+        stack.append(';');
+      }
+      // flamegraph.pl separates frames with semicolons and the count with a space
+      stack.append(name.replace(';', ',').replace(' ', '_'));
+    }
+    if (0 == stack.length()) {
+      stack.append("[unknown]");
+    }
+    String key = stack.toString();
+    Long old = stacks.get(key);
+    stacks.put(key, (null == old) ? weight : old + weight);
+  }
+
+  /** Get the samples of each stack. */
+  public Map<String, Long> getStacks() {
+    return stacks;
+  }
+
+  /** Print the folded stacks. */
+  public void print(PrintWriter out) {
+    for (Map.Entry<String, Long> e : stacks.entrySet()) {
+      out.println(e.getKey() + " " + e.getValue());
+    }
+    out.flush();
+  }
+
+  /**
+   * Fold a profile.
+   *
+   * @param args The command line arguments.
+   */
+  public static void main(String[] args) {
+    int i = 0;
+    boolean javaOnly = false;
+    if (i < args.length && "-javaOnly".equals(args[i])) {
+      javaOnly = true;
+      i++;
+    }
+    if (i >= args.length || i + 2 < args.length) {
+      System.err.println("Usage: java qimpp.StackFolder [-javaOnly] out.map [profile]");
+      System.exit(2);
+    }
+    try {
+      StackFolder folder = new StackFolder(SourceMap.read(new File(args[i])), javaOnly);
+      Reader in = (i + 1 < args.length) ? new FileReader(args[i + 1])
+        : new InputStreamReader(System.in);
+      try {
+        folder.read(in);
+      } finally {
+        in.close();
+      }
+      folder.print(new PrintWriter(System.out));
+    } catch (IOException x) {
+      System.err.println(x.getMessage());
+      System.exit(1);
+    }
+  }
+
+}
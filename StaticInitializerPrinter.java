@@ -3,17 +3,42 @@ import xtc.tree.*;
 
 public class StaticInitializerPrinter extends Visitor{
   Printer printer;
+  NodeAnnotations annotations;
 
   public StaticInitializerPrinter(Printer p){
+    this(p, null);
+  }
+
+  /**
+   * Create a printer that skips the static initializers ConstantFolder
+   * marked TRIVIAL.
+   */
+  public StaticInitializerPrinter(Printer p, NodeAnnotations annotations){
     printer = p;
+    this.annotations = annotations;
   }
 
   public void visitClassDeclaration(GNode n){
+    if (isTrivial(n))
+      return;
     String className = n.getString(0);
     String classType = Type.getClassTypeName(className);
     printer.pln().indent().p(classType).p("::__static_init();").pln();
   }
 
+  /** Determine whether a class's static initializer does nothing. */
+  private boolean isTrivial(GNode n){
+    if (null == annotations || n.size() < 5 || !(n.get(4) instanceof GNode))
+      return false;
+    for (Object o : n.getGeneric(4)){
+      if (o instanceof GNode
+          && ((GNode)o).hasName("ImplementedMethodDeclaration")
+          && ConstantFolder.STATIC_INIT.equals(((GNode)o).getString(0)))
+        return annotations.is((GNode)o, NodeAnnotations.TRIVIAL);
+    }
+    return false;
+  }
+
   public void visit(Node n){
     for (Object o : n){
       if (o instanceof Node)
@@ -31,7 +31,6 @@ import qimpp.Utilities;
 import xtc.tree.GNode;
 import xtc.tree.Node;
 import xtc.tree.Printer;
-import xtc.tree.Visitor;
 import xtc.util.EmptyIterator;
 
 /**
@@ -50,8 +49,8 @@ import xtc.util.EmptyIterator;
  * resolved relative to the symbol table's {@link #root() root}.  Once
  * {@link #enter(String) created}, a scope remains in the symbol table
  * and the corresponding AST node should be associated with that scope
- * by setting the corresponding {@link Constants#SCOPE property} to
- * the scope's qualified name.  Subsequent traversals over that node
+ * by annotating the node with the scope in the table's {@link
+ * NodeAnnotations annotation store}.  Subsequent traversals over that node
  * can then automatically {@link #enter(Node) enter} and {@link
  * #exit(Node) exit} that scope.  Alternatively, if traversing out of
  * tree order, the current scope can be set {@link
@@ -597,6 +596,9 @@ public class SymbolTable {
   /** The fresh identifier count. */
   protected int freshIdCount;
 
+  /** The annotation store nodes are marked in. */
+  protected final NodeAnnotations annotations;
+
   // =========================================================================
 
   /**
@@ -613,10 +615,31 @@ public class SymbolTable {
    * @param root The name of the root scope.
    */
   public SymbolTable(String root) {
-    this.root      = new Scope(root);
-    current        = this.root;
-    freshNameCount = 0;
-    freshIdCount   = 0;
+    this(root, new NodeAnnotations());
+  }
+
+  /**
+   * Create a new symbol table with the empty string as the root
+   * scope's name, marking nodes in the specified annotation store.
+   *
+   * @param annotations The annotation store.
+   */
+  public SymbolTable(NodeAnnotations annotations) {
+    this("", annotations);
+  }
+
+  /**
+   * Create a new symbol table.
+   *
+   * @param root The name of the root scope.
+   * @param annotations The annotation store.
+   */
+  public SymbolTable(String root, NodeAnnotations annotations) {
+    this.root        = new Scope(root);
+    current          = this.root;
+    freshNameCount   = 0;
+    freshIdCount     = 0;
+    this.annotations = annotations;
   }
 
   // =========================================================================
@@ -822,47 +845,42 @@ public class SymbolTable {
   }
 
   /**
-   * Determine whether the specified node has an associated {@link
-   * Constants#SCOPE scope}.
+   * Determine whether the specified node has an associated scope.
    *
    * @param n The node.
    * @return <code>true</code> if the node has an associated scope.
    */
-  public static boolean hasScope(Node n) {
-    return n.hasProperty(Constants.SCOPE);
+  public boolean hasScope(Node n) {
+    return annotations.hasScope(n);
   }
   
   /**
    * Mark the specified node.  If the node does not have an associated
-   * {@link Constants#SCOPE scope}, this method set the property with
-   * the current scope.
+   * scope, this method annotates it with the current scope.
    *
    * @param n The node.
    */
   public void mark(Node n) {
-    if (! n.hasProperty(Constants.SCOPE)) {
-      n.setProperty(Constants.SCOPE, current);
+    if (! annotations.hasScope(n)) {
+      annotations.setScope(n, current);
     }
   }
 
   /**
-   * Enter the specified node.  If the node has an associated {@link
-   * Constants#SCOPE scope}, this method tries to enter the scope.
-   * Otherwise, it does not change the scope.
+   * Enter the specified node.  If the node has an associated scope,
+   * this method tries to enter the scope.  Otherwise, it does not
+   * change the scope.
    *
    * @param n The node.
    * @throws IllegalStateException Signals that the node's scope is
-   *   invalid or not nested within the current scope.
+   *   not nested within the current scope.
    */
   public void enter(Node n) {
-    if (n.hasProperty(Constants.SCOPE)) {
-      String name  = n.getStringProperty(Constants.SCOPE);
-      Scope  scope = getScope(name);
-
-      if (null == scope) {
-        throw new IllegalStateException("Invalid scope " + name);
-      } else if (scope.getParent() != current) {
-        throw new IllegalStateException("Scope " + name + " not nested in " +
+    Scope scope = annotations.getScope(n);
+    if (null != scope) {
+      if (scope.getParent() != current) {
+        throw new IllegalStateException("Scope " + scope.getQualifiedName() +
+                                        " not nested in " +
                                         current.getQualifiedName());
       }
 
@@ -871,13 +889,13 @@ public class SymbolTable {
   }
 
   /**
-   * Exit the specified node.  If the node has an associated {@link
-   * Constants#SCOPE scope}, the current scope is exited.
+   * Exit the specified node.  If the node has an associated scope, the
+   * current scope is exited.
    *
    * @param n The node.
    */
   public void exit(Node n) {
-    if (n.hasProperty(Constants.SCOPE)) {
+    if (annotations.hasScope(n)) {
       exit();
     }
   }
@@ -954,244 +972,402 @@ public class SymbolTable {
    * @param node a tree to incorporate into the SymbolTable
    */
   public void incorporate(Node node) {
-    final SymbolTable table = this;
-    
-    new Visitor() {
-
-      // TODO: Inheritance.
-      //
-      // What I can think of:
-      // 1. runtime should be visible anywhere within the body since it gets
-      //  gets inherited from Tool.
-      // 2. classes from the import should be visible from anywhere in
-      //  the class.
-      // 3. Keep track of class versus stack scope.
-
-      // State variables
-      boolean inMethod = false;
-
-      // root of static scope tree
-      public void visitCompilationUnit(GNode n) {
-        visit(n);
-      }
+    incorporate(node, null);
+  }
 
-      public void visitClassDeclaration(GNode n) {
-        table.enter(n.getString(0), n);
-        table.mark(n);
-        
-        
-        visit(n.getGeneric(4));
-        visit(n.getGeneric(1));
-        table.exit();
-      }
+  /**
+   * Incorporate a Node tree into the instance, letting another visitor
+   * walk the method bodies. This way a pass over the bodies, such as
+   * BlockMangler's, builds their scopes as it goes instead of needing a
+   * walk of its own.
+   *
+   * @param node a tree to incorporate into the SymbolTable
+   * @param bodies the visitor for method bodies, or null
+   */
+  public void incorporate(Node node, BodyVisitor bodies) {
+    Incorporator incorporator = incorporator();
+    incorporator.inMethod = false;
+    incorporator.bodies = bodies;
+    try {
+      incorporator.dispatch(node);
+    } finally {
+      incorporator.bodies = null;
+    }
+  }
 
-      // TODO: Handle interfaces?
-      public void visitInterfaceDeclaration(GNode n) {
-        table.enter(table.freshCId(n.getName()), n);
-        table.mark(n);
-        visit(n.getNode(4));
-        table.exit();
-      }
+  /** A visitor for the method bodies of an incorporated tree. */
+  public interface BodyVisitor {
 
-      public void visitConstructorDeclaration(GNode n) {
-        table.enter(table.freshCId("constructor"), n);
-        table.mark(n);
-        visit(n.getNode(0)); // block
-        visit(n.getNode(1)); // parameters
-        table.exit();
+    /**
+     * Visit a method body, calling open() and close() around every node
+     * the visitor reaches below the body. The body itself is not opened,
+     * as its statements belong to the method's scope.
+     *
+     * @param body the Block of the method
+     * @return false if the body was not visited, in which case the
+     *  symbol table walks it itself
+     */
+    boolean visitBody(GNode body);
+
+  }
+
+  // Actions of open(), undone by close()
+  private static final int OPEN_NONE = 0;
+  private static final int OPEN_SCOPE = 1;
+  private static final int OPEN_SUPPRESS = 2;
+
+  /** The actions of the open nodes, a stack of openDepth entries. */
+  private int[] opened = new int[32];
+  private int openDepth;
+
+  /** The number of open nodes whose children are not incorporated. */
+  private int suppressed;
+
+  /**
+   * Incorporate a node reached by a BodyVisitor. This creates and enters
+   * the node's scope, marks the node and adds its definitions, just as
+   * incorporate() does on reaching the node. Below nodes whose children
+   * incorporate() would not visit, it does nothing. Each call must be
+   * followed by a call to close() once the node's children are done.
+   *
+   * @param n the node, which may be null
+   */
+  public void open(Node n) {
+    int action = OPEN_NONE;
+    if (0 == suppressed && n instanceof GNode) {
+      action = incorporator().open(NodeKind.of(n.getName()), (GNode)n);
+      if (0 != (action & OPEN_SUPPRESS)) {
+        suppressed++;
       }
+    }
+    if (openDepth == opened.length) {
+      int[] grown = new int[openDepth * 2];
+      System.arraycopy(opened, 0, grown, 0, openDepth);
+      opened = grown;
+    }
+    opened[openDepth++] = action;
+  }
 
-      public void visitImplementedMethodDeclaration(GNode n) {
-        Node parameters = n.getNode(2);
-        /*
-        if (parameters.size() > 0) {
-          table.enter(n.getString(3), n);
-          table.mark(n);
-          visit(parameters);
+  /** Finish incorporating the node last passed to open(). */
+  public void close() {
+    int action = opened[--openDepth];
+    if (0 != (action & OPEN_SCOPE)) {
+      exit();
+    }
+    if (0 != (action & OPEN_SUPPRESS)) {
+      suppressed--;
+    }
+  }
+
+  private Incorporator incorporator() {
+    if (null == incorporator) {
+      incorporator = new Incorporator();
+    }
+    return incorporator;
+  }
+
+  /** The visitor incorporating trees, reused across incorporate calls. */
+  private Incorporator incorporator;
+
+  /** The visitor that builds scopes for, and marks, an incorporated tree. */
+  private class Incorporator extends DispatchingVisitor {
+
+    // TODO: Inheritance.
+    //
+    // What I can think of:
+    // 1. runtime should be visible anywhere within the body since it gets
+    //  gets inherited from Tool.
+    // 2. classes from the import should be visible from anywhere in
+    //  the class.
+    // 3. Keep track of class versus stack scope.
+
+    final SymbolTable table = SymbolTable.this;
+
+    // State variables
+    boolean inMethod = false;
+
+    /** The visitor of method bodies, if any. */
+    BodyVisitor bodies;
+
+    protected Object dispatch(int kind, GNode n) {
+      switch (kind) {
+      case NodeKind.COMPILATION_UNIT:
+        visitCompilationUnit(n);
+        return null;
+      case NodeKind.CLASS_DECLARATION:
+        visitClassDeclaration(n);
+        return null;
+      case NodeKind.INTERFACE_DECLARATION:
+        visitInterfaceDeclaration(n);
+        return null;
+      case NodeKind.CONSTRUCTOR_DECLARATION:
+        visitConstructorDeclaration(n);
+        return null;
+      case NodeKind.IMPLEMENTED_METHOD_DECLARATION:
+        visitImplementedMethodDeclaration(n);
+        return null;
+      case NodeKind.INHERITED_METHOD_CONTAINER:
+        // Inherited methods were incorporated with their own class
+        return null;
+      case NodeKind.UNKNOWN:
+        // Identifier and anything else without a kind
+        return UNHANDLED;
+      default:
+        int action = open(kind, n);
+        if (0 == (action & OPEN_SUPPRESS)) {
+          visit(n);
+        }
+        if (0 != (action & OPEN_SCOPE)) {
           table.exit();
         }
+        return null;
+      }
+    }
 
-        Node body = n.getNode(7);
-        if (null != body) {
-          table.enter(n.getString(3), n);
-          table.mark(n);
-          this.inMethod = true;
-          visit(body);
-          this.inMethod = false;
-          table.exit();
-        }*/
+    /**
+     * Incorporate a node below the method level, without visiting its
+     * children.
+     *
+     * @return OPEN_SCOPE if a scope was entered for the node, and
+     *  OPEN_SUPPRESS if its children must not be incorporated
+     */
+    int open(int kind, GNode n) {
+      switch (kind) {
+      case NodeKind.BLOCK:
+        return openBlock(n);
+      case NodeKind.FOR_STATEMENT:
+        return openForStatement(n);
+      case NodeKind.BASIC_FOR_CONTROL:
+        return openBasicForControl(n);
+      case NodeKind.NEW_CLASS_EXPRESSION:
+        return openNewClassExpression(n);
+      case NodeKind.DECLARATOR:
+        return openDeclarator(n);
+      case NodeKind.FORMAL_PARAMETER:
+        return openFormalParameter(n);
+      case NodeKind.FIELD_DECLARATION:
+        return openFieldDeclaration(n);
+      case NodeKind.QUALIFIED_IDENTIFIER:
+      case NodeKind.PRIMARY_IDENTIFIER:
+        return openIdentifier(n);
+      case NodeKind.UNKNOWN:
+        if (n.hasName("Identifier")) {
+          visitIdentifier(n);
+          return OPEN_SUPPRESS;
+        }
+        return OPEN_NONE;
+      default:
+        return OPEN_NONE;
+      }
+    }
+
+    // root of static scope tree
+    public void visitCompilationUnit(GNode n) {
+      visit(n);
+    }
+
+    public void visitClassDeclaration(GNode n) {
+      table.enter(n.getString(0), n);
+      table.mark(n);
+      
+      
+      visit(n.getGeneric(4));
+      visit(n.getGeneric(1));
+      table.exit();
+    }
+
+    // TODO: Handle interfaces?
+    public void visitInterfaceDeclaration(GNode n) {
+      table.enter(table.freshCId(n.getName()), n);
+      table.mark(n);
+      visit(n.getNode(4));
+      table.exit();
+    }
 
-        Node body = n.getNode(3);
-        // Make sure we don't enter the scope of some already-named method
-        table.enter(Disambiguator.getMethodOverloadName(n) , n);
+    public void visitConstructorDeclaration(GNode n) {
+      table.enter(table.freshCId("constructor"), n);
+      table.mark(n);
+      visit(n.getNode(0)); // block
+      visit(n.getNode(1)); // parameters
+      table.exit();
+    }
+
+    public void visitImplementedMethodDeclaration(GNode n) {
+      Node parameters = n.getNode(2);
+      /*
+      if (parameters.size() > 0) {
+        table.enter(n.getString(3), n);
         table.mark(n);
-        
-        
         visit(parameters);
+        table.exit();
+      }
+
+      Node body = n.getNode(7);
+      if (null != body) {
+        table.enter(n.getString(3), n);
+        table.mark(n);
         this.inMethod = true;
         visit(body);
         this.inMethod = false;
         table.exit();
+      }*/
+
+      GNode body = n.getGeneric(3);
+      // Make sure we don't enter the scope of some already-named method
+      table.enter(Disambiguator.getMethodOverloadName(n) , n);
+      table.mark(n);
+      
+      
+      visit(parameters);
+      this.inMethod = true;
+      if (null == bodies || !bodies.visitBody(body)) {
+        visit(body);
       }
+      this.inMethod = false;
+      table.exit();
+    }
+
+    public int openBlock(GNode n) {
+      table.enter(table.freshCId(), n);
+      table.mark(n);
+      return OPEN_SCOPE;
+    }
 
-      public void visitBlock(GNode n) {
-        table.enter(table.freshCId(), n);
+    public int openForStatement(GNode n) {
+      // if any declarations. TODO: Handle multiple declarations
+      Node declarators = n.getNode(0).getNode(2);
+      if (null != declarators) {
+        table.enter(table.freshCId("for"), n);
         table.mark(n);
-        visit(n);
-        table.exit();
+        return OPEN_SCOPE;
       }
+      return OPEN_SUPPRESS;
+    }
 
-      public void visitForStatement(GNode n) {
-        // if any declarations. TODO: Handle multiple declarations
-        Node declarators = n.getNode(0).getNode(2);
-        if (null != declarators) {
-          table.enter(table.freshCId("for"), n);
-          table.mark(n);
-          dispatch(n.getNode(0));
-          dispatch(n.getNode(1));
-          table.exit();
+    public int openBasicForControl(GNode n) {
+      if (n.getNode(0) != null) {
+        ArrayList<String> fieldNames = new ArrayList<String>();
+        //iterate through declarators and add to fieldNames.
+        GNode declarators = n.getGeneric(2);
+        for (Object declarator : declarators) {
+          String fieldName = (String)((GNode)declarator).getString(0);
+          fieldNames.add(fieldName);
         }
-      }
-
-      public void visitBasicForControl(GNode n) {
-        if (n.getNode(0) != null) {
-          ArrayList<String> fieldNames = new ArrayList<String>();
-          //iterate through declarators and add to fieldNames.
-          GNode declarators = n.getGeneric(2);
-          for (Object declarator : declarators) {
-            String fieldName = (String)((GNode)declarator).getString(0);
-            fieldNames.add(fieldName);
-          }
 
-          for ( String name : fieldNames ) {
-            // Associate the name with its field declaration
-            table.current().addDefinition(name, n);
-          }
-        }
-      } 
-
-      public void visitNewClassExpression(GNode n) {
-        Node body = n.getNode(4);
-        if (null != body) {
-          table.enter(table.freshCId(n.getName()), n);
-          table.mark(n);
-          visit(body);
-          table.exit();
+        for ( String name : fieldNames ) {
+          // Associate the name with its field declaration
+          table.current().addDefinition(name, n);
         }
       }
+      return OPEN_SUPPRESS;
+    } 
 
-      // ======================================================================
-      
-      /**
-       * Visits Declarator and FormalParameter nodes and marks them with the 
-       * appropriate scope.
-       *
-       * Adding the definition is just for determining the context of nested
-       * scopes.
-       *
-       */
-      public void visitDeclarator(GNode n) {
-        //table.current().node(n);
+    public int openNewClassExpression(GNode n) {
+      // Only the body is incorporated, there is nothing to open below
+      Node body = n.getNode(4);
+      if (null != body) {
+        table.enter(table.freshCId(n.getName()), n);
         table.mark(n);
-
-        // There can be primary identifiers in Declarators
-        visit(n);
-      }
-
-      /**
-       * Visit all declarators (usually for a FieldDeclaration) and return a list of their names.
-       * @returns an ArrayList containing the names
-       */
-      public void visitDeclarators(GNode n) {
-        visit(n);
+        visit(body);
+        table.exit();
       }
+      return OPEN_SUPPRESS;
+    }
 
-      public void visitFormalParameter(GNode n) {
-        
-        //Use CPPAST's version of FormalParameter
-        if (!inMethod){
-          table.current().addDefinition(n.getString(0), n);
-        }
+    // ======================================================================
+    
+    /**
+     * Visits Declarator and FormalParameter nodes and marks them with the 
+     * appropriate scope.
+     *
+     * Adding the definition is just for determining the context of nested
+     * scopes.
+     *
+     * There can be primary identifiers in Declarators, so their children
+     * are incorporated.
+     */
+    public int openDeclarator(GNode n) {
+      //table.current().node(n);
+      table.mark(n);
+      return OPEN_NONE;
+    }
 
-        // For TryCatch
-        else
-          table.current().addDefinition(n.getString(3), n);
-        //table.current().node(n);
-        table.mark(n);
+    public int openFormalParameter(GNode n) {
+      
+      //Use CPPAST's version of FormalParameter
+      if (!inMethod){
+        table.current().addDefinition(n.getString(0), n);
       }
 
-      /**
-       * Visits FieldDeclarations, and adds the proper field name to the current scope,
-       * if we are inside a method.
-       *
-       * Class-level fields are resolved in the ClassDeclaration node's "FieldMap" property
-       */
-      public void visitFieldDeclaration(GNode n) {
-        if (inMethod) {
-          ArrayList<String> fieldNames = new ArrayList<String>();
-          //iterate through declarators and add to fieldNames.
-          GNode declarators = n.getGeneric(2);
-          for (Object declarator : declarators) {
-            String fieldName = (String)((GNode)declarator).getString(0);
-            fieldNames.add(fieldName);
-          }
+      // For TryCatch
+      else
+        table.current().addDefinition(n.getString(3), n);
+      //table.current().node(n);
+      table.mark(n);
+      return OPEN_SUPPRESS;
+    }
 
-          for ( String name : fieldNames ) {
-            // Associate the name with its field declaration
-            table.current().addDefinition(name, n);
-          }
+    /**
+     * Visits FieldDeclarations, and adds the proper field name to the current scope,
+     * if we are inside a method.
+     *
+     * Class-level fields are resolved in the ClassDeclaration node's "FieldMap" MemberTable
+     */
+    public int openFieldDeclaration(GNode n) {
+      if (inMethod) {
+        ArrayList<String> fieldNames = new ArrayList<String>();
+        //iterate through declarators and add to fieldNames.
+        GNode declarators = n.getGeneric(2);
+        for (Object declarator : declarators) {
+          String fieldName = (String)((GNode)declarator).getString(0);
+          fieldNames.add(fieldName);
         }
-        visit(n);
-      }
 
-      // ======================================================================
-
-      /**
-       * Visits identifier nodes and marks them with the appropriate
-       * scope. It requires looking up if scope for the identifier has been 
-       * created already. If so, do not call mark.
-       *
-       * Note that the QualifiedIdentifier may be contain several symbols, 
-       * as in a package name.
-       */
-
-      public void visitQualifiedIdentifier(GNode n) {
-        Scope currentScope = table.current();
-        Scope context = table.current().lookupScope(n.getString(0));
-        if (null != context) {
-          table.setScope(context);
-          table.mark(n);
-          table.setScope(currentScope);
+        for ( String name : fieldNames ) {
+          // Associate the name with its field declaration
+          table.current().addDefinition(name, n);
         }
       }
+      return OPEN_NONE;
+    }
 
-      public void visitPrimaryIdentifier(GNode n) {
-        Scope currentScope = table.current();
-        Scope context = table.current().lookupScope(n.getString(0));
-        if (null != context) {
-          table.setScope(context);
-          table.mark(n);
-          table.setScope(currentScope);
-        }
-      }
+    // ======================================================================
 
-      // I haven't seen this called yet, actually.
-      public void visitIdentifier(GNode n) {
+    /**
+     * Visits identifier nodes and marks them with the appropriate
+     * scope. It requires looking up if scope for the identifier has been 
+     * created already. If so, do not call mark.
+     *
+     * Note that the QualifiedIdentifier may be contain several symbols, 
+     * as in a package name.
+     */
+    public int openIdentifier(GNode n) {
+      Scope currentScope = table.current();
+      Scope context = table.current().lookupScope(n.getString(0));
+      if (null != context) {
+        table.setScope(context);
         table.mark(n);
-        System.out.println(
-           n.getString(0) + " => " + n.getProperty(Constants.SCOPE)
-        );
+        table.setScope(currentScope);
       }
+      return OPEN_SUPPRESS;
+    }
 
-      // ======================================================================
+    // I haven't seen this called yet, actually.
+    public void visitIdentifier(GNode n) {
+      table.mark(n);
+      System.out.println(
+         n.getString(0) + " => " + annotations.getScope(n)
+      );
+    }
 
-      public void visit(Node n) {
-        for (Object o : n) {
-          if (o instanceof Node) {
-              dispatch((Node)o);
-          }
+    // ======================================================================
+
+    public void visit(Node n) {
+      for (Object o : n) {
+        if (o instanceof Node) {
+            dispatch((Node)o);
         }
       }
-    }.dispatch(node);
+    }
   }
 }
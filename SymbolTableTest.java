@@ -0,0 +1,78 @@
+package qimpp;
+
+import xtc.tree.GNode;
+import xtc.tree.Node;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for SymbolTable.
+ *
+ * @author QIMPP
+ */
+public class SymbolTableTest {
+
+  NodeAnnotations annotations;
+  GNode declaration, use, nestedUse, classNode;
+
+  @Before public void setUp() {
+    annotations = new NodeAnnotations();
+
+    // int x; { x; }  in  void m(int y)
+    GNode intType = GNode.create("Type", GNode.create("PrimitiveType", "int"), null);
+    declaration = GNode.create("FieldDeclaration", GNode.create("Modifiers"), intType,
+        GNode.create("Declarators", GNode.create("Declarator", "x", null, null)));
+    use = GNode.create("PrimaryIdentifier", "y");
+    nestedUse = GNode.create("PrimaryIdentifier", "x");
+    GNode body = GNode.create("Block", declaration,
+        GNode.create("ExpressionStatement", use),
+        GNode.create("Block", GNode.create("ExpressionStatement", nestedUse)));
+    GNode method = GNode.create("ImplementedMethodDeclaration", "m",
+        GNode.create("ReturnType", GNode.create("PrimitiveType", "void")),
+        GNode.create("FormalParameters", GNode.create("FormalParameter", "y", intType)),
+        body);
+    classNode = GNode.create("ClassDeclaration", "A", GNode.create("Parent"),
+        GNode.create("Constructors"), GNode.create("Fields"),
+        GNode.create("Methods", method));
+  }
+
+  void assertResolved() {
+    assertSame(declaration, annotations.getScope(nestedUse).lookup("x"));
+    assertEquals("y", ((GNode)annotations.getScope(use).lookup("y")).getString(0));
+  }
+
+  @Test public void testIncorporate() {
+    new SymbolTable(annotations).incorporate(classNode);
+    assertResolved();
+  }
+
+  @Test public void testIncorporateWithBodyVisitor() {
+    final SymbolTable table = new SymbolTable(annotations);
+    final int[] visited = new int[1];
+    table.incorporate(classNode, new SymbolTable.BodyVisitor() {
+      public boolean visitBody(GNode body) {
+        for (Object o : body) {
+          walk((Node)o);
+        }
+        return true;
+      }
+
+      void walk(Node n) {
+        table.open(n);
+        visited[0]++;
+        for (Object o : n) {
+          if (o instanceof Node) {
+            walk((Node)o);
+          }
+        }
+        table.close();
+      }
+    });
+    assertResolved();
+    assertTrue(visited[0] > 0);
+  }
+
+}
@@ -39,22 +39,6 @@ class Type {
     put("void", "void");
   }};
 
-  static String[] priorities = 
-  { "double", "float", "long", "int", "short", "byte", "char", "boolean" };
-
-  /** The conversions for char that do not lose information */
-  static String[] charWidening = { "int", "long", "float", "double" };
-  
-  static String[] shortWidening = { "int", "long", "float", "double" };
-
-  static String[] byteWidening = { "short", "int", "long", "float", "double" };
-
-  static String[] intWidening = { "long", "float", "double" };
-
-  static String[] longWidening = { "float", "double" };
-
-  static String[] floatWidening = { "double" };
-
   /**
    * Figure out if one type can be cast to another
    */
@@ -62,37 +46,9 @@ class Type {
     if (sourceType.equals(targetType)){
       return true;
     }
-    if (sourceType.equals("char")){
-      for (int i = 0; i < charWidening.length; i++){
-        if (targetType.equals(charWidening[i])) return true;
-      }
-    }
-    else if (sourceType.equals("short")){
-      for (int i = 0; i < shortWidening.length; i++){
-        if (targetType.equals(shortWidening[i])) return true;
-      }
-    }
-    else if (sourceType.equals("byte")){
-      for (int i = 0; i < byteWidening.length; i++){
-        if (targetType.equals(byteWidening[i])) return true;
-      }
-    }
-    else if (sourceType.equals("int")){
-      for (int i = 0; i < intWidening.length; i++){
-        if (targetType.equals(intWidening[i])) return true;
-      }
-    }
-    else if (sourceType.equals("long")){
-      for (int i = 0; i < longWidening.length; i++){
-        if (targetType.equals(longWidening[i])) return true;
-      }
-    }
-    else if (sourceType.equals("float")){
-      for (int i = 0; i < floatWidening.length; i++){
-        if (targetType.equals(floatWidening[i])) return true;
-      }
-    }
-    return false; 
+    TypeDescriptor.Primitive source = TypeDescriptor.Primitive.forName(sourceType);
+    TypeDescriptor.Primitive target = TypeDescriptor.Primitive.forName(targetType);
+    return null != source && null != target && source.widensTo(target);
   }
 
 
@@ -100,17 +56,20 @@ class Type {
    * Get the higher priority of two types
    */
   static String compare(String type1, String type2) {
-    int resultIndex = 0;
-    for (int i = 0; i < priorities.length; i++){
-      if (type1.equals(priorities[i])) {
-        resultIndex = i; break;
-      }
-      if (type2.equals(priorities[i])) {
-        resultIndex = i; break;
-      }
-    }
-    if (resultIndex < 3) { return priorities[resultIndex]; }
-    else { return "int"; }
+    return compare(primitiveDescriptor(type1), primitiveDescriptor(type2))
+      .getPrimitive().getName();
+  }
+
+  /**
+   * Get the type of arithmetic on two types
+   */
+  static TypeDescriptor compare(TypeDescriptor type1, TypeDescriptor type2) {
+    return TypeDescriptor.promote(type1, type2);
+  }
+
+  private static TypeDescriptor primitiveDescriptor(String type) {
+    TypeDescriptor.Primitive p = TypeDescriptor.Primitive.forName(type);
+    return (null == p) ? null : TypeDescriptor.forPrimitive(p);
   }
 
   /**
@@ -0,0 +1,335 @@
+package qimpp;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import xtc.tree.GNode;
+
+/**
+ * A canonical Java type: a primitive or class, and a number of array
+ * dimensions. Descriptors are hash-consed, so two descriptors denote the
+ * same type if and only if they are the same object, and can be compared
+ * with ==.
+ *
+ * Types in the ASTs are still Type(PrimitiveType | QualifiedIdentifier,
+ * Dimensions) nodes; of() maps such a node to its descriptor and
+ * toTypeNode() goes the other way.
+ *
+ * @author QIMPP
+ */
+public final class TypeDescriptor {
+
+  /** The Java primitive types. */
+  public enum Primitive {
+    BOOLEAN("boolean"),
+    BYTE("byte"),
+    SHORT("short"),
+    CHAR("char"),
+    INT("int"),
+    LONG("long"),
+    FLOAT("float"),
+    DOUBLE("double"),
+    VOID("void");
+
+    private final String name;
+
+    private Primitive(String name) {
+      this.name = name;
+    }
+
+    /** Get the Java name of this primitive. */
+    public String getName() {
+      return name;
+    }
+
+    /** Determine whether this type converts to target without a cast. */
+    public boolean widensTo(Primitive target) {
+      return WIDENS[ordinal()][target.ordinal()];
+    }
+
+    /**
+     * Get the primitive with the given Java name.
+     *
+     * @return the primitive, or null if the name is not a primitive type
+     */
+    public static Primitive forName(String name) {
+      for (Primitive p : VALUES) {
+        if (p.name.equals(name)) {
+          return p;
+        }
+      }
+      return null;
+    }
+
+    private static final Primitive[] VALUES = values();
+  }
+
+  /**
+   * The widening primitive conversions (JLS 5.1.2) and identity,
+   * indexed by source and target ordinal.
+   */
+  private static final boolean[][] WIDENS;
+
+  static {
+    Primitive[] p = Primitive.values();
+    WIDENS = new boolean[p.length][p.length];
+    for (int i = 0; i < p.length; i++) {
+      WIDENS[i][i] = true;
+    }
+    widens(Primitive.BYTE, Primitive.SHORT, Primitive.INT, Primitive.LONG,
+           Primitive.FLOAT, Primitive.DOUBLE);
+    widens(Primitive.SHORT, Primitive.INT, Primitive.LONG, Primitive.FLOAT,
+           Primitive.DOUBLE);
+    widens(Primitive.CHAR, Primitive.INT, Primitive.LONG, Primitive.FLOAT,
+           Primitive.DOUBLE);
+    widens(Primitive.INT, Primitive.LONG, Primitive.FLOAT, Primitive.DOUBLE);
+    widens(Primitive.LONG, Primitive.FLOAT, Primitive.DOUBLE);
+    widens(Primitive.FLOAT, Primitive.DOUBLE);
+  }
+
+  private static void widens(Primitive source, Primitive... targets) {
+    for (Primitive target : targets) {
+      WIDENS[source.ordinal()][target.ordinal()] = true;
+    }
+  }
+
+  /** The descriptors of the primitives, indexed by ordinal. */
+  private static final TypeDescriptor[] PRIMITIVES;
+
+  static {
+    Primitive[] p = Primitive.values();
+    PRIMITIVES = new TypeDescriptor[p.length];
+    for (int i = 0; i < p.length; i++) {
+      PRIMITIVES[i] = new TypeDescriptor(p[i], null, null);
+    }
+  }
+
+  /** The class descriptors, by dot-delimited name. */
+  private static final ConcurrentHashMap<String, TypeDescriptor> CLASSES =
+    new ConcurrentHashMap<String, TypeDescriptor>();
+
+  public static final TypeDescriptor BOOLEAN = forPrimitive(Primitive.BOOLEAN);
+  public static final TypeDescriptor BYTE = forPrimitive(Primitive.BYTE);
+  public static final TypeDescriptor SHORT = forPrimitive(Primitive.SHORT);
+  public static final TypeDescriptor CHAR = forPrimitive(Primitive.CHAR);
+  public static final TypeDescriptor INT = forPrimitive(Primitive.INT);
+  public static final TypeDescriptor LONG = forPrimitive(Primitive.LONG);
+  public static final TypeDescriptor FLOAT = forPrimitive(Primitive.FLOAT);
+  public static final TypeDescriptor DOUBLE = forPrimitive(Primitive.DOUBLE);
+  public static final TypeDescriptor VOID = forPrimitive(Primitive.VOID);
+  public static final TypeDescriptor OBJECT = forClass("java.lang.Object");
+  public static final TypeDescriptor STRING = forClass("java.lang.String");
+  /** The runtime's array class, the type of array objects' members. */
+  public static final TypeDescriptor ARRAY = forClass("__rt.Array");
+
+  // =========================================================================
+
+  private final Primitive primitive;
+  private final String className;
+  private final String[] qualifiers;
+  private final TypeDescriptor element;
+  private final int dimensions;
+
+  /** The array type of this type, created on demand. */
+  private volatile TypeDescriptor array;
+
+  /** The canonical Type node of this type, created on demand. */
+  private volatile GNode typeNode;
+
+  private TypeDescriptor(Primitive primitive, String className,
+                         TypeDescriptor element) {
+    this.primitive = primitive;
+    this.className = className;
+    this.qualifiers = (null == className) ? null : className.split("\\.");
+    this.element = element;
+    this.dimensions = (null == element) ? 0 : element.dimensions + 1;
+  }
+
+  /** Get the descriptor of a primitive type. */
+  public static TypeDescriptor forPrimitive(Primitive primitive) {
+    return PRIMITIVES[primitive.ordinal()];
+  }
+
+  /**
+   * Get the descriptor of a class type. The unqualified names String,
+   * Object and Class denote the java.lang classes, as in
+   * Disambiguator.disambiguate.
+   *
+   * @param name the dot-delimited class name
+   */
+  public static TypeDescriptor forClass(String name) {
+    TypeDescriptor type = CLASSES.get(name);
+    if (null == type) {
+      if (name.equals("String") || name.equals("Object")
+          || name.equals("Class")) {
+        type = forClass("java.lang." + name);
+      } else {
+        type = new TypeDescriptor(null, name.intern(), null);
+      }
+      TypeDescriptor existing = CLASSES.putIfAbsent(name, type);
+      if (null != existing) {
+        type = existing;
+      }
+    }
+    return type;
+  }
+
+  /**
+   * Get the descriptor of a Type or ReturnType node, i.e. a node whose
+   * first child is a PrimitiveType or QualifiedIdentifier and whose
+   * optional second child is a Dimensions node.
+   *
+   * @return the descriptor, or null if the node is not a type
+   */
+  public static TypeDescriptor of(GNode typeNode) {
+    if (null == typeNode || 0 == typeNode.size()) {
+      return null;
+    }
+    GNode base = typeNode.getGeneric(0);
+    TypeDescriptor type;
+    if (null == base) {
+      return null;
+    } else if (base.hasName("PrimitiveType")) {
+      Primitive primitive = Primitive.forName(base.getString(0));
+      if (null == primitive) {
+        return null;
+      }
+      type = forPrimitive(primitive);
+    } else if (base.hasName("QualifiedIdentifier")) {
+      type = forClass(Disambiguator.getDotDelimitedName(base));
+    } else {
+      return null;
+    }
+
+    if (typeNode.size() > 1 && null != typeNode.getGeneric(1)) {
+      for (int i = typeNode.getGeneric(1).size(); i > 0; i--) {
+        type = type.arrayOf();
+      }
+    }
+    return type;
+  }
+
+  // =========================================================================
+
+  public boolean isPrimitive() {
+    return 0 == dimensions && null != primitive;
+  }
+
+  public boolean isArray() {
+    return 0 != dimensions;
+  }
+
+  public boolean isClass() {
+    return 0 == dimensions && null != className;
+  }
+
+  /** Get the primitive of a primitive type, or null. */
+  public Primitive getPrimitive() {
+    return (0 == dimensions) ? primitive : null;
+  }
+
+  /** Get the interned dot-delimited name of a class type, or null. */
+  public String getClassName() {
+    return (0 == dimensions) ? className : null;
+  }
+
+  /** Get the number of array dimensions. */
+  public int getDimensions() {
+    return dimensions;
+  }
+
+  /** Get the element type of an array type, or null. */
+  public TypeDescriptor getElement() {
+    return element;
+  }
+
+  /** Get the innermost element type of an array type, or this type. */
+  public TypeDescriptor getBase() {
+    TypeDescriptor base = this;
+    while (null != base.element) {
+      base = base.element;
+    }
+    return base;
+  }
+
+  /** Get the array type with this type as its element type. */
+  public TypeDescriptor arrayOf() {
+    TypeDescriptor result = array;
+    if (null == result) {
+      synchronized (this) {
+        result = array;
+        if (null == result) {
+          result = new TypeDescriptor(null, null, this);
+          array = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Determine whether a value of this primitive type converts to target
+   * without a cast.
+   */
+  public boolean widensTo(TypeDescriptor target) {
+    if (this == target) {
+      return true;
+    }
+    Primitive source = getPrimitive();
+    Primitive other = target.getPrimitive();
+    return null != source && null != other && source.widensTo(other);
+  }
+
+  /**
+   * Get the type of a binary arithmetic expression on operands of the
+   * given types, following binary numeric promotion (JLS 5.6.2).
+   */
+  public static TypeDescriptor promote(TypeDescriptor left,
+                                       TypeDescriptor right) {
+    if (DOUBLE == left || DOUBLE == right) return DOUBLE;
+    if (FLOAT == left || FLOAT == right) return FLOAT;
+    if (LONG == left || LONG == right) return LONG;
+    return INT;
+  }
+
+  /**
+   * Get the canonical Type node of this type. The node is shared by all
+   * users and must not be modified.
+   */
+  public GNode toTypeNode() {
+    GNode result = typeNode;
+    if (null == result) {
+      GNode base;
+      TypeDescriptor baseType = getBase();
+      if (null != baseType.primitive) {
+        base = GNode.create("PrimitiveType", baseType.primitive.getName());
+      } else {
+        base = GNode.create("QualifiedIdentifier");
+        for (String qualifier : baseType.qualifiers) {
+          base.add(qualifier);
+        }
+      }
+      GNode dims = null;
+      if (0 != dimensions) {
+        dims = GNode.create("Dimensions");
+        for (int i = 0; i < dimensions; i++) {
+          dims.add("[");
+        }
+      }
+      result = GNode.create("Type", base, dims);
+      typeNode = result;
+    }
+    return result;
+  }
+
+  public String toString() {
+    StringBuilder b = new StringBuilder();
+    TypeDescriptor base = getBase();
+    b.append((null != base.primitive) ? base.primitive.getName()
+             : base.className);
+    for (int i = 0; i < dimensions; i++) {
+      b.append("[]");
+    }
+    return b.toString();
+  }
+
+}
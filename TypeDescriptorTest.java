@@ -0,0 +1,42 @@
+package qimpp;
+
+import xtc.tree.GNode;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+
+public class TypeDescriptorTest {
+
+  @Test
+  public void testInterning() {
+    GNode stringArray = GNode.create("Type", 
+        GNode.create("QualifiedIdentifier", "java", "lang", "String"),
+        GNode.create("Dimensions", "["));
+    assertSame(TypeDescriptor.STRING.arrayOf(), TypeDescriptor.of(stringArray));
+    assertSame(TypeDescriptor.STRING, TypeDescriptor.forClass("String"));
+    assertSame(TypeDescriptor.INT, 
+        TypeDescriptor.of(GNode.create("Type", GNode.create("PrimitiveType", "int"))));
+    assertSame(TypeDescriptor.STRING.arrayOf(), 
+        TypeDescriptor.of(TypeDescriptor.STRING.arrayOf().toTypeNode()));
+  }
+
+  @Test
+  public void testWidening() {
+    assertTrue(TypeDescriptor.CHAR.widensTo(TypeDescriptor.INT));
+    assertTrue(TypeDescriptor.INT.widensTo(TypeDescriptor.INT));
+    assertFalse(TypeDescriptor.INT.widensTo(TypeDescriptor.SHORT));
+    assertFalse(TypeDescriptor.CHAR.widensTo(TypeDescriptor.SHORT));
+    assertFalse(TypeDescriptor.INT.arrayOf().widensTo(TypeDescriptor.LONG.arrayOf()));
+    assertTrue(Type.canWiden("byte", "double"));
+    assertFalse(Type.canWiden("boolean", "int"));
+  }
+
+  @Test
+  public void testPromotion() {
+    assertSame(TypeDescriptor.INT, 
+        TypeDescriptor.promote(TypeDescriptor.CHAR, TypeDescriptor.SHORT));
+    assertSame(TypeDescriptor.LONG, 
+        TypeDescriptor.promote(TypeDescriptor.INT, TypeDescriptor.LONG));
+    assertEquals("double", Type.compare("float", "double"));
+  }
+}
@@ -0,0 +1,344 @@
+package qimpp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import xtc.tree.GNode;
+
+/**
+ * The classes whose arrays are flattened: an array of such a class
+ * stores its elements' fields inline, as __Foo_value structs, instead
+ * of pointers to separately allocated objects.
+ *
+ * A class qualifies if it is final, extends Object, and has only a few
+ * final primitive instance fields, so an object is fully described by
+ * its field values. Reading an element then boxes the values into a
+ * fresh object, and storing one copies them out, which the program
+ * cannot tell apart from the original unless it depends on identity.
+ * The whole program is therefore checked for identity uses: comparing
+ * two instances with == or !=, calling an identity-based hashCode,
+ * equals or toString the class does not override, and Object[]
+ * variables, which a flattened array could not be stored in. A class is
+ * also disqualified if one of its instances flows anywhere its own type
+ * is not declared: into an Object or interface variable, field,
+ * parameter, return value or cast, where code that the analysis does
+ * not follow may compare it by identity, or into a string conversion.
+ *
+ * The analysis needs every class's mangled bodies, so it only runs on a
+ * complete program, not in streaming mode.
+ *
+ * @author QIMPP
+ */
+public class ValueClasses {
+
+  /** The largest total size of the fields of a flattened class. */
+  static final int MAX_SIZE = 32;
+
+  /** The methods Object implements with the object's identity. */
+  private static final String[] IDENTITY_METHODS = { "hashCode", "equals", "toString" };
+
+  /** The flattened classes, by qualified name. */
+  private final HashSet<String> names = new HashSet<String>();
+
+  private final NodeAnnotations annotations;
+
+  /** The candidate classes, by qualified name. */
+  private final HashMap<String, GNode> candidates = new HashMap<String, GNode>();
+
+  /** The classes used by identity. */
+  private final HashSet<String> identityUses = new HashSet<String>();
+
+  /** The identity methods called, as class name "." method name. */
+  private final ArrayList<String> identityCalls = new ArrayList<String>();
+
+  /** All classes, by qualified name. */
+  private final HashMap<String, GNode> classes = new HashMap<String, GNode>();
+
+  /** The calls with arguments, and the classes they are made in. */
+  private final ArrayList<GNode[]> calls = new ArrayList<GNode[]>();
+
+  /** Whether the program declares Object arrays. */
+  private boolean objectArrays;
+
+  private ValueClasses(NodeAnnotations annotations) {
+    this.annotations = annotations;
+  }
+
+  /** The analysis of a program without flattened classes. */
+  public static ValueClasses none() {
+    return new ValueClasses(null);
+  }
+
+  /**
+   * Find the classes to flatten.
+   *
+   * @param compilationUnit The CPPAST of the whole program.
+   * @param annotations The analysis results of BlockMangler.
+   */
+  public static ValueClasses analyze(GNode compilationUnit, NodeAnnotations annotations) {
+    ValueClasses result = new ValueClasses(annotations);
+    result.scan(compilationUnit, null, null);
+    result.checkIdentityCalls();
+    result.checkArguments();
+    if (!result.objectArrays) {
+      for (String name : result.candidates.keySet()) {
+        if (!result.identityUses.contains(name)) {
+          result.names.add(name);
+        }
+      }
+    }
+    return result;
+  }
+
+  /** Determine whether no class is flattened. */
+  public boolean isEmpty() {
+    return names.isEmpty();
+  }
+
+  /** Determine whether the named class is flattened. */
+  public boolean contains(String className) {
+    return names.contains(normalize(className));
+  }
+
+  /** Determine whether a type is a flattened class. */
+  public boolean contains(TypeDescriptor type) {
+    return null != type && type.isClass() && contains(type.getClassName());
+  }
+
+  /** Determine whether a type is an array of a flattened class. */
+  public boolean isFlattenedArray(TypeDescriptor type) {
+    return null != type && type.isArray() && contains(type.getBase());
+  }
+
+  /** Get the C++ name of a class's struct. */
+  public static String structName(String className) {
+    return Type.getClassTypeName(normalize(className));
+  }
+
+  /**
+   * Get the C++ name of the struct holding the fields of a flattened
+   * class's instance.
+   */
+  public static String valueTypeName(String className) {
+    return structName(className) + "_value";
+  }
+
+  /** Strip the leading dot of a class in the default package. */
+  private static String normalize(String className) {
+    return className.startsWith(".") ? className.substring(1) : className;
+  }
+
+  // =========================================================================
+
+  /**
+   * Scan a subtree for identity uses.
+   *
+   * @param cls The enclosing class.
+   * @param method The enclosing method, or null.
+   */
+  private void scan(GNode n, GNode cls, GNode method) {
+    switch (NodeKind.of(n)) {
+    case NodeKind.CLASS_DECLARATION:
+      cls = n;
+      classes.put(normalize(n.getString(0)), n);
+      if (isCandidate(n)) {
+        candidates.put(normalize(n.getString(0)), n);
+      }
+      break;
+    case NodeKind.IMPLEMENTED_METHOD_DECLARATION:
+      method = n;
+      break;
+    case NodeKind.FIELD_DECLARATION:
+      // A local declaration, with declarators that may initialize it
+      if (2 < n.size() && n.get(2) instanceof GNode
+          && n.getGeneric(2).hasName("Declarators")) {
+        TypeDescriptor declared = TypeDescriptor.of(n.getGeneric(1));
+        for (Object o : n.getGeneric(2)) {
+          GNode declarator = (GNode)o;
+          if (null == declarator.get(1) && declarator.get(2) instanceof GNode) {
+            flows(declared, declarator.getGeneric(2));
+          }
+        }
+      }
+      break;
+    case NodeKind.EXPRESSION:
+      flows(annotations.getType(n.getGeneric(0)), n.getGeneric(2));
+      break;
+    case NodeKind.RETURN_STATEMENT:
+      if (null != method && null != n.get(0)) {
+        flows(TypeDescriptor.of(method.getGeneric(1)), n.getGeneric(0));
+      }
+      break;
+    case NodeKind.CAST_EXPRESSION:
+      flows(TypeDescriptor.of(n.getGeneric(0)), n.getGeneric(1));
+      break;
+    case NodeKind.ADDITIVE_EXPRESSION:
+      if (TypeDescriptor.STRING == annotations.getType(n.getGeneric(0))
+          || TypeDescriptor.STRING == annotations.getType(n.getGeneric(2))) {
+        flows(TypeDescriptor.STRING, n.getGeneric(0));
+        flows(TypeDescriptor.STRING, n.getGeneric(2));
+      }
+      break;
+    case NodeKind.TYPE:
+      TypeDescriptor type = TypeDescriptor.of(n);
+      if (null != type && type.isArray()
+          && TypeDescriptor.OBJECT == type.getBase()) {
+        objectArrays = true;
+      }
+      break;
+    case NodeKind.EQUALITY_EXPRESSION:
+      if (!n.getGeneric(0).hasName("NullLiteral")
+          && !n.getGeneric(2).hasName("NullLiteral")) {
+        usedByIdentity(annotations.getType(n.getGeneric(0)));
+        usedByIdentity(annotations.getType(n.getGeneric(2)));
+      }
+      break;
+    case NodeKind.CALL_EXPRESSION:
+      String identity = identityMethod(n.getString(2));
+      if (null != n.get(0) && null != identity) {
+        TypeDescriptor receiver = annotations.getType(n.getGeneric(0));
+        if (null != receiver && receiver.isClass()) {
+          identityCalls.add(normalize(receiver.getClassName()) + "." + identity);
+        }
+      }
+      if (0 < n.getGeneric(3).size()) {
+        calls.add(new GNode[] { n, cls });
+      }
+      break;
+    default:
+      break;
+    }
+    for (Object o : n) {
+      if (o instanceof GNode) {
+        scan((GNode)o, cls, method);
+      }
+    }
+  }
+
+  /**
+   * Note a value stored as the given type. An instance of a class stored
+   * as another type, or as an unknown one, is disqualified.
+   */
+  private void flows(TypeDescriptor target, GNode value) {
+    if (null == value) {
+      return;
+    }
+    if (value.hasName("ConditionalExpression")) {
+      flows(target, value.getGeneric(1));
+      flows(target, value.getGeneric(2));
+      return;
+    }
+    TypeDescriptor type = annotations.getType(value);
+    if (null != type && type.isClass() && target != type) {
+      identityUses.add(normalize(type.getClassName()));
+    }
+  }
+
+  /**
+   * Check the arguments of calls against the parameters they are passed
+   * to. Arguments of calls the program does not declare, such as
+   * printing and Object's methods, are disqualified.
+   */
+  private void checkArguments() {
+    for (GNode[] call : calls) {
+      GNode callee = callee(call[0], call[1]);
+      GNode arguments = call[0].getGeneric(3);
+      for (int i = 0; i < arguments.size(); i++) {
+        TypeDescriptor parameter = null == callee ? null
+          : TypeDescriptor.of(callee.getGeneric(2).getGeneric(i).getGeneric(1));
+        flows(parameter, arguments.getGeneric(i));
+      }
+    }
+  }
+
+  /** Get the declaration a call with arguments calls, or null. */
+  private GNode callee(GNode call, GNode cls) {
+    GNode receiver = cls;
+    if (null != call.get(0)) {
+      TypeDescriptor type = annotations.getType(call.getGeneric(0));
+      receiver = (null == type || !type.isClass()) ? null
+        : classes.get(normalize(type.getClassName()));
+    }
+    for (; null != receiver; receiver = (GNode)receiver.getProperty("ParentClassNode")) {
+      for (Object o : receiver.getGeneric(4)) {
+        GNode m = (GNode)o;
+        if (m.hasName("ImplementedMethodDeclaration")
+            && call.getString(2).equals(Type.getCppMangledMethodName(m))) {
+          return m;
+        }
+      }
+    }
+    return null;
+  }
+
+  /** Disqualify the classes whose identity methods are called but not overridden. */
+  private void checkIdentityCalls() {
+    for (String call : identityCalls) {
+      int dot = call.lastIndexOf('.');
+      String className = call.substring(0, dot);
+      GNode cls = candidates.get(className);
+      if (null != cls && !implementsMethod(cls, call.substring(dot + 1))) {
+        identityUses.add(className);
+      }
+    }
+  }
+
+  private void usedByIdentity(TypeDescriptor type) {
+    if (null != type && type.isClass()) {
+      identityUses.add(normalize(type.getClassName()));
+    }
+  }
+
+  /**
+   * Get the identity method of Object that a possibly mangled method
+   * name refers to, or null.
+   */
+  private static String identityMethod(String name) {
+    for (String method : IDENTITY_METHODS) {
+      if (name.equals(method) || name.startsWith(method + "_")) {
+        return method;
+      }
+    }
+    return null;
+  }
+
+  private static boolean implementsMethod(GNode cls, String method) {
+    for (Object o : cls.getGeneric(4)) {
+      if (o instanceof GNode && ((GNode)o).hasName("ImplementedMethodDeclaration")
+          && method.equals(identityMethod(((GNode)o).getString(0)))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Determine whether the shape of a class allows flattening it. */
+  private boolean isCandidate(GNode cls) {
+    if (!annotations.is(cls, NodeAnnotations.FINAL)) {
+      return false;
+    }
+    GNode parent = (GNode)cls.getProperty("ParentClassNode");
+    if (null != parent
+        && TypeDescriptor.OBJECT != TypeDescriptor.forClass(parent.getString(0))) {
+      return false;
+    }
+    int size = 0;
+    int fields = 0;
+    for (Object o : cls.getGeneric(3)) {
+      GNode field = (GNode)o;
+      if (annotations.is(field, NodeAnnotations.STATIC)) {
+        continue;
+      }
+      TypeDescriptor type = TypeDescriptor.of(field.getGeneric(1));
+      if (!annotations.is(field, NodeAnnotations.FINAL)
+          || null == type || !type.isPrimitive()) {
+        return false;
+      }
+      size += FieldLayout.sizeOf(field);
+      fields++;
+    }
+    return 0 < fields && size <= MAX_SIZE;
+  }
+
+}
@@ -0,0 +1,156 @@
+package qimpp;
+
+import xtc.tree.GNode;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ValueClasses.
+ *
+ * @author QIMPP
+ */
+public class ValueClassesTest {
+
+  NodeAnnotations annotations = new NodeAnnotations();
+
+  static GNode classType(String name) {
+    return GNode.create("Type", GNode.create("QualifiedIdentifier", name), null);
+  }
+
+  GNode field(String name, String type, int flags) {
+    GNode field = GNode.create("FieldDeclaration", name,
+        GNode.create("Type", GNode.create("PrimitiveType", type), null));
+    annotations.set(field, flags);
+    return field;
+  }
+
+  GNode cppClass(String name, int flags, GNode fields, GNode methods) {
+    GNode cls = GNode.create("ClassDeclaration", name, GNode.create("Parent"),
+        GNode.create("Constructors"), fields, methods);
+    annotations.set(cls, flags);
+    return cls;
+  }
+
+  GNode variable(String name, String className) {
+    GNode variable = GNode.create("PrimaryIdentifier", name);
+    annotations.setTypeNode(variable, classType(className));
+    return variable;
+  }
+
+  @Test public void testAnalyze() {
+    int fin = NodeAnnotations.FINAL;
+    // final class Point { final int x, y; }
+    GNode point = cppClass(".Point", fin,
+        GNode.create("Fields", field("x", "int", fin), field("y", "int", fin)),
+        GNode.create("Methods"));
+    // final class Pair { final double a; final long b; }, compared with ==
+    GNode pair = cppClass(".Pair", fin,
+        GNode.create("Fields", field("a", "double", fin), field("b", "long", fin)),
+        GNode.create("Methods"));
+    // class Cell { final int v; }
+    GNode cell = cppClass(".Cell", 0,
+        GNode.create("Fields", field("v", "int", fin)), GNode.create("Methods"));
+    // final class Big { final long a, b, c, d, e; }
+    GNode big = cppClass(".Big", fin,
+        GNode.create("Fields", field("a", "long", fin), field("b", "long", fin),
+            field("c", "long", fin), field("d", "long", fin), field("e", "long", fin)),
+        GNode.create("Methods"));
+    GNode body = GNode.create("Block",
+        GNode.create("EqualityExpression", variable("p", "Pair"), "==", variable("q", "Pair")),
+        GNode.create("EqualityExpression", variable("r", "Point"), "!=",
+            GNode.create("NullLiteral")),
+        GNode.create("CallExpression", variable("r", "Point"), null, "hashCode",
+            GNode.create("Arguments")));
+    GNode main = GNode.create("ImplementedMethodDeclaration", "main", null, null, body);
+    GNode unit = GNode.create("CompilationUnit", point, pair, cell, big,
+        cppClass(".Main", 0, GNode.create("Fields"), GNode.create("Methods", main)));
+
+    ValueClasses values = ValueClasses.analyze(unit, annotations);
+    assertFalse(values.contains(".Point"));
+    assertFalse(values.contains("Pair"));
+    assertFalse(values.contains("Cell"));
+    assertFalse(values.contains("Big"));
+
+    // Point.hashCode is identity-based until Point implements it
+    point.getGeneric(4).add(GNode.create("ImplementedMethodDeclaration",
+        "hashCode", null, null, GNode.create("Block")));
+    values = ValueClasses.analyze(unit, annotations);
+    assertTrue(values.contains(".Point"));
+    assertTrue(values.isFlattenedArray(TypeDescriptor.forClass("Point").arrayOf()));
+    assertFalse(values.contains("Pair"));
+    assertEquals("__Point_value", ValueClasses.valueTypeName(".Point"));
+
+    // Any Object[] could hold a Point
+    body.add(GNode.create("FieldDeclaration", null,
+        GNode.create("Type", GNode.create("QualifiedIdentifier", "Object"),
+            GNode.create("Dimensions", "["))));
+    assertTrue(ValueClasses.analyze(unit, annotations).isEmpty());
+  }
+
+  static final GNode OBJECT = GNode.create("Type",
+      GNode.create("QualifiedIdentifier", "java", "lang", "Object"), null);
+
+  GNode local(String name, GNode type, GNode value) {
+    return GNode.create("FieldDeclaration", GNode.create("Modifiers"), type,
+        GNode.create("Declarators", GNode.create("Declarator", name, null, value)));
+  }
+
+  GNode method(String name, GNode returnType, GNode parameterType, GNode body) {
+    return GNode.create("ImplementedMethodDeclaration", name,
+        GNode.create("ReturnType", returnType.getGeneric(0), null),
+        GNode.create("FormalParameters", GNode.create("FormalParameter", "x", parameterType)),
+        body);
+  }
+
+  /** Determine whether Point is flattened with the given statement in a method. */
+  boolean flattened(GNode statement) {
+    int fin = NodeAnnotations.FINAL;
+    GNode point = cppClass(".Point", fin,
+        GNode.create("Fields", field("x", "int", fin)), GNode.create("Methods"));
+    GNode methods = GNode.create("Methods",
+        method("take", classType("Object"), OBJECT, GNode.create("Block")),
+        method("keep", classType("Point"), classType("Point"), GNode.create("Block")),
+        method("get", classType("Object"), classType("Point"),
+            GNode.create("Block", statement)));
+    return ValueClasses.analyze(GNode.create("CompilationUnit", point,
+        cppClass(".Main", 0, GNode.create("Fields"), methods)), annotations)
+      .contains("Point");
+  }
+
+  GNode call(String name, GNode receiver, GNode argument) {
+    return GNode.create("CallExpression", receiver, null, name, null == argument
+        ? GNode.create("Arguments") : GNode.create("Arguments", argument));
+  }
+
+  @Test public void testFlows() {
+    // Point q = p; keep(p);, both as a Point
+    assertTrue(flattened(local("q", classType("Point"), variable("p", "Point"))));
+    assertTrue(flattened(call("keep_Point", null, variable("p", "Point"))));
+    // Object o = p;
+    assertFalse(flattened(local("o", classType("Object"), variable("p", "Point"))));
+    // o = p;
+    assertFalse(flattened(GNode.create("Expression", variable("o", "Object"), "=",
+        variable("p", "Point"))));
+    // Object o = c ? null : p;
+    assertFalse(flattened(local("o", classType("Object"),
+        GNode.create("ConditionalExpression", variable("c", "Boolean"),
+            GNode.create("NullLiteral"), variable("p", "Point")))));
+    // take(p);
+    assertFalse(flattened(call("take_java_lang_Object", null, variable("p", "Point"))));
+    // System.out.println(p);
+    assertFalse(flattened(call("println",
+        GNode.create("SelectionExpression", GNode.create("PrimaryIdentifier", "System"), "out"),
+        variable("p", "Point"))));
+    // ((Object) p).hashCode();
+    assertFalse(flattened(call("hashCode",
+        GNode.create("CastExpression", classType("Object"), variable("p", "Point")), null)));
+    // return p; from an Object method
+    assertFalse(flattened(GNode.create("ReturnStatement", variable("p", "Point"))));
+    // s + p
+    assertFalse(flattened(GNode.create("AdditiveExpression", variable("s", "String"), "+",
+        variable("p", "Point"))));
+  }
+
+}
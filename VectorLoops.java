@@ -0,0 +1,544 @@
+package qimpp;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import xtc.tree.GNode;
+import xtc.tree.Location;
+
+/**
+ * The loops over arrays of primitives that ImplementationPrinter lowers
+ * into a form the C++ auto-vectorizer recognizes.
+ *
+ * Printed as is, every element of such a loop is reached through
+ * a->__data(), which g++ cannot prove does not alias the other arrays,
+ * the array headers or the loop bound, which it must thus reload on
+ * every iteration. A lowered loop
+ * <pre>
+ * for (int i = 0; i &lt; a.length; i++) b[i] = a[i] * k;
+ * </pre>
+ * is printed as
+ * <pre>
+ * {
+ *   const int32_t __end = a->length;
+ *   if (a.raw() != b.raw()) {
+ *     const int32_t* __restrict __data_a = a->__data();
+ *     int32_t* __restrict __data_b = b->__data();
+ *     for (int32_t i = 0; i &lt; __end; ++i) __data_b[i] = __data_a[i] * k;
+ *   } else
+ *     for (int32_t i = 0; i &lt; __end; ++i) b->__data()[i] = a->__data()[i] * k;
+ * }
+ * </pre>
+ * Restrict promises that an array stored into is reached through no
+ * other pointer, so arrays of the type of one stored into must be
+ * distinct, which the lowered loop checks first, falling back to the
+ * loop as it was. Arrays of other types are distinct, and arrays only
+ * read may alias each other.
+ *
+ * A loop qualifies if it counts an int or long up by one to a bound
+ * that does not change while it runs and whose type widens to the loop
+ * variable's, as __end has that type, contains no other loop and no
+ * break or return, and only computes on primitives: it subscripts 1-D
+ * arrays of primitives that it does not assign, stores only into their
+ * elements and locals, and only calls Math intrinsics.
+ *
+ * @author QIMPP
+ */
+public class VectorLoops {
+
+  /** A loop to lower. */
+  public static class Loop {
+    final GNode statement;
+    final String method;
+    final Location location;
+    final String variable;
+    final GNode type;
+    final GNode init;
+    final String operator;
+    final GNode bound;
+    final LinkedHashMap<String, Array> arrays = new LinkedHashMap<String, Array>();
+
+    Loop(GNode statement, String method, GNode control) {
+      this.statement = statement;
+      this.method = method;
+      this.location = statement.getLocation();
+      this.variable = control.getGeneric(2).getGeneric(0).getString(0);
+      this.type = control.getGeneric(1);
+      this.init = control.getGeneric(2).getGeneric(0).getGeneric(2);
+      this.operator = control.getGeneric(3).getString(1);
+      this.bound = control.getGeneric(3).getGeneric(2);
+    }
+
+    /** Get the loop variable. */
+    public String getVariable() {
+      return variable;
+    }
+
+    /** Get the type of the loop variable. */
+    public GNode getType() {
+      return type;
+    }
+
+    /** Get the loop variable's first value. */
+    public GNode getInit() {
+      return init;
+    }
+
+    /** Get the comparison of the loop variable with the bound, &lt; or &lt;=. */
+    public String getOperator() {
+      return operator;
+    }
+
+    /** Get the bound. */
+    public GNode getBound() {
+      return bound;
+    }
+
+    /** Get the arrays subscripted, by name. */
+    public Map<String, Array> getArrays() {
+      return arrays;
+    }
+
+    /** Get the array a subscript's base is, or null if it is not hoisted. */
+    public Array getArray(GNode base) {
+      return base.hasName("PrimaryIdentifier") ? arrays.get(base.getString(0)) : null;
+    }
+
+    /**
+     * Get the pairs of arrays that must be distinct for the lowered loop
+     * to run: those of the same type, one of which is stored into.
+     */
+    public List<Array[]> getDistinct() {
+      List<Array[]> pairs = new ArrayList<Array[]>();
+      List<Array> list = new ArrayList<Array>(arrays.values());
+      for (int i = 0; i < list.size(); i++) {
+        for (int j = i + 1; j < list.size(); j++) {
+          Array a = list.get(i);
+          Array b = list.get(j);
+          if (a.element.equals(b.element) && (a.stored || b.stored)) {
+            pairs.add(new Array[] { a, b });
+          }
+        }
+      }
+      return pairs;
+    }
+
+    /** Describe the loop for the translator's report. */
+    public String toString() {
+      StringBuilder s = new StringBuilder("Lowered loop over ");
+      String separator = "";
+      for (Array a : arrays.values()) {
+        s.append(separator).append(a.name);
+        separator = ", ";
+      }
+      s.append(" in ").append(method);
+      if (null != location) {
+        s.append(" at ").append(location.file).append(':').append(location.line);
+      }
+      return s.toString();
+    }
+  }
+
+  /** An array a lowered loop subscripts. */
+  public static class Array {
+    final String name;
+    final GNode identifier;
+    final TypeDescriptor element;
+    boolean stored;
+
+    Array(GNode identifier, TypeDescriptor element) {
+      this.name = identifier.getString(0);
+      this.identifier = identifier;
+      this.element = element;
+    }
+
+    /** Get an identifier of the array, to print it with. */
+    public GNode getIdentifier() {
+      return identifier;
+    }
+
+    /** Get the type of the elements. */
+    public TypeDescriptor getElement() {
+      return element;
+    }
+
+    /** Determine whether the loop stores into the array. */
+    public boolean isStored() {
+      return stored;
+    }
+
+    /** Get the name of the local holding the elements. */
+    public String getLocal() {
+      return "__data_" + name.replaceAll("[^A-Za-z0-9_]", "_");
+    }
+  }
+
+  private final NodeAnnotations annotations;
+
+  /** The loops to lower, by ForStatement, in the order they appear. */
+  private final IdentityHashMap<GNode, Loop> loops = new IdentityHashMap<GNode, Loop>();
+  private final List<Loop> list = new ArrayList<Loop>();
+
+  private VectorLoops(NodeAnnotations annotations) {
+    this.annotations = annotations;
+  }
+
+  /** The analysis of a program whose loops are not lowered. */
+  public static VectorLoops none() {
+    return new VectorLoops(null);
+  }
+
+  /**
+   * Find the loops to lower.
+   *
+   * @param compilationUnit The CPPAST.
+   * @param annotations The analysis results of BlockMangler.
+   */
+  public static VectorLoops analyze(GNode compilationUnit, NodeAnnotations annotations) {
+    VectorLoops result = new VectorLoops(annotations);
+    result.scan(compilationUnit, null);
+    return result;
+  }
+
+  /** Get the lowered loop of a ForStatement, or null. */
+  public Loop get(GNode forStatement) {
+    return loops.get(forStatement);
+  }
+
+  /** Get the loops to lower, in the order they appear. */
+  public List<Loop> getLoops() {
+    return list;
+  }
+
+  // =========================================================================
+
+  private void scan(GNode n, String method) {
+    if (n.hasName("ClassDeclaration")) {
+      for (Object o : n.getGeneric(4)) {
+        GNode m = (GNode)o;
+        if (m.hasName("ImplementedMethodDeclaration") && null != m.get(3)) {
+          scan(m.getGeneric(3), ProfileData.methodKey(n.getString(0),
+                                                      Type.getCppMangledMethodName(m)));
+        }
+      }
+      return;
+    }
+    if (n.hasName("ForStatement") && null != method) {
+      Loop loop = analyzeLoop(n, method);
+      if (null != loop) {
+        loops.put(n, loop);
+        list.add(loop);
+        return;
+      }
+    }
+    for (Object o : n) {
+      if (o instanceof GNode) {
+        scan((GNode)o, method);
+      }
+    }
+  }
+
+  private Loop analyzeLoop(GNode n, String method) {
+    GNode control = n.getGeneric(0);
+    if (!control.hasName("BasicForControl") || null == control.get(1)
+        || null == control.get(3) || null == control.get(4)) {
+      return null;
+    }
+    TypeDescriptor type = TypeDescriptor.of(control.getGeneric(1));
+    GNode declarators = control.getGeneric(2);
+    if ((TypeDescriptor.INT != type && TypeDescriptor.LONG != type)
+        || 1 != declarators.size() || null != declarators.getGeneric(0).get(1)
+        || null == declarators.getGeneric(0).get(2)) {
+      return null;
+    }
+    String variable = declarators.getGeneric(0).getString(0);
+    GNode condition = control.getGeneric(3);
+    GNode update = control.getGeneric(4);
+    if (!condition.hasName("RelationalExpression")
+        || !isLocal(condition.getGeneric(0), variable)
+        || !("<".equals(condition.getString(1)) || "<=".equals(condition.getString(1)))
+        || 1 != update.size() || !isIncrement(update.getGeneric(0), variable)) {
+      return null;
+    }
+
+    Checker checker = new Checker(new Loop(n, method, control));
+    checker.collectWrites(n.getGeneric(1));
+    if (checker.written.contains(variable)
+        || !checker.expression(checker.loop.init)
+        || !checker.statement(n.getGeneric(1))
+        || !checker.invariant(checker.loop.bound)
+        || checker.loop.arrays.isEmpty()) {
+      return null;
+    }
+    // __end has the loop variable's type, so the bound must convert to
+    // it without loss, as in Java's comparison
+    TypeDescriptor boundType = checker.type(checker.loop.bound);
+    if (null == boundType || !boundType.widensTo(type)) {
+      return null;
+    }
+    return checker.loop;
+  }
+
+  private boolean isLocal(GNode n, String name) {
+    return n.hasName("PrimaryIdentifier") && name.equals(n.getString(0))
+      && Constants.STACKVAR_IDENTIFIER == annotations.getIdentifierType(n);
+  }
+
+  private boolean isIncrement(GNode n, String variable) {
+    if (n.hasName("PostfixExpression")) {
+      return isLocal(n.getGeneric(0), variable) && "++".equals(n.getString(1));
+    } else if (n.hasName("UnaryExpression")) {
+      return "++".equals(n.getString(0)) && isLocal(n.getGeneric(1), variable);
+    } else if (n.hasName("Expression")) {
+      return isLocal(n.getGeneric(0), variable) && "+=".equals(n.getString(1))
+        && n.getGeneric(2).hasName("IntegerLiteral")
+        && "1".equals(n.getGeneric(2).getString(0));
+    }
+    return false;
+  }
+
+  /** Checks a loop body for what keeps it from being lowered. */
+  private class Checker {
+    final Loop loop;
+    /** The locals the body assigns. */
+    final HashSet<String> written = new HashSet<String>();
+
+    Checker(Loop loop) {
+      this.loop = loop;
+    }
+
+    void collectWrites(GNode n) {
+      GNode target = null;
+      if (n.hasName("Expression") || n.hasName("PostfixExpression")) {
+        target = n.getGeneric(0);
+      } else if (n.hasName("UnaryExpression")) {
+        target = n.getGeneric(1);
+      }
+      if (null != target && target.hasName("PrimaryIdentifier")) {
+        written.add(target.getString(0));
+      }
+      for (Object o : n) {
+        if (o instanceof GNode) {
+          collectWrites((GNode)o);
+        }
+      }
+    }
+
+    boolean statement(GNode n) {
+      if (null == n) {
+        return true;
+      }
+      switch (NodeKind.of(n)) {
+      case NodeKind.BLOCK:
+        for (Object o : n) {
+          if (!(o instanceof GNode) || !statement((GNode)o)) {
+            return false;
+          }
+        }
+        return true;
+      case NodeKind.EXPRESSION_STATEMENT:
+        return assignment(n.getGeneric(0))
+          || (n.getGeneric(0).hasName("CallExpression") && expression(n.getGeneric(0)));
+      case NodeKind.FIELD_DECLARATION:
+        TypeDescriptor type = TypeDescriptor.of(n.getGeneric(1));
+        if (null == type || !type.isPrimitive()) {
+          return false;
+        }
+        for (Object o : n.getGeneric(2)) {
+          GNode declarator = (GNode)o;
+          if (null != declarator.get(1)
+              || (null != declarator.get(2) && !expression(declarator.getGeneric(2)))) {
+            return false;
+          }
+        }
+        return true;
+      case NodeKind.CONDITIONAL_STATEMENT:
+        return expression(n.getGeneric(0)) && statement(n.getGeneric(1))
+          && statement(n.getGeneric(2));
+      case NodeKind.CONTINUE_STATEMENT:
+        return 0 == n.size() || null == n.get(0);
+      default:
+        return n.hasName("EmptyStatement");
+      }
+    }
+
+    /** Check an assignment, increment or decrement of a local or element. */
+    boolean assignment(GNode n) {
+      GNode target;
+      if (n.hasName("Expression")) {
+        target = n.getGeneric(0);
+        if (!expression(n.getGeneric(2))) {
+          return false;
+        }
+      } else if (n.hasName("PostfixExpression")) {
+        target = n.getGeneric(0);
+      } else if (n.hasName("UnaryExpression")
+                 && ("++".equals(n.getString(0)) || "--".equals(n.getString(0)))) {
+        target = n.getGeneric(1);
+      } else {
+        return false;
+      }
+      TypeDescriptor type = annotations.getType(target);
+      if (null == type || !type.isPrimitive()) {
+        return false;
+      } else if (target.hasName("PrimaryIdentifier")) {
+        return Constants.STACKVAR_IDENTIFIER == annotations.getIdentifierType(target);
+      } else if (target.hasName("SubscriptExpression")) {
+        Array array = array(target.getGeneric(0), true);
+        if (null == array) {
+          return false;
+        }
+        array.stored = true;
+        return expression(target.getGeneric(1));
+      }
+      return false;
+    }
+
+    /**
+     * Get the array a subscript or length is of, or null if it is not a
+     * 1-D array of primitives the loop does not assign. Subscripted
+     * arrays are recorded, to hoist their elements.
+     */
+    Array array(GNode n, boolean subscript) {
+      if (!n.hasName("PrimaryIdentifier")) {
+        return null;
+      }
+      String kind = annotations.getIdentifierType(n);
+      TypeDescriptor type = annotations.getType(n);
+      if (null == type || !type.isArray() || null == type.getElement()
+          || !type.getElement().isPrimitive() || written.contains(n.getString(0))
+          || (Constants.FIELD_IDENTIFIER != kind && Constants.STACKVAR_IDENTIFIER != kind)) {
+        return null;
+      }
+      Array array = loop.arrays.get(n.getString(0));
+      if (null == array) {
+        array = new Array(n, type.getElement());
+        if (subscript) {
+          loop.arrays.put(array.name, array);
+        }
+      }
+      return array;
+    }
+
+    /** Check an expression of a primitive value. */
+    boolean expression(GNode n) {
+      switch (NodeKind.of(n)) {
+      case NodeKind.INTEGER_LITERAL:
+      case NodeKind.FLOATING_POINT_LITERAL:
+      case NodeKind.CHARACTER_LITERAL:
+      case NodeKind.BOOLEAN_LITERAL:
+        return true;
+      case NodeKind.PRIMARY_IDENTIFIER:
+        TypeDescriptor type = annotations.getType(n);
+        String kind = annotations.getIdentifierType(n);
+        return null != type && type.isPrimitive()
+          && (Constants.STACKVAR_IDENTIFIER == kind || Constants.FIELD_IDENTIFIER == kind);
+      case NodeKind.ADDITIVE_EXPRESSION:
+      case NodeKind.MULTIPLICATIVE_EXPRESSION:
+      case NodeKind.RELATIONAL_EXPRESSION:
+      case NodeKind.EQUALITY_EXPRESSION:
+      case NodeKind.LOGICAL_AND_EXPRESSION:
+      case NodeKind.LOGICAL_OR_EXPRESSION:
+      case NodeKind.SHIFT_EXPRESSION:
+      case NodeKind.BITWISE_AND_EXPRESSION:
+      case NodeKind.BITWISE_OR_EXPRESSION:
+      case NodeKind.BITWISE_XOR_EXPRESSION:
+        TypeDescriptor result = annotations.getType(n);
+        return (null == result || result.isPrimitive())
+          && expression(n.getGeneric(0)) && expression(n.getGeneric(2));
+      case NodeKind.LOGICAL_NEGATION_EXPRESSION:
+      case NodeKind.BITWISE_NEGATION_EXPRESSION:
+        return expression(n.getGeneric(0));
+      case NodeKind.UNARY_EXPRESSION:
+        return ("+".equals(n.getString(0)) || "-".equals(n.getString(0)))
+          ? expression(n.getGeneric(1)) : assignment(n);
+      case NodeKind.POSTFIX_EXPRESSION:
+      case NodeKind.EXPRESSION:
+        return assignment(n);
+      case NodeKind.CONDITIONAL_EXPRESSION:
+        return expression(n.getGeneric(0)) && expression(n.getGeneric(1))
+          && expression(n.getGeneric(2));
+      case NodeKind.BASIC_CAST_EXPRESSION:
+        return null == n.get(1) && expression(n.getGeneric(2));
+      case NodeKind.SUBSCRIPT_EXPRESSION:
+        return null != array(n.getGeneric(0), true) && expression(n.getGeneric(1));
+      case NodeKind.SELECTION_EXPRESSION:
+        return "length".equals(n.getString(1)) && null != array(n.getGeneric(0), false);
+      case NodeKind.CALL_EXPRESSION:
+        Intrinsics.Intrinsic intrinsic = annotations.getIntrinsic(n);
+        if (null == intrinsic || !"java.lang.Math".equals(intrinsic.className)) {
+          return false;
+        }
+        for (Object o : n.getGeneric(3)) {
+          if (!expression((GNode)o)) {
+            return false;
+          }
+        }
+        return true;
+      default:
+        return false;
+      }
+    }
+
+    /** Determine whether the bound has the same value throughout the loop. */
+    boolean invariant(GNode n) {
+      switch (NodeKind.of(n)) {
+      case NodeKind.INTEGER_LITERAL:
+      case NodeKind.CHARACTER_LITERAL:
+        return true;
+      case NodeKind.PRIMARY_IDENTIFIER:
+        TypeDescriptor type = annotations.getType(n);
+        String kind = annotations.getIdentifierType(n);
+        return null != type && type.isPrimitive()
+          && (Constants.FIELD_IDENTIFIER == kind
+              || (Constants.STACKVAR_IDENTIFIER == kind && !written.contains(n.getString(0))));
+      case NodeKind.ADDITIVE_EXPRESSION:
+      case NodeKind.MULTIPLICATIVE_EXPRESSION:
+        return invariant(n.getGeneric(0)) && invariant(n.getGeneric(2));
+      case NodeKind.UNARY_EXPRESSION:
+        return "-".equals(n.getString(0)) && invariant(n.getGeneric(1));
+      case NodeKind.BASIC_CAST_EXPRESSION:
+        return null == n.get(1) && invariant(n.getGeneric(2));
+      case NodeKind.SELECTION_EXPRESSION:
+        return "length".equals(n.getString(1)) && null != array(n.getGeneric(0), false);
+      default:
+        return false;
+      }
+    }
+
+    /** Get the type of an invariant bound, or null if unknown. */
+    TypeDescriptor type(GNode n) {
+      switch (NodeKind.of(n)) {
+      case NodeKind.INTEGER_LITERAL:
+        String literal = n.getString(0);
+        return (literal.endsWith("L") || literal.endsWith("l"))
+          ? TypeDescriptor.LONG : TypeDescriptor.INT;
+      case NodeKind.CHARACTER_LITERAL:
+        return TypeDescriptor.CHAR;
+      case NodeKind.PRIMARY_IDENTIFIER:
+        return annotations.getType(n);
+      case NodeKind.ADDITIVE_EXPRESSION:
+      case NodeKind.MULTIPLICATIVE_EXPRESSION:
+        TypeDescriptor left = type(n.getGeneric(0));
+        TypeDescriptor right = type(n.getGeneric(2));
+        return (null == left || null == right) ? null : TypeDescriptor.promote(left, right);
+      case NodeKind.UNARY_EXPRESSION:
+        TypeDescriptor operand = type(n.getGeneric(1));
+        return (null == operand) ? null : TypeDescriptor.promote(operand, operand);
+      case NodeKind.BASIC_CAST_EXPRESSION:
+        TypeDescriptor.Primitive primitive =
+          TypeDescriptor.Primitive.forName(n.getGeneric(0).getString(0));
+        return (null == primitive) ? null : TypeDescriptor.forPrimitive(primitive);
+      case NodeKind.SELECTION_EXPRESSION:
+        return TypeDescriptor.INT;
+      default:
+        return null;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,125 @@
+package qimpp;
+
+import java.util.List;
+
+import xtc.tree.GNode;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for VectorLoops.
+ *
+ * @author QIMPP
+ */
+public class VectorLoopsTest {
+
+  NodeAnnotations annotations = new NodeAnnotations();
+
+  static GNode type(String name, boolean array) {
+    return GNode.create("Type", GNode.create("PrimitiveType", name),
+        array ? GNode.create("Dimensions", "[") : null);
+  }
+
+  GNode local(String name, String type, boolean array) {
+    GNode n = GNode.create("PrimaryIdentifier", name);
+    annotations.setIdentifierType(n, Constants.STACKVAR_IDENTIFIER);
+    annotations.setTypeNode(n, type(type, array));
+    return n;
+  }
+
+  GNode element(String array, String type, GNode index) {
+    GNode n = GNode.create("SubscriptExpression", local(array, type, true), index);
+    annotations.setTypeNode(n, type(type, false));
+    return n;
+  }
+
+  GNode i() {
+    return local("i", "int", false);
+  }
+
+  /** for (int i = 0; i &lt; bound; i++) body */
+  GNode loop(GNode bound, GNode body) {
+    return GNode.create("ForStatement",
+        GNode.create("BasicForControl", null, type("int", false),
+            GNode.create("Declarators",
+                GNode.create("Declarator", "i", null, GNode.create("IntegerLiteral", "0"))),
+            GNode.create("RelationalExpression", i(), "<", bound),
+            GNode.create("ExpressionList", GNode.create("PostfixExpression", i(), "++"))),
+        body);
+  }
+
+  static GNode statement(GNode expression) {
+    return GNode.create("ExpressionStatement", expression);
+  }
+
+  @Test public void testAnalyze() {
+    // for (i < a.length) b[i] = a[i - 1] * 3;
+    GNode scale = loop(GNode.create("SelectionExpression", local("a", "int", true), "length"),
+        statement(GNode.create("Expression", element("b", "int", i()), "=",
+            GNode.create("MultiplicativeExpression",
+                element("a", "int", GNode.create("AdditiveExpression", i(), "-",
+                    GNode.create("IntegerLiteral", "1"))),
+                "*", GNode.create("IntegerLiteral", "3")))));
+    // for (i < n) { s += d[i]; e[i] = d[i]; }
+    GNode sum = loop(local("n", "int", false), GNode.create("Block",
+        statement(GNode.create("Expression", local("s", "double", false), "+=",
+            element("d", "double", i()))),
+        statement(GNode.create("Expression", element("e", "double", i()), "=",
+            element("d", "double", i())))));
+    // for (i < n) n--;
+    GNode shrinking = loop(local("n", "int", false),
+        statement(GNode.create("PostfixExpression", local("n", "int", false), "--")));
+    // for (i < n) a[i] = s.length(), a call
+    GNode call = loop(local("n", "int", false),
+        statement(GNode.create("Expression", element("a", "int", i()), "=",
+            GNode.create("CallExpression", local("s", "int", false), null, "length",
+                GNode.create("Arguments")))));
+    // for (i < n) for (i < n) a[i] = 0;, only the inner loop
+    GNode inner = loop(local("n", "int", false), statement(GNode.create("Expression",
+        element("a", "int", i()), "=", GNode.create("IntegerLiteral", "0"))));
+    GNode outer = loop(local("n", "int", false), inner);
+    // for (i < lim) a[i] = 0;, lim a double, which i < 10 would truncate
+    GNode fractional = loop(local("lim", "double", false), statement(GNode.create("Expression",
+        element("a", "int", i()), "=", GNode.create("IntegerLiteral", "0"))));
+    // for (i < m) a[i] = 0;, m a long
+    GNode wide = loop(local("m", "long", false), statement(GNode.create("Expression",
+        element("a", "int", i()), "=", GNode.create("IntegerLiteral", "0"))));
+    // for (i < (char)m) a[i] = 0;, a narrower bound
+    GNode narrow = loop(GNode.create("BasicCastExpression", GNode.create("PrimitiveType", "char"),
+        null, local("m", "long", false)), statement(GNode.create("Expression",
+        element("a", "int", i()), "=", GNode.create("IntegerLiteral", "0"))));
+
+    GNode main = GNode.create("ImplementedMethodDeclaration", "main", null,
+        GNode.create("FormalParameters"),
+        GNode.create("Block", scale, sum, shrinking, call, outer, fractional, wide, narrow));
+    GNode cls = GNode.create("ClassDeclaration", ".Main", GNode.create("Parent"),
+        GNode.create("Constructors"), GNode.create("Fields"), GNode.create("Methods", main));
+    VectorLoops loops = VectorLoops.analyze(GNode.create("CompilationUnit", cls), annotations);
+
+    assertEquals(4, loops.getLoops().size());
+    VectorLoops.Loop loop = loops.get(scale);
+    assertNotNull(loop);
+    assertEquals("i", loop.getVariable());
+    assertEquals("<", loop.getOperator());
+    assertEquals(2, loop.getArrays().size());
+    assertFalse(loop.getArrays().get("a").isStored());
+    assertTrue(loop.getArrays().get("b").isStored());
+    assertEquals("__data_a", loop.getArrays().get("a").getLocal());
+    List<VectorLoops.Array[]> distinct = loop.getDistinct();
+    assertEquals(1, distinct.size());
+
+    // d and e are both double[], so they must be checked as well
+    assertEquals(1, loops.get(sum).getDistinct().size());
+    assertNull(loops.get(shrinking));
+    assertNull(loops.get(call));
+    assertNotNull(loops.get(inner));
+    assertNull(loops.get(outer));
+    assertNull(loops.get(fractional));
+    assertNull(loops.get(wide));
+    assertNotNull(loops.get(narrow));
+    assertEquals("Lowered loop over a, b in Main.main", loop.toString());
+  }
+
+}
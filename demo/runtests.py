@@ -16,13 +16,13 @@ def runVerbose(filename):
 
 
   os.system("pwd")
-  # Translate
+  # Translate and compile, reusing the cached runtime and unchanged classes
 
-  os.system( "java qimpp.QimppTranslator qimpp/demo/" + filename +" > translator.output" )
+  if os.path.exists("a.out"):
+    os.remove("a.out")
+  os.system( "java qimpp.QimppTranslator -build qimpp/demo/" + filename +" > translator.output" )
 
-  # Compile
-
-  compile_succeded = (0 == os.system("g++ out.cc java_lang.cc"))
+  compile_succeded = os.path.exists("a.out")
 
   # Run test and put output into file
   os.system( "java qimpp.demo." + filename.split(".")[0] + " > java.output" ) 
@@ -51,14 +51,16 @@ def runQuick(filenames):
     total += 1
     print "Testing " + filename + ": " ,
     
-    translate_succeeded = (0 == os.system( "java qimpp.QimppTranslator qimpp/demo/" + filename +" > translator.output 2> translator.err" ))
+    if os.path.exists("a.out"):
+      os.remove("a.out")
+    translate_succeeded = (0 == os.system( "java qimpp.QimppTranslator -build qimpp/demo/" + filename +" > translator.output 2> translator.err" ))
     
     if not translate_succeeded:
       print "FAIL - translation"
       fail_translate += 1
       continue
       
-    compile_succeded = (0 == os.system("g++ out.cc java_lang.cc 1> gcc.output 2> gcc.err"))
+    compile_succeded = os.path.exists("a.out")
     
     if not compile_succeded:
       print "FAIL - compilation"
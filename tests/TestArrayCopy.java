@@ -0,0 +1,26 @@
+package qimpp.tests;
+
+public class TestArrayCopy {
+
+  public static void main ( String[] args ) {
+    //copy within an array, should print "1, 1, 2"
+    int[] ints = new int[3];
+    ints[0] = 1;
+    ints[1] = 2;
+    System.arraycopy(ints, 0, ints, 1, 2);
+    System.out.println(ints[0] + ", " + ints[1] + ", " + ints[2]);
+    //copy rows into a two-dimensional array, should print "42, 42, 7"
+    int[][] matrix = new int[3][4];
+    int[][] rows = new int[2][];
+    rows[0] = new int[4];
+    rows[0][2] = 42;
+    rows[1] = new int[4];
+    rows[1][3] = 7;
+    System.arraycopy(rows, 0, matrix, 1, 2);
+    System.out.println(matrix[1][2] + ", " + rows[0][2] + ", " + matrix[2][3]);
+    //the copied row is shared, should print "43"
+    matrix[1][2] = 43;
+    System.out.println(rows[0][2]);
+  }
+
+}
@@ -25,6 +25,38 @@ public class TestMultidimensionalArrays{
   raggedarray[1][2] = 'y';
   //should print "hi, hey"
   System.out.println(raggedarray[0][0] + raggedarray[0][1] + ", " + raggedarray[1][0] + raggedarray[1][1] + raggedarray[1][2]);
+  //reassigned row, should print "7, 5"
+  int[][] matrix = new int[3][4];
+  matrix[1][2] = 5;
+  int[] row = new int[4];
+  row[2] = 7;
+  matrix[0] = row;
+  System.out.println(matrix[0][2] + ", " + matrix[1][2]);
+  //rows shared between arrays, should print "8, 8"
+  matrix[2] = matrix[0];
+  matrix[2][2] = 8;
+  System.out.println(matrix[0][2] + ", " + row[2]);
+  //row reassigned through an Object[] alias, should print "9, 9"
+  int[][] grid = new int[2][2];
+  Object[] alias = grid;
+  int[] other = new int[2];
+  other[1] = 9;
+  alias[0] = other;
+  System.out.println(grid[0][1] + ", " + other[1]);
+  //subscripts evaluated left to right, should print "1, 2, 3"
+  int[][] ordered = new int[3][3];
+  int k = 0;
+  ordered[k++][k] = 1;
+  ordered[k][k++ + 1] = 2;
+  ordered[k] = new int[k++];
+  ordered[2][1] = 3;
+  System.out.println(ordered[0][1] + ", " + ordered[1][2] + ", " + ordered[2][1]);
+  //a row outliving its array, should print "6"
+  int[][] temporary = new int[2][3];
+  int[] kept = temporary[1];
+  temporary = null;
+  kept[0] = 6;
+  System.out.println(kept[0]);
   }
   
  }
@@ -0,0 +1,36 @@
+package qimpp.tests;
+
+public class TestStringBuilder {
+
+  public static void main ( String[] args ) {
+    //doubles around the switch to scientific notation,
+    //should print "9.99E-4 0.001 9999999.0 1.0E7"
+    StringBuilder doubles = new StringBuilder();
+    doubles.append(0.000999).append(" ").append(0.001).append(" ");
+    doubles.append(9999999.0).append(" ").append(1e7);
+    System.out.println(doubles.toString());
+    //floats around the same bounds, should print "9.99E-4 0.001 9999999.0 1.0E7"
+    StringBuilder floats = new StringBuilder();
+    floats.append(0.000999f).append(" ").append(0.001f).append(" ");
+    floats.append(9999999.0f).append(" ").append(1e7f);
+    System.out.println(floats.toString());
+    //the smallest int and long, should print "-2147483648 -9223372036854775808"
+    int minInt = -2147483647 - 1;
+    long minLong = -9223372036854775807L - 1;
+    StringBuilder minimums = new StringBuilder();
+    minimums.append(minInt).append(" ").append(minLong);
+    System.out.println(minimums.toString());
+    //changing the builder leaves earlier strings alone,
+    //should print "abc abcd dcba dc"
+    StringBuilder builder = new StringBuilder();
+    builder.append("abc");
+    String first = builder.toString();
+    builder.append('d');
+    String second = builder.toString();
+    builder.reverse();
+    String third = builder.toString();
+    builder.setLength(2);
+    System.out.println(first + " " + second + " " + third + " " + builder.toString());
+  }
+
+}
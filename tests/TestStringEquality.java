@@ -0,0 +1,74 @@
+package qimpp.tests;
+
+/** Test String.equals and String.hashCode */
+public class TestStringEquality {
+
+  public static void main ( String[] args ) {
+    String abc = "abc";
+    String c = "c";
+    String built = "ab" + c;
+    String same = abc;
+    Object none = null;
+    Object other = new TestStringEquality();
+
+    if (abc.equals(same)) {
+      System.out.println("PASS abc.equals(same)");
+    } else {
+      System.out.println("FAIL abc.equals(same)");
+    }
+
+    if (! abc.equals(none)) {
+      System.out.println("PASS ! abc.equals(null)");
+    } else {
+      System.out.println("FAIL ! abc.equals(null)");
+    }
+
+    if (! abc.equals(other)) {
+      System.out.println("PASS ! abc.equals(other)");
+    } else {
+      System.out.println("FAIL ! abc.equals(other)");
+    }
+
+    // Equal strings that are different objects, first without and then
+    // with their hashes cached
+    if (abc.equals(built) && built.equals(abc)) {
+      System.out.println("PASS abc.equals(built)");
+    } else {
+      System.out.println("FAIL abc.equals(built)");
+    }
+
+    int h = abc.hashCode();
+
+    if (96354 == h && h == abc.hashCode() && abc.equals(built)) {
+      System.out.println("PASS 96354 == abc.hashCode()");
+    } else {
+      System.out.println("FAIL 96354 == abc.hashCode()");
+    }
+
+    if (h == built.hashCode() && built.equals(abc)) {
+      System.out.println("PASS abc.hashCode() == built.hashCode()");
+    } else {
+      System.out.println("FAIL abc.hashCode() == built.hashCode()");
+    }
+
+    // Strings of the same length with different cached hashes
+    String abd = "abd";
+    abd.hashCode();
+
+    if (! abc.equals(abd) && ! abd.equals(abc)) {
+      System.out.println("PASS ! abc.equals(abd)");
+    } else {
+      System.out.println("FAIL ! abc.equals(abd)");
+    }
+
+    // The hash of a long string wraps around like Java's int
+    String fox = "The quick brown fox jumps over the lazy dog";
+
+    if (-609428141 == fox.hashCode()) {
+      System.out.println("PASS -609428141 == fox.hashCode()");
+    } else {
+      System.out.println("FAIL -609428141 == fox.hashCode()");
+    }
+  }
+
+}
@@ -19,8 +19,19 @@
 
 #include "java_lang.h"
 
+#include <cstdio>
+#include <cstdlib>
+#include <limits>
 #include <sstream>
 
+#ifdef QIMPP_STATS
+#include <cerrno>
+#include <cstring>
+#include <fcntl.h>
+#include <signal.h>
+#include <unistd.h>
+#endif
+
 namespace java {
   namespace lang {
 
@@ -68,35 +79,65 @@ namespace java {
     // =======================================================================
 
     // java.lang.String(<literal>)
-    __String::__String(std::string data)
-      : __vptr(&__vtable), 
-        data(data) {
+    __String::__String(const char* data)
+      : __vptr(&__vtable),
+        data(data),
+        hash(0) {
+    }
+
+    // java.lang.String(<copy>)
+    __String::__String(const std::string& data)
+      : __vptr(&__vtable),
+        data(data),
+        hash(0) {
+    }
+
+    // java.lang.String(<temporary>)
+    __String::__String(std::string&& data)
+      : __vptr(&__vtable),
+        data(std::move(data)),
+        hash(0) {
     }
 
     // java.lang.String.hashCode()
     int32_t __String::hashCode(String __this) {
-      int32_t hash = 0;
-
-      // Use a C++ iterator to access string's characters.
-      for (std::string::iterator itr = __this->data.begin();
-           itr < __this->data.end();
-           itr++) {
-        hash = 31 * hash + *itr;
+      int32_t hash = __this->hash;
+      if (0 == hash) {
+        // Unsigned arithmetic wraps around like Java's int.
+        uint32_t h = 0;
+        const std::string& data = __this->data;
+        for (size_t i = 0; i < data.length(); i++) {
+          h = 31 * h + static_cast<uint32_t>(static_cast<int32_t>(data[i]));
+        }
+        hash = static_cast<int32_t>(h);
+        __this->hash = hash;
       }
-
       return hash;
     }
 
     // java.lang.String.equals()
     bool __String::equals_java_lang_Object(String __this, Object o) {
-      // Make sure object is a string:
-      // if (! o instanceof String) return false;
-      Class k = __String::__class();
-      if (! k->__vptr->isInstance(k, o)) return false;
+      __String* self = __this.raw();
+      if (static_cast<void*>(self) == static_cast<void*>(o.raw())) {
+        return true;
+      }
 
-      // Do the actual comparison.
-      String other = o; // Implicit downcast.
-      return __this->data.compare(other->data) == 0;
+      // String is final, so an object is a string exactly when it has
+      // String's vtable.
+      if (__rt::null() == o
+          || static_cast<void*>(o->__vptr) != static_cast<void*>(&__vtable)) {
+        return false;
+      }
+
+      // Do the actual comparison, rejecting different lengths and
+      // different cached hashes first.
+      __String* other = reinterpret_cast<__String*>(o.raw());
+      if (self->data.length() != other->data.length()
+          || (0 != self->hash && 0 != other->hash && self->hash != other->hash)) {
+        return false;
+      }
+      return 0 == std::memcmp(self->data.data(), other->data.data(),
+                              self->data.length());
     }
 
     // java.lang.String.toString()
@@ -111,6 +152,7 @@ namespace java {
 
     // java.lang.String.charAt()
     char __String::charAt_int(String __this, int32_t idx) {
+      QIMPP_STAT(BOUNDS_CHECKS);
       if (0 > idx || idx >= __this->data.length()) {
         throw IndexOutOfBoundsException();
       }
@@ -138,6 +180,236 @@ namespace java {
 
     // =======================================================================
 
+    namespace {
+
+      // Append the decimal digits of an integer.
+      void appendInteger(std::string& out, int64_t x) {
+        char digits[20];
+        int n = 0;
+        uint64_t u = 0 > x ? 0ull - static_cast<uint64_t>(x) : x;
+        do {
+          digits[n++] = '0' + u % 10;
+          u /= 10;
+        } while (0 != u);
+        if (0 > x) out += '-';
+        while (0 < n) out += digits[--n];
+      }
+
+      // Append a floating point number the way Double.toString() and
+      // Float.toString() print it: the fewest digits, but at least two,
+      // that read back as the same value, plain from 10^-3 up to 10^7 and in computerized
+      // scientific notation otherwise.
+      void appendFloatingPoint(std::string& out, double x, bool single) {
+        if (x != x) {
+          out += "NaN";
+          return;
+        } else if (std::numeric_limits<double>::infinity() == x) {
+          out += "Infinity";
+          return;
+        } else if (-std::numeric_limits<double>::infinity() == x) {
+          out += "-Infinity";
+          return;
+        } else if (0 == x) {
+          out += std::signbit(x) ? "-0.0" : "0.0";
+          return;
+        }
+
+        // The shortest %e form that reads back as x.  Like Java, take
+        // the closest two digits when one would do, so the smallest
+        // double is 4.9E-324 rather than 5.0E-324.
+        char buf[32];
+        int maxPrecision = single ? 9 : 17;
+        for (int precision = 2; precision <= maxPrecision; precision++) {
+          std::snprintf(buf, sizeof(buf), "%.*e", precision - 1, x);
+          if (single ? std::strtof(buf, 0) == static_cast<float>(x)
+                     : std::strtod(buf, 0) == x) {
+            break;
+          }
+        }
+
+        // Split it into the digits d1.d2d3... and the exponent
+        const char* p = buf;
+        if ('-' == *p) {
+          out += '-';
+          p++;
+        }
+        std::string digits;
+        for (; 'e' != *p; p++) {
+          if ('.' != *p) digits += *p;
+        }
+        int exponent = std::atoi(p + 1);
+        while (1 < digits.length() && '0' == digits[digits.length() - 1]) {
+          digits.erase(digits.length() - 1);
+        }
+
+        if (-3 <= exponent && exponent < 7) {
+          if (0 > exponent) {
+            out += "0.";
+            out.append(-exponent - 1, '0');
+            out += digits;
+          } else {
+            size_t integral = exponent + 1;
+            if (digits.length() <= integral) {
+              out += digits;
+              out.append(integral - digits.length(), '0');
+              out += ".0";
+            } else {
+              out.append(digits, 0, integral);
+              out += '.';
+              out.append(digits, integral, std::string::npos);
+            }
+          }
+        } else {
+          out += digits[0];
+          out += '.';
+          out += 1 < digits.length() ? digits.substr(1) : "0";
+          out += 'E';
+          appendInteger(out, exponent);
+        }
+      }
+
+    }
+
+    // java.lang.StringBuilder()
+    __StringBuilder::__StringBuilder() : __vptr(&__vtable) {
+      data.reserve(16);
+    }
+
+    // java.lang.StringBuilder(int)
+    __StringBuilder::__StringBuilder(int32_t capacity) : __vptr(&__vtable) {
+      if (0 > capacity) {
+        throw NegativeArraySizeException();
+      }
+      data.reserve(capacity);
+    }
+
+    // java.lang.StringBuilder(String)
+    __StringBuilder::__StringBuilder(String s) : __vptr(&__vtable) {
+      __rt::checkNotNull(s);
+      data.reserve(s->data.length() + 16);
+      data = s->data;
+    }
+
+    // java.lang.StringBuilder.toString()
+    String __StringBuilder::toString(StringBuilder __this) {
+      if (0 != __this->shared.raw()) {
+        return new __String(__this->shared->data);
+      }
+
+      // Hand the buffer over instead of copying it
+      String s = new __String(std::move(__this->data));
+      __this->data.clear();
+      __this->shared = s;
+      return s;
+    }
+
+    // java.lang.StringBuilder.append(boolean)
+    StringBuilder __StringBuilder::append_boolean(StringBuilder __this, bool b) {
+      __this->buffer() += b ? "true" : "false";
+      return __this;
+    }
+
+    // java.lang.StringBuilder.append(char)
+    StringBuilder __StringBuilder::append_char(StringBuilder __this, char c) {
+      __this->buffer() += c;
+      return __this;
+    }
+
+    // java.lang.StringBuilder.append(int)
+    StringBuilder __StringBuilder::append_int(StringBuilder __this, int32_t i) {
+      appendInteger(__this->buffer(), i);
+      return __this;
+    }
+
+    // java.lang.StringBuilder.append(long)
+    StringBuilder __StringBuilder::append_long(StringBuilder __this, int64_t l) {
+      appendInteger(__this->buffer(), l);
+      return __this;
+    }
+
+    // java.lang.StringBuilder.append(float)
+    StringBuilder __StringBuilder::append_float(StringBuilder __this, float f) {
+      appendFloatingPoint(__this->buffer(), f, true);
+      return __this;
+    }
+
+    // java.lang.StringBuilder.append(double)
+    StringBuilder __StringBuilder::append_double(StringBuilder __this, double d) {
+      appendFloatingPoint(__this->buffer(), d, false);
+      return __this;
+    }
+
+    // java.lang.StringBuilder.append(String)
+    StringBuilder __StringBuilder::append_java_lang_String(StringBuilder __this,
+                                                           String s) {
+      if (__rt::null() == s) {
+        __this->buffer() += "null";
+      } else {
+        __this->buffer() += s->data;
+      }
+      return __this;
+    }
+
+    // java.lang.StringBuilder.append(Object)
+    StringBuilder __StringBuilder::append_java_lang_Object(StringBuilder __this,
+                                                           Object o) {
+      if (__rt::null() == o) {
+        __this->buffer() += "null";
+      } else {
+        String s = o->__vptr->toString(o);
+        __this->buffer() += s->data;
+      }
+      return __this;
+    }
+
+    // java.lang.StringBuilder.length()
+    int32_t __StringBuilder::length(StringBuilder __this) {
+      return __this->contents().length();
+    }
+
+    // java.lang.StringBuilder.charAt(int)
+    char __StringBuilder::charAt_int(StringBuilder __this, int32_t idx) {
+      const std::string& contents = __this->contents();
+      QIMPP_STAT(BOUNDS_CHECKS);
+      if (0 > idx || idx >= static_cast<int32_t>(contents.length())) {
+        throw IndexOutOfBoundsException();
+      }
+      return contents[idx];
+    }
+
+    // java.lang.StringBuilder.setLength(int)
+    void __StringBuilder::setLength_int(StringBuilder __this, int32_t newLength) {
+      if (0 > newLength) {
+        throw IndexOutOfBoundsException();
+      }
+      __this->buffer().resize(newLength, '\0');
+    }
+
+    // java.lang.StringBuilder.reverse()
+    StringBuilder __StringBuilder::reverse(StringBuilder __this) {
+      std::string& data = __this->buffer();
+      std::reverse(data.begin(), data.end());
+      return __this;
+    }
+
+    // Internal accessor for java.lang.StringBuilder's class.
+    Class __StringBuilder::__class() {
+      static Class k =
+        new __Class(__rt::literal("java.lang.StringBuilder"), __Object::__class());
+      return k;
+    }
+
+    std::ostream& operator<<(std::ostream& out, StringBuilder b) {
+      out << b->contents();
+      return out;
+    }
+
+    // The vtable for java.lang.StringBuilder.  Note that this definition
+    // invokes the default no-arg constructor for __StringBuilder_VT.
+    __StringBuilder_VT __StringBuilder::__vtable;
+
+    // =======================================================================
+
     // java.lang.Class(String, Class)
     __Class::__Class(String name, Class parent, Class component, bool primitive)
       : __vptr(&__vtable),
@@ -234,6 +506,80 @@ namespace __rt {
     return value;
   }
 
+  // ========================================================================
+
+  ReferenceArray* ReferenceArray::__new(const int32_t length, void* vtable) {
+    if (0 > length) {
+      throw java::lang::NegativeArraySizeException();
+    }
+    void* mem = ::operator new(sizeof(ReferenceArray)
+                               + length * sizeof(java::lang::Object));
+    ReferenceArray* addr = new (mem) ReferenceArray(length, vtable);
+    java::lang::Object* data = addr->__data();
+    for (int32_t i = 0; i < length; i++) {
+      new (data + i) java::lang::Object();
+    }
+    return addr;
+  }
+
+  // The same layout as Array<T>::__new(rows, columns): the slab
+  // header, then the outer array and the rows, each preceded by a
+  // pointer to the header.
+  ReferenceArray* ReferenceArray::__new(const int32_t rows,
+                                        const int32_t columns,
+                                        void* vtable, void* rowVtable) {
+    if (0 > rows || 0 > columns) {
+      throw java::lang::NegativeArraySizeException();
+    }
+    const size_t word = sizeof(Slab*);
+    const size_t head = (sizeof(Slab) + word - 1) / word * word;
+    const size_t outer = word + sizeof(ReferenceArray)
+      + rows * sizeof(java::lang::Object);
+    const size_t stride = (word + sizeof(ReferenceArray)
+                           + columns * sizeof(java::lang::Object)
+                           + word - 1) / word * word;
+
+    char* mem = static_cast<char*>(::operator new(head + outer + rows * stride));
+    Slab* slab = reinterpret_cast<Slab*>(mem);
+    slab->count = 1 + rows;
+    slab->rectangular = true;
+    slab->rows = mem + head + outer + word;
+    slab->stride = stride;
+
+    *reinterpret_cast<Slab**>(mem + head) = slab;
+    ReferenceArray* addr = new (mem + head + word) ReferenceArray(rows, vtable);
+    for (int32_t i = 0; i < rows; i++) {
+      char* at = slab->rows + i * stride;
+      *reinterpret_cast<Slab**>(at - word) = slab;
+      ReferenceArray* row = new (at) ReferenceArray(columns, rowVtable);
+      java::lang::Object* data = row->__data();
+      for (int32_t j = 0; j < columns; j++) {
+        new (data + j) java::lang::Object();
+      }
+      new (addr->__data() + i)
+        java::lang::Object(reinterpret_cast<java::lang::__Object*>(row));
+    }
+    return addr;
+  }
+
+  void ReferenceArray::__delete(ReferenceArray* addr) {
+    java::lang::Object* data = addr->__data();
+    for (int32_t i = 0; i < addr->length; i++) {
+      data[i].~Ptr();
+    }
+    addr->~ReferenceArray();
+    ::operator delete(addr);
+  }
+
+  void ReferenceArray::__slab_delete(ReferenceArray* addr) {
+    java::lang::Object* data = addr->__data();
+    for (int32_t i = 0; i < addr->length; i++) {
+      data[i].~Ptr();
+    }
+    addr->~ReferenceArray();
+    Slab::release(addr);
+  }
+
   // Template specialization for arrays of ints.
   template<>
   java::lang::Class Array<int32_t>::__class() {
@@ -325,3 +671,276 @@ namespace __rt {
   }
 
 }
+
+// ==========================================================================
+
+namespace __rt {
+  namespace profile {
+
+    // The registered counters, in reverse order of construction.  Plain
+    // pointers, so they are null before any constructor runs.
+    static Method* methods;
+    static Loop* loops;
+    static Site* sites;
+
+    Method::Method(const char* key)
+      : key(key), calls(0), next(methods) {
+      methods = this;
+    }
+
+    Loop::Loop(const char* key)
+      : key(key), entries(0), iterations(0), next(loops) {
+      loops = this;
+    }
+
+    Site::Site(const char* key)
+      : key(key), other(0), next(sites) {
+      for (int i = 0; i < WIDTH; i++) {
+        classes[i] = 0;
+        calls[i] = 0;
+      }
+      sites = this;
+    }
+
+    // Registered from main(), after the vtables are constructed, so the
+    // profile is written before they are destroyed.
+    void start() {
+      static bool started = false;
+      if (!started) {
+        started = true;
+        std::atexit(dump);
+      }
+    }
+
+    // The name of the class whose vtable, which starts with the class,
+    // is given.
+    static const std::string& className(const void* vtable) {
+      return (*static_cast<const java::lang::Class*>(vtable))->name->data;
+    }
+
+    void dump() {
+      const char* path = std::getenv("QIMPP_PROFILE");
+      std::FILE* out = std::fopen(0 == path ? "qimpp.profile" : path, "w");
+      if (0 == out) {
+        std::perror("qimpp.profile");
+        return;
+      }
+      std::fprintf(out, "qimpp-profile 1\n");
+      for (Method* m = methods; 0 != m; m = m->next) {
+        std::fprintf(out, "method %s %llu\n", m->key,
+                     static_cast<unsigned long long>(m->calls));
+      }
+      for (Loop* l = loops; 0 != l; l = l->next) {
+        std::fprintf(out, "loop %s %llu %llu\n", l->key,
+                     static_cast<unsigned long long>(l->entries),
+                     static_cast<unsigned long long>(l->iterations));
+      }
+      for (Site* s = sites; 0 != s; s = s->next) {
+        std::fprintf(out, "call %s %llu", s->key,
+                     static_cast<unsigned long long>(s->other));
+        for (int i = 0; i < Site::WIDTH && 0 != s->classes[i]; i++) {
+          std::fprintf(out, " %s %llu", className(s->classes[i]).c_str(),
+                       static_cast<unsigned long long>(s->calls[i]));
+        }
+        std::fprintf(out, "\n");
+      }
+      std::fclose(out);
+    }
+
+  }
+}
+
+// ==========================================================================
+
+#ifdef QIMPP_STATS
+
+namespace __rt {
+  namespace stats {
+
+    __thread uint64_t* chunks[CHUNKS];
+
+    // A thread's table, which outlives the thread so its counts are kept.
+    struct Table {
+      uint64_t* chunks[CHUNKS];
+      Table* next;
+    };
+
+    // The tables of all threads and the named counters, both in reverse
+    // order of creation, and the next free slot.
+    static Table* tables;
+    static Counter* counters;
+    static size_t slots = EVENTS;
+
+    static __thread Table* table;
+
+    // Push onto a list that the signal handler may read concurrently.
+    template <typename T>
+    static void push(T*& list, T* item) {
+      item->next = __atomic_load_n(&list, __ATOMIC_RELAXED);
+      while (!__atomic_compare_exchange_n(&list, &item->next, item, true,
+                                          __ATOMIC_RELEASE, __ATOMIC_RELAXED)) {
+      }
+    }
+
+    Counter::Counter(Kind kind, const char* name)
+      : kind(kind), name(name) {
+      size_t size = ALLOCATION == kind ? 2 : 1;
+      slot = __atomic_fetch_add(&slots, size, __ATOMIC_RELAXED);
+      if (slot + size > CHUNK * CHUNKS) {
+        std::fprintf(stderr, "qimpp-stats: too many counters\n");
+        std::abort();
+      }
+      push(counters, this);
+    }
+
+    uint64_t* allocate(size_t chunk) {
+      if (0 == table) {
+        table = static_cast<Table*>(std::calloc(1, sizeof(Table)));
+        push(tables, table);
+      }
+      void* mem = 0;
+      if (0 != posix_memalign(&mem, 64, CHUNK * sizeof(uint64_t))) {
+        throw std::bad_alloc();
+      }
+      std::memset(mem, 0, CHUNK * sizeof(uint64_t));
+      uint64_t* counts = static_cast<uint64_t*>(mem);
+      chunks[chunk] = counts;
+      __atomic_store_n(&table->chunks[chunk], counts, __ATOMIC_RELEASE);
+      return counts;
+    }
+
+    const char* name(const java::lang::Class& k) {
+      return strdup(k->name->data.c_str());
+    }
+
+    // The sum of a slot over all threads.
+    static uint64_t sum(size_t slot) {
+      uint64_t total = 0;
+      for (Table* t = __atomic_load_n(&tables, __ATOMIC_ACQUIRE); 0 != t; t = t->next) {
+        uint64_t* chunk = __atomic_load_n(&t->chunks[slot / CHUNK], __ATOMIC_ACQUIRE);
+        if (0 != chunk) total += chunk[slot % CHUNK];
+      }
+      return total;
+    }
+
+    // A buffered writer using only write(), so dump() may run in a
+    // signal handler.
+    class Output {
+      int fd;
+      size_t size;
+      char buffer[4096];
+
+    public:
+      Output(int fd) : fd(fd), size(0) {}
+
+      ~Output() {
+        flush();
+      }
+
+      Output& operator<<(const char* s) {
+        for (; '\0' != *s; s++) {
+          if (sizeof(buffer) == size) flush();
+          buffer[size++] = *s;
+        }
+        return *this;
+      }
+
+      Output& operator<<(uint64_t n) {
+        char digits[21];
+        char* p = digits + sizeof(digits);
+        *--p = '\0';
+        do {
+          *--p = '0' + n % 10;
+          n /= 10;
+        } while (0 != n);
+        return *this << p;
+      }
+
+      void flush() {
+        for (size_t done = 0; done < size; ) {
+          ssize_t n = write(fd, buffer + done, size - done);
+          if (0 >= n) break;
+          done += n;
+        }
+        size = 0;
+      }
+    };
+
+    // The file and format, fixed by start().
+    static char path[4096] = "qimpp-stats.csv";
+    static bool json;
+
+    // One row of the CSV file or object of the JSON array.
+    static void row(Output& out, bool& first, const char* kind,
+                    const char* name, uint64_t count, const uint64_t* bytes) {
+      if (json) {
+        out << (first ? "[\n" : ",\n") << "  {\"kind\": \"" << kind
+            << "\", \"name\": \"" << name << "\", \"count\": " << count;
+        if (0 != bytes) out << ", \"bytes\": " << *bytes;
+        out << "}";
+      } else {
+        if (first) out << "kind,name,count,bytes\n";
+        out << kind << "," << name << "," << count << ",";
+        if (0 != bytes) out << *bytes;
+        out << "\n";
+      }
+      first = false;
+    }
+
+    void dump() {
+      int saved = errno;
+      int fd = open(path, O_WRONLY | O_CREAT | O_TRUNC, 0644);
+      if (0 > fd) {
+        errno = saved;
+        return;
+      }
+      {
+        Output out(fd);
+        bool first = true;
+        static const char* const events[] = { "null", "store", "bounds" };
+        for (int e = NULL_CHECKS; e <= BOUNDS_CHECKS; e++) {
+          row(out, first, "check", events[e], sum(e), 0);
+        }
+        row(out, first, "literal", "java.lang.String", sum(LITERALS), 0);
+        for (Counter* c = __atomic_load_n(&counters, __ATOMIC_ACQUIRE); 0 != c; c = c->next) {
+          if (ALLOCATION == c->kind) {
+            uint64_t bytes = sum(c->slot + 1);
+            row(out, first, "allocation", c->name, sum(c->slot), &bytes);
+          } else {
+            row(out, first, "call", c->name, sum(c->slot), 0);
+          }
+        }
+        if (json) out << "\n]\n";
+      }
+      close(fd);
+      errno = saved;
+    }
+
+    static void dumpOnSignal(int) {
+      dump();
+    }
+
+    void start() {
+      static bool started = false;
+      if (!started) {
+        started = true;
+        const char* file = std::getenv("QIMPP_STATS");
+        if (0 != file && '\0' != *file) {
+          std::strncpy(path, file, sizeof(path) - 1);
+        }
+        size_t length = std::strlen(path);
+        json = 5 <= length && 0 == std::strcmp(path + length - 5, ".json");
+        std::atexit(dump);
+        struct sigaction action;
+        std::memset(&action, 0, sizeof(action));
+        action.sa_handler = dumpOnSignal;
+        sigemptyset(&action.sa_mask);
+        action.sa_flags = SA_RESTART;
+        sigaction(SIGUSR1, &action, 0);
+      }
+    }
+
+  }
+}
+
+#endif
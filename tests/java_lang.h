@@ -20,8 +20,11 @@
 #pragma once
 
 #include <stdint.h>
+#include <algorithm>
+#include <cmath>
 #include <string>
 #include <iostream>
+#include <new>
 
 #include "ptr.h"
 
@@ -45,6 +48,9 @@ namespace java {
     struct __String;
     struct __String_VT;
 
+    struct __StringBuilder;
+    struct __StringBuilder_VT;
+
     struct __Class;
     struct __Class_VT;
 
@@ -53,9 +59,12 @@ namespace java {
     typedef __rt::Ptr<__Object> Object;
     typedef __rt::Ptr<__Class> Class;
     typedef __rt::Ptr<__String> String;
+    typedef __rt::Ptr<__StringBuilder> StringBuilder;
   }
 }
 
+#include "qimpp_stats.h"
+
 // ==========================================================================
 
 namespace __rt {
@@ -118,13 +127,23 @@ namespace java {
 
     // ======================================================================
 
-    // The data layout for java.lang.String.
+    // The data layout for java.lang.String.  The characters are a
+    // std::string, which keeps short values inline in the object
+    // instead of allocating them separately.  Strings are immutable, so
+    // the hash code is computed once and cached.
     struct __String {
       __String_VT* __vptr;
       std::string data;
 
-      // The constructor;
-      __String(std::string data);
+      // The hash code, or 0 if not yet computed.  As in Java, a string
+      // whose hash code is 0 recomputes it on every call.
+      int32_t hash;
+
+      // The constructors.  Temporaries and the buffers of builders are
+      // moved in, and literals are copied straight from the C string.
+      __String(const char* data);
+      __String(const std::string& data);
+      __String(std::string&& data);
 
       // The methods implemented by java.lang.String.
       static int32_t hashCode(String);
@@ -168,6 +187,110 @@ namespace java {
 
     // ======================================================================
 
+    // The data layout for java.lang.StringBuilder.  Appends go to a
+    // std::string, which grows geometrically, and format numbers
+    // directly rather than through iostreams.  toString() hands the
+    // buffer to the new string instead of copying it; the builder then
+    // reads through that string until it is changed again, so only a
+    // builder that is reused pays for a copy.
+    struct __StringBuilder {
+      __StringBuilder_VT* __vptr;
+      std::string data;
+
+      // The string the buffer was handed to by toString(), or null.
+      String shared;
+
+      // The constructors.
+      __StringBuilder();
+      __StringBuilder(int32_t capacity);
+      __StringBuilder(String s);
+
+      // The methods implemented by java.lang.StringBuilder.
+      static String toString(StringBuilder);
+      static StringBuilder append_boolean(StringBuilder, bool);
+      static StringBuilder append_char(StringBuilder, char);
+      static StringBuilder append_int(StringBuilder, int32_t);
+      static StringBuilder append_long(StringBuilder, int64_t);
+      static StringBuilder append_float(StringBuilder, float);
+      static StringBuilder append_double(StringBuilder, double);
+      static StringBuilder append_java_lang_String(StringBuilder, String);
+      static StringBuilder append_java_lang_Object(StringBuilder, Object);
+      static int32_t length(StringBuilder);
+      static char charAt_int(StringBuilder, int32_t);
+      static void setLength_int(StringBuilder, int32_t);
+      static StringBuilder reverse(StringBuilder);
+
+      // The characters, wherever they are.
+      const std::string& contents() const {
+        return 0 == shared.raw() ? data : shared->data;
+      }
+
+      // Take the buffer back from the string toString() handed it to,
+      // before changing it.
+      std::string& buffer() {
+        if (0 != shared.raw()) {
+          data = shared->data;
+          shared = String();
+        }
+        return data;
+      }
+
+      // The function returning the class object representing
+      // java.lang.StringBuilder.
+      static Class __class();
+
+      // The vtable for java.lang.StringBuilder.
+      static __StringBuilder_VT __vtable;
+    };
+
+    std::ostream& operator<<(std::ostream& out, StringBuilder);
+
+    // The vtable layout for java.lang.StringBuilder.
+    struct __StringBuilder_VT {
+      Class __isa;
+      void (*__delete)(__StringBuilder*);
+      int32_t (*hashCode)(StringBuilder);
+      bool (*equals_java_lang_Object)(StringBuilder, Object);
+      Class (*getClass)(StringBuilder);
+      String (*toString)(StringBuilder);
+      StringBuilder (*append_boolean)(StringBuilder, bool);
+      StringBuilder (*append_char)(StringBuilder, char);
+      StringBuilder (*append_int)(StringBuilder, int32_t);
+      StringBuilder (*append_long)(StringBuilder, int64_t);
+      StringBuilder (*append_float)(StringBuilder, float);
+      StringBuilder (*append_double)(StringBuilder, double);
+      StringBuilder (*append_java_lang_String)(StringBuilder, String);
+      StringBuilder (*append_java_lang_Object)(StringBuilder, Object);
+      int32_t (*length)(StringBuilder);
+      char (*charAt_int)(StringBuilder, int32_t);
+      void (*setLength_int)(StringBuilder, int32_t);
+      StringBuilder (*reverse)(StringBuilder);
+
+      __StringBuilder_VT()
+      : __isa(__StringBuilder::__class()),
+        __delete(&__rt::__delete<__StringBuilder>),
+        hashCode((int32_t(*)(StringBuilder))&__Object::hashCode),
+        equals_java_lang_Object((bool(*)(StringBuilder, Object))
+                                &__Object::equals_java_lang_Object),
+        getClass((Class(*)(StringBuilder))&__Object::getClass),
+        toString(&__StringBuilder::toString),
+        append_boolean(&__StringBuilder::append_boolean),
+        append_char(&__StringBuilder::append_char),
+        append_int(&__StringBuilder::append_int),
+        append_long(&__StringBuilder::append_long),
+        append_float(&__StringBuilder::append_float),
+        append_double(&__StringBuilder::append_double),
+        append_java_lang_String(&__StringBuilder::append_java_lang_String),
+        append_java_lang_Object(&__StringBuilder::append_java_lang_Object),
+        length(&__StringBuilder::length),
+        charAt_int(&__StringBuilder::charAt_int),
+        setLength_int(&__StringBuilder::setLength_int),
+        reverse(&__StringBuilder::reverse) {
+      }
+    };
+
+    // ======================================================================
+
     // The data layout for java.lang.Class.
     struct __Class {
       __Class_VT* __vptr;
@@ -294,37 +417,150 @@ namespace __rt {
   template <typename T>
   struct Array_VT;
 
-  // The data layout for arrays.
+  // The shared header of a rectangular two-dimensional array allocated
+  // in one block by Array<T>::__new(rows, columns): the outer array,
+  // then its rows, each a complete Array<T> with its elements inline,
+  // at a fixed stride.  Every array in the block is preceded by a
+  // pointer to this header, and the block is freed when the outer array
+  // and all rows are gone.
+  struct Slab {
+    // The outer array and rows not yet deleted.
+    size_t count;
+    // Whether row i is still at rows + i * stride.  Cleared when a row
+    // of the outer array is replaced, see replaced().
+    bool rectangular;
+    // The address of the first row.
+    char* rows;
+    // The distance between rows.
+    size_t stride;
+
+    // The header of the block an array was allocated in.
+    static Slab* of(const void* addr) {
+      return reinterpret_cast<Slab* const*>(addr)[-1];
+    }
+
+    // Drop the reference of an array in the block.
+    static void release(void* addr) {
+      Slab* slab = of(addr);
+      if (0 == --slab->count) {
+        ::operator delete(slab);
+      }
+    }
+
+    // Note that elements of an array of references were replaced.  If
+    // it is in a block, the block's rows may have been, whatever the
+    // static type they were replaced through, such as Object[].
+    template <typename T>
+    static void replaced(Array<T>* addr);
+  };
+
+  // The data layout for arrays.  The elements follow the header in the
+  // same allocation, so an array is created with __new() rather than
+  // new, and its elements are reached through __data() rather than a
+  // stored pointer.
   template <typename T>
   struct Array {
     Array_VT<T>* __vptr;
     const int32_t length;
-    T* __data;
 
-    // The constructor (defined inline).
-    Array(const int32_t length)
-    : __vptr(&__vtable), length(length), __data(new T[length]()) {
+    // Allocate an array with its elements initialized to zero or null.
+    static Array* __new(const int32_t length) {
+      if (0 > length) {
+        throw java::lang::NegativeArraySizeException();
+      }
+      void* mem = ::operator new(sizeof(Array) + length * sizeof(T));
+      Array* addr = new (mem) Array(length);
+      T* data = addr->__data();
+      for (int32_t i = 0; i < length; i++) {
+        new (data + i) T();
+      }
+      return QIMPP_STAT_ALLOCATION(addr, sizeof(Array) + length * sizeof(T));
     }
 
     // The destructor.
     static void __delete(Array* addr) {
-      delete[] addr->__data;
-      delete addr;
+      T* data = addr->__data();
+      for (int32_t i = 0; i < addr->length; i++) {
+        data[i].~T();
+      }
+      addr->~Array();
+      ::operator delete(addr);
+    }
+
+    // Allocate a rectangular two-dimensional array in one block.  The
+    // rows are ordinary arrays, so they may be shared and replaced, and
+    // element() indexes straight into the block while they are not.
+    static Array<Ptr<Array> >* __new(const int32_t rows, const int32_t columns) {
+      typedef Array<Ptr<Array> > Outer;
+      if (0 > rows || 0 > columns) {
+        throw java::lang::NegativeArraySizeException();
+      }
+      const size_t word = sizeof(Slab*);
+      const size_t head = (sizeof(Slab) + word - 1) / word * word;
+      const size_t outer = word + sizeof(Outer) + rows * sizeof(Ptr<Array>);
+      const size_t stride = (word + sizeof(Array) + columns * sizeof(T)
+                             + word - 1) / word * word;
+
+      char* mem = static_cast<char*>(::operator new(head + outer + rows * stride));
+      Slab* slab = reinterpret_cast<Slab*>(mem);
+      slab->count = 1 + rows;
+      slab->rectangular = true;
+      slab->rows = mem + head + outer + word;
+      slab->stride = stride;
+
+      *reinterpret_cast<Slab**>(mem + head) = slab;
+      Outer* addr = new (mem + head + word) Outer(rows);
+      addr->__vptr = &Outer::__slab_vtable;
+      for (int32_t i = 0; i < rows; i++) {
+        char* at = slab->rows + i * stride;
+        *reinterpret_cast<Slab**>(at - word) = slab;
+        Array* row = new (at) Array(columns);
+        row->__vptr = &__slab_vtable;
+        T* data = row->__data();
+        for (int32_t j = 0; j < columns; j++) {
+          new (data + j) T();
+        }
+        new (addr->__data() + i) Ptr<Array>(row);
+        (void)QIMPP_STAT_ALLOCATION(row, sizeof(Array) + columns * sizeof(T));
+      }
+      return QIMPP_STAT_ALLOCATION(addr, sizeof(Outer) + rows * sizeof(Ptr<Array>));
+    }
+
+    // The destructor of an array in a block.
+    static void __slab_delete(Array* addr) {
+      T* data = addr->__data();
+      for (int32_t i = 0; i < addr->length; i++) {
+        data[i].~T();
+      }
+      addr->~Array();
+      Slab::release(addr);
+    }
+
+    // The elements, right after the header.  sizeof(Array) is a
+    // multiple of the pointer alignment, which suffices for every T.
+    T* __data() {
+      return reinterpret_cast<T*>(this + 1);
+    }
+
+    const T* __data() const {
+      return reinterpret_cast<const T*>(this + 1);
     }
 
     // Array access.
     T& operator[](int32_t index) {
+      QIMPP_STAT(BOUNDS_CHECKS);
       if (0 > index || index >= length) {
         throw java::lang::ArrayIndexOutOfBoundsException();
       }
-      return __data[index];
+      return __data()[index];
     }
 
     const T& operator[](int32_t index) const {
+      QIMPP_STAT(BOUNDS_CHECKS);
       if (0 > index || index >= length) {
         throw java::lang::ArrayIndexOutOfBoundsException();
       }
-      return __data[index];
+      return __data()[index];
     }
 
     // The function returning the class object representing the array.
@@ -332,6 +568,18 @@ namespace __rt {
 
     // The vtable for the array.
     static Array_VT<T> __vtable;
+
+    // The vtable for an array in a block, which only frees the block.
+    static Array_VT<T> __slab_vtable;
+
+  private:
+    template <typename U>
+    friend struct Array;
+
+    // The constructor, only run by __new() on the header.
+    Array(const int32_t length)
+    : __vptr(&__vtable), length(length) {
+    }
   };
 
   // The vtable for arrays.
@@ -345,10 +593,13 @@ namespace __rt {
     bool (*equals_java_lang_Object)(Reference, java::lang::Object);
     java::lang::Class (*getClass)(Reference);
     java::lang::String (*toString)(Reference);
+    // Whether the array is in a block, see Slab.  Last, so that it is at
+    // the same offset in the vtables of all element types.
+    bool __slab;
     
-    Array_VT()
+    Array_VT(void (*__delete)(Array<T>*) = &Array<T>::__delete, bool slab = false)
     : __isa(Array<T>::__class()),
-      __delete(&Array<T>::__delete),
+      __delete(__delete),
       hashCode((int32_t(*)(Reference))
                &java::lang::__Object::hashCode),
       equals_java_lang_Object((bool(*)(Reference,java::lang::Object))
@@ -356,15 +607,180 @@ namespace __rt {
       getClass((java::lang::Class(*)(Reference))
                &java::lang::__Object::getClass),
       toString((java::lang::String(*)(Reference))
-               &java::lang::__Object::toString) {
+               &java::lang::__Object::toString),
+      __slab(slab) {
     }
   };
 
+  template <typename T>
+  void Slab::replaced(Array<T>* addr) {
+    if (addr->__vptr->__slab) {
+      of(addr)->rectangular = false;
+    }
+  }
+
   // The vtable for arrays.  Note that this definition uses the default
   // no-arg constructor.
   template <typename T>
   Array_VT<T> Array<T>::__vtable;
 
+  template <typename T>
+  Array_VT<T> Array<T>::__slab_vtable(&Array<T>::__slab_delete, true);
+
+  // ========================================================================
+
+  // The implementation shared by all arrays of references, compiled once
+  // in java_lang.cc.  The elements are handled as java::lang::Object,
+  // which has the same layout as every other Ptr, and are destroyed
+  // through their own vtables.
+  struct ReferenceArray {
+    void* __vptr;
+    const int32_t length;
+
+    ReferenceArray(const int32_t length, void* vtable)
+    : __vptr(vtable), length(length) {
+    }
+
+    java::lang::Object* __data() {
+      return reinterpret_cast<java::lang::Object*>(this + 1);
+    }
+
+    // Allocate an array of nulls with the given vtable.
+    static ReferenceArray* __new(const int32_t length, void* vtable);
+
+    // Allocate a rectangular two-dimensional array in one block, with
+    // the given vtables for the outer array and the rows.
+    static ReferenceArray* __new(const int32_t rows, const int32_t columns,
+                                 void* vtable, void* rowVtable);
+
+    // The destructors, as in Array.
+    static void __delete(ReferenceArray* addr);
+    static void __slab_delete(ReferenceArray* addr);
+  };
+
+#ifdef QIMPP_ERASED_ARRAYS
+
+  // With erased arrays, an array of references is a typed shim over
+  // ReferenceArray: it has the same layout and interface as Array<T>,
+  // but its allocation and destruction are not instantiated again for
+  // every element type.  Only the vtable and the class object, printed
+  // by ArrayTemplatePrinter, remain per type.
+  template <typename U>
+  struct Array<Ptr<U> > {
+    typedef Ptr<U> T;
+
+    Array_VT<T>* __vptr;
+    const int32_t length;
+
+    static Array* __new(const int32_t length) {
+      return QIMPP_STAT_ALLOCATION(
+        reinterpret_cast<Array*>(ReferenceArray::__new(length, &__vtable)),
+        sizeof(Array) + length * sizeof(T));
+    }
+
+    static void __delete(Array* addr) {
+      ReferenceArray::__delete(reinterpret_cast<ReferenceArray*>(addr));
+    }
+
+    static Array<Ptr<Array> >* __new(const int32_t rows, const int32_t columns) {
+      typedef Array<Ptr<Array> > Outer;
+      Outer* addr = reinterpret_cast<Outer*>(
+        ReferenceArray::__new(rows, columns, &Outer::__slab_vtable, &__slab_vtable));
+#ifdef QIMPP_STATS
+      for (int32_t i = 0; i < rows; i++) {
+        stats::allocated(addr->__data()[i].raw(), sizeof(Array) + columns * sizeof(T));
+      }
+#endif
+      return QIMPP_STAT_ALLOCATION(addr, sizeof(Outer) + rows * sizeof(Ptr<Array>));
+    }
+
+    static void __slab_delete(Array* addr) {
+      ReferenceArray::__slab_delete(reinterpret_cast<ReferenceArray*>(addr));
+    }
+
+    T* __data() {
+      return reinterpret_cast<T*>(this + 1);
+    }
+
+    const T* __data() const {
+      return reinterpret_cast<const T*>(this + 1);
+    }
+
+    T& operator[](int32_t index) {
+      QIMPP_STAT(BOUNDS_CHECKS);
+      if (0 > index || index >= length) {
+        throw java::lang::ArrayIndexOutOfBoundsException();
+      }
+      return __data()[index];
+    }
+
+    const T& operator[](int32_t index) const {
+      QIMPP_STAT(BOUNDS_CHECKS);
+      if (0 > index || index >= length) {
+        throw java::lang::ArrayIndexOutOfBoundsException();
+      }
+      return __data()[index];
+    }
+
+    static java::lang::Class __class();
+
+    static Array_VT<T> __vtable;
+
+    static Array_VT<T> __slab_vtable;
+
+  private:
+    template <typename V>
+    friend struct Array;
+
+    Array(const int32_t length)
+    : __vptr(&__vtable), length(length) {
+    }
+  };
+
+  template <typename U>
+  Array_VT<Ptr<U> > Array<Ptr<U> >::__vtable;
+
+  template <typename U>
+  Array_VT<Ptr<U> > Array<Ptr<U> >::__slab_vtable(&Array<Ptr<U> >::__slab_delete, true);
+
+#endif
+
+  // Access an element of a two-dimensional array.  Rectangular arrays
+  // allocated in one block are indexed with a single address
+  // computation; other arrays go through their rows.
+  template <typename T>
+  inline T& element(const Ptr<Array<Ptr<Array<T> > > >& array,
+                    int32_t i, int32_t j) {
+    Array<Ptr<Array<T> > >* outer = array.raw();
+    if (&Array<Ptr<Array<T> > >::__slab_vtable == outer->__vptr) {
+      Slab* slab = Slab::of(outer);
+      if (slab->rectangular) {
+        return reinterpret_cast<Array<T>*>(slab->rows + i * slab->stride)
+          ->__data()[j];
+      }
+    }
+    return outer->__data()[i]->__data()[j];
+  }
+
+  // A copy of a value.  Generated code passes it to a reference
+  // parameter to evaluate an operand before others while keeping it
+  // alive until the end of the full expression.
+  template <typename T>
+  inline T value(const T& x) {
+    return x;
+  }
+
+  // Replace a row of a two-dimensional array.  A block whose row is
+  // replaced is no longer indexed directly.  The array may also be
+  // stored to as an Object[], so the block is found at runtime.
+  template <typename T, typename U>
+  inline Ptr<T> storeRow(const Ptr<Array<Ptr<T> > >& array,
+                         int32_t i, U row) {
+    Array<Ptr<T> >* outer = array.raw();
+    Slab::replaced(outer);
+    return outer->__data()[i] = row;
+  }
+
   // But where is the definition of __class()???
 
   // ========================================================================
@@ -373,6 +789,7 @@ namespace __rt {
   // Java string.
   inline java::lang::String literal(const char * s) {
     // C++ implicitly converts the C string to a std::string.
+    QIMPP_STAT(LITERALS);
     return new java::lang::__String(s);
   }
 
@@ -381,14 +798,27 @@ namespace __rt {
   // Template function to check against null values.
   template <typename T>
   void checkNotNull(T o) {
+    QIMPP_STAT(NULL_CHECKS);
     if (null() == o) {
       throw java::lang::NullPointerException();
     }
   }
 
+  // Template function to check that an element of a flattened array,
+  // which holds an object's fields inline, is not null.
+  template <typename V>
+  inline const V& present(const V& value) {
+    QIMPP_STAT(NULL_CHECKS);
+    if (!value.__present) {
+      throw java::lang::NullPointerException();
+    }
+    return value;
+  }
+
   // Template function to check array stores.
   template <typename T, typename U>
   void checkStore(Ptr<Array<T> > array, U object) {
+    QIMPP_STAT(STORE_CHECKS);
     if (null() != object) {
       java::lang::Class t1 = array->__vptr->getClass(array);
       java::lang::Class t2 = t1->__vptr->getComponentType(t1);
@@ -411,4 +841,184 @@ namespace __rt {
     return T(object);
   }
 
+  // ========================================================================
+
+  // The inline versions of java.lang methods that qimpp.Intrinsics
+  // replaces calls with.
+
+  // java.lang.String.length()
+  inline int32_t length(const java::lang::String& s) {
+    checkNotNull(s);
+    return s->data.length();
+  }
+
+  // java.lang.String.charAt()
+  inline char charAt(const java::lang::String& s, int32_t idx) {
+    checkNotNull(s);
+    QIMPP_STAT(BOUNDS_CHECKS);
+    if (0 > idx || idx >= static_cast<int32_t>(s->data.length())) {
+      throw java::lang::IndexOutOfBoundsException();
+    }
+    return s->data[idx];
+  }
+
+  // java.lang.Math.abs() for integers, which keeps the most negative
+  // value rather than overflowing.
+  inline int32_t abs(int32_t x) {
+    return 0 > x ? static_cast<int32_t>(0u - static_cast<uint32_t>(x)) : x;
+  }
+
+  inline int64_t abs(int64_t x) {
+    return 0 > x ? static_cast<int64_t>(0ull - static_cast<uint64_t>(x)) : x;
+  }
+
+  // java.lang.Math.min() for floating point: NaN if either is NaN, and
+  // -0.0 is less than 0.0.
+  template <typename T>
+  inline T minimum(T a, T b) {
+    if (a != a) return a;
+    if (0 == a && 0 == b) return std::signbit(a) ? a : b;
+    return a <= b ? a : b;
+  }
+
+  // java.lang.Math.max() for floating point.
+  template <typename T>
+  inline T maximum(T a, T b) {
+    if (a != a) return a;
+    if (0 == a && 0 == b) return std::signbit(a) ? b : a;
+    return a >= b ? a : b;
+  }
+
+  // Copy array elements of the same primitive or value type.  Overlapping
+  // ranges of the same array are copied as if through a temporary.
+  template <typename T, typename U>
+  struct ElementCopy {
+    static void copy(const Ptr<Array<T> >& src, int32_t srcPos,
+                     const Ptr<Array<U> >& dest, int32_t destPos,
+                     int32_t length) {
+      std::memmove(dest->__data() + destPos, src->__data() + srcPos,
+                   length * sizeof(T));
+    }
+  };
+
+  // Copy array elements that are references, checking each store.  As
+  // in Java, a failed store leaves the elements before it copied.  The
+  // destination may be the outer array of a block, whose rows are then
+  // replaced.
+  template <typename T, typename U>
+  struct ElementCopy<Ptr<T>, Ptr<U> > {
+    static void copy(const Ptr<Array<Ptr<T> > >& src, int32_t srcPos,
+                     const Ptr<Array<Ptr<U> > >& dest, int32_t destPos,
+                     int32_t length) {
+      if (0 < length) {
+        Slab::replaced(dest.raw());
+      }
+      Ptr<T>* from = src->__data() + srcPos;
+      Ptr<U>* to = dest->__data() + destPos;
+      if (static_cast<void*>(src.raw()) == static_cast<void*>(dest.raw())
+          && srcPos < destPos) {
+        for (int32_t i = length - 1; i >= 0; i--) {
+          checkStore(dest, from[i]);
+          to[i] = from[i];
+        }
+      } else {
+        for (int32_t i = 0; i < length; i++) {
+          checkStore(dest, from[i]);
+          to[i] = from[i];
+        }
+      }
+    }
+  };
+
+  // java.lang.System.arraycopy()
+  template <typename T, typename U>
+  inline void arraycopy(const Ptr<Array<T> >& src, int32_t srcPos,
+                        const Ptr<Array<U> >& dest, int32_t destPos,
+                        int32_t length) {
+    checkNotNull(src);
+    checkNotNull(dest);
+    QIMPP_STAT(BOUNDS_CHECKS);
+    if (0 > srcPos || 0 > destPos || 0 > length
+        || srcPos > src->length - length || destPos > dest->length - length) {
+      throw java::lang::ArrayIndexOutOfBoundsException();
+    }
+    ElementCopy<T, U>::copy(src, srcPos, dest, destPos, length);
+  }
+
+  // ========================================================================
+
+  // The counters of an instrumented build, which qimpp.ProfileData reads
+  // back to optimize a later translation.  Each counter registers itself
+  // when constructed, and the generated main() calls profile::start(),
+  // which writes all of them to $QIMPP_PROFILE, or qimpp.profile, at
+  // exit.  The counters are not atomic.
+  namespace profile {
+
+    // The calls of a method.
+    struct Method {
+      const char* key;
+      uint64_t calls;
+      Method* next;
+
+      Method(const char* key);
+    };
+
+    // How often a loop is entered and how often its body runs.
+    struct Loop {
+      const char* key;
+      uint64_t entries;
+      uint64_t iterations;
+      Loop* next;
+
+      Loop(const char* key);
+    };
+
+    // The receiver classes of a virtual call site: the first few classes,
+    // by vtable, and the calls on all other classes.
+    struct Site {
+      static const int WIDTH = 4;
+
+      const char* key;
+      const void* classes[WIDTH];
+      uint64_t calls[WIDTH];
+      uint64_t other;
+      Site* next;
+
+      Site(const char* key);
+
+      void record(const void* vtable) {
+        for (int i = 0; i < WIDTH; i++) {
+          if (vtable == classes[i]) {
+            calls[i]++;
+            return;
+          } else if (0 == classes[i]) {
+            classes[i] = vtable;
+            calls[i] = 1;
+            return;
+          }
+        }
+        other++;
+      }
+    };
+
+    // Record the receiver of a call, unless it is null.
+    template <typename T>
+    inline void receiver(Site& site, const Ptr<T>& object) {
+      if (0 != object.raw()) site.record(object->__vptr);
+    }
+
+    // Count an iteration if a loop condition holds.
+    inline bool trip(Loop& loop, bool condition) {
+      if (condition) loop.iterations++;
+      return condition;
+    }
+
+    // Write the profile when the program exits.
+    void start();
+
+    // Write the profile now.
+    void dump();
+
+  }
+
 }
@@ -0,0 +1,118 @@
+/*
+ * Counters of what a translated program does: the objects and arrays it
+ * allocates, the virtual calls it makes, the null, store and bounds
+ * checks it executes and the string literals it materializes.
+ *
+ * The counters exist only where QIMPP_STATS is defined, which the
+ * translator's -stats option does for out.h and, with -build, for the
+ * runtime.  Other builds must compile java_lang.cc with -DQIMPP_STATS
+ * as well.  Without it every QIMPP_STAT() is empty and nothing here is
+ * compiled, so an ordinary build pays nothing.
+ *
+ * Each thread counts into its own table, which is allocated in chunks
+ * of 4 KiB that are never moved or freed, so counting is a plain
+ * increment without atomics or sharing.  The generated main() calls
+ * stats::start(), after which the sum over all threads is written at
+ * exit and whenever the process receives SIGUSR1, to $QIMPP_STATS or
+ * qimpp-stats.csv; a name ending in .json selects JSON rather than CSV.
+ */
+
+#pragma once
+
+#include <stdint.h>
+#include <cstddef>
+
+#ifdef QIMPP_STATS
+
+// Count one of the fixed events.
+#define QIMPP_STAT(event) ::__rt::stats::count(::__rt::stats::event)
+
+// Count the allocation of an object or array and evaluate to it.
+#define QIMPP_STAT_ALLOCATION(object, bytes) \
+  ::__rt::stats::allocated(object, bytes)
+
+namespace __rt {
+  namespace stats {
+
+    // The fixed events, which occupy the first slots of every table.
+    enum Event {
+      NULL_CHECKS, STORE_CHECKS, BOUNDS_CHECKS, LITERALS, EVENTS
+    };
+
+    // What a counter counts.
+    enum Kind {
+      // The objects of a class allocated, and their bytes.
+      ALLOCATION,
+      // The virtual calls of a method.
+      CALL
+    };
+
+    // The slots in a chunk and the chunks in a table.
+    static const size_t CHUNK = 512;
+    static const size_t CHUNKS = 1024;
+
+    // A counter with a name, which reserves its slots in every thread's
+    // table when constructed.  Counters are static and never destroyed.
+    struct Counter {
+      Kind kind;
+      const char* name;
+      size_t slot;
+      Counter* next;
+
+      Counter(Kind kind, const char* name);
+    };
+
+    // The chunks of this thread's table, or null where not allocated yet.
+    extern __thread uint64_t* chunks[CHUNKS];
+
+    // Allocate a chunk of this thread's table.
+    uint64_t* allocate(size_t chunk);
+
+    inline uint64_t& slot(size_t i) {
+      uint64_t* chunk = chunks[i / CHUNK];
+      if (__builtin_expect(0 == chunk, 0)) chunk = allocate(i / CHUNK);
+      return chunk[i % CHUNK];
+    }
+
+    inline void count(Event event) {
+      slot(event)++;
+    }
+
+    inline void count(const Counter& counter) {
+      slot(counter.slot)++;
+    }
+
+    // The name of a class, copied for a counter.
+    const char* name(const java::lang::Class& k);
+
+    // Count an allocation of an object or array of type T, named after
+    // its class when first counted.
+    template <typename T>
+    inline T* allocated(T* object, size_t bytes) {
+      static const Counter counter(ALLOCATION, name(T::__class()));
+      slot(counter.slot)++;
+      slot(counter.slot + 1) += bytes;
+      return object;
+    }
+
+    template <typename T>
+    inline T* allocated(T* object) {
+      return allocated(object, sizeof(T));
+    }
+
+    // Write the counters at exit and on SIGUSR1.
+    void start();
+
+    // Write the counters now.  Only async-signal-safe functions are
+    // called, but counts of other running threads may be slightly off.
+    void dump();
+
+  }
+}
+
+#else
+
+#define QIMPP_STAT(event) ((void)0)
+#define QIMPP_STAT_ALLOCATION(object, bytes) (object)
+
+#endif
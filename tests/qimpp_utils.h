@@ -1,12 +1,12 @@
 #pragma once
 
 /** Overload for the stream operator for composition of java Strings */
-java::lang::String operator<<(java::lang::String left, java::lang::String right){
+inline java::lang::String operator<<(java::lang::String left, java::lang::String right){
   return __rt::literal((left->data + right->data).c_str());
 }
 
 /** toString method for booleans */
-java::lang::String str(bool value) {
+inline java::lang::String str(bool value) {
   if (value == 0)
     return __rt::literal("false");
   else
@@ -1,12 +1,33 @@
 #!/usr/bin/python
 """
 A simple Python testing suite, which uses qimmp.Translator
+
+Translator options are taken from QIMPP_OPTIONS, for example
+QIMPP_OPTIONS=-contiguousArrays ./runtests.py
+
+QIMPP_OPTIONS=-erasedArrays ./runtests.py runs the suite with erased
+arrays.  out.h then defines QIMPP_ERASED_ARRAYS before it includes
+java_lang.h, so java_lang.cc is compiled as usual.
+
+QIMPP_OPTIONS=-stats ./runtests.py counts what each test does.  The
+runtime's counters must then be compiled in, so java_lang.cc is compiled
+with -DQIMPP_STATS.
 """
 
 import os
 import re
 import sys
 
+# Translator options, such as "-contiguousArrays", from the environment
+options = os.environ.get("QIMPP_OPTIONS", "")
+if options:
+  options += " "
+
+# The compiler command, with the runtime's counters where -stats asks for them
+compiler = "g++ "
+if "-stats" in options.split():
+  compiler += "-DQIMPP_STATS "
+
 
 def runVerbose(filename):
 
@@ -18,11 +39,11 @@ def runVerbose(filename):
   os.system("pwd")  
   # Translate
 
-  os.system( "java qimpp.QimppTranslator qimpp/tests/" + filename +" > translator.output" )
+  os.system( "java qimpp.QimppTranslator " + options + "qimpp/tests/" + filename +" > translator.output" )
 
   # Compile
 
-  compile_succeded = (0 == os.system("g++ out.cc java_lang.cc"))
+  compile_succeded = (0 == os.system(compiler + "out.cc java_lang.cc"))
 
   # Run test and put output into file
   os.system( "java qimpp.tests." + filename.split(".")[0] + " > java.output" ) 
@@ -51,14 +72,14 @@ def runQuick(filenames):
     total += 1
     print "Testing " + filename + ": " ,
     
-    translate_succeeded = (0 == os.system( "java qimpp.QimppTranslator qimpp/tests/" + filename +" > translator.output 2> translator.err" ))
+    translate_succeeded = (0 == os.system( "java qimpp.QimppTranslator " + options + "qimpp/tests/" + filename +" > translator.output 2> translator.err" ))
     
     if not translate_succeeded:
       print "FAIL - translation"
       fail_translate += 1
       continue
       
-    compile_succeded = (0 == os.system("g++ out.cc java_lang.cc 1> gcc.output 2> gcc.err"))
+    compile_succeded = (0 == os.system(compiler + "out.cc java_lang.cc 1> gcc.output 2> gcc.err"))
     
     if not compile_succeded:
       print "FAIL - compilation"